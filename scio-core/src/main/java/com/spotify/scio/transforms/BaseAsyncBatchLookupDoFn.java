@@ -22,24 +22,28 @@ import com.google.common.cache.Cache;
 import com.spotify.scio.transforms.BaseAsyncLookupDoFn.CacheSupplier;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
-import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
+import org.apache.beam.sdk.metrics.Distribution;
+import org.apache.beam.sdk.metrics.Gauge;
+import org.apache.beam.sdk.metrics.Metrics;
 import org.apache.beam.sdk.transforms.DoFn;
 import org.apache.beam.sdk.transforms.SerializableFunction;
 import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
 import org.apache.beam.sdk.values.KV;
 import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.base.Preconditions;
 import org.apache.commons.lang3.tuple.Pair;
-import org.apache.commons.lang3.tuple.Triple;
+import org.joda.time.Duration;
 import org.joda.time.Instant;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -63,6 +67,13 @@ public abstract class BaseAsyncBatchLookupDoFn<
 
   private static final Logger LOG = LoggerFactory.getLogger(BaseAsyncBatchLookupDoFn.class);
 
+  // sends batches once they lingered, while no element arrives, shared by all DoFns of a worker.
+  // sends run on a separate pool, as they may block on the concurrency limiter
+  private static final ScheduledExecutorService LINGER_TIMER =
+      Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "async-batch-linger-timer"));
+  private static final ExecutorService LINGER_SENDERS =
+      Executors.newCachedThreadPool(r -> daemon(r, "async-batch-linger-sender"));
+
   // Data structures for handling async requests
   private final int batchSize;
   private final SerializableFunction<List<Input>, BatchRequest> batchRequestFn;
@@ -71,14 +82,40 @@ public abstract class BaseAsyncBatchLookupDoFn<
   private final int maxPendingRequests;
   private final CacheSupplier<String, Output> cacheSupplier;
 
-  private final Semaphore semaphore;
-  private final ConcurrentMap<UUID, FutureType> futures = new ConcurrentHashMap<>();
-  private final ConcurrentMap<String, List<Triple<Input, Instant, BoundedWindow>>> inputs =
+  // Optional batching limits, disabled when 0
+  private long lingerMillis = 0;
+  private long maxBatchBytes = 0;
+  private SerializableFunction<Input, Long> weigherFn = null;
+  private int minBatchSize = 0;
+  private long targetLatencyMillis = 0;
+  // batch size adapted to the response latency, between minBatchSize and batchSize
+  private final AtomicInteger adaptiveBatchSize;
+
+  private final Distribution batchSizes =
+      Metrics.distribution(BaseAsyncBatchLookupDoFn.class, "BatchSize");
+  private final Distribution batchLatencyMillis =
+      Metrics.distribution(BaseAsyncBatchLookupDoFn.class, "BatchLatencyMillis");
+  private final Gauge adaptiveBatchSizeGauge =
+      Metrics.gauge(BaseAsyncBatchLookupDoFn.class, "AdaptiveBatchSize");
+  // metrics can only be reported from the bundle thread, not from callbacks or linger sends
+  private final LatencyAccumulator latencies = new LatencyAccumulator();
+  private final LatencyAccumulator sentBatchSizes = new LatencyAccumulator();
+
+  private ConcurrencyLimiter limiter;
+  private final ConcurrentMap<String, List<ResultRing.Slot<Input, TryWrapper, FutureType>>> inputs =
       new ConcurrentHashMap<>();
 
+  // also guards the pending batch against linger sends
   private final Queue<Input> batch = new ArrayDeque<>();
-  private final ConcurrentLinkedQueue<Pair<UUID, List<Result>>> results =
-      new ConcurrentLinkedQueue<>();
+  // slots added since the last request, completed by it or by a pending request for the same ID
+  private final List<ResultRing.Slot<Input, TryWrapper, FutureType>> batchSlots = new ArrayList<>();
+  private transient ResultRing<Input, TryWrapper, FutureType> results;
+  private long batchBytes;
+  private long batchStartNanos;
+  // incremented with every request, so that a linger send only sends the batch it was set for
+  private long batchId;
+  private transient ScheduledFuture<?> lingerTimer;
+  private volatile Exception lingerFailure;
   private long inputCount;
   private long outputCount;
 
@@ -109,8 +146,74 @@ public abstract class BaseAsyncBatchLookupDoFn<
     this.batchResponseFn = batchResponseFn;
     this.idExtractorFn = idExtractorFn;
     this.maxPendingRequests = maxPendingRequests;
-    this.semaphore = new Semaphore(maxPendingRequests);
+    this.limiter = ConcurrencyLimiter.fixed(maxPendingRequests);
     this.cacheSupplier = cacheSupplier;
+    this.adaptiveBatchSize = new AtomicInteger(batchSize);
+  }
+
+  /**
+   * Sends a batch once its first element waited for {@code linger}, in addition to when it is full.
+   * A batch lingering while no element arrives is sent by a background thread, and its outputs are
+   * emitted with the next element or at the end of the bundle.
+   *
+   * @param linger maximum time an element waits for its batch to fill up.
+   */
+  public BaseAsyncBatchLookupDoFn<
+          Input, BatchRequest, BatchResponse, Output, ClientType, FutureType, TryWrapper>
+      withLinger(Duration linger) {
+    Preconditions.checkArgument(linger.getMillis() > 0, "linger must be positive");
+    this.lingerMillis = linger.getMillis();
+    return this;
+  }
+
+  /**
+   * Sends a batch before its elements weigh more than {@code maxBatchBytes}, in addition to when it
+   * has {@code batchSize} elements. A single element heavier than the limit is sent alone.
+   *
+   * @param maxBatchBytes maximum weight of a batch.
+   * @param weigherFn weight of an element in bytes, e.g. its serialized size.
+   */
+  public BaseAsyncBatchLookupDoFn<
+          Input, BatchRequest, BatchResponse, Output, ClientType, FutureType, TryWrapper>
+      withMaxBatchBytes(long maxBatchBytes, SerializableFunction<Input, Long> weigherFn) {
+    Preconditions.checkArgument(maxBatchBytes > 0, "maxBatchBytes must be positive");
+    this.maxBatchBytes = maxBatchBytes;
+    this.weigherFn = requireNonNull(weigherFn, "weigherFn must not be null");
+    return this;
+  }
+
+  /**
+   * Adapts the batch size to the response latency, between {@code minBatchSize} and {@code
+   * batchSize}. The batch size grows by 10% after each response faster than {@code
+   * targetLatency}, and is halved after each slower or failed response.
+   *
+   * @param minBatchSize minimum batch size.
+   * @param targetLatency response latency to stay under.
+   */
+  public BaseAsyncBatchLookupDoFn<
+          Input, BatchRequest, BatchResponse, Output, ClientType, FutureType, TryWrapper>
+      withAdaptiveBatchSize(int minBatchSize, Duration targetLatency) {
+    Preconditions.checkArgument(
+        minBatchSize > 0 && minBatchSize <= batchSize,
+        "minBatchSize must be positive and at most batchSize");
+    Preconditions.checkArgument(targetLatency.getMillis() > 0, "targetLatency must be positive");
+    this.minBatchSize = minBatchSize;
+    this.targetLatencyMillis = targetLatency.getMillis();
+    return this;
+  }
+
+  /**
+   * Limits pending batch requests with {@code limiter} instead of a fixed {@code
+   * maxPendingRequests}, e.g. {@link ConcurrencyLimiter#aimd} to adapt the limit to the latency and
+   * errors of the backend.
+   *
+   * @param limiter concurrency limiter, cloned with every DoFn.
+   */
+  public BaseAsyncBatchLookupDoFn<
+          Input, BatchRequest, BatchResponse, Output, ClientType, FutureType, TryWrapper>
+      withConcurrencyLimiter(ConcurrencyLimiter limiter) {
+    this.limiter = requireNonNull(limiter, "limiter must not be null");
+    return this;
   }
 
   protected abstract ClientType newClient();
@@ -136,14 +239,25 @@ public abstract class BaseAsyncBatchLookupDoFn<
 
   @StartBundle
   public void startBundle(StartBundleContext context) {
-    futures.clear();
+    if (results == null) {
+      results =
+          new ResultRing<>(
+              (int) Math.min((long) batchSize * maxPendingRequests, Integer.MAX_VALUE));
+    }
     results.clear();
     inputs.clear();
-    batch.clear();
+    synchronized (batch) {
+      // invalidates linger sends of a failed bundle
+      batchId++;
+      cancelLinger();
+      batch.clear();
+      batchSlots.clear();
+      batchBytes = 0;
+    }
+    lingerFailure = null;
     inputCount = 0;
     outputCount = 0;
-    semaphore.drainPermits();
-    semaphore.release(maxPendingRequests);
+    limiter.reset();
   }
 
   @ProcessElement
@@ -153,7 +267,8 @@ public abstract class BaseAsyncBatchLookupDoFn<
       OutputReceiver<KV<Input, TryWrapper>> out,
       BoundedWindow window) {
     inputCount++;
-    flush(r -> out.output(KV.of(r.input, r.output)));
+    checkLingerFailure();
+    flush(r -> out.output(KV.of(r.getInput(), r.getOutput())));
     final Cache<String, Output> cache = getResourceCache();
 
     try {
@@ -167,20 +282,40 @@ public abstract class BaseAsyncBatchLookupDoFn<
         out.output(KV.of(input, success(cached)));
         outputCount++;
       } else {
-        inputs.compute(
-            id,
-            (k, v) -> {
-              if (v == null) {
-                v = new LinkedList<>();
-                batch.add(input);
-              }
-              v.add(Triple.of(input, timestamp, window));
-              return v;
-            });
-      }
-
-      if (batch.size() >= batchSize) {
-        createRequest();
+        final long weight = maxBatchBytes > 0 ? weigherFn.apply(input) : 0L;
+        final ResultRing.Slot<Input, TryWrapper, FutureType> slot =
+            results.add(input, timestamp, window);
+        synchronized (batch) {
+          if (maxBatchBytes > 0
+              && !batch.isEmpty()
+              && batchBytes + weight > maxBatchBytes
+              && !inputs.containsKey(id)) {
+            // the element would start a new batch
+            createRequest();
+          }
+
+          batchSlots.add(slot);
+          final int size = batch.size();
+          inputs.compute(
+              id,
+              (k, v) -> {
+                if (v == null) {
+                  v = new ArrayList<>();
+                  batch.add(input);
+                }
+                v.add(slot);
+                return v;
+              });
+          if (batch.size() > size) {
+            if (size == 0) startBatch();
+            batchBytes += weight;
+          }
+
+          if (!batch.isEmpty() && isBatchReady()) {
+            createRequest();
+          }
+        }
+        reportMetrics();
       }
 
     } catch (InterruptedException e) {
@@ -198,10 +333,15 @@ public abstract class BaseAsyncBatchLookupDoFn<
     // send remaining
     try {
       /** @todo handle exception properly * */
-      createRequest();
-      if (!futures.isEmpty()) {
+      synchronized (batch) {
+        if (!batch.isEmpty()) {
+          createRequest();
+        }
+      }
+      checkLingerFailure();
+      if (!results.isEmpty()) {
         // Block until all pending futures are complete
-        waitForFutures(futures.values());
+        waitForFutures(results.pendingFutures());
       }
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
@@ -211,7 +351,8 @@ public abstract class BaseAsyncBatchLookupDoFn<
       LOG.error("Failed to process futures", e);
       throw new RuntimeException("Failed to process futures", e);
     }
-    flush(r -> context.output(KV.of(r.input, r.output), r.timestamp, r.window));
+    flush(r -> context.output(KV.of(r.getInput(), r.getOutput()), r.getTimestamp(), r.getWindow()));
+    reportMetrics();
 
     // Make sure all requests are processed
     Preconditions.checkState(
@@ -221,139 +362,160 @@ public abstract class BaseAsyncBatchLookupDoFn<
         outputCount);
   }
 
+  private void startBatch() {
+    batchStartNanos = System.nanoTime();
+    if (lingerMillis > 0) {
+      final long id = batchId;
+      lingerTimer =
+          LINGER_TIMER.schedule(
+              () -> LINGER_SENDERS.execute(() -> sendLingering(id)),
+              lingerMillis,
+              TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void sendLingering(long id) {
+    try {
+      synchronized (batch) {
+        if (batchId == id && !batch.isEmpty()) {
+          createRequest();
+        }
+      }
+    } catch (Exception e) {
+      // the slots of the batch never complete, so the bundle must fail
+      lingerFailure = e;
+    }
+  }
+
+  private void cancelLinger() {
+    if (lingerTimer != null) {
+      lingerTimer.cancel(false);
+      lingerTimer = null;
+    }
+  }
+
+  private void checkLingerFailure() {
+    final Exception failure = lingerFailure;
+    if (failure != null) {
+      throw new RuntimeException("Failed to send a lingering batch", failure);
+    }
+  }
+
+  private void reportMetrics() {
+    sentBatchSizes.reportTo(batchSizes);
+    latencies.reportTo(batchLatencyMillis);
+    limiter.reportMetrics();
+    if (targetLatencyMillis > 0) {
+      adaptiveBatchSizeGauge.set(adaptiveBatchSize.get());
+    }
+  }
+
+  private static Thread daemon(Runnable runnable, String name) {
+    final Thread thread = new Thread(runnable, name);
+    thread.setDaemon(true);
+    return thread;
+  }
+
+  private boolean isBatchReady() {
+    final int size = targetLatencyMillis > 0 ? adaptiveBatchSize.get() : batchSize;
+    return batch.size() >= size
+        || (maxBatchBytes > 0 && batchBytes >= maxBatchBytes)
+        || (lingerMillis > 0
+            && System.nanoTime() - batchStartNanos >= TimeUnit.MILLISECONDS.toNanos(lingerMillis));
+  }
+
+  // Additive increase while responses are fast, multiplicative decrease otherwise
+  private void adaptBatchSize(long latencyMillis, boolean failed) {
+    if (targetLatencyMillis <= 0) return;
+    adaptiveBatchSize.updateAndGet(
+        current ->
+            failed || latencyMillis > targetLatencyMillis
+                ? Math.max(minBatchSize, current / 2)
+                : Math.min(batchSize, current + Math.max(1, current / 10)));
+  }
+
+  // called with the batch lock held, by the bundle thread or a linger send
   private void createRequest() throws InterruptedException {
     final ClientType client = getResourceClient();
     final Cache<String, Output> cache = getResourceCache();
-    final UUID key = UUID.randomUUID();
     final List<Input> elems = new ArrayList<>(batch);
     final BatchRequest request = batchRequestFn.apply(elems);
+    sentBatchSizes.add(elems.size());
 
-    // semaphore release is not performed on exception.
-    // let beam retry the bundle. startBundle will reset the semaphore to the
-    // maxPendingRequests permits.
-    semaphore.acquire();
+    // limiter release is not performed on exception.
+    // let beam retry the bundle. startBundle will reset the limiter.
+    limiter.acquire();
+    final long start = System.nanoTime();
     final FutureType future = asyncLookup(client, request);
-    // handle cache in fire & forget way
-    handleCache(future, cache);
-    // make sure semaphore are released when waiting for futures in finishBundle
-    final FutureType unlockedFuture = handleSemaphore(future);
-
-    futures.put(key, handleOutput(unlockedFuture, elems, key));
-    batch.clear();
-  }
-
-  private FutureType handleOutput(FutureType future, List<Input> batchInput, UUID key) {
-    return addCallback(
-        future,
-        response -> {
-          batchResponseFn
-              .apply(response)
-              .forEach(
-                  pair -> {
-                    final String id = pair.getLeft();
-                    final Output output = pair.getRight();
-                    final List<Triple<Input, Instant, BoundedWindow>> processInputs =
-                        inputs.remove(id);
-                    if (processInputs == null) {
-                      // no need to fail future here as we're only interested in its completion
-                      // finishBundle will fail the checkState as we do not produce any result
-                      LOG.error(
-                          "The ID '{}' received in the gRPC batch response does not "
-                              + "match any IDs extracted via the idExtractorFn for the requested  "
-                              + "batch sent to the gRPC endpoint. Please ensure that the IDs returned "
-                              + "from the gRPC endpoints match the IDs extracted using the provided"
-                              + "idExtractorFn for the same input.",
-                          id);
-                    } else {
-                      final List<Result> batchResult =
-                          processInputs.stream()
-                              .map(
-                                  processInput -> {
-                                    final Input input = processInput.getLeft();
-                                    final Instant ts = processInput.getMiddle();
-                                    final BoundedWindow w = processInput.getRight();
-                                    return new Result(input, success(output), ts, w);
-                                  })
-                              .collect(Collectors.toList());
-                      results.add(Pair.of(key, batchResult));
+    // a single callback handles the cache, the limiter and the outputs
+    final FutureType unlockedFuture =
+        addCallback(
+            future,
+            response -> {
+              final long latencyNanos = System.nanoTime() - start;
+              final long latencyMillis = TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+              latencies.add(latencyMillis);
+              adaptBatchSize(latencyMillis, false);
+              batchResponseFn
+                  .apply(response)
+                  .forEach(
+                      pair -> {
+                        final String id = pair.getLeft();
+                        final Output output = pair.getRight();
+                        cache.put(id, output);
+                        final List<ResultRing.Slot<Input, TryWrapper, FutureType>> slots =
+                            inputs.remove(id);
+                        if (slots == null) {
+                          // no need to fail future here as we're only interested in its
+                          // completion finishBundle will fail the checkState as we do not
+                          // produce any result
+                          LOG.error(
+                              "The ID '{}' received in the gRPC batch response does not "
+                                  + "match any IDs extracted via the idExtractorFn for the "
+                                  + "requested batch sent to the gRPC endpoint. Please ensure "
+                                  + "that the IDs returned from the gRPC endpoints match the IDs "
+                                  + "extracted using the provided idExtractorFn for the same "
+                                  + "input.",
+                              id);
+                        } else {
+                          final TryWrapper result = success(output);
+                          slots.forEach(slot -> slot.accept(result));
+                        }
+                      });
+              limiter.release(latencyNanos, false);
+              return null;
+            },
+            throwable -> {
+              final long latencyNanos = System.nanoTime() - start;
+              final long latencyMillis = TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+              latencies.add(latencyMillis);
+              adaptBatchSize(latencyMillis, true);
+              limiter.release(latencyNanos, true);
+              final TryWrapper result = failure(throwable);
+              elems.forEach(
+                  element -> {
+                    final List<ResultRing.Slot<Input, TryWrapper, FutureType>> slots =
+                        inputs.remove(idExtractorFn.apply(element));
+                    if (slots != null) {
+                      slots.forEach(slot -> slot.accept(result));
                     }
                   });
-          return null;
-        },
-        throwable -> {
-          batchInput.forEach(
-              element -> {
-                final String id = idExtractorFn.apply(element);
-                final List<Result> batchResult =
-                    inputs.remove(id).stream()
-                        .map(
-                            processInput -> {
-                              final Input input = processInput.getLeft();
-                              final Instant ts = processInput.getMiddle();
-                              final BoundedWindow w = processInput.getRight();
-                              return new Result(input, failure(throwable), ts, w);
-                            })
-                        .collect(Collectors.toList());
-                results.add(Pair.of(key, batchResult));
-              });
-          return null;
-        });
-  }
-
-  private FutureType handleSemaphore(FutureType future) {
-    return addCallback(
-        future,
-        ouput -> {
-          semaphore.release();
-          return null;
-        },
-        throwable -> {
-          semaphore.release();
-          return null;
-        });
-  }
+              return null;
+            });
 
-  private FutureType handleCache(FutureType future, Cache<String, Output> cache) {
-    return addCallback(
-        future,
-        response -> {
-          batchResponseFn
-              .apply(response)
-              .forEach(
-                  pair -> {
-                    final String id = pair.getLeft();
-                    final Output output = pair.getRight();
-                    cache.put(id, output);
-                  });
-          return null;
-        },
-        throwable -> null);
+    batchSlots.forEach(slot -> slot.setFuture(unlockedFuture));
+    batchSlots.clear();
+    batch.clear();
+    batchBytes = 0;
+    batchId++;
+    cancelLinger();
   }
 
   // Flush pending elements errors and results
-  private void flush(Consumer<Result> outputFn) {
-    Pair<UUID, List<Result>> r = results.poll();
-    while (r != null) {
-      final UUID key = r.getKey();
-      final List<Result> batchResult = r.getValue();
-      batchResult.forEach(outputFn);
-      outputCount += batchResult.size();
-      futures.remove(key);
-      r = results.poll();
-    }
-  }
-
-  private class Result {
-    private Input input;
-    private TryWrapper output;
-    private Instant timestamp;
-    private BoundedWindow window;
-
-    Result(Input input, TryWrapper output, Instant timestamp, BoundedWindow window) {
-      this.input = input;
-      this.output = output;
-      this.timestamp = timestamp;
-      this.window = window;
+  private void flush(Consumer<ResultRing.Slot<Input, TryWrapper, FutureType>> outputFn) {
+    // a linger send may complete slots before setting their future, so they're drained after it
+    synchronized (batch) {
+      outputCount += results.drain(outputFn);
     }
   }
 }
@@ -19,17 +19,21 @@ package com.spotify.scio.transforms;
 
 import com.google.common.cache.AbstractCache;
 import com.google.common.cache.Cache;
+import com.spotify.scio.transforms.SharedCacheSupplier.SharedCache;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
-import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 import javax.annotation.CheckForNull;
+import org.apache.beam.sdk.metrics.Counter;
+import org.apache.beam.sdk.metrics.Distribution;
+import org.apache.beam.sdk.metrics.Metrics;
 import org.apache.beam.sdk.transforms.DoFn;
 import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
 import org.apache.beam.sdk.values.KV;
@@ -59,13 +63,30 @@ public abstract class BaseAsyncLookupDoFn<A, B, C, F, T>
 
   // Data structures for handling async requests
   private final int maxPendingRequests;
-  private final Semaphore semaphore;
-  private final ConcurrentMap<UUID, F> futures = new ConcurrentHashMap<>();
+  private ConcurrencyLimiter limiter;
   private final ConcurrentMap<A, F> inFlightRequests = new ConcurrentHashMap<>();
-  private final ConcurrentLinkedQueue<Pair<UUID, Result>> results = new ConcurrentLinkedQueue<>();
+  private transient ResultRing<A, T, F> results;
+  // background refreshes of shared cache entries, not tied to an output
+  private final List<F> refreshes = new ArrayList<>();
   private long inputCount;
   private long outputCount;
 
+  // Time spent in finishBundle waiting for the requests still in flight, see PipelinedAsyncLookup
+  private final Distribution bundleDrainWaitMillis =
+      Metrics.distribution(BaseAsyncLookupDoFn.class, "BundleDrainWaitMillis");
+
+  // Shared cache metrics, see SharedCacheSupplier
+  private final Counter cacheHits = Metrics.counter(BaseAsyncLookupDoFn.class, "CacheHits");
+  private final Counter cacheMisses = Metrics.counter(BaseAsyncLookupDoFn.class, "CacheMisses");
+  private final Counter negativeCacheHits =
+      Metrics.counter(BaseAsyncLookupDoFn.class, "NegativeCacheHits");
+  private final Counter cacheRefreshes =
+      Metrics.counter(BaseAsyncLookupDoFn.class, "CacheRefreshes");
+  private final Distribution cacheLoadMillis =
+      Metrics.distribution(BaseAsyncLookupDoFn.class, "CacheLoadMillis");
+  // metrics can only be reported from the bundle thread, not from callbacks
+  private final LatencyAccumulator loadLatencies = new LatencyAccumulator();
+
   /** Creates the client. */
   protected abstract C newClient();
 
@@ -120,7 +141,19 @@ public abstract class BaseAsyncLookupDoFn<A, B, C, F, T>
     this.maxPendingRequests = maxPendingRequests;
     this.deduplicate = deduplicate;
     this.cacheSupplier = cacheSupplier;
-    this.semaphore = new Semaphore(maxPendingRequests);
+    this.limiter = ConcurrencyLimiter.fixed(maxPendingRequests);
+  }
+
+  /**
+   * Limits pending requests with {@code limiter} instead of a fixed {@code maxPendingRequests},
+   * e.g. {@link ConcurrencyLimiter#aimd} to adapt the limit to the latency and errors of the
+   * backend.
+   *
+   * @param limiter concurrency limiter, cloned with every DoFn.
+   */
+  public BaseAsyncLookupDoFn<A, B, C, F, T> withConcurrencyLimiter(ConcurrencyLimiter limiter) {
+    this.limiter = Objects.requireNonNull(limiter, "limiter must not be null");
+    return this;
   }
 
   @Override
@@ -138,16 +171,17 @@ public abstract class BaseAsyncLookupDoFn<A, B, C, F, T>
 
   @StartBundle
   public void startBundle(StartBundleContext context) {
-    futures.clear();
+    if (results == null) {
+      results = new ResultRing<>(maxPendingRequests);
+    }
     results.clear();
+    refreshes.clear();
     inFlightRequests.clear();
     inputCount = 0;
     outputCount = 0;
-    semaphore.drainPermits();
-    semaphore.release(maxPendingRequests);
+    limiter.reset();
   }
 
-  @SuppressWarnings("unchecked")
   @ProcessElement
   public void processElement(
       @Element A input,
@@ -155,33 +189,35 @@ public abstract class BaseAsyncLookupDoFn<A, B, C, F, T>
       OutputReceiver<KV<A, T>> out,
       BoundedWindow window) {
     inputCount++;
-    flush(r -> out.output(KV.of(r.input, r.output)));
+    flush(r -> out.output(KV.of(r.getInput(), r.getOutput())));
     final C client = getResourceClient();
     final Cache<A, B> cache = getResourceCache();
 
     try {
-      final UUID key = UUID.randomUUID();
       final B cached = cache.getIfPresent(input);
-      final F inFlight = inFlightRequests.get(input);
       if (cached != null) {
         // found in cache
         out.output(KV.of(input, success(cached)));
         outputCount++;
-      } else if (inFlight != null) {
-        // pending request for the same element
-        futures.put(key, handleOutput(inFlight, input, key, timestamp, window));
-      } else {
-        // semaphore release is not performed on exception.
-        // let beam retry the bundle. startBundle will reset the semaphore to the
-        // maxPendingRequests permits.
-        semaphore.acquire();
-        final F future = asyncLookup(client, input);
-        // handle cache in fire & forget way
-        handleCache(future, input, cache);
-        // make sure semaphore are released when waiting for futures in finishBundle
-        final F unlockedFuture = handleSemaphore(future);
-        futures.put(key, handleOutput(unlockedFuture, input, key, timestamp, window));
+        if (cache instanceof SharedCache) {
+          cacheHits.inc();
+          refreshIfStale(client, (SharedCache<A, B>) cache, input);
+        }
+        return;
       }
+
+      if (cache instanceof SharedCache) {
+        final Throwable cachedFailure = ((SharedCache<A, B>) cache).getFailureIfPresent(input);
+        if (cachedFailure != null) {
+          out.output(KV.of(input, failure(cachedFailure)));
+          outputCount++;
+          negativeCacheHits.inc();
+          return;
+        }
+        cacheMisses.inc();
+      }
+      final ResultRing.Slot<A, T, F> slot = results.add(input, timestamp, window);
+      slot.setFuture(lookup(client, cache, input, slot));
     } catch (InterruptedException e) {
       LOG.error("Failed to acquire semaphore", e);
       throw new RuntimeException("Failed to acquire semaphore", e);
@@ -191,12 +227,97 @@ public abstract class BaseAsyncLookupDoFn<A, B, C, F, T>
     }
   }
 
+  /**
+   * Looks up an input missing from the cache, sharing the pending request for the same input if
+   * there is one, and passes the wrapped lookup value to {@code onComplete}. The returned future
+   * completes once the cache, the limiter and {@code onComplete} are handled.
+   */
+  F lookup(C client, Cache<A, B> cache, A input, Consumer<T> onComplete)
+      throws InterruptedException {
+    final F inFlight = inFlightRequests.get(input);
+    if (inFlight != null) {
+      // pending request for the same element
+      return addCallback(
+          inFlight,
+          output -> {
+            onComplete.accept(success(output));
+            return null;
+          },
+          throwable -> {
+            onComplete.accept(failure(throwable));
+            return null;
+          });
+    }
+    // limiter release is not performed on exception.
+    // let beam retry the bundle. startBundle will reset the limiter.
+    limiter.acquire();
+    limiter.reportMetrics();
+    final long start = System.nanoTime();
+    final F future = asyncLookup(client, input);
+    final boolean shouldRemove =
+        deduplicate && (inFlightRequests.putIfAbsent(input, future) == null);
+    final SharedCache<A, B> sharedCache =
+        cache instanceof SharedCache ? (SharedCache<A, B>) cache : null;
+    // a single callback handles the cache, the limiter and the output
+    return addCallback(
+        future,
+        output -> {
+          final long latencyNanos = System.nanoTime() - start;
+          cache.put(input, output);
+          if (shouldRemove) inFlightRequests.remove(input);
+          limiter.release(latencyNanos, false);
+          if (sharedCache != null) loadLatencies.add(TimeUnit.NANOSECONDS.toMillis(latencyNanos));
+          onComplete.accept(success(output));
+          return null;
+        },
+        throwable -> {
+          final long latencyNanos = System.nanoTime() - start;
+          if (sharedCache != null) sharedCache.putFailure(input, throwable);
+          if (shouldRemove) inFlightRequests.remove(input);
+          limiter.release(latencyNanos, true);
+          if (sharedCache != null) loadLatencies.add(TimeUnit.NANOSECONDS.toMillis(latencyNanos));
+          onComplete.accept(failure(throwable));
+          return null;
+        });
+  }
+
+  /**
+   * Looks up a cached input again in the background once its shared cache entry is due for a
+   * refresh. The cached value is kept if the refresh fails.
+   */
+  private void refreshIfStale(C client, SharedCache<A, B> cache, A input)
+      throws InterruptedException {
+    if (!cache.shouldRefresh(input)) {
+      return;
+    }
+    cacheRefreshes.inc();
+    limiter.acquire();
+    limiter.reportMetrics();
+    final long start = System.nanoTime();
+    refreshes.add(
+        addCallback(
+            asyncLookup(client, input),
+            output -> {
+              cache.put(input, output);
+              limiter.release(System.nanoTime() - start, false);
+              return null;
+            },
+            throwable -> {
+              limiter.release(System.nanoTime() - start, true);
+              return null;
+            }));
+  }
+
   @FinishBundle
   public void finishBundle(FinishBundleContext context) {
-    if (!futures.isEmpty()) {
+    if (!results.isEmpty() || !refreshes.isEmpty()) {
       try {
         // Block until all pending futures are complete
-        waitForFutures(futures.values());
+        final long start = System.currentTimeMillis();
+        final List<F> futures = results.pendingFutures();
+        futures.addAll(refreshes);
+        waitForFutures(futures);
+        bundleDrainWaitMillis.update(System.currentTimeMillis() - start);
       } catch (InterruptedException e) {
         Thread.currentThread().interrupt();
         LOG.error("Failed to process futures", e);
@@ -206,7 +327,9 @@ public abstract class BaseAsyncLookupDoFn<A, B, C, F, T>
         throw new RuntimeException("Failed to process futures", e);
       }
     }
-    flush(r -> context.output(KV.of(r.input, r.output), r.timestamp, r.window));
+    flush(r -> context.output(KV.of(r.getInput(), r.getOutput()), r.getTimestamp(), r.getWindow()));
+    refreshes.clear();
+    loadLatencies.reportTo(cacheLoadMillis);
 
     // Make sure all requests are processed
     Preconditions.checkState(
@@ -216,75 +339,9 @@ public abstract class BaseAsyncLookupDoFn<A, B, C, F, T>
         outputCount);
   }
 
-  private F handleOutput(F future, A input, UUID key, Instant timestamp, BoundedWindow window) {
-    return addCallback(
-        future,
-        output -> {
-          final Result result = new Result(input, success(output), timestamp, window);
-          results.add(Pair.of(key, result));
-          return null;
-        },
-        throwable -> {
-          final Result result = new Result(input, failure(throwable), timestamp, window);
-          results.add(Pair.of(key, result));
-          return null;
-        });
-  }
-
-  private F handleSemaphore(F future) {
-    return addCallback(
-        future,
-        ouput -> {
-          semaphore.release();
-          return null;
-        },
-        throwable -> {
-          semaphore.release();
-          return null;
-        });
-  }
-
-  private F handleCache(F future, A input, Cache<A, B> cache) {
-    final boolean shouldRemove =
-        deduplicate && (inFlightRequests.putIfAbsent(input, future) == null);
-    return addCallback(
-        future,
-        output -> {
-          cache.put(input, output);
-          if (shouldRemove) inFlightRequests.remove(input);
-          return null;
-        },
-        throwable -> {
-          if (shouldRemove) inFlightRequests.remove(input);
-          return null;
-        });
-  }
-
   // Flush pending errors and results
-  private void flush(Consumer<Result> outputFn) {
-    Pair<UUID, Result> r = results.poll();
-    while (r != null) {
-      final UUID key = r.getKey();
-      final Result result = r.getValue();
-      outputFn.accept(result);
-      outputCount++;
-      futures.remove(key);
-      r = results.poll();
-    }
-  }
-
-  private class Result {
-    private A input;
-    private T output;
-    private Instant timestamp;
-    private BoundedWindow window;
-
-    Result(A input, T output, Instant timestamp, BoundedWindow window) {
-      this.input = input;
-      this.output = output;
-      this.timestamp = timestamp;
-      this.window = window;
-    }
+  private void flush(Consumer<ResultRing.Slot<A, T, F>> outputFn) {
+    outputCount += results.drain(outputFn);
   }
 
   /**
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.scio.transforms;
+
+import java.io.Serializable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.beam.sdk.metrics.Counter;
+import org.apache.beam.sdk.metrics.Distribution;
+import org.apache.beam.sdk.metrics.Gauge;
+import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.base.Preconditions;
+import org.joda.time.Duration;
+
+/**
+ * Limits the number of pending requests of an asynchronous lookup {@link
+ * org.apache.beam.sdk.transforms.DoFn}, e.g. {@link BaseAsyncLookupDoFn} or {@link
+ * BaseAsyncBatchLookupDoFn}.
+ *
+ * <p>Each cloned DoFn has its own limiter. The limit may be adjusted after every response from its
+ * latency and outcome, by overriding {@link #nextLimit(int, long, boolean)}. Requests block in
+ * {@link #acquire()} while the limit is reached, which is reported as backpressure metrics by
+ * {@link #reportMetrics()}.
+ */
+public abstract class ConcurrencyLimiter implements Serializable {
+
+  private final AdjustableSemaphore permits;
+  private volatile int limit;
+
+  private final Gauge limitGauge = Metrics.gauge(ConcurrencyLimiter.class, "ConcurrencyLimit");
+  private final Counter throttledRequests =
+      Metrics.counter(ConcurrencyLimiter.class, "ThrottledRequests");
+  private final Distribution throttledMillis =
+      Metrics.distribution(ConcurrencyLimiter.class, "ThrottledMillis");
+  // requests may be acquired off the bundle thread, e.g. by linger sends, where metrics are lost
+  private final AtomicLong throttledCount = new AtomicLong();
+  private final LatencyAccumulator throttledLatencies = new LatencyAccumulator();
+
+  protected ConcurrencyLimiter(int initialLimit) {
+    Preconditions.checkArgument(initialLimit > 0, "Invalid initial limit %s", initialLimit);
+    this.permits = new AdjustableSemaphore(initialLimit);
+    this.limit = initialLimit;
+  }
+
+  /** A limiter with a fixed number of pending requests. */
+  public static ConcurrencyLimiter fixed(int limit) {
+    return new Fixed(limit);
+  }
+
+  /**
+   * A limiter that grows the limit by one after {@code limit} fast responses, and multiplies it by
+   * {@code backoffRatio} after a response slower than {@code latencyThreshold} or a failure.
+   */
+  public static ConcurrencyLimiter aimd(
+      int initialLimit,
+      int minLimit,
+      int maxLimit,
+      Duration latencyThreshold,
+      double backoffRatio) {
+    return new Aimd(initialLimit, minLimit, maxLimit, latencyThreshold, backoffRatio);
+  }
+
+  /**
+   * A limiter that follows the ratio between the long-term and the current response latency, so
+   * that the limit shrinks as soon as requests queue up in the backend, and backs off by 10% after
+   * a failure.
+   */
+  public static ConcurrencyLimiter gradient(int initialLimit, int minLimit, int maxLimit) {
+    return new Gradient(initialLimit, minLimit, maxLimit);
+  }
+
+  /**
+   * Returns the limit after a response.
+   *
+   * @param limit current limit.
+   * @param latencyNanos latency of the response.
+   * @param failed whether the request failed.
+   */
+  protected abstract int nextLimit(int limit, long latencyNanos, boolean failed);
+
+  /** Returns the current limit. */
+  public int getLimit() {
+    return limit;
+  }
+
+  /** Blocks until a request can be sent. May be called from any thread. */
+  public void acquire() throws InterruptedException {
+    if (!permits.tryAcquire()) {
+      final long start = System.nanoTime();
+      throttledCount.incrementAndGet();
+      permits.acquire();
+      throttledLatencies.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+  }
+
+  /**
+   * Reports the current limit, and requests throttled since the last call, to metrics. Must be
+   * called from the thread processing the bundle.
+   */
+  public void reportMetrics() {
+    final long throttled = throttledCount.getAndSet(0);
+    if (throttled > 0) {
+      throttledRequests.inc(throttled);
+    }
+    throttledLatencies.reportTo(throttledMillis);
+    limitGauge.set(limit);
+  }
+
+  /** Releases the permit of a completed request. May be called from any thread. */
+  public void release(long latencyNanos, boolean failed) {
+    synchronized (this) {
+      final int next = nextLimit(limit, latencyNanos, failed);
+      if (next > limit) {
+        permits.release(next - limit);
+      } else if (next < limit) {
+        permits.reducePermits(limit - next);
+      }
+      limit = next;
+    }
+    permits.release();
+  }
+
+  /** Releases all permits, e.g. those of requests of a failed bundle. */
+  public synchronized void reset() {
+    permits.drainPermits();
+    permits.release(limit);
+  }
+
+  private static class AdjustableSemaphore extends Semaphore {
+    AdjustableSemaphore(int permits) {
+      super(permits);
+    }
+
+    // may go negative, so that releases of pending requests don't exceed the new limit
+    @Override
+    protected void reducePermits(int reduction) {
+      super.reducePermits(reduction);
+    }
+  }
+
+  private static class Fixed extends ConcurrencyLimiter {
+    Fixed(int limit) {
+      super(limit);
+    }
+
+    @Override
+    protected int nextLimit(int limit, long latencyNanos, boolean failed) {
+      return limit;
+    }
+  }
+
+  private static class Aimd extends ConcurrencyLimiter {
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyThresholdNanos;
+    private final double backoffRatio;
+    private int fastResponses = 0;
+
+    Aimd(
+        int initialLimit,
+        int minLimit,
+        int maxLimit,
+        Duration latencyThreshold,
+        double backoffRatio) {
+      super(initialLimit);
+      Preconditions.checkArgument(
+          minLimit > 0 && minLimit <= initialLimit && initialLimit <= maxLimit,
+          "Invalid limits %s <= %s <= %s",
+          minLimit,
+          initialLimit,
+          maxLimit);
+      Preconditions.checkArgument(
+          backoffRatio > 0.0 && backoffRatio < 1.0, "Invalid backoff ratio %s", backoffRatio);
+      this.minLimit = minLimit;
+      this.maxLimit = maxLimit;
+      this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(latencyThreshold.getMillis());
+      this.backoffRatio = backoffRatio;
+    }
+
+    @Override
+    protected int nextLimit(int limit, long latencyNanos, boolean failed) {
+      if (failed || latencyNanos > latencyThresholdNanos) {
+        fastResponses = 0;
+        return Math.max(minLimit, (int) (limit * backoffRatio));
+      }
+      if (++fastResponses < limit) {
+        return limit;
+      }
+      fastResponses = 0;
+      return Math.min(maxLimit, limit + 1);
+    }
+  }
+
+  private static class Gradient extends ConcurrencyLimiter {
+    // weight of a response in the long-term latency, i.e. an average over ~600 responses
+    private static final double LONG_TERM_WEIGHT = 1.0 / 600;
+    private static final double SMOOTHING = 0.2;
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private double estimatedLimit;
+    private double longTermLatency = 0.0;
+
+    Gradient(int initialLimit, int minLimit, int maxLimit) {
+      super(initialLimit);
+      Preconditions.checkArgument(
+          minLimit > 0 && minLimit <= initialLimit && initialLimit <= maxLimit,
+          "Invalid limits %s <= %s <= %s",
+          minLimit,
+          initialLimit,
+          maxLimit);
+      this.minLimit = minLimit;
+      this.maxLimit = maxLimit;
+      this.estimatedLimit = initialLimit;
+    }
+
+    @Override
+    protected int nextLimit(int limit, long latencyNanos, boolean failed) {
+      if (failed) {
+        estimatedLimit = Math.max(minLimit, estimatedLimit * BACKOFF_RATIO);
+        return (int) estimatedLimit;
+      }
+
+      final double latency = Math.max(1L, latencyNanos);
+      if (longTermLatency == 0.0) {
+        longTermLatency = latency;
+      } else {
+        longTermLatency += (latency - longTermLatency) * LONG_TERM_WEIGHT;
+        if (longTermLatency > 2 * latency) {
+          // the backend recovered, e.g. after scaling up, so forget the slow period faster
+          longTermLatency = Math.max(latency, longTermLatency * 0.95);
+        }
+      }
+
+      // shrink while responses are slower than usual, and allow some queueing otherwise
+      final double gradient = Math.max(0.5, Math.min(1.0, longTermLatency / latency));
+      final double target = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+      estimatedLimit = estimatedLimit * (1 - SMOOTHING) + target * SMOOTHING;
+      estimatedLimit = Math.max(minLimit, Math.min(maxLimit, estimatedLimit));
+      return (int) estimatedLimit;
+    }
+  }
+}
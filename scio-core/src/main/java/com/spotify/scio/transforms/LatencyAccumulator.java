@@ -0,0 +1,49 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.scio.transforms;
+
+import java.io.Serializable;
+import org.apache.beam.sdk.metrics.Distribution;
+
+/**
+ * Accumulates latencies observed in future callbacks, where metrics can't be reported, until they
+ * are reported from the thread processing the bundle.
+ */
+class LatencyAccumulator implements Serializable {
+  private long sum = 0;
+  private long count = 0;
+  private long min = Long.MAX_VALUE;
+  private long max = Long.MIN_VALUE;
+
+  synchronized void add(long latency) {
+    sum += latency;
+    count++;
+    min = Math.min(min, latency);
+    max = Math.max(max, latency);
+  }
+
+  synchronized void reportTo(Distribution distribution) {
+    if (count > 0) {
+      distribution.update(sum, count, min, max);
+      sum = 0;
+      count = 0;
+      min = Long.MAX_VALUE;
+      max = Long.MIN_VALUE;
+    }
+  }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.scio.transforms;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.InstantCoder;
+import org.apache.beam.sdk.coders.KvCoder;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.coders.VarIntCoder;
+import org.apache.beam.sdk.metrics.Distribution;
+import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.sdk.state.BagState;
+import org.apache.beam.sdk.state.StateSpec;
+import org.apache.beam.sdk.state.StateSpecs;
+import org.apache.beam.sdk.state.TimeDomain;
+import org.apache.beam.sdk.state.Timer;
+import org.apache.beam.sdk.state.TimerSpec;
+import org.apache.beam.sdk.state.TimerSpecs;
+import org.apache.beam.sdk.state.ValueState;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.PTransform;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollection;
+import org.apache.beam.sdk.values.TimestampedValue;
+import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.base.Preconditions;
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
+/**
+ * A {@link PTransform} that performs asynchronous lookups with a {@link BaseAsyncLookupDoFn}, while
+ * keeping requests in flight across bundles.
+ *
+ * <p>{@link BaseAsyncLookupDoFn} waits for all of its requests at the end of every bundle, which
+ * caps throughput by the tail latency of each bundle on runners with small bundles, e.g. Dataflow
+ * streaming. Instead, inputs are spread over {@code numShards} keys and kept in state until their
+ * lookup completes. Completed lookups are emitted by a processing time timer every {@code
+ * pollInterval}, with the timestamp and window of their input, and a watermark hold on the oldest
+ * pending input. Pending lookups are only waited for once their window expires.
+ *
+ * <p>Requests live in the memory of the worker that issued them. Inputs restored from state
+ * without a request, e.g. after a retry or once their key moved to another worker, are looked up
+ * again. Bounded inputs are processed by the {@link BaseAsyncLookupDoFn} itself.
+ *
+ * @param <A> input element type.
+ * @param <B> client lookup value type.
+ * @param <C> client type.
+ * @param <F> future type.
+ * @param <T> client lookup value type wrapped in a Try.
+ */
+public class PipelinedAsyncLookup<A, B, C, F, T>
+    extends PTransform<PCollection<A>, PCollection<KV<A, T>>> {
+  private final BaseAsyncLookupDoFn<A, B, C, F, T> lookupFn;
+  private final Coder<T> outputCoder;
+  private final int numShards;
+  private final Duration pollInterval;
+
+  /**
+   * Create a {@link PipelinedAsyncLookup} instance with 100 shards, polling for completed lookups
+   * every 100 milliseconds.
+   *
+   * @param lookupFn lookup to perform.
+   * @param outputCoder coder of the lookup value wrapped in a Try.
+   */
+  public PipelinedAsyncLookup(BaseAsyncLookupDoFn<A, B, C, F, T> lookupFn, Coder<T> outputCoder) {
+    this(lookupFn, outputCoder, 100, Duration.millis(100));
+  }
+
+  /**
+   * Create a {@link PipelinedAsyncLookup} instance.
+   *
+   * @param lookupFn lookup to perform.
+   * @param outputCoder coder of the lookup value wrapped in a Try.
+   * @param numShards number of keys to spread inputs over, which bounds the parallelism.
+   * @param pollInterval interval between emissions of completed lookups of each shard.
+   */
+  public PipelinedAsyncLookup(
+      BaseAsyncLookupDoFn<A, B, C, F, T> lookupFn,
+      Coder<T> outputCoder,
+      int numShards,
+      Duration pollInterval) {
+    Preconditions.checkArgument(numShards > 0, "Invalid number of shards %s", numShards);
+    Preconditions.checkArgument(
+        pollInterval.getMillis() > 0, "Invalid poll interval %s", pollInterval);
+    this.lookupFn = lookupFn;
+    this.outputCoder = outputCoder;
+    this.numShards = numShards;
+    this.pollInterval = pollInterval;
+  }
+
+  @Override
+  public PCollection<KV<A, T>> expand(PCollection<A> input) {
+    final Coder<A> inputCoder = input.getCoder();
+    final KvCoder<A, T> coder = KvCoder.of(inputCoder, outputCoder);
+    if (input.isBounded() == PCollection.IsBounded.BOUNDED) {
+      return input.apply("Lookup", ParDo.of(lookupFn)).setCoder(coder);
+    }
+    return input
+        .apply("AssignShard", ParDo.of(new AssignShardFn<>(numShards)))
+        .setCoder(KvCoder.of(VarIntCoder.of(), inputCoder))
+        .apply("Lookup", ParDo.of(new LookupFn<>(lookupFn, inputCoder, pollInterval)))
+        .setCoder(coder);
+  }
+
+  private static class AssignShardFn<A> extends DoFn<A, KV<Integer, A>> {
+    private final int numShards;
+
+    AssignShardFn(int numShards) {
+      this.numShards = numShards;
+    }
+
+    @ProcessElement
+    public void processElement(@Element A input, OutputReceiver<KV<Integer, A>> out) {
+      out.output(KV.of(ThreadLocalRandom.current().nextInt(numShards), input));
+    }
+  }
+
+  private static class LookupFn<A, B, C, F, T> extends DoFn<KV<Integer, A>, KV<A, T>> {
+    private static final String PENDING = "pending";
+    private static final String HOLD = "hold";
+    private static final String POLL = "poll";
+    private static final String EXPIRY = "expiry";
+
+    private final BaseAsyncLookupDoFn<A, B, C, F, T> lookupFn;
+    private final Duration pollInterval;
+
+    @StateId(PENDING)
+    private final StateSpec<BagState<TimestampedValue<KV<String, A>>>> pendingSpec;
+
+    // timestamp of the oldest pending input, held back by both timers
+    @StateId(HOLD)
+    private final StateSpec<ValueState<Instant>> holdSpec = StateSpecs.value(InstantCoder.of());
+
+    @TimerId(POLL)
+    private final TimerSpec pollSpec = TimerSpecs.timer(TimeDomain.PROCESSING_TIME);
+
+    @TimerId(EXPIRY)
+    private final TimerSpec expirySpec = TimerSpecs.timer(TimeDomain.EVENT_TIME);
+
+    // What BaseAsyncLookupDoFn would have waited for in finishBundle, and what is still waited for
+    private final Distribution inFlightAtFinishBundle =
+        Metrics.distribution(PipelinedAsyncLookup.class, "RequestsInFlightAtFinishBundle");
+    private final Distribution expiryWaitMillis =
+        Metrics.distribution(PipelinedAsyncLookup.class, "ExpiryWaitMillis");
+
+    // requests of inputs not emitted yet, dropped if not polled for a while, e.g. after a retry
+    private transient Cache<String, Request> requests;
+
+    LookupFn(
+        BaseAsyncLookupDoFn<A, B, C, F, T> lookupFn, Coder<A> inputCoder, Duration pollInterval) {
+      this.lookupFn = lookupFn;
+      this.pollInterval = pollInterval;
+      this.pendingSpec =
+          StateSpecs.bag(
+              TimestampedValue.TimestampedValueCoder.of(
+                  KvCoder.of(StringUtf8Coder.of(), inputCoder)));
+    }
+
+    @Setup
+    public void setup() {
+      lookupFn.setup();
+      requests = CacheBuilder.newBuilder().expireAfterAccess(1, TimeUnit.HOURS).build();
+    }
+
+    @Teardown
+    public void teardown() {
+      lookupFn.teardown();
+    }
+
+    @ProcessElement
+    public void processElement(
+        @Element KV<Integer, A> element,
+        @Timestamp Instant timestamp,
+        BoundedWindow window,
+        OutputReceiver<KV<A, T>> out,
+        @StateId(PENDING) BagState<TimestampedValue<KV<String, A>>> pending,
+        @StateId(HOLD) ValueState<Instant> hold,
+        @TimerId(POLL) Timer pollTimer,
+        @TimerId(EXPIRY) Timer expiryTimer)
+        throws InterruptedException {
+      final A input = element.getValue();
+      final B cached = lookupFn.getResourceCache().getIfPresent(input);
+      if (cached != null) {
+        out.output(KV.of(input, lookupFn.success(cached)));
+        return;
+      }
+
+      final String id = UUID.randomUUID().toString();
+      requests.put(id, request(input));
+      pending.add(TimestampedValue.of(KV.of(id, input), timestamp));
+
+      // timers can only hold the watermark at or after the current input, so they are only reset
+      // when it is older than all pending inputs
+      final Instant current = hold.read();
+      if (current == null || timestamp.isBefore(current)) {
+        setTimers(timestamp, window, hold, pollTimer, expiryTimer);
+      }
+    }
+
+    @FinishBundle
+    public void finishBundle() {
+      long inFlight = 0;
+      for (Request request : requests.asMap().values()) {
+        if (request.result == null) inFlight++;
+      }
+      inFlightAtFinishBundle.update(inFlight);
+    }
+
+    @OnTimer(POLL)
+    public void onPoll(
+        OnTimerContext context,
+        @StateId(PENDING) BagState<TimestampedValue<KV<String, A>>> pending,
+        @StateId(HOLD) ValueState<Instant> hold,
+        @TimerId(POLL) Timer pollTimer,
+        @TimerId(EXPIRY) Timer expiryTimer)
+        throws InterruptedException {
+      emit(context, false, pending, hold, pollTimer, expiryTimer);
+    }
+
+    @OnTimer(EXPIRY)
+    public void onExpiry(
+        OnTimerContext context,
+        @StateId(PENDING) BagState<TimestampedValue<KV<String, A>>> pending,
+        @StateId(HOLD) ValueState<Instant> hold,
+        @TimerId(POLL) Timer pollTimer,
+        @TimerId(EXPIRY) Timer expiryTimer)
+        throws InterruptedException {
+      final long start = System.currentTimeMillis();
+      emit(context, true, pending, hold, pollTimer, expiryTimer);
+      expiryWaitMillis.update(System.currentTimeMillis() - start);
+    }
+
+    private void emit(
+        OnTimerContext context,
+        boolean waitForAll,
+        BagState<TimestampedValue<KV<String, A>>> pending,
+        ValueState<Instant> hold,
+        Timer pollTimer,
+        Timer expiryTimer)
+        throws InterruptedException {
+      final List<TimestampedValue<KV<String, A>>> inputs = new ArrayList<>();
+      final List<F> inFlight = new ArrayList<>();
+      for (TimestampedValue<KV<String, A>> input : pending.read()) {
+        final String id = input.getValue().getKey();
+        Request request = requests.getIfPresent(id);
+        if (request == null) {
+          // issued by another worker or attempt
+          request = request(input.getValue().getValue());
+          requests.put(id, request);
+        }
+        if (request.result == null) inFlight.add(request.future);
+        inputs.add(input);
+      }
+
+      if (waitForAll && !inFlight.isEmpty()) {
+        try {
+          lookupFn.waitForFutures(inFlight);
+        } catch (ExecutionException e) {
+          throw new RuntimeException("Failed to process futures", e);
+        }
+      }
+
+      pending.clear();
+      Instant oldest = null;
+      for (TimestampedValue<KV<String, A>> input : inputs) {
+        final String id = input.getValue().getKey();
+        final Request request = requests.getIfPresent(id);
+        if (request != null && request.result != null) {
+          context.outputWithTimestamp(
+              KV.of(input.getValue().getValue(), request.result), input.getTimestamp());
+          requests.invalidate(id);
+        } else {
+          pending.add(input);
+          if (oldest == null || input.getTimestamp().isBefore(oldest)) {
+            oldest = input.getTimestamp();
+          }
+        }
+      }
+
+      if (oldest == null) {
+        hold.clear();
+        pollTimer.clear();
+        expiryTimer.clear();
+      } else {
+        setTimers(oldest, context.window(), hold, pollTimer, expiryTimer);
+      }
+    }
+
+    private void setTimers(
+        Instant oldest,
+        BoundedWindow window,
+        ValueState<Instant> hold,
+        Timer pollTimer,
+        Timer expiryTimer) {
+      hold.write(oldest);
+      pollTimer.withOutputTimestamp(oldest).align(pollInterval).setRelative();
+      expiryTimer.withOutputTimestamp(oldest).set(window.maxTimestamp());
+    }
+
+    private Request request(A input) throws InterruptedException {
+      final Request request = new Request();
+      request.future =
+          lookupFn.lookup(
+              lookupFn.getResourceClient(), lookupFn.getResourceCache(), input, request);
+      return request;
+    }
+
+    private class Request implements Consumer<T> {
+      private F future;
+      private volatile T result;
+
+      @Override
+      public void accept(T result) {
+        this.result = result;
+      }
+    }
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.scio.transforms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
+import org.joda.time.Instant;
+
+/**
+ * Pending outputs of an asynchronous {@link org.apache.beam.sdk.transforms.DoFn}.
+ *
+ * <p>Inputs are assigned consecutive sequence numbers, and the slot of an input is the sequence
+ * number modulo the capacity. Slots are preallocated and reused once drained, and the capacity
+ * doubles when all slots are pending. Slots are added and drained by the thread processing the
+ * bundle, and completed by any thread through a volatile write, so no lock is needed.
+ *
+ * <p>Completed slots are drained in completion order, like the results queue this replaces, so
+ * that a slow lookup doesn't hold back the outputs of later ones. A drained slot is only reused
+ * once all slots before it are drained too.
+ *
+ * @param <InputT> input element type.
+ * @param <OutputT> output type.
+ * @param <FutureT> future type.
+ */
+class ResultRing<InputT, OutputT, FutureT> {
+
+  /** An input waiting for its output. */
+  static class Slot<InputT, OutputT, FutureT> implements Consumer<OutputT> {
+    private InputT input;
+    private Instant timestamp;
+    private BoundedWindow window;
+    private FutureT future;
+    private volatile OutputT output;
+    // drained before an older slot, only accessed by the bundle thread
+    private boolean drained = false;
+    private final AtomicInteger completions;
+
+    private Slot(AtomicInteger completions) {
+      this.completions = completions;
+    }
+
+    InputT getInput() {
+      return input;
+    }
+
+    Instant getTimestamp() {
+      return timestamp;
+    }
+
+    BoundedWindow getWindow() {
+      return window;
+    }
+
+    OutputT getOutput() {
+      return output;
+    }
+
+    /** Sets the future to wait for until this slot completes. */
+    void setFuture(FutureT future) {
+      this.future = future;
+    }
+
+    /** Completes the slot, from any thread. */
+    @Override
+    public void accept(OutputT output) {
+      this.output = output;
+      completions.incrementAndGet();
+    }
+
+    private void clear() {
+      input = null;
+      timestamp = null;
+      window = null;
+      future = null;
+      output = null;
+    }
+  }
+
+  // larger rings are only allocated on demand
+  private static final int MAX_INITIAL_CAPACITY = 1 << 12;
+
+  private Slot<InputT, OutputT, FutureT>[] slots;
+  private int mask;
+  private long head = 0;
+  private long tail = 0;
+  // slots completed since the last drain, or more after a clear
+  private final AtomicInteger completions = new AtomicInteger();
+
+  ResultRing(int initialCapacity) {
+    int capacity = 1;
+    while (capacity < Math.min(initialCapacity, MAX_INITIAL_CAPACITY)) {
+      capacity <<= 1;
+    }
+    slots = newSlots(capacity);
+    mask = capacity - 1;
+  }
+
+  /** Returns the slot of the next input. */
+  Slot<InputT, OutputT, FutureT> add(InputT input, Instant timestamp, BoundedWindow window) {
+    if (tail - head == slots.length) {
+      grow();
+    }
+    final Slot<InputT, OutputT, FutureT> slot = slots[(int) (tail++ & mask)];
+    slot.input = input;
+    slot.timestamp = timestamp;
+    slot.window = window;
+    return slot;
+  }
+
+  boolean isEmpty() {
+    return head == tail;
+  }
+
+  /** Returns the distinct futures of pending slots, in input order. */
+  List<FutureT> pendingFutures() {
+    final List<FutureT> futures = new ArrayList<>();
+    FutureT last = null;
+    for (long i = head; i < tail; i++) {
+      final FutureT future = slots[(int) (i & mask)].future;
+      // slots of a batch request are mostly consecutive
+      if (future != null && future != last) {
+        futures.add(future);
+        last = future;
+      }
+    }
+    return futures;
+  }
+
+  /**
+   * Passes the completed slots to {@code outputFn}, and returns the number of slots drained. Slots
+   * may be reused once {@code outputFn} returns.
+   */
+  long drain(Consumer<Slot<InputT, OutputT, FutureT>> outputFn) {
+    // slots completed after the reset are drained now or by the next call
+    if (completions.getAndSet(0) == 0) {
+      return 0;
+    }
+    long drained = 0;
+    boolean contiguous = true;
+    for (long i = head; i < tail; i++) {
+      final Slot<InputT, OutputT, FutureT> slot = slots[(int) (i & mask)];
+      if (slot.output != null) {
+        outputFn.accept(slot);
+        slot.clear();
+        slot.drained = !contiguous;
+        drained++;
+      } else if (!slot.drained) {
+        contiguous = false;
+      }
+      if (contiguous) {
+        slot.drained = false;
+        head = i + 1;
+      }
+    }
+    return drained;
+  }
+
+  /** Drops all slots, e.g. after a failed bundle. */
+  void clear() {
+    for (long i = head; i < tail; i++) {
+      // pending slots may still be completed by callbacks of the failed bundle
+      slots[(int) (i & mask)] = new Slot<>(completions);
+    }
+    head = 0;
+    tail = 0;
+  }
+
+  private void grow() {
+    final Slot<InputT, OutputT, FutureT>[] grown = newSlots(slots.length * 2);
+    // pending slots keep their identity, as completion callbacks hold them
+    for (long i = head; i < tail; i++) {
+      grown[(int) (i - head)] = slots[(int) (i & mask)];
+    }
+    tail -= head;
+    head = 0;
+    slots = grown;
+    mask = grown.length - 1;
+  }
+
+  @SuppressWarnings("unchecked")
+  private Slot<InputT, OutputT, FutureT>[] newSlots(int capacity) {
+    final Slot<InputT, OutputT, FutureT>[] newSlots = new Slot[capacity];
+    for (int i = 0; i < capacity; i++) {
+      newSlots[i] = new Slot<>(completions);
+    }
+    return newSlots;
+  }
+}
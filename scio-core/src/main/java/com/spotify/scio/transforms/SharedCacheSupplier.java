@@ -0,0 +1,296 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.scio.transforms;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.google.common.cache.AbstractCache;
+import com.spotify.scio.transforms.BaseAsyncLookupDoFn.CacheSupplier;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.CheckForNull;
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.util.CoderUtils;
+import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.base.Preconditions;
+import org.joda.time.Duration;
+
+/**
+ * {@link CacheSupplier} of a lookup cache shared by all DoFn instances of a transform on a worker,
+ * backed by Caffeine, which must be on the classpath.
+ *
+ * <p>The cache is identified by a random ID generated with the supplier, so that every transform
+ * gets its own cache, or by {@link #withId(String)} to share a cache between transforms. Entries
+ * expire after a TTL, and may be refreshed in the background once older than {@link
+ * #withRefreshAfterWrite(Duration)}, while the cached value is still used. Failed lookups may be
+ * cached with {@link #withNegativeCaching(Duration)}. Large values may be kept off-heap with {@link
+ * #withOffHeapValues(Coder, long)}.
+ *
+ * <p>{@link BaseAsyncLookupDoFn} reports {@code CacheHits}, {@code CacheMisses}, {@code
+ * NegativeCacheHits}, {@code CacheRefreshes} and {@code CacheLoadMillis} metrics for shared caches.
+ *
+ * @param <K> key type.
+ * @param <V> value type.
+ */
+public class SharedCacheSupplier<K, V> implements CacheSupplier<K, V> {
+
+  // caches live as long as the worker, like resources of DoFnWithResource
+  private static final ConcurrentMap<String, SharedCache<?, ?>> CACHES =
+      new ConcurrentHashMap<>();
+
+  private String id = UUID.randomUUID().toString();
+  private final long maximumSize;
+  private final long expireAfterWriteMillis;
+  private long refreshAfterWriteMillis = 0;
+  private long negativeTtlMillis = 0;
+  private Coder<V> valueCoder = null;
+  private long maximumBytes = 0;
+
+  /**
+   * @param maximumSize maximum number of entries on every worker.
+   * @param expireAfterWrite time to live of an entry.
+   */
+  public SharedCacheSupplier(long maximumSize, Duration expireAfterWrite) {
+    Preconditions.checkArgument(maximumSize > 0, "maximumSize must be positive");
+    Preconditions.checkArgument(
+        expireAfterWrite.getMillis() > 0, "expireAfterWrite must be positive");
+    this.maximumSize = maximumSize;
+    this.expireAfterWriteMillis = expireAfterWrite.getMillis();
+  }
+
+  /**
+   * Shares the cache with all transforms using a supplier with the same {@code id}. The cache is
+   * configured by the first supplier to create it on a worker.
+   */
+  public SharedCacheSupplier<K, V> withId(String id) {
+    this.id = Preconditions.checkNotNull(id, "id must not be null");
+    return this;
+  }
+
+  /**
+   * Looks up entries again in the background once they are older than {@code refreshAfterWrite},
+   * while still returning the cached value. A failed refresh keeps the cached value until it
+   * expires.
+   */
+  public SharedCacheSupplier<K, V> withRefreshAfterWrite(Duration refreshAfterWrite) {
+    Preconditions.checkArgument(
+        refreshAfterWrite.getMillis() > 0 && refreshAfterWrite.getMillis() < expireAfterWriteMillis,
+        "refreshAfterWrite must be positive and shorter than expireAfterWrite");
+    this.refreshAfterWriteMillis = refreshAfterWrite.getMillis();
+    return this;
+  }
+
+  /** Caches failed lookups for {@code ttl}, and returns them as failures without a lookup. */
+  public SharedCacheSupplier<K, V> withNegativeCaching(Duration ttl) {
+    Preconditions.checkArgument(ttl.getMillis() > 0, "ttl must be positive");
+    this.negativeTtlMillis = ttl.getMillis();
+    return this;
+  }
+
+  /**
+   * Keeps values encoded with {@code valueCoder} in direct buffers, and limits the cache to {@code
+   * maximumBytes} of encoded values instead of {@code maximumSize} entries. Values are decoded on
+   * every hit.
+   *
+   * <p>The buffers of evicted or expired values are not freed explicitly, since a concurrent hit
+   * may still be decoding them, but by the garbage collector like any other direct buffer. They
+   * count against {@code -XX:MaxDirectMemorySize}, which defaults to the maximum heap size,
+   * together with other direct buffers of the worker, e.g. of gRPC or IO clients. Once the limit is
+   * reached, the JVM triggers a full GC to free unreachable buffers before failing with {@code
+   * OutOfMemoryError: Direct buffer memory}, unless explicit GCs are disabled with {@code
+   * -XX:+DisableExplicitGC}. Keep {@code maximumBytes} well below the limit, so that evicted
+   * buffers waiting for a GC fit too.
+   */
+  public SharedCacheSupplier<K, V> withOffHeapValues(Coder<V> valueCoder, long maximumBytes) {
+    Preconditions.checkArgument(maximumBytes > 0, "maximumBytes must be positive");
+    this.valueCoder = Preconditions.checkNotNull(valueCoder, "valueCoder must not be null");
+    this.maximumBytes = maximumBytes;
+    return this;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public SharedCache<K, V> get() {
+    return (SharedCache<K, V>) CACHES.computeIfAbsent(id, i -> new SharedCache<>(this));
+  }
+
+  /**
+   * A Guava {@link com.google.common.cache.Cache} view of a shared Caffeine cache, which also holds
+   * failed lookups and tracks entries due for a refresh.
+   *
+   * @param <K> key type.
+   * @param <V> value type.
+   */
+  public static final class SharedCache<K, V> extends AbstractCache<K, V> {
+    private final com.github.benmanes.caffeine.cache.Cache<K, Entry> cache;
+    private final long refreshAfterWriteNanos;
+    private final long negativeTtlNanos;
+    private final Coder<V> valueCoder;
+
+    private SharedCache(SharedCacheSupplier<K, V> supplier) {
+      final long ttlNanos = TimeUnit.MILLISECONDS.toNanos(supplier.expireAfterWriteMillis);
+      this.refreshAfterWriteNanos = TimeUnit.MILLISECONDS.toNanos(supplier.refreshAfterWriteMillis);
+      this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(supplier.negativeTtlMillis);
+      this.valueCoder = supplier.valueCoder;
+
+      final Caffeine<Object, Object> builder = Caffeine.newBuilder();
+      if (valueCoder != null) {
+        builder.maximumWeight(supplier.maximumBytes).<K, Entry>weigher((k, e) -> e.weight());
+      } else {
+        builder.maximumSize(supplier.maximumSize);
+      }
+      this.cache =
+          builder
+              .expireAfter(
+                  new Expiry<K, Entry>() {
+                    @Override
+                    public long expireAfterCreate(K key, Entry entry, long currentTime) {
+                      return entry.failure != null ? negativeTtlNanos : ttlNanos;
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(
+                        K key, Entry entry, long currentTime, long currentDuration) {
+                      return expireAfterCreate(key, entry, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(
+                        K key, Entry entry, long currentTime, long currentDuration) {
+                      return currentDuration;
+                    }
+                  })
+              .build();
+    }
+
+    @CheckForNull
+    @Override
+    @SuppressWarnings("unchecked")
+    public V getIfPresent(Object key) {
+      final Entry entry = cache.getIfPresent((K) key);
+      return entry == null || entry.failure != null ? null : decode(entry);
+    }
+
+    @Override
+    public void put(K key, V value) {
+      cache.put(key, new Entry(encode(value), null));
+    }
+
+    /** Returns the cached failure of a lookup, if negative caching is enabled. */
+    @CheckForNull
+    public Throwable getFailureIfPresent(K key) {
+      if (negativeTtlNanos == 0) {
+        return null;
+      }
+      final Entry entry = cache.getIfPresent(key);
+      return entry == null ? null : entry.failure;
+    }
+
+    /** Caches the failure of a lookup, if negative caching is enabled. */
+    public void putFailure(K key, Throwable failure) {
+      if (negativeTtlNanos > 0) {
+        cache.put(key, new Entry(null, failure));
+      }
+    }
+
+    /**
+     * Returns whether the entry of {@code key} is due for a refresh, only once per entry so that
+     * concurrent DoFn instances don't refresh it again.
+     */
+    public boolean shouldRefresh(K key) {
+      if (refreshAfterWriteNanos == 0) {
+        return false;
+      }
+      final Entry entry = cache.getIfPresent(key);
+      return entry != null
+          && entry.failure == null
+          && System.nanoTime() - entry.writeNanos >= refreshAfterWriteNanos
+          && entry.refreshing.compareAndSet(false, true);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void invalidate(Object key) {
+      cache.invalidate((K) key);
+    }
+
+    @Override
+    public void invalidateAll() {
+      cache.invalidateAll();
+    }
+
+    @Override
+    public long size() {
+      return cache.estimatedSize();
+    }
+
+    private Object encode(V value) {
+      if (valueCoder == null) {
+        return value;
+      }
+      try {
+        final byte[] bytes = CoderUtils.encodeToByteArray(valueCoder, value);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        // flip() of Buffer, which ByteBuffer only overrides from Java 9
+        ((Buffer) buffer.put(bytes)).flip();
+        return buffer;
+      } catch (IOException e) {
+        throw new UncheckedIOException("Failed to encode cached value", e);
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private V decode(Entry entry) {
+      if (valueCoder == null) {
+        return (V) entry.value;
+      }
+      // duplicate, so that concurrent readers don't share a position
+      final ByteBuffer buffer = ((ByteBuffer) entry.value).duplicate();
+      final byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      try {
+        return CoderUtils.decodeFromByteArray(valueCoder, bytes);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Failed to decode cached value", e);
+      }
+    }
+  }
+
+  private static final class Entry {
+    // a value, or its encoding in a direct buffer, freed by the GC once evicted
+    private final Object value;
+    private final Throwable failure;
+    private final long writeNanos = System.nanoTime();
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+    private Entry(Object value, Throwable failure) {
+      this.value = value;
+      this.failure = failure;
+    }
+
+    private int weight() {
+      return value instanceof ByteBuffer ? Math.max(1, ((ByteBuffer) value).capacity()) : 1;
+    }
+  }
+}
@@ -23,6 +23,7 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.spotify.scio.grpc.GrpcDoFn.ChannelSupplier;
 import com.spotify.scio.transforms.BaseAsyncLookupDoFn;
 import com.spotify.scio.transforms.BaseAsyncLookupDoFn.CacheSupplier;
+import com.spotify.scio.transforms.ConcurrencyLimiter;
 import com.spotify.scio.transforms.GuavaAsyncBatchLookupDoFn;
 import io.grpc.Channel;
 import io.grpc.stub.AbstractFutureStub;
@@ -31,6 +32,7 @@ import java.util.List;
 import org.apache.beam.sdk.transforms.SerializableBiFunction;
 import org.apache.beam.sdk.transforms.SerializableFunction;
 import org.apache.commons.lang3.tuple.Pair;
+import org.joda.time.Duration;
 
 /**
  * DoFn that makes API calls that can be batched and individually cached over a managed GRPC
@@ -132,6 +134,12 @@ public class GrpcBatchDoFn<
     private Integer batchSize;
     private CacheSupplier<String, Output> cacheSupplier =
         new BaseAsyncLookupDoFn.NoOpCacheSupplier<>();
+    private Duration linger;
+    private long maxBatchBytes;
+    private SerializableFunction<Input, Long> weigherFn;
+    private int minBatchSize;
+    private Duration targetLatency;
+    private ConcurrencyLimiter concurrencyLimiter;
 
     /**
      * Sets the {@link ChannelSupplier} for creating gRPC channels.
@@ -267,6 +275,67 @@ public class GrpcBatchDoFn<
       return this;
     }
 
+    /**
+     * Sets the linger time of batches. A batch is sent once its first element waited for the
+     * linger time, even if it is not full, also while no element arrives.
+     *
+     * @param linger The maximum time an element waits for its batch to fill up.
+     * @return The updated {@link Builder} instance.
+     */
+    public Builder<Input, BatchRequest, BatchResponse, Output, ClientType> withLinger(
+        Duration linger) {
+      Preconditions.checkArgument(linger.getMillis() > 0, "linger must be positive");
+      this.linger = linger;
+      return this;
+    }
+
+    /**
+     * Sets the maximum weight of a batch, in addition to the batch size. A batch is sent before
+     * its elements weigh more than {@code maxBatchBytes}.
+     *
+     * @param maxBatchBytes The maximum weight of a batch.
+     * @param weigherFn The weight of an {@code <Input>} in bytes, e.g. its serialized size.
+     * @return The updated {@link Builder} instance.
+     */
+    public Builder<Input, BatchRequest, BatchResponse, Output, ClientType> withMaxBatchBytes(
+        long maxBatchBytes, SerializableFunction<Input, Long> weigherFn) {
+      Preconditions.checkArgument(maxBatchBytes > 0, "maxBatchBytes must be positive");
+      this.maxBatchBytes = maxBatchBytes;
+      this.weigherFn = requireNonNull(weigherFn, "weigherFn must not be null");
+      return this;
+    }
+
+    /**
+     * Adapts the batch size to the response latency. The batch size starts at the configured batch
+     * size, which is also its maximum, and shrinks down to {@code minBatchSize} while responses are
+     * slower than {@code targetLatency}.
+     *
+     * @param minBatchSize The minimum batch size.
+     * @param targetLatency The response latency to stay under.
+     * @return The updated {@link Builder} instance.
+     */
+    public Builder<Input, BatchRequest, BatchResponse, Output, ClientType> withAdaptiveBatchSize(
+        int minBatchSize, Duration targetLatency) {
+      Preconditions.checkArgument(minBatchSize > 0, "minBatchSize must be positive");
+      this.minBatchSize = minBatchSize;
+      this.targetLatency = requireNonNull(targetLatency, "targetLatency must not be null");
+      return this;
+    }
+
+    /**
+     * Limits the pending batch requests with a {@link ConcurrencyLimiter}, e.g. {@link
+     * ConcurrencyLimiter#aimd}, instead of the fixed maximum number of pending requests.
+     *
+     * @param concurrencyLimiter The limiter of pending requests on every cloned DoFn.
+     * @return The updated {@link Builder} instance.
+     */
+    public Builder<Input, BatchRequest, BatchResponse, Output, ClientType> withConcurrencyLimiter(
+        ConcurrencyLimiter concurrencyLimiter) {
+      this.concurrencyLimiter =
+          requireNonNull(concurrencyLimiter, "concurrencyLimiter must not be null");
+      return this;
+    }
+
     public GrpcBatchDoFn<Input, BatchRequest, BatchResponse, Output, ClientType> build() {
       requireNonNull(channelSupplier, "channelSupplier must not be null");
       requireNonNull(newClientFn, "newClientFn must not be null");
@@ -277,16 +346,30 @@ public class GrpcBatchDoFn<
       requireNonNull(batchSize, "batchSize must not be null");
       requireNonNull(cacheSupplier, "cacheSupplier must not be null");
 
-      return new GrpcBatchDoFn<>(
-          channelSupplier,
-          newClientFn,
-          batchSize,
-          batchRequestFn,
-          batchResponseFn,
-          idExtractorFn,
-          lookupFn,
-          maxPendingRequests,
-          cacheSupplier);
+      final GrpcBatchDoFn<Input, BatchRequest, BatchResponse, Output, ClientType> doFn =
+          new GrpcBatchDoFn<>(
+              channelSupplier,
+              newClientFn,
+              batchSize,
+              batchRequestFn,
+              batchResponseFn,
+              idExtractorFn,
+              lookupFn,
+              maxPendingRequests,
+              cacheSupplier);
+      if (linger != null) {
+        doFn.withLinger(linger);
+      }
+      if (weigherFn != null) {
+        doFn.withMaxBatchBytes(maxBatchBytes, weigherFn);
+      }
+      if (targetLatency != null) {
+        doFn.withAdaptiveBatchSize(minBatchSize, targetLatency);
+      }
+      if (concurrencyLimiter != null) {
+        doFn.withConcurrencyLimiter(concurrencyLimiter);
+      }
+      return doFn;
     }
   }
 }
@@ -20,6 +20,7 @@ import static java.util.Objects.requireNonNull;
 
 import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.spotify.scio.transforms.ConcurrencyLimiter;
 import com.spotify.scio.transforms.GuavaAsyncLookupDoFn;
 import io.grpc.Channel;
 import io.grpc.stub.AbstractStub;
@@ -116,6 +117,7 @@ public class GrpcDoFn<RequestT, ResponseT, ClientT extends AbstractStub<ClientT>
 
     private int maxPendingRequests = DEFAULT_MAX_PENDING_REQUESTS;
     private CacheSupplier<RequestT, ResponseT> cacheSupplier = new NoOpCacheSupplier<>();
+    private ConcurrencyLimiter concurrencyLimiter;
 
     protected Builder() {}
 
@@ -159,14 +161,29 @@ public class GrpcDoFn<RequestT, ResponseT, ClientT extends AbstractStub<ClientT>
       return this;
     }
 
+    /**
+     * @param concurrencyLimiter limiter of pending requests on every cloned DoFn, e.g. {@link
+     *     ConcurrencyLimiter#aimd}, used instead of {@code maxPendingRequests}.
+     */
+    public Builder<RequestT, ResponseT, ClientT> withConcurrencyLimiter(
+        ConcurrencyLimiter concurrencyLimiter) {
+      this.concurrencyLimiter =
+          requireNonNull(concurrencyLimiter, "concurrencyLimiter cannot be null");
+      return this;
+    }
+
     public GrpcDoFn<RequestT, ResponseT, ClientT> build() {
       requireNonNull(channelSupplier, "channelSupplier cannot be null");
       requireNonNull(lookupFn, "lookupFn cannot be null");
       requireNonNull(newClientFn, "newClientFn cannot be null");
       requireNonNull(cacheSupplier, "cacheSupplier cannot be null");
 
-      return new GrpcDoFn<>(
-          channelSupplier, newClientFn, lookupFn, maxPendingRequests, cacheSupplier);
+      final GrpcDoFn<RequestT, ResponseT, ClientT> doFn =
+          new GrpcDoFn<>(channelSupplier, newClientFn, lookupFn, maxPendingRequests, cacheSupplier);
+      if (concurrencyLimiter != null) {
+        doFn.withConcurrencyLimiter(concurrencyLimiter);
+      }
+      return doFn;
     }
   }
 }
@@ -25,9 +25,12 @@ import io.grpc.netty.NettyChannelBuilder
 import io.grpc.stub.StreamObserver
 import io.grpc.{Server, ServerBuilder}
 import org.apache.beam.sdk.Pipeline.PipelineExecutionException
+import org.apache.commons.lang3.tuple.Pair
+import org.joda.time.Duration
 import org.scalatest.BeforeAndAfterAll
 
 import java.net.ServerSocket
+import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.stream.Collectors
 import scala.jdk.CollectionConverters._
 import scala.util.{Success, Try}
@@ -46,6 +49,8 @@ object GrpcBatchDoFnTest {
 
   val ServiceUri: String = s"dns:///localhost:$LocalPort"
 
+  val RequestSizes: ConcurrentLinkedQueue[Int] = new ConcurrentLinkedQueue[Int]()
+
   def processBatch(request: BatchRequest): BatchResponse =
     BatchResponse
       .newBuilder()
@@ -266,4 +271,154 @@ class GrpcBatchDoFnTest extends PipelineSpec with BeforeAndAfterAll {
       }
     }
   }
+
+  it should "limit the weight of batches" in {
+    val input = (0 to 20).map { i =>
+      ConcatRequestWithID
+        .newBuilder()
+        .setRequestId(i.toString)
+        .setStringOne(i.toString)
+        .setStringTwo(i.toString)
+        .build()
+    }
+    val expected = input.map(req => (req.getRequestId, concat(req).getResponse))
+
+    val doFn = GrpcBatchDoFn
+      .newBuilder[
+        ConcatRequestWithID,
+        BatchRequest,
+        BatchResponse,
+        ConcatResponseWithID,
+        ConcatServiceFutureStub
+      ]()
+      .withChannelSupplier(() => NettyChannelBuilder.forTarget(ServiceUri).usePlaintext().build())
+      .withNewClientFn(channel => ConcatServiceGrpc.newFutureStub(channel))
+      .withLookupFn { (client, request) =>
+        RequestSizes.add(request.getRequestsCount)
+        client.batchConcat(request)
+      }
+      .withBatchSize(50)
+      .withBatchRequestFn(inputs => concatBatchRequest(inputs.asScala.toSeq))
+      .withBatchResponseFn { response =>
+        concatBatchResponse(response).map { case (id, r) => Pair.of(id, r) }.asJava
+      }
+      .withIdExtractorFn(req => idExtractor(req))
+      .withMaxBatchBytes(30, req => java.lang.Long.valueOf(req.getSerializedSize.toLong))
+      .withAdaptiveBatchSize(1, Duration.standardSeconds(10))
+      .withLinger(Duration.standardSeconds(10))
+      .build()
+
+    RequestSizes.clear()
+    runWithContext { sc =>
+      // use flatMap to make sure all elements are in the same bundle
+      val result = sc
+        .parallelize(Seq(()))
+        .flatMap(_ => input)
+        .parDo(doFn)
+        .map(kv => (kv.getKey.getRequestId, kv.getValue.get().getResponse))
+
+      result should containInAnyOrder(expected)
+    }
+
+    // requests of 9 to 12 bytes each, at most 30 bytes per batch
+    RequestSizes.asScala.sum shouldBe input.size
+    all(RequestSizes.asScala) should be <= 3
+  }
+
+  private def runBatches(
+    input: Seq[ConcatRequestWithID],
+    configure: GrpcBatchDoFn.Builder[
+      ConcatRequestWithID,
+      BatchRequest,
+      BatchResponse,
+      ConcatResponseWithID,
+      ConcatServiceFutureStub
+    ] => GrpcBatchDoFn.Builder[
+      ConcatRequestWithID,
+      BatchRequest,
+      BatchResponse,
+      ConcatResponseWithID,
+      ConcatServiceFutureStub
+    ]
+  ): Seq[Int] = {
+    val expected = input.map(req => (req.getRequestId, concat(req).getResponse))
+    val builder = GrpcBatchDoFn
+      .newBuilder[
+        ConcatRequestWithID,
+        BatchRequest,
+        BatchResponse,
+        ConcatResponseWithID,
+        ConcatServiceFutureStub
+      ]()
+      .withChannelSupplier(() => NettyChannelBuilder.forTarget(ServiceUri).usePlaintext().build())
+      .withNewClientFn(channel => ConcatServiceGrpc.newFutureStub(channel))
+      .withLookupFn { (client, request) =>
+        RequestSizes.add(request.getRequestsCount)
+        client.batchConcat(request)
+      }
+      .withBatchRequestFn(inputs => concatBatchRequest(inputs.asScala.toSeq))
+      .withBatchResponseFn { response =>
+        concatBatchResponse(response).map { case (id, r) => Pair.of(id, r) }.asJava
+      }
+      .withIdExtractorFn(req => idExtractor(req))
+    val doFn = configure(builder).build()
+
+    RequestSizes.clear()
+    runWithContext { sc =>
+      // use flatMap to make sure all elements are in the same bundle
+      val result = sc
+        .parallelize(Seq(()))
+        .flatMap(_ => input)
+        .parDo(doFn)
+        .map(kv => (kv.getKey.getRequestId, kv.getValue.get().getResponse))
+
+      result should containInAnyOrder(expected)
+    }
+    RequestSizes.asScala.toSeq
+  }
+
+  private def concatRequests(n: Int): Seq[ConcatRequestWithID] = (0 until n).map { i =>
+    ConcatRequestWithID
+      .newBuilder()
+      .setRequestId(i.toString)
+      .setStringOne(i.toString)
+      .setStringTwo(i.toString)
+      .build()
+  }
+
+  it should "send lingering batches while no element arrives" in {
+    val sizes = runBatches(
+      concatRequests(4),
+      _.withBatchSize(50)
+        // elements arrive every 500ms, batches linger for 50ms
+        .withIdExtractorFn { req =>
+          Thread.sleep(500)
+          idExtractor(req)
+        }
+        .withLinger(Duration.millis(50))
+    )
+
+    // without linger, or checking it only when elements arrive, batches would hold 4 or 2
+    sizes shouldBe Seq(1, 1, 1, 1)
+  }
+
+  it should "shrink batches while responses are slower than the target latency" in {
+    val sizes = runBatches(
+      concatRequests(100),
+      _.withBatchSize(16)
+        .withMaxPendingRequests(1)
+        .withLookupFn { (client, request) =>
+          RequestSizes.add(request.getRequestsCount)
+          Thread.sleep(20)
+          client.batchConcat(request)
+        }
+        .withAdaptiveBatchSize(1, Duration.millis(10))
+    )
+
+    // halved after every response, once the pending request completed
+    sizes.sum shouldBe 100
+    sizes.head shouldBe 16
+    sizes.zip(sizes.tail).foreach { case (a, b) => b should be <= a }
+    sizes.count(_ == 1) should be > 10
+  }
 }
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.scio.jmh
+
+import com.google.common.util.concurrent.{Futures, ListenableFuture, SettableFuture}
+import com.spotify.scio.transforms.BaseAsyncLookupDoFn.Try
+import com.spotify.scio.transforms.DoFnWithResource.ResourceType
+import com.spotify.scio.transforms.{GuavaAsyncBatchLookupDoFn, GuavaAsyncLookupDoFn}
+import org.apache.beam.sdk.options.PipelineOptions
+import org.apache.beam.sdk.transforms.DoFn
+import org.apache.beam.sdk.transforms.DoFn.OutputReceiver
+import org.apache.beam.sdk.transforms.windowing.{BoundedWindow, GlobalWindow}
+import org.apache.beam.sdk.values.{KV, TupleTag}
+import org.apache.commons.lang3.tuple.Pair
+import org.joda.time.Instant
+import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
+
+import java.util.concurrent.TimeUnit
+import java.util.{List => JList}
+import scala.collection.mutable.ArrayBuffer
+import scala.jdk.CollectionConverters._
+import scala.util.Random
+
+/**
+ * Client whose lookups stay pending until the benchmark completes them, or complete immediately
+ * once the bundle finishes.
+ */
+class PendingLookups[T] {
+  private val pending = ArrayBuffer.empty[(T, SettableFuture[T])]
+  private var finishing = false
+
+  def lookup(request: T): ListenableFuture[T] =
+    if (finishing) {
+      Futures.immediateFuture(request)
+    } else {
+      val future = SettableFuture.create[T]()
+      pending += ((request, future))
+      future
+    }
+
+  def completeAll(): Unit = {
+    pending.foreach { case (request, future) => future.set(request) }
+    pending.clear()
+  }
+
+  def startBundle(): Unit = finishing = false
+
+  def finishBundle(): Unit = {
+    completeAll()
+    finishing = true
+  }
+}
+
+class BenchmarkLookupDoFn
+    extends GuavaAsyncLookupDoFn[String, String, PendingLookups[String]](
+      AsyncLookupBenchmark.MaxPendingRequests
+    ) {
+  override def getResourceType: ResourceType = ResourceType.PER_CLONE
+  override protected def newClient(): PendingLookups[String] = new PendingLookups[String]
+  override def asyncLookup(
+    client: PendingLookups[String],
+    input: String
+  ): ListenableFuture[String] = client.lookup(input)
+}
+
+class BenchmarkBatchLookupDoFn(batchSize: Int)
+    extends GuavaAsyncBatchLookupDoFn[String, JList[String], JList[String], String, PendingLookups[
+      JList[String]
+    ]](
+      batchSize,
+      (inputs: JList[String]) => inputs,
+      (outputs: JList[String]) => outputs.asScala.map(id => Pair.of(id, id)).asJava,
+      (input: String) => input,
+      AsyncLookupBenchmark.MaxPendingRequests
+    ) {
+  override def getResourceType: ResourceType = ResourceType.PER_CLONE
+  override protected def newClient(): PendingLookups[JList[String]] =
+    new PendingLookups[JList[String]]
+  override def asyncLookup(
+    client: PendingLookups[JList[String]],
+    input: JList[String]
+  ): ListenableFuture[JList[String]] = client.lookup(input)
+}
+
+object AsyncLookupBenchmark {
+  final val NumElements = 100000
+  final val MaxPendingRequests = 1000
+  // number of elements after which pending lookups complete, below MaxPendingRequests
+  final val CompletionInterval = 500
+}
+
+/**
+ * Bookkeeping of the async lookup DoFns, for bundles of [[AsyncLookupBenchmark.NumElements]]
+ * elements. Lookups complete on the benchmark thread, so only the DoFn overhead is measured. Run
+ * with `-prof gc` to compare the allocation per lookup.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(AsyncLookupBenchmark.NumElements)
+@State(Scope.Thread)
+class AsyncLookupBenchmark {
+  import AsyncLookupBenchmark._
+
+  // lower cardinalities deduplicate more lookups
+  @Param(Array("1000", "1000000"))
+  var keyCardinality: Int = _
+
+  @Param(Array("10", "100"))
+  var batchSize: Int = _
+
+  private var keys: Array[String] = _
+  private var lookupFn: BenchmarkLookupDoFn = _
+  private var batchLookupFn: BenchmarkBatchLookupDoFn = _
+
+  @Setup
+  def setup(): Unit = {
+    val random = new Random(42)
+    keys = Array.fill(NumElements)("key" + random.nextInt(keyCardinality))
+    lookupFn = new BenchmarkLookupDoFn
+    lookupFn.setup()
+    batchLookupFn = new BenchmarkBatchLookupDoFn(batchSize)
+    batchLookupFn.setup()
+  }
+
+  @TearDown
+  def tearDown(): Unit = {
+    lookupFn.teardown()
+    batchLookupFn.teardown()
+  }
+
+  @Benchmark
+  def lookup(bh: Blackhole): Unit = {
+    val client = lookupFn.getResourceClient
+    val out = outputReceiver[Try[String]](bh)
+    client.startBundle()
+    lookupFn.startBundle(null)
+    var i = 0
+    while (i < NumElements) {
+      lookupFn.processElement(keys(i), Instant.EPOCH, out, GlobalWindow.INSTANCE)
+      i += 1
+      if (i % CompletionInterval == 0) client.completeAll()
+    }
+    client.finishBundle()
+    lookupFn.finishBundle(finishBundleContext(lookupFn, bh))
+  }
+
+  @Benchmark
+  def batchLookup(bh: Blackhole): Unit = {
+    val client = batchLookupFn.getResourceClient
+    val out = outputReceiver[Try[String]](bh)
+    client.startBundle()
+    batchLookupFn.startBundle(null)
+    var i = 0
+    while (i < NumElements) {
+      batchLookupFn.processElement(keys(i), Instant.EPOCH, out, GlobalWindow.INSTANCE)
+      i += 1
+      if (i % CompletionInterval == 0) client.completeAll()
+    }
+    // the last batch is only sent in finishBundle
+    client.finishBundle()
+    batchLookupFn.finishBundle(finishBundleContext(batchLookupFn, bh))
+  }
+
+  private def outputReceiver[T](bh: Blackhole): OutputReceiver[KV[String, T]] =
+    new OutputReceiver[KV[String, T]] {
+      override def output(output: KV[String, T]): Unit = bh.consume(output)
+      override def outputWithTimestamp(output: KV[String, T], timestamp: Instant): Unit =
+        bh.consume(output)
+    }
+
+  private def finishBundleContext[T](
+    fn: DoFn[String, KV[String, T]],
+    bh: Blackhole
+  ): fn.FinishBundleContext = new fn.FinishBundleContext {
+    override def getPipelineOptions: PipelineOptions = ???
+    override def output(output: KV[String, T], timestamp: Instant, window: BoundedWindow): Unit =
+      bh.consume(output)
+    override def output[O](
+      tag: TupleTag[O],
+      output: O,
+      timestamp: Instant,
+      window: BoundedWindow
+    ): Unit = ???
+  }
+}
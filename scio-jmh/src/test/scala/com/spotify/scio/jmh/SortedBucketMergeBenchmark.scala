@@ -0,0 +1,134 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.scio.jmh
+
+import java.nio.file.{Files, Path}
+import java.util.concurrent.TimeUnit
+
+import org.apache.avro.generic.GenericRecord
+import org.apache.beam.sdk.coders.StringUtf8Coder
+import org.apache.beam.sdk.extensions.smb.SortedBucketIO.{ComparableKeyBytes, PrimaryKeyComparator}
+import org.apache.beam.sdk.extensions.smb.SortedBucketSource.{
+  BucketedInput,
+  PrimaryKeyedBucketedInput
+}
+import org.apache.beam.sdk.extensions.smb._
+import org.apache.beam.sdk.metrics.Metrics
+import org.apache.beam.sdk.options.{PipelineOptions, PipelineOptionsFactory}
+import org.apache.beam.sdk.transforms.join.CoGbkResultSchema
+import org.apache.beam.sdk.values.TupleTag
+import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
+
+import scala.jdk.CollectionConverters._
+
+/**
+ * Merges a single bucket of `numSources` sources through [[MultiSourceKeyGroupReader]], to measure
+ * the per record overhead of the merge.
+ *
+ * Sources have [[SmbBenchmarkData.NumRecords]] records in total, over overlapping but different
+ * sets of keys, so that most key groups are only present in a subset of the sources.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+class SortedBucketMergeBenchmark {
+  import SortedBucketMergeBenchmark._
+
+  @Param(Array("2", "5", "10"))
+  var numSources: Int = _
+
+  @Param(Array("false", "true"))
+  var materializeKeyGroup: Boolean = _
+
+  @Param(Array("1000", "50000"))
+  var keyCardinality: Int = _
+
+  @Param(Array("0.0", "1.0"))
+  var skew: Double = _
+
+  @Param(Array("16", "512"))
+  var recordWidth: Int = _
+
+  private var tmpDir: Path = _
+  private var inputs: java.util.List[BucketedInput[_]] = _
+  private var tags: Seq[TupleTag[GenericRecord]] = _
+  private val metadata = SmbBenchmarkData.metadata(1)
+  private val options: PipelineOptions = PipelineOptionsFactory.create()
+
+  @Setup(Level.Trial)
+  def setup(): Unit = {
+    tmpDir = Files.createTempDirectory("smb-merge-benchmark")
+    val fileOperations = AvroFileOperations.of[GenericRecord](SmbBenchmarkData.AvroSchema)
+    val perSource = SmbBenchmarkData.NumRecords / numSources
+
+    tags = (0 until numSources).map(i => new TupleTag[GenericRecord](s"source$i"))
+    inputs = tags.zipWithIndex.map { case (tag, i) =>
+      val dir = tmpDir.resolve(tag.getId)
+      val keys = SmbBenchmarkData.keys(math.min(keyCardinality, perSource), skew, perSource, i)
+      SmbBenchmarkData.writeSource(
+        dir,
+        fileOperations,
+        SmbBenchmarkData.records(keys, recordWidth)
+      )
+
+      new PrimaryKeyedBucketedInput[GenericRecord](
+        tag,
+        java.util.Collections.singletonList(dir.toFile.getAbsolutePath),
+        ".avro",
+        fileOperations,
+        null
+      ): BucketedInput[_]
+    }.asJava
+  }
+
+  @TearDown(Level.Trial)
+  def tearDown(): Unit = SmbBenchmarkData.deleteRecursively(tmpDir)
+
+  @Benchmark
+  @OperationsPerInvocation(SmbBenchmarkData.NumRecords)
+  def merge(bh: Blackhole): Unit = {
+    val reader = new MultiSourceKeyGroupReader[String](
+      inputs,
+      ComparableKeyBytes.keyFnPrimary(StringUtf8Coder.of()),
+      CoGbkResultSchema.of(tags.map(t => t: TupleTag[_]).asJava),
+      metadata,
+      new PrimaryKeyComparator,
+      KeyGroupSize,
+      materializeKeyGroup,
+      0,
+      1,
+      options
+    )
+    var next = reader.readNext()
+    while (next != null) {
+      bh.consume(next.getKey)
+      tags.foreach { tag =>
+        // lazy key groups must be consumed before reading the next one
+        val values = next.getValue.getAll(tag).iterator()
+        while (values.hasNext) bh.consume(values.next())
+      }
+      next = reader.readNext()
+    }
+  }
+}
+
+object SortedBucketMergeBenchmark {
+  private val KeyGroupSize =
+    Metrics.distribution(classOf[SortedBucketMergeBenchmark], "keyGroupSize")
+}
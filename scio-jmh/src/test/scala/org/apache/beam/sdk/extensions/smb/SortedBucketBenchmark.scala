@@ -0,0 +1,331 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.beam.sdk.extensions.smb
+
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.file.{Files, Path}
+import java.util.concurrent.TimeUnit
+
+import org.apache.avro.Schema
+import org.apache.avro.generic.{GenericData, GenericRecord}
+import org.apache.beam.sdk.extensions.smb.BucketMetadata.HashType
+import org.apache.beam.sdk.extensions.smb.SortedBucketIO.{ComparableKeyBytes, PrimaryKeyComparator}
+import org.apache.beam.sdk.extensions.sorter.{BufferedExternalSorter, ExternalSorter}
+import org.apache.beam.sdk.io.{FileSystems, LocalResources}
+import org.apache.beam.sdk.io.fs.ResourceId
+import org.apache.beam.sdk.util.CoderUtils
+import org.apache.beam.sdk.values.KV
+import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
+
+import scala.jdk.CollectionConverters._
+import scala.util.Random
+
+/**
+ * Records and SMB directories generated for the SMB micro-benchmarks.
+ *
+ * Each data set has exactly [[NumRecords]] records, so that benchmarks annotated with
+ * `@OperationsPerInvocation(NumRecords)` report throughput per record, and with `-prof gc`,
+ * allocations per record (`gc.alloc.rate.norm`).
+ */
+object SmbBenchmarkData {
+  final val NumRecords = 100000
+  val FilenamePrefix = "bucket"
+
+  val AvroSchema: Schema = new Schema.Parser().parse(
+    """
+      {
+        "type": "record",
+        "name": "Event",
+        "namespace": "smbjoin",
+        "fields": [
+          {"name": "key", "type": "string"},
+          {"name": "value", "type": "int"},
+          {"name": "payload", "type": "bytes"}
+        ]
+      }
+    """
+  )
+
+  def metadata(numBuckets: Int): AvroBucketMetadata[String, Void, GenericRecord] =
+    new AvroBucketMetadata[String, Void, GenericRecord](
+      numBuckets,
+      1,
+      classOf[String],
+      "key",
+      null,
+      null,
+      HashType.MURMUR3_32,
+      FilenamePrefix,
+      AvroSchema
+    )
+
+  /**
+   * Sorted keys of `numRecords` records, over `keyCardinality` distinct keys. With a positive
+   * `skew`, the number of records of the key of rank `r` is proportional to `1 / r^skew`, and the
+   * hottest keys are spread over the key space.
+   */
+  def keys(keyCardinality: Int, skew: Double, numRecords: Int, seed: Int): Array[String] = {
+    require(keyCardinality <= numRecords, "Every key must have a record")
+    val weights = (1 to keyCardinality).map(r => 1.0 / math.pow(r.toDouble, skew))
+    val total = weights.sum
+    val counts = weights.map(w => 1 + (w / total * (numRecords - keyCardinality)).toInt).toArray
+    // rounding leftovers go to the hottest keys
+    var leftover = numRecords - counts.sum
+    var rank = 0
+    while (leftover > 0) {
+      counts(rank % keyCardinality) += 1
+      leftover -= 1
+      rank += 1
+    }
+
+    val keyIds =
+      new Random(seed).shuffle((0 until keyCardinality * 2).toVector).take(keyCardinality)
+    val countByKeyId = keyIds.zip(counts).sortBy(_._1)
+    countByKeyId.iterator.flatMap { case (id, n) => Iterator.fill(n)(f"$id%010d") }.toArray
+  }
+
+  def records(keys: Array[String], recordWidth: Int): Array[GenericRecord] = {
+    val random = new Random(0)
+    keys.zipWithIndex.map { case (key, i) =>
+      val payload = new Array[Byte](recordWidth)
+      random.nextBytes(payload)
+      val record = new GenericData.Record(AvroSchema)
+      record.put("key", key)
+      record.put("value", i)
+      record.put("payload", ByteBuffer.wrap(payload))
+      record: GenericRecord
+    }
+  }
+
+  /** Writes sorted records as bucket 0 of a single-bucket SMB directory. */
+  def writeSource(
+    dir: Path,
+    fileOperations: FileOperations[GenericRecord],
+    records: Iterable[GenericRecord]
+  ): ResourceId = {
+    Files.createDirectories(dir)
+    val fileAssignment =
+      new SMBFilenamePolicy(LocalResources.fromFile(dir.toFile, true), FilenamePrefix, ".avro")
+        .forDestination()
+    val md = metadata(1)
+    val metadataOut = Channels.newOutputStream(
+      FileSystems.create(fileAssignment.forMetadata(), "application/json")
+    )
+    BucketMetadata.to(md, metadataOut)
+
+    val file = fileAssignment.forBucket(BucketShardId.of(0, 0), md)
+    val writer = fileOperations.createWriter(file)
+    records.foreach(writer.write)
+    writer.close()
+    file
+  }
+
+  def deleteRecursively(dir: Path): Unit =
+    Files
+      .walk(dir)
+      .sorted(java.util.Comparator.reverseOrder[Path]())
+      .forEach(p => Files.delete(p))
+}
+
+/** Hashes primary keys into buckets, as done for every record written by an SMB sink. */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+class BucketIdBenchmark {
+  import SmbBenchmarkData._
+
+  @Param(Array("1000", "100000"))
+  var keyCardinality: Int = _
+
+  @Param(Array("16", "512"))
+  var recordWidth: Int = _
+
+  private val md = metadata(1024)
+  private var records: Array[GenericRecord] = _
+  private var keyBytes: Array[Array[Byte]] = _
+
+  @Setup(Level.Trial)
+  def setup(): Unit = {
+    records = SmbBenchmarkData.records(keys(keyCardinality, 0.0, NumRecords, 0), recordWidth)
+    keyBytes = records.map(md.getKeyBytesPrimary)
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SmbBenchmarkData.NumRecords)
+  def getKeyBytesPrimary(bh: Blackhole): Unit =
+    records.foreach(r => bh.consume(md.getKeyBytesPrimary(r)))
+
+  @Benchmark
+  @OperationsPerInvocation(SmbBenchmarkData.NumRecords)
+  def getBucketId(bh: Blackhole): Unit =
+    keyBytes.foreach(k => bh.consume(md.getBucketId(k)))
+
+  @Benchmark
+  @OperationsPerInvocation(SmbBenchmarkData.NumRecords)
+  def getBucketIdOfKey(bh: Blackhole): Unit =
+    records.foreach(r => bh.consume(md.getBucketIdOfKey(md.extractKeyPrimary(r))))
+}
+
+/** Sorts the encoded records of a bucket, as done by an SMB sink before writing it. */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+class ExternalSortBenchmark {
+  import SmbBenchmarkData._
+
+  @Param(Array("1000", "100000"))
+  var keyCardinality: Int = _
+
+  @Param(Array("0.0", "1.0"))
+  var skew: Double = _
+
+  @Param(Array("16", "512"))
+  var recordWidth: Int = _
+
+  // sorts larger than this spill to local disk
+  @Param(Array("16", "1024"))
+  var sorterMemoryMb: Int = _
+
+  private val md = metadata(1)
+  private var encoded: Array[KV[Array[Byte], Array[Byte]]] = _
+
+  @Setup(Level.Trial)
+  def setup(): Unit = {
+    val coder = AvroFileOperations.of[GenericRecord](AvroSchema).getCoder
+    val sorted = records(keys(keyCardinality, skew, NumRecords, 0), recordWidth)
+    encoded = new Random(0)
+      .shuffle(sorted.toVector)
+      .map(r => KV.of(md.getKeyBytesPrimary(r), CoderUtils.encodeToByteArray(coder, r)))
+      .toArray
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SmbBenchmarkData.NumRecords)
+  def sort(bh: Blackhole): Unit = {
+    val sorter = BufferedExternalSorter.create(
+      BufferedExternalSorter
+        .options()
+        .withExternalSorterType(ExternalSorter.Options.SorterType.NATIVE)
+        .withMemoryMB(sorterMemoryMb)
+    )
+    encoded.foreach(sorter.add)
+    sorter.sort().forEach(kv => bh.consume(kv.getValue))
+  }
+}
+
+/** Reads and writes bucket files through [[FileOperations]]. */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+class FileOperationsBenchmark {
+  import SmbBenchmarkData._
+
+  @Param(Array("avro", "parquet"))
+  var format: String = _
+
+  @Param(Array("16", "512"))
+  var recordWidth: Int = _
+
+  private var tmpDir: Path = _
+  private var fileOperations: FileOperations[GenericRecord] = _
+  private var records: Array[GenericRecord] = _
+  private var bucketFile: ResourceId = _
+  private var writtenFile: ResourceId = _
+
+  @Setup(Level.Trial)
+  def setup(): Unit = {
+    tmpDir = Files.createTempDirectory("smb-file-operations-benchmark")
+    fileOperations = format match {
+      case "avro"    => AvroFileOperations.of[GenericRecord](AvroSchema)
+      case "parquet" => ParquetAvroFileOperations.of[GenericRecord](AvroSchema)
+      case other     => throw new IllegalArgumentException(s"Unsupported format $other")
+    }
+    records = SmbBenchmarkData.records(keys(NumRecords, 0.0, NumRecords, 0), recordWidth)
+    bucketFile = writeSource(tmpDir.resolve("source"), fileOperations, records)
+    writtenFile = LocalResources.fromFile(tmpDir.resolve("written").toFile, false)
+  }
+
+  @TearDown(Level.Trial)
+  def tearDown(): Unit = deleteRecursively(tmpDir)
+
+  @Benchmark
+  @OperationsPerInvocation(SmbBenchmarkData.NumRecords)
+  def read(bh: Blackhole): Unit =
+    fileOperations.iterator(bucketFile).forEachRemaining(r => bh.consume(r))
+
+  @Benchmark
+  @OperationsPerInvocation(SmbBenchmarkData.NumRecords)
+  def write(): Unit = {
+    val writer = fileOperations.createWriter(writtenFile)
+    records.foreach(writer.write)
+    writer.close()
+  }
+}
+
+/**
+ * Groups the records of `numSources` files of a bucket by key through [[KeyGroupIterator]], as
+ * done for each source of an SMB read, over records already in memory.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+class KeyGroupIteratorBenchmark {
+  import SmbBenchmarkData._
+
+  @Param(Array("1000", "100000"))
+  var keyCardinality: Int = _
+
+  @Param(Array("0.0", "1.0"))
+  var skew: Double = _
+
+  @Param(Array("1", "5"))
+  var numSources: Int = _
+
+  @Param(Array("16"))
+  var recordWidth: Int = _
+
+  private val md = metadata(1)
+  private var files: Seq[Array[KV[ComparableKeyBytes, GenericRecord]]] = _
+
+  @Setup(Level.Trial)
+  def setup(): Unit = {
+    val perFile = NumRecords / numSources
+    files = (0 until numSources).map { i =>
+      val fileKeys = keys(math.min(keyCardinality, perFile), skew, perFile, i)
+      SmbBenchmarkData
+        .records(fileKeys, recordWidth)
+        .map(r => KV.of(md.primaryComparableKeyBytes(r), r))
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SmbBenchmarkData.NumRecords)
+  def iterate(bh: Blackhole): Unit = {
+    val iterators: Seq[java.util.Iterator[KV[ComparableKeyBytes, GenericRecord]]] =
+      files.map(_.iterator.asJava)
+    val it = new KeyGroupIterator[GenericRecord](iterators.asJava, new PrimaryKeyComparator)
+    while (it.hasNext) {
+      val keyGroup = it.next()
+      bh.consume(keyGroup.getKey)
+      val values = keyGroup.getValue
+      while (values.hasNext) bh.consume(values.next())
+    }
+  }
+}
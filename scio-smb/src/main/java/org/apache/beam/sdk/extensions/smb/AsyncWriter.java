@@ -0,0 +1,165 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.beam.sdk.extensions.smb;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.beam.sdk.extensions.smb.FileOperations.Writer;
+import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.base.Preconditions;
+
+/**
+ * Writes values through a {@link Writer} on a dedicated thread, so that encoding and compression
+ * overlap with producing the values. Values are handed over in chunks, in order, with at most
+ * {@link #NUM_CHUNKS} chunks queued behind the producer.
+ *
+ * <p>Values must not be modified once written.
+ */
+class AsyncWriter<V> implements AutoCloseable {
+  static final int NUM_CHUNKS = 2;
+  private static final Object[] END = new Object[0];
+
+  private final Writer<V> writer;
+  private final int chunkSize;
+  private final BlockingQueue<Object[]> chunks = new ArrayBlockingQueue<>(NUM_CHUNKS);
+  // full-size chunks already written, reused by the producer
+  private final Queue<Object[]> freeChunks = new ConcurrentLinkedQueue<>();
+  private final Thread thread;
+  private volatile Throwable failure = null;
+  private boolean aborted = false;
+
+  private Object[] current;
+  private int size = 0;
+
+  AsyncWriter(String name, Writer<V> writer, int chunkSize) {
+    Preconditions.checkArgument(chunkSize > 0, "Invalid chunk size %s", chunkSize);
+    this.writer = writer;
+    this.chunkSize = chunkSize;
+    this.current = new Object[chunkSize];
+    this.thread = new Thread(this::run, "smb-writer-" + name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  void write(V value) throws IOException {
+    current[size++] = value;
+    if (size == chunkSize) {
+      try {
+        put(current);
+      } catch (InterruptedException e) {
+        throw interrupted(e);
+      }
+      final Object[] free = freeChunks.poll();
+      current = free != null ? free : new Object[chunkSize];
+      size = 0;
+    }
+  }
+
+  /** Writes the remaining values and closes the underlying writer. */
+  @Override
+  public void close() throws IOException {
+    try {
+      if (size > 0) {
+        put(Arrays.copyOf(current, size));
+        size = 0;
+      }
+      put(END);
+      thread.join();
+    } catch (InterruptedException e) {
+      throw interrupted(e);
+    } catch (IOException e) {
+      throw closeAfterFailure(e);
+    }
+
+    if (failure != null) {
+      throw closeAfterFailure(new IOException("Failed to write", failure));
+    }
+    writer.close();
+  }
+
+  /**
+   * Stops the writer thread without writing the remaining values, after a failure upstream, and
+   * closes the underlying writer. Failures to close are added as suppressed to {@code cause}.
+   */
+  void abort(Exception cause) {
+    if (aborted) return;
+    aborted = true;
+    thread.interrupt();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      // the writer thread may still be using the writer
+      Thread.currentThread().interrupt();
+      cause.addSuppressed(e);
+      return;
+    }
+    try {
+      writer.close();
+    } catch (Exception closeException) {
+      cause.addSuppressed(closeException);
+    }
+  }
+
+  private void put(Object[] chunk) throws IOException, InterruptedException {
+    // the writer thread stops taking chunks once it fails
+    while (failure == null) {
+      if (chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) return;
+    }
+    throw new IOException("Failed to write", failure);
+  }
+
+  private IOException interrupted(InterruptedException e) {
+    final IOException failure = new IOException("Interrupted while writing", e);
+    abort(failure);
+    Thread.currentThread().interrupt();
+    return failure;
+  }
+
+  // only called once the writer thread has stopped
+  private IOException closeAfterFailure(IOException e) {
+    try {
+      writer.close();
+    } catch (IOException closeException) {
+      e.addSuppressed(closeException);
+    }
+    return e;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void run() {
+    try {
+      while (true) {
+        final Object[] chunk = chunks.take();
+        if (chunk == END) break;
+        for (Object value : chunk) {
+          writer.write((V) value);
+        }
+        if (chunk.length == chunkSize) {
+          Arrays.fill(chunk, null);
+          freeChunks.offer(chunk);
+        }
+      }
+    } catch (Throwable t) {
+      failure = t;
+    }
+  }
+}
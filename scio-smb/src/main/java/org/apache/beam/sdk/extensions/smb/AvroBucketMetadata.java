@@ -153,6 +153,28 @@ public class AvroBucketMetadata<K1, K2, V extends IndexedRecord> extends BucketM
     return extractKey(getKeyClassSecondary(), path, value);
   }
 
+  String getKeyField() {
+    return keyField;
+  }
+
+  String getKeyFieldSecondary() {
+    return keyFieldSecondary;
+  }
+
+  /** Returns the primary key bytes of a record, with the primary key field at {@code keyPath}. */
+  byte[] getKeyBytesPrimary(IndexedRecord record, int[] keyPath) {
+    return encodeKeyBytesPrimary(extractKey(getKeyClass(), keyPath, record));
+  }
+
+  /**
+   * Returns the secondary key bytes of a record, with the secondary key field at {@code keyPath}.
+   */
+  byte[] getKeyBytesSecondary(IndexedRecord record, int[] keyPath) {
+    verifyNotNull(getKeyClassSecondary());
+    return encodeKeyBytes(
+        extractKey(getKeyClassSecondary(), keyPath, record), getKeyCoderSecondary());
+  }
+
   static <K> K extractKey(Class<K> keyClazz, int[] keyPath, IndexedRecord value) {
     IndexedRecord node = value;
     for (int i = 0; i < keyPath.length - 1; i++) {
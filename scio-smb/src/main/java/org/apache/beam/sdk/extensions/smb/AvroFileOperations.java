@@ -18,23 +18,38 @@
 package org.apache.beam.sdk.extensions.smb;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.stream.Collectors;
 import org.apache.avro.Schema;
 import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileReader;
 import org.apache.avro.file.DataFileStream;
+import org.apache.avro.file.SeekableInput;
 import org.apache.avro.generic.GenericDatumReader;
 import org.apache.avro.generic.GenericRecord;
 import org.apache.avro.generic.IndexedRecord;
+import org.apache.avro.io.BinaryDecoder;
 import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DecoderFactory;
 import org.apache.avro.reflect.ReflectData;
 import org.apache.avro.reflect.ReflectDatumReader;
 import org.apache.avro.reflect.ReflectDatumWriter;
 import org.apache.beam.sdk.coders.Coder;
 import org.apache.beam.sdk.extensions.avro.coders.AvroCoder;
 import org.apache.beam.sdk.extensions.avro.io.AvroIO;
+import org.apache.beam.sdk.extensions.smb.SortedBucketIO.ComparableKeyBytes;
 import org.apache.beam.sdk.io.Compression;
 import org.apache.beam.sdk.io.FileIO;
 import org.apache.beam.sdk.io.PatchedSerializableAvroCodecFactory;
@@ -100,11 +115,25 @@ public class AvroFileOperations<ValueT> extends FileOperations<ValueT> {
     builder.add(DisplayData.item("schema", schemaSupplier.schema.getFullName()));
   }
 
+  @Override
+  boolean supportsIndex() {
+    // flushing the sink ends an Avro block, from which the file can be read
+    return true;
+  }
+
   @Override
   protected Reader<ValueT> createReader() {
     return new AvroReader<>(recordClass, schemaSupplier);
   }
 
+  @Override
+  Reader<ValueT> createLazyReader(BucketMetadata<?, ?, ValueT> metadata, boolean withSecondaryKey) {
+    return metadata instanceof AvroBucketMetadata
+        ? new AvroReader<>(
+            recordClass, schemaSupplier, (AvroBucketMetadata<?, ?, ?>) metadata, withSecondaryKey)
+        : null;
+  }
+
   @SuppressWarnings("unchecked")
   @Override
   protected FileIO.Sink<ValueT> createSink() {
@@ -192,15 +221,44 @@ public class AvroFileOperations<ValueT> extends FileOperations<ValueT> {
   private static class AvroReader<ValueT> extends FileOperations.Reader<ValueT> {
     private Class<ValueT> recordClass;
     private SerializableSchemaSupplier schemaSupplier;
+    // if not null, records are read as LazyRecords keyed by this metadata
+    private AvroBucketMetadata<?, ?, ?> lazyKeyMetadata;
+    private boolean lazyWithSecondaryKey;
     private transient DataFileStream<ValueT> reader;
+    private transient LazyBlockReader<ValueT> lazyReader;
 
     AvroReader(Class<ValueT> recordClass, SerializableSchemaSupplier schemaSupplier) {
+      this(recordClass, schemaSupplier, null, false);
+    }
+
+    AvroReader(
+        Class<ValueT> recordClass,
+        SerializableSchemaSupplier schemaSupplier,
+        AvroBucketMetadata<?, ?, ?> lazyKeyMetadata,
+        boolean lazyWithSecondaryKey) {
       this.recordClass = recordClass;
       this.schemaSupplier = schemaSupplier;
+      this.lazyKeyMetadata = lazyKeyMetadata;
+      this.lazyWithSecondaryKey = lazyWithSecondaryKey;
     }
 
     @Override
     public void prepareRead(ReadableByteChannel channel) throws IOException {
+      reader = new DataFileStream<>(Channels.newInputStream(channel), createDatumReader());
+      lazyReader = createLazyBlockReader();
+    }
+
+    @Override
+    void prepareReadAt(SeekableByteChannel channel, long offset) throws IOException {
+      // reads the header, then jumps to the block starting at offset
+      final DataFileReader<ValueT> fileReader =
+          new DataFileReader<>(new SeekableChannelInput(channel), createDatumReader());
+      fileReader.seek(offset);
+      reader = fileReader;
+      lazyReader = createLazyBlockReader();
+    }
+
+    private DatumReader<ValueT> createDatumReader() {
       final Schema schema = schemaSupplier.get();
 
       DatumReader<ValueT> datumReader;
@@ -212,18 +270,53 @@ public class AvroFileOperations<ValueT> extends FileOperations<ValueT> {
         org.apache.beam.sdk.extensions.avro.schemas.utils.AvroUtils.addLogicalTypeConversions(data);
         datumReader = new ReflectDatumReader<>(data);
       }
+      return datumReader;
+    }
+
+    // falls back to decoding full records if key fields can't be decoded on their own
+    private LazyBlockReader<ValueT> createLazyBlockReader() {
+      if (lazyKeyMetadata == null) {
+        return null;
+      }
+      final Schema fileSchema = reader.getSchema();
+      // schema of the records decoded by createDatumReader()
+      final Schema schema = recordClass == null ? schemaSupplier.get() : fileSchema;
+      final List<String> keyFields = new ArrayList<>();
+      keyFields.add(lazyKeyMetadata.getKeyField());
+      if (lazyWithSecondaryKey) {
+        keyFields.add(lazyKeyMetadata.getKeyFieldSecondary());
+      }
+      final Schema keySchema = projectKeyFields(schema, keyFields, recordClass == null);
+      if (keySchema == null) {
+        return null;
+      }
 
-      reader = new DataFileStream<>(Channels.newInputStream(channel), datumReader);
+      final DatumReader<ValueT> datumReader = createDatumReader();
+      datumReader.setSchema(fileSchema);
+      return new LazyBlockReader<>(
+          reader,
+          datumReader,
+          new GenericDatumReader<>(fileSchema, keySchema),
+          lazyKeyMetadata,
+          AvroUtils.toKeyPath(
+              lazyKeyMetadata.getKeyField(), lazyKeyMetadata.getKeyClass(), keySchema),
+          lazyWithSecondaryKey
+              ? AvroUtils.toKeyPath(
+                  lazyKeyMetadata.getKeyFieldSecondary(),
+                  lazyKeyMetadata.getKeyClassSecondary(),
+                  keySchema)
+              : null);
     }
 
+    @SuppressWarnings("unchecked")
     @Override
-    public ValueT readNext() {
-      return reader.next();
+    public ValueT readNext() throws IOException {
+      return lazyReader == null ? reader.next() : (ValueT) (Object) lazyReader.next();
     }
 
     @Override
-    public boolean hasNextElement() {
-      return reader.hasNext();
+    public boolean hasNextElement() throws IOException {
+      return lazyReader == null ? reader.hasNext() : lazyReader.hasNext();
     }
 
     @Override
@@ -231,4 +324,271 @@ public class AvroFileOperations<ValueT> extends FileOperations<ValueT> {
       reader.close();
     }
   }
+
+  /**
+   * Returns a schema with only the fields of {@code schema} on the paths of {@code keyFields}, or
+   * null if a key field can't be decoded with it to the same key as from the full record, e.g.
+   * since it's missing or has a logical type converted by reflect readers.
+   */
+  static Schema projectKeyFields(Schema schema, List<String> keyFields, boolean genericRecords) {
+    final List<String[]> paths =
+        keyFields.stream().map(f -> f.split("\\.")).collect(Collectors.toList());
+    return projectRecord(schema, paths, 0, genericRecords);
+  }
+
+  private static Schema projectRecord(
+      Schema record, List<String[]> paths, int depth, boolean genericRecords) {
+    if (record.getType() != Schema.Type.RECORD) {
+      return null;
+    }
+
+    final List<Schema.Field> fields = new ArrayList<>();
+    final Set<String> projected = new HashSet<>();
+    for (Schema.Field field : record.getFields()) {
+      final List<String[]> fieldPaths =
+          paths.stream().filter(p -> p[depth].equals(field.name())).collect(Collectors.toList());
+      if (fieldPaths.isEmpty()) {
+        continue;
+      }
+
+      Schema fieldSchema;
+      if (fieldPaths.stream().anyMatch(p -> p.length == depth + 1)) {
+        // leaf key fields are decoded in full
+        fieldSchema = isProjectableLeaf(field.schema(), genericRecords) ? field.schema() : null;
+      } else {
+        fieldSchema = projectNested(field.schema(), fieldPaths, depth + 1, genericRecords);
+      }
+      if (fieldSchema == null) {
+        return null;
+      }
+      final Schema.Field projectedField =
+          new Schema.Field(
+              field.name(), fieldSchema, field.doc(), field.defaultVal(), field.order());
+      field.aliases().forEach(projectedField::addAlias);
+      fields.add(projectedField);
+      projected.add(field.name());
+    }
+    if (!paths.stream().allMatch(p -> projected.contains(p[depth]))) {
+      return null;
+    }
+
+    final Schema projectedRecord =
+        Schema.createRecord(
+            record.getName(), record.getDoc(), record.getNamespace(), record.isError(), fields);
+    record.getAliases().forEach(projectedRecord::addAlias);
+    return projectedRecord;
+  }
+
+  // non-leaf key fields are records, or unions of null and a record
+  private static Schema projectNested(
+      Schema schema, List<String[]> paths, int depth, boolean genericRecords) {
+    if (schema.getType() != Schema.Type.UNION) {
+      return projectRecord(schema, paths, depth, genericRecords);
+    }
+
+    final List<Schema> types = new ArrayList<>();
+    for (Schema type : schema.getTypes()) {
+      if (type.getType() == Schema.Type.NULL) {
+        types.add(type);
+      } else {
+        final Schema projectedType = projectRecord(type, paths, depth, genericRecords);
+        if (projectedType == null) {
+          return null;
+        }
+        types.add(projectedType);
+      }
+    }
+    return Schema.createUnion(types);
+  }
+
+  private static boolean isProjectableLeaf(Schema schema, boolean genericRecords) {
+    if (genericRecords) {
+      // decoded the same way, with or without other fields
+      return true;
+    }
+    Schema leaf = schema;
+    if (schema.getType() == Schema.Type.UNION) {
+      final List<Schema> nonNull =
+          schema.getTypes().stream()
+              .filter(t -> t.getType() != Schema.Type.NULL)
+              .collect(Collectors.toList());
+      if (nonNull.size() != 1) {
+        return false;
+      }
+      leaf = nonNull.get(0);
+    }
+    // reflect readers decode these to the same classes as generic readers
+    switch (leaf.getType()) {
+      case STRING:
+      case BYTES:
+      case INT:
+      case LONG:
+        return leaf.getLogicalType() == null;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Reads Avro blocks as raw bytes, decoding only the key fields of each record into a reused
+   * record, and returns each record as a {@link LazyRecord} of a copy of its slice of the block.
+   */
+  private static class LazyBlockReader<ValueT> {
+    // records may be decoded by any thread consuming key groups
+    private static final ThreadLocal<BinaryDecoder> VALUE_DECODER = new ThreadLocal<>();
+
+    private final DataFileStream<ValueT> stream;
+    private final DatumReader<ValueT> datumReader;
+    private final GenericDatumReader<GenericRecord> keyReader;
+    private final AvroBucketMetadata<?, ?, ?> metadata;
+    private final int[] keyPath;
+    private final int[] keyPathSecondary;
+    private final BlockInputStream block = new BlockInputStream();
+    private BinaryDecoder keyDecoder = null;
+    private GenericRecord keyRecord = null;
+    private long remaining = 0;
+
+    LazyBlockReader(
+        DataFileStream<ValueT> stream,
+        DatumReader<ValueT> datumReader,
+        GenericDatumReader<GenericRecord> keyReader,
+        AvroBucketMetadata<?, ?, ?> metadata,
+        int[] keyPath,
+        int[] keyPathSecondary) {
+      this.stream = stream;
+      this.datumReader = datumReader;
+      this.keyReader = keyReader;
+      this.metadata = metadata;
+      this.keyPath = keyPath;
+      this.keyPathSecondary = keyPathSecondary;
+    }
+
+    boolean hasNext() throws IOException {
+      if (remaining == 0 && stream.hasNext()) {
+        remaining = stream.getBlockCount();
+        // the stream reuses its block buffer, so record slices are copied before it moves on
+        block.reset(stream.nextBlock());
+        keyDecoder = DecoderFactory.get().directBinaryDecoder(block, keyDecoder);
+      }
+      return remaining > 0;
+    }
+
+    LazyRecord<ValueT> next() throws IOException {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      final int start = block.position();
+      keyRecord = keyReader.read(keyRecord, keyDecoder);
+      // only the slice of the record is kept, not the whole block
+      final byte[] bytes = block.copy(start);
+      remaining--;
+
+      final ComparableKeyBytes key =
+          new ComparableKeyBytes(
+              metadata.getKeyBytesPrimary(keyRecord, keyPath),
+              keyPathSecondary == null
+                  ? null
+                  : metadata.getKeyBytesSecondary(keyRecord, keyPathSecondary));
+      return new LazyRecord<ValueT>(key) {
+        @Override
+        ValueT decode() {
+          try {
+            final BinaryDecoder decoder =
+                DecoderFactory.get().binaryDecoder(bytes, VALUE_DECODER.get());
+            VALUE_DECODER.set(decoder);
+            return datumReader.read(null, decoder);
+          } catch (IOException e) {
+            throw new RuntimeException("Failed to decode Avro record", e);
+          }
+        }
+      };
+    }
+  }
+
+  /** Unsynchronized {@link InputStream} over a block, exposing its position. */
+  private static class BlockInputStream extends InputStream {
+    private ByteBuffer buffer = ByteBuffer.allocate(0);
+
+    void reset(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    int position() {
+      return buffer.position();
+    }
+
+    /** Returns a copy of the bytes from {@code start} to the current position. */
+    byte[] copy(int start) {
+      final ByteBuffer slice = buffer.duplicate();
+      // through Buffer, as ByteBuffer only overrides these methods since Java 9
+      ((Buffer) slice).limit(buffer.position()).position(start);
+      final byte[] bytes = new byte[slice.remaining()];
+      slice.get(bytes);
+      return bytes;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      final int n = Math.min(len, buffer.remaining());
+      buffer.get(b, off, n);
+      return n;
+    }
+
+    @Override
+    public long skip(long n) {
+      final int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+      ((Buffer) buffer).position(buffer.position() + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+
+  /** Adapts a {@link SeekableByteChannel} to Avro's {@link SeekableInput}. */
+  private static class SeekableChannelInput implements SeekableInput {
+    private final SeekableByteChannel channel;
+
+    SeekableChannelInput(SeekableByteChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public void seek(long p) throws IOException {
+      channel.position(p);
+    }
+
+    @Override
+    public long tell() throws IOException {
+      return channel.position();
+    }
+
+    @Override
+    public long length() throws IOException {
+      return channel.size();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return channel.read(ByteBuffer.wrap(b, off, len));
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
 }
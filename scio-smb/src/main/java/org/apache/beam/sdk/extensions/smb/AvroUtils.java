@@ -166,7 +166,7 @@ class AvroUtils {
         CharSequence.class, CharSequenceCoder.of());
   }
 
-  private static class ByteBufferCoder extends AtomicCoder<ByteBuffer> {
+  static class ByteBufferCoder extends AtomicCoder<ByteBuffer> {
     private static final ByteBufferCoder INSTANCE = new ByteBufferCoder();
 
     private ByteBufferCoder() {}
@@ -191,7 +191,7 @@ class AvroUtils {
     }
   }
 
-  private static class CharSequenceCoder extends AtomicCoder<CharSequence> {
+  static class CharSequenceCoder extends AtomicCoder<CharSequence> {
     private static final CharSequenceCoder INSTANCE = new CharSequenceCoder();
 
     private CharSequenceCoder() {}
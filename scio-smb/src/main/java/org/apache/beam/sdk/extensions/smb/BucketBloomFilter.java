@@ -0,0 +1,186 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.beam.sdk.extensions.smb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
+import org.apache.beam.sdk.extensions.smb.BucketMetadata.HashType;
+import org.apache.beam.sdk.io.FileSystems;
+import org.apache.beam.sdk.io.fs.ResolveOptions.StandardResolveOptions;
+import org.apache.beam.sdk.io.fs.ResourceId;
+import org.apache.beam.sdk.util.MimeTypes;
+import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.base.Preconditions;
+import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.hash.HashFunction;
+
+/**
+ * Bloom filter of the primary keys in a sorted bucket file, written as a sidecar file next to it.
+ *
+ * <p>Keys are hashed with the {@link HashType} of the bucket metadata, and probe positions are
+ * derived from that hash by double hashing.
+ */
+class BucketBloomFilter {
+  static final String BLOOM_FILTER_SUFFIX = ".bloom";
+
+  private static final int VERSION = 1;
+
+  private final HashType hashType;
+  private final HashFunction hashFunction;
+  private final int numHashFunctions;
+  private final long numBits;
+  private final long[] bits;
+
+  private BucketBloomFilter(HashType hashType, int numHashFunctions, long[] bits) {
+    this.hashType = hashType;
+    this.hashFunction = hashType.create();
+    this.numHashFunctions = numHashFunctions;
+    this.numBits = (long) bits.length * Long.SIZE;
+    this.bits = bits;
+  }
+
+  /** Returns the Bloom filter sidecar of a bucket file. */
+  static ResourceId bloomFilterFor(ResourceId bucketFile) {
+    return bucketFile
+        .getCurrentDirectory()
+        .resolve(
+            bucketFile.getFilename() + BLOOM_FILTER_SUFFIX, StandardResolveOptions.RESOLVE_FILE);
+  }
+
+  /** Reads the Bloom filter of a bucket file, or returns null if it has none. */
+  static BucketBloomFilter read(ResourceId bucketFile) throws IOException {
+    final ResourceId filterFile = bloomFilterFor(bucketFile);
+    try (DataInputStream in =
+        new DataInputStream(
+            new BufferedInputStream(Channels.newInputStream(FileSystems.open(filterFile))))) {
+      final int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported Bloom filter version " + version + " in " + filterFile);
+      }
+      final HashType hashType = HashType.valueOf(in.readUTF());
+      final int numHashFunctions = in.readInt();
+      final long[] bits = new long[in.readInt()];
+      for (int i = 0; i < bits.length; i++) {
+        bits[i] = in.readLong();
+      }
+      return new BucketBloomFilter(hashType, numHashFunctions, bits);
+    } catch (FileNotFoundException | NoSuchFileException e) {
+      // no filter was written for this bucket file
+      return null;
+    }
+  }
+
+  /** Writes the filter as the sidecar of a bucket file. */
+  void write(ResourceId bucketFile) throws IOException {
+    try (DataOutputStream out =
+        new DataOutputStream(
+            new BufferedOutputStream(
+                Channels.newOutputStream(
+                    FileSystems.create(bloomFilterFor(bucketFile), MimeTypes.BINARY))))) {
+      out.writeInt(VERSION);
+      out.writeUTF(hashType.name());
+      out.writeInt(numHashFunctions);
+      out.writeInt(bits.length);
+      for (long word : bits) {
+        out.writeLong(word);
+      }
+    }
+  }
+
+  /** Returns false if the bucket file definitely has no record with these primary key bytes. */
+  boolean mightContain(byte[] keyBytes) {
+    final long hash = hash(hashFunction, keyBytes);
+    for (int i = 1; i <= numHashFunctions; i++) {
+      final long bit = bitIndex(hash, i, numBits);
+      if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static long bitIndex(long hash, int i, long numBits) {
+    final int h1 = (int) hash;
+    final int h2 = (int) (hash >>> 32);
+    return ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+  }
+
+  // spreads 32-bit hashes, e.g. MURMUR3_32, over 64 bits for double hashing
+  private static long hash(HashFunction hashFunction, byte[] keyBytes) {
+    long z = hashFunction.hashBytes(keyBytes).padToLong() + 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * Collects the hashes of the primary keys of a bucket file, written in sorted order, and builds
+   * a filter sized for the number of distinct keys.
+   */
+  static class Builder {
+    private final HashType hashType;
+    private final HashFunction hashFunction;
+    private final double fpp;
+    private long[] hashes = new long[1024];
+    private int numKeys = 0;
+    private byte[] lastKey = null;
+
+    Builder(HashType hashType, double fpp) {
+      Preconditions.checkArgument(fpp > 0.0 && fpp < 1.0, "Invalid false positive rate %s", fpp);
+      this.hashType = hashType;
+      this.hashFunction = hashType.create();
+      this.fpp = fpp;
+    }
+
+    void add(byte[] keyBytes) {
+      // records are sorted, so equal keys are consecutive
+      if (lastKey != null && Arrays.equals(lastKey, keyBytes)) return;
+      lastKey = keyBytes;
+      if (numKeys == hashes.length) {
+        hashes = Arrays.copyOf(hashes, numKeys * 2);
+      }
+      hashes[numKeys++] = hash(hashFunction, keyBytes);
+    }
+
+    boolean isEmpty() {
+      return numKeys == 0;
+    }
+
+    BucketBloomFilter build() {
+      final double ln2 = Math.log(2);
+      final long optimalBits = (long) Math.ceil(-numKeys * Math.log(fpp) / (ln2 * ln2));
+      final long[] bits = new long[(int) Math.max(1, (optimalBits + Long.SIZE - 1) / Long.SIZE)];
+      final long numBits = (long) bits.length * Long.SIZE;
+      final int numHashFunctions =
+          Math.max(1, (int) Math.round((double) numBits / Math.max(1, numKeys) * ln2));
+
+      for (int k = 0; k < numKeys; k++) {
+        for (int i = 1; i <= numHashFunctions; i++) {
+          final long bit = bitIndex(hashes[k], i, numBits);
+          bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+      }
+      return new BucketBloomFilter(hashType, numHashFunctions, bits);
+    }
+  }
+}
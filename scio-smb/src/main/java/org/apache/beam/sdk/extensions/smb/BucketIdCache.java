@@ -0,0 +1,219 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.beam.sdk.extensions.smb;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+import org.apache.beam.sdk.metrics.Counter;
+import org.apache.beam.sdk.metrics.Gauge;
+import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.base.Preconditions;
+
+/**
+ * Cache of the bucket ids of primary keys, used by {@link SortedBucketSink} for inputs with skewed
+ * keys. The hit rate is sampled every {@link #SAMPLE_SIZE} lookups, and while it's lower than
+ * {@link #MIN_HIT_RATE}, e.g. for uniformly distributed keys, the cache is bypassed for {@link
+ * #BYPASS_SIZE} lookups before sampling again.
+ *
+ * <p>{@code Long} and {@code Integer} keys are cached in a direct-mapped table of primitives,
+ * without boxing. Other keys are cached in a Caffeine cache. Not thread-safe.
+ */
+class BucketIdCache<K> {
+  static final int SAMPLE_SIZE = 10000;
+  static final double MIN_HIT_RATE = 0.2;
+  static final int BYPASS_SIZE = 1000000;
+
+  private static final Counter hitsCounter = Metrics.counter(SortedBucketSink.class, "cacheHits");
+  private static final Counter missesCounter =
+      Metrics.counter(SortedBucketSink.class, "cacheMisses");
+  private static final Counter bypassedCounter =
+      Metrics.counter(SortedBucketSink.class, "cacheBypassed");
+  private static final Gauge hitRatePercent =
+      Metrics.gauge(SortedBucketSink.class, "cacheHitRatePercent");
+  private static final Gauge bypassGauge = Metrics.gauge(SortedBucketSink.class, "cacheBypass");
+
+  private final Store<K> store;
+  private int hits = 0;
+  private int misses = 0;
+  private int bypassed = 0;
+  private int bypassRemaining = 0;
+
+  private BucketIdCache(Store<K> store) {
+    this.store = store;
+  }
+
+  @SuppressWarnings("unchecked")
+  static <K> BucketIdCache<K> of(Class<K> keyClass, int size) {
+    Preconditions.checkArgument(size > 0, "Invalid cache size %s", size);
+    if (keyClass == Long.class) {
+      return new BucketIdCache<>((Store<K>) new LongStore(size, k -> (Long) k));
+    } else if (keyClass == Integer.class) {
+      return new BucketIdCache<>((Store<K>) new LongStore(size, k -> (Integer) k));
+    } else {
+      return new BucketIdCache<>(new CaffeineStore<>(size));
+    }
+  }
+
+  /** Returns the bucket id of a non-null key, computed with {@code bucketIdFn} on cache misses. */
+  int getBucketId(K key, ToIntFunction<K> bucketIdFn) {
+    if (bypassRemaining > 0) {
+      bypassRemaining--;
+      if (++bypassed == SAMPLE_SIZE) {
+        flush();
+      }
+      return bucketIdFn.applyAsInt(key);
+    }
+
+    int bucketId = store.get(key);
+    if (bucketId >= 0) {
+      hits++;
+    } else {
+      misses++;
+      bucketId = bucketIdFn.applyAsInt(key);
+      store.put(key, bucketId);
+    }
+    if (hits + misses == SAMPLE_SIZE) {
+      final double hitRate = hits / (double) SAMPLE_SIZE;
+      hitRatePercent.set(Math.round(hitRate * 100));
+      if (hitRate < MIN_HIT_RATE) {
+        bypassRemaining = BYPASS_SIZE;
+      }
+      bypassGauge.set(bypassRemaining > 0 ? 1 : 0);
+      flush();
+    }
+    return bucketId;
+  }
+
+  boolean isBypassed() {
+    return bypassRemaining > 0;
+  }
+
+  /** Reports hits, misses and bypassed lookups since the last call to metrics. */
+  void flush() {
+    hitsCounter.inc(hits);
+    missesCounter.inc(misses);
+    bypassedCounter.inc(bypassed);
+    hits = 0;
+    misses = 0;
+    bypassed = 0;
+  }
+
+  private interface Store<K> {
+    /** Returns the bucket id of a key, or -1 if it isn't cached. */
+    int get(K key);
+
+    void put(K key, int bucketId);
+  }
+
+  private static class CaffeineStore<K> implements Store<K> {
+    private final Cache<K, Integer> cache;
+
+    CaffeineStore(int size) {
+      this.cache = Caffeine.newBuilder().maximumSize(size).build();
+    }
+
+    @Override
+    public int get(K key) {
+      final Integer bucketId = cache.getIfPresent(key);
+      return bucketId == null ? -1 : bucketId;
+    }
+
+    @Override
+    public void put(K key, int bucketId) {
+      cache.put(key, bucketId);
+    }
+  }
+
+  /**
+   * Direct-mapped cache of keys converted to longs, where a key replaces any key in its slot. The
+   * table starts small and doubles as slots fill up, up to twice as many slots as the cache size.
+   */
+  private static class LongStore implements Store<Object> {
+    private static final int INITIAL_CAPACITY = 1 << 10;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private final ToLongFunction<Object> toLong;
+    private final int maxCapacity;
+    private int mask;
+    private long[] keys;
+    // bucket id + 1, 0 for empty slots
+    private int[] values;
+    private int occupied;
+
+    LongStore(int size, ToLongFunction<Object> toLong) {
+      this.toLong = toLong;
+      // twice as many slots as keys, to limit collisions between hot keys
+      this.maxCapacity =
+          (int) Math.min(MAX_CAPACITY, Long.highestOneBit(Math.max(1L, size) * 2 - 1) << 1);
+      allocate(Math.min(INITIAL_CAPACITY, maxCapacity));
+    }
+
+    @Override
+    public int get(Object key) {
+      final long k = toLong.applyAsLong(key);
+      final int i = slot(k);
+      return values[i] != 0 && keys[i] == k ? values[i] - 1 : -1;
+    }
+
+    @Override
+    public void put(Object key, int bucketId) {
+      final long k = toLong.applyAsLong(key);
+      int i = slot(k);
+      if (values[i] == 0 && occupied >= keys.length / 2 && keys.length < maxCapacity) {
+        grow();
+        i = slot(k);
+      }
+      set(i, k, bucketId + 1);
+    }
+
+    private void allocate(int capacity) {
+      this.mask = capacity - 1;
+      this.keys = new long[capacity];
+      this.values = new int[capacity];
+      this.occupied = 0;
+    }
+
+    private void grow() {
+      final long[] oldKeys = keys;
+      final int[] oldValues = values;
+      allocate(keys.length * 2);
+      for (int j = 0; j < oldKeys.length; j++) {
+        if (oldValues[j] != 0) {
+          set(slot(oldKeys[j]), oldKeys[j], oldValues[j]);
+        }
+      }
+    }
+
+    private void set(int i, long k, int value) {
+      if (values[i] == 0) {
+        occupied++;
+      }
+      keys[i] = k;
+      values[i] = value;
+    }
+
+    private int slot(long k) {
+      // finalizer of MurmurHash3
+      long z = (k ^ (k >>> 33)) * 0xFF51AFD7ED558CCDL;
+      z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+      return (int) (z ^ (z >>> 33)) & mask;
+    }
+  }
+}
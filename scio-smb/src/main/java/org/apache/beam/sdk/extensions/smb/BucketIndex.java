@@ -0,0 +1,169 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.beam.sdk.extensions.smb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import org.apache.beam.sdk.io.FileSystems;
+import org.apache.beam.sdk.io.fs.ResolveOptions.StandardResolveOptions;
+import org.apache.beam.sdk.io.fs.ResourceId;
+import org.apache.beam.sdk.util.MimeTypes;
+import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.primitives.UnsignedBytes;
+
+/**
+ * Sparse index of a sorted bucket file, written as a sidecar file next to it.
+ *
+ * <p>Each entry maps the primary key bytes of a sampled record to the position of that record in
+ * the bucket file, as returned by {@link FileOperations.Writer#sync()}. Records are only sampled at
+ * the start of a key group, so all records before an entry's position have lower keys.
+ */
+class BucketIndex {
+  static final String INDEX_SUFFIX = ".idx";
+
+  private static final int VERSION = 1;
+  private static final Comparator<byte[]> bytesComparator =
+      UnsignedBytes.lexicographicalComparator();
+
+  private final List<byte[]> keys;
+  private final List<Long> offsets;
+
+  private BucketIndex(List<byte[]> keys, List<Long> offsets) {
+    this.keys = keys;
+    this.offsets = offsets;
+  }
+
+  /** Returns the index sidecar of a bucket file. */
+  static ResourceId indexFor(ResourceId bucketFile) {
+    return bucketFile
+        .getCurrentDirectory()
+        .resolve(bucketFile.getFilename() + INDEX_SUFFIX, StandardResolveOptions.RESOLVE_FILE);
+  }
+
+  /** Reads the index of a bucket file, or returns null if it has none. */
+  static BucketIndex read(ResourceId bucketFile) throws IOException {
+    final ResourceId indexFile = indexFor(bucketFile);
+    try (DataInputStream in =
+        new DataInputStream(
+            new BufferedInputStream(Channels.newInputStream(FileSystems.open(indexFile))))) {
+      final int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported index version " + version + " in " + indexFile);
+      }
+      final int size = in.readInt();
+      final List<byte[]> keys = new ArrayList<>(size);
+      final List<Long> offsets = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        final byte[] key = new byte[in.readInt()];
+        in.readFully(key);
+        keys.add(key);
+        offsets.add(in.readLong());
+      }
+      return new BucketIndex(keys, offsets);
+    } catch (FileNotFoundException | NoSuchFileException e) {
+      // file systems report missing files with either
+      return null;
+    }
+  }
+
+  int size() {
+    return keys.size();
+  }
+
+  /**
+   * Returns the position of the last sampled record whose key is lower than or equal to {@code
+   * key}, or 0 if there is none. No record before that position has a key greater than or equal to
+   * {@code key}.
+   */
+  long floorOffset(byte[] key) {
+    int lo = 0;
+    int hi = keys.size() - 1;
+    long offset = 0L;
+    while (lo <= hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (bytesComparator.compare(keys.get(mid), key) <= 0) {
+        offset = offsets.get(mid);
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return offset;
+  }
+
+  /** Writes the index as the sidecar of a bucket file. */
+  void write(ResourceId bucketFile) throws IOException {
+    try (DataOutputStream out =
+        new DataOutputStream(
+            new BufferedOutputStream(
+                Channels.newOutputStream(
+                    FileSystems.create(indexFor(bucketFile), MimeTypes.BINARY))))) {
+      out.writeInt(VERSION);
+      out.writeInt(keys.size());
+      for (int i = 0; i < keys.size(); i++) {
+        out.writeInt(keys.get(i).length);
+        out.write(keys.get(i));
+        out.writeLong(offsets.get(i));
+      }
+    }
+  }
+
+  /** Samples the first record of a key group every {@code interval} records. */
+  static class Builder {
+    private final long interval;
+    private final List<byte[]> keys = new ArrayList<>();
+    private final List<Long> offsets = new ArrayList<>();
+    private byte[] lastKey = null;
+    private long recordsSinceEntry = 0;
+
+    Builder(long interval) {
+      this.interval = interval;
+    }
+
+    /** Returns true if a record with this key, written next, should be indexed. */
+    boolean shouldIndex(byte[] key) {
+      final boolean newKeyGroup = lastKey == null || !Arrays.equals(lastKey, key);
+      lastKey = key;
+      recordsSinceEntry++;
+      return newKeyGroup && recordsSinceEntry > interval;
+    }
+
+    void add(byte[] key, long offset) {
+      keys.add(key);
+      offsets.add(offset);
+      recordsSinceEntry = 1;
+    }
+
+    boolean isEmpty() {
+      return keys.isEmpty();
+    }
+
+    BucketIndex build() {
+      return new BucketIndex(keys, offsets);
+    }
+  }
+}
@@ -26,15 +26,20 @@ import com.fasterxml.jackson.annotation.JsonTypeInfo;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import java.io.ByteArrayOutputStream;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import org.apache.beam.sdk.coders.AtomicCoder;
@@ -44,6 +49,8 @@ import org.apache.beam.sdk.coders.Coder.NonDeterministicException;
 import org.apache.beam.sdk.coders.CoderException;
 import org.apache.beam.sdk.coders.CoderRegistry;
 import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.coders.VarIntCoder;
+import org.apache.beam.sdk.coders.VarLongCoder;
 import org.apache.beam.sdk.io.FileSystems;
 import org.apache.beam.sdk.io.fs.ResourceId;
 import org.apache.beam.sdk.transforms.display.DisplayData;
@@ -82,9 +89,15 @@ public abstract class BucketMetadata<K1, K2, V> implements Serializable, HasDisp
    * bumping version: Scio versions prior to 0.12.1 perform a version compatibility check on SMB
    * partitions which may fail if the SMB producer bumps to an incompatible version.
    *
-   * <p>The next version bump should be to: 2
+   * <p>The next version bump should be to: 3
    */
-  @JsonIgnore public static final int CURRENT_VERSION = 0;
+  public static final int CURRENT_VERSION = 0;
+
+  /**
+   * The version of partitions with {@link #getAppendedShards()}, so that readers unaware of
+   * appended shards fail the version compatibility check instead of silently skipping them.
+   */
+  static final int APPENDED_SHARDS_VERSION = 2;
 
   // Represents the current major version of the Beam SMB module. Storage format may differ
   // across versions and require internal code branching to ensure backwards compatibility.
@@ -104,12 +117,20 @@ public abstract class BucketMetadata<K1, K2, V> implements Serializable, HasDisp
 
   @JsonProperty private final String filenamePrefix;
 
+  // The number of shards added by each append to the partition, see SortedBucketIO.AppendWrite
+  @JsonProperty
+  @JsonInclude(JsonInclude.Include.NON_EMPTY)
+  private List<Integer> appendedShards = Collections.emptyList();
+
   @JsonIgnore private final HashFunction hashFunction;
 
   @JsonIgnore private final Coder<K1> keyCoder;
 
   @JsonIgnore private final Coder<K2> keyCoderSecondary;
 
+  // Reused across keys encoded by the same thread, copied out or hashed in place
+  private static final ThreadLocal<KeyBuffer> keyBuffer = ThreadLocal.withInitial(KeyBuffer::new);
+
   public BucketMetadata(
       int version, int numBuckets, int numShards, Class<K1> keyClass, HashType hashType)
       throws CannotProvideCoderException, NonDeterministicException {
@@ -215,8 +236,8 @@ public abstract class BucketMetadata<K1, K2, V> implements Serializable, HasDisp
 
   boolean isCompatibleWith(BucketMetadata other) {
     return other != null
-        // version 1 is backwards compatible with version 0
-        && (this.version <= 1 && other.version <= 1)
+        // version 1 is backwards compatible with version 0, and version 2 only adds appended shards
+        && (this.version <= APPENDED_SHARDS_VERSION && other.version <= APPENDED_SHARDS_VERSION)
         && this.hashType == other.hashType
         // This check should be redundant since power of two is checked in BucketMetadata
         // constructor, but it's cheap to double-check.
@@ -237,6 +258,50 @@ public abstract class BucketMetadata<K1, K2, V> implements Serializable, HasDisp
     return numShards;
   }
 
+  /**
+   * Returns the number of shards added by each append to the partition since it was written, which
+   * are read along with its {@link #getNumShards()} shards.
+   */
+  public List<Integer> getAppendedShards() {
+    return Collections.unmodifiableList(appendedShards);
+  }
+
+  /** Returns a copy of this metadata, recording an append of {@code numShards} more shards. */
+  BucketMetadata<K1, K2, V> withAppendedShards(int numShards) {
+    Preconditions.checkArgument(numShards > 0, "numShards must be > 0");
+    final List<Integer> appended = new ArrayList<>(appendedShards);
+    appended.add(numShards);
+    return copy(this.numShards, appended);
+  }
+
+  /** Returns a copy of this metadata, with {@code numShards} shards and no appended shards. */
+  BucketMetadata<K1, K2, V> withNumShards(int numShards) {
+    return copy(numShards, Collections.emptyList());
+  }
+
+  private BucketMetadata<K1, K2, V> copy(int numShards, List<Integer> appendedShards) {
+    final ObjectNode json = objectMapper.valueToTree(this);
+    json.put("numShards", numShards);
+    json.put("version", versionWithAppendedShards(appendedShards));
+    json.remove("appendedShards");
+    try {
+      @SuppressWarnings("unchecked")
+      final BucketMetadata<K1, K2, V> copy = objectMapper.treeToValue(json, BucketMetadata.class);
+      copy.appendedShards = appendedShards;
+      return copy;
+    } catch (JsonProcessingException e) {
+      throw new RuntimeException("Failed to copy bucket metadata " + this, e);
+    }
+  }
+
+  private int versionWithAppendedShards(List<Integer> appendedShards) {
+    if (!appendedShards.isEmpty()) {
+      return APPENDED_SHARDS_VERSION;
+    }
+    // a compacted partition is readable by readers unaware of appended shards again
+    return version == APPENDED_SHARDS_VERSION ? CURRENT_VERSION : version;
+  }
+
   Set<BucketShardId> getAllBucketShardIds() {
     final HashSet<BucketShardId> allBucketShardIds = new HashSet<>();
     for (int shardId = 0; shardId < numShards; shardId++) {
@@ -280,13 +345,31 @@ public abstract class BucketMetadata<K1, K2, V> implements Serializable, HasDisp
 
   <K> byte[] encodeKeyBytes(K key, Coder<K> coder) {
     if (key == null) return null;
-    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    return encodeToBuffer(key, coder).toByteArray();
+  }
+
+  private static <K> KeyBuffer encodeToBuffer(K key, Coder<K> coder) {
+    final KeyBuffer buffer = keyBuffer.get();
+    buffer.reset();
     try {
-      coder.encode(key, baos);
+      // Fast paths for common key types, which must match the coder's encoding byte for byte
+      final Class<?> coderClass = coder.getClass();
+      if (coderClass == StringUtf8Coder.class || coderClass == AvroUtils.CharSequenceCoder.class) {
+        buffer.writeString(key.toString());
+      } else if (coderClass == VarLongCoder.class) {
+        buffer.writeVarLong((Long) key);
+      } else if (coderClass == VarIntCoder.class) {
+        // VarIntCoder doesn't sign-extend negative values
+        buffer.writeVarLong(Integer.toUnsignedLong((Integer) key));
+      } else if (coderClass == AvroUtils.ByteBufferCoder.class) {
+        buffer.writeBytes((ByteBuffer) key);
+      } else {
+        coder.encode(key, buffer);
+      }
     } catch (Exception e) {
       throw new RuntimeException("Could not encode key " + key, e);
     }
-    return baos.toByteArray();
+    return buffer;
   }
 
   // Checks for complete equality between BucketMetadatas originating from the same BucketedInput
@@ -316,10 +399,99 @@ public abstract class BucketMetadata<K1, K2, V> implements Serializable, HasDisp
     return Math.abs(hashFunction.hashBytes(keyBytes).asInt()) % numBuckets;
   }
 
+  /** Returns the bucket of a non-null primary key, hashing its encoding without copying it. */
+  int getBucketIdOfKey(K1 key) {
+    final KeyBuffer buffer = encodeToBuffer(key, keyCoder);
+    return Math.abs(hashFunction.hashBytes(buffer.buf, 0, buffer.size).asInt()) % numBuckets;
+  }
+
   int rehashBucket(byte[] keyBytes, int newNumBuckets) {
     return Math.abs(hashFunction.hashBytes(keyBytes).asInt()) % newNumBuckets;
   }
 
+  /** Unsynchronized, growable buffer keys are encoded into. */
+  private static final class KeyBuffer extends OutputStream {
+    private static final int INITIAL_SIZE = 256;
+    // buffers grown by unusually large keys aren't kept around
+    private static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+    private byte[] buf = new byte[INITIAL_SIZE];
+    private int size = 0;
+
+    void reset() {
+      if (buf.length > MAX_RETAINED_SIZE) {
+        buf = new byte[INITIAL_SIZE];
+      }
+      size = 0;
+    }
+
+    private void ensureCapacity(int n) {
+      if (size + n > buf.length) {
+        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + n));
+      }
+    }
+
+    @Override
+    public void write(int b) {
+      ensureCapacity(1);
+      buf[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      ensureCapacity(len);
+      System.arraycopy(b, off, buf, size, len);
+      size += len;
+    }
+
+    // Same encoding as VarInt.encode(long)
+    void writeVarLong(long value) {
+      ensureCapacity(10);
+      while ((value & ~0x7FL) != 0) {
+        buf[size++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      buf[size++] = (byte) value;
+    }
+
+    // Same encoding as StringUtf8Coder in a nested context: length prefix and UTF-8 bytes
+    void writeString(String value) {
+      final int length = value.length();
+      final int start = size;
+      writeVarLong(length);
+      ensureCapacity(length);
+      // ASCII strings are their own UTF-8 encoding, otherwise start over
+      for (int i = 0; i < length; i++) {
+        final char c = value.charAt(i);
+        if (c >= 0x80) {
+          size = start;
+          final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+          writeVarLong(bytes.length);
+          write(bytes, 0, bytes.length);
+          return;
+        }
+        buf[size++] = (byte) c;
+      }
+    }
+
+    // Same encoding as ByteArrayCoder in a nested context, without moving the buffer's position
+    void writeBytes(ByteBuffer value) {
+      final int length = value.remaining();
+      writeVarLong(length);
+      ensureCapacity(length);
+      if (value.hasArray()) {
+        System.arraycopy(value.array(), value.arrayOffset() + value.position(), buf, size, length);
+      } else {
+        value.duplicate().get(buf, size, length);
+      }
+      size += length;
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(buf, size);
+    }
+  }
+
   ////////////////////////////////////////
   public static <V> BucketMetadata<?, ?, V> get(ResourceId directory) {
     final ResourceId resourceId = SMBFilenamePolicy.FileAssignment.forDstMetadata(directory);
@@ -19,19 +19,53 @@ package org.apache.beam.sdk.extensions.smb;
 
 import static com.google.common.base.Verify.verify;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import org.apache.beam.sdk.extensions.smb.SMBFilenamePolicy.FileAssignment;
 import org.apache.beam.sdk.io.FileSystems;
+import org.apache.beam.sdk.io.fs.MatchResult;
+import org.apache.beam.sdk.io.fs.MatchResult.Metadata;
+import org.apache.beam.sdk.io.fs.ResolveOptions.StandardResolveOptions;
 import org.apache.beam.sdk.io.fs.ResourceId;
 import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.annotations.VisibleForTesting;
 import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.base.Preconditions;
+import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.cache.Cache;
+import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.cache.CacheBuilder;
+import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.collect.Lists;
 
+/**
+ * Resolves the metadata and byte size of SMB source directories.
+ *
+ * <p>Files are matched in batches of {@code batchSize}, and at most {@link
+ * #MAX_CONCURRENT_REQUESTS} matches or reads are in flight at once. Results are cached per
+ * directory by the shared instance, so that all inputs of a pipeline reading the same directories
+ * resolve them once. A cached directory is still checked for changes with a batched match of its
+ * metadata file, which SMB sinks write last.
+ */
 public class BucketMetadataUtil {
   private static final int BATCH_SIZE = 100;
-  private static final BucketMetadataUtil INSTANCE = new BucketMetadataUtil(BATCH_SIZE);
+  private static final int MAX_CONCURRENT_REQUESTS = 16;
+  private static final int CACHE_SIZE = 10000;
+  private static final Pattern BUCKET_PATTERN = Pattern.compile("(\\d+)-of-(\\d+)");
+  private static final BucketMetadataUtil INSTANCE = new BucketMetadataUtil(BATCH_SIZE, CACHE_SIZE);
+  private static final AtomicInteger THREAD_ID = new AtomicInteger(0);
+  // shared by all calls, which also bounds requests of inputs resolved concurrently
+  private static final ExecutorService EXECUTOR = newExecutor();
   private final int batchSize;
+  private final Cache<ResourceId, ResolvedDirectory> cache;
 
   public static BucketMetadataUtil get() {
     return INSTANCE;
@@ -62,29 +96,275 @@ public class BucketMetadataUtil {
     }
   }
 
+  /** The metadata of a directory, and its byte size by filename suffix once estimated. */
+  private static class ResolvedDirectory {
+    // identifies the version of the metadata file, null if it can't be told apart from others
+    private final String version;
+    private final BucketMetadata<?, ?, ?> metadata;
+    private final Map<String, Long> byteSizes = new ConcurrentHashMap<>();
+
+    ResolvedDirectory(String version, BucketMetadata<?, ?, ?> metadata) {
+      this.version = version;
+      this.metadata = metadata;
+    }
+  }
+
   //////////////////////////////////////////////////////////////////////////////
 
   @VisibleForTesting
   BucketMetadataUtil(int batchSize) {
+    this(batchSize, 0);
+  }
+
+  @VisibleForTesting
+  BucketMetadataUtil(int batchSize, int cacheSize) {
     this.batchSize = batchSize;
+    this.cache = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
   }
 
-  private <V> Map<ResourceId, BucketMetadata<?, ?, V>> fetchMetadata(List<String> directories) {
-    final int total = directories.size();
-    final Map<ResourceId, BucketMetadata<?, ?, V>> metadata = new ConcurrentHashMap<>();
-    int start = 0;
-    while (start < total) {
-      directories.stream()
-          .skip(start)
-          .limit(batchSize)
-          .map(dir -> FileSystems.matchNewResource(dir, true))
-          .parallel()
-          .forEach(dir -> metadata.put(dir, BucketMetadata.get(dir)));
-      start += batchSize;
+  private Map<ResourceId, ResolvedDirectory> resolve(List<String> directories) {
+    final List<ResourceId> dirs =
+        directories.stream()
+            .distinct()
+            .map(dir -> FileSystems.matchNewResource(dir, true))
+            .collect(Collectors.toList());
+
+    final Map<ResourceId, String> versions = new ConcurrentHashMap<>();
+    forEachBatch(
+        dirs,
+        batch -> {
+          final List<String> specs =
+              batch.stream()
+                  .map(dir -> FileAssignment.forDstMetadata(dir).toString())
+                  .collect(Collectors.toList());
+          final List<MatchResult> results = FileSystems.match(specs);
+          for (int i = 0; i < batch.size(); i++) {
+            final List<Metadata> files = matched(results.get(i));
+            final Metadata file = files.isEmpty() ? null : files.get(0);
+            if (file != null && file.lastModifiedMillis() > 0) {
+              versions.put(batch.get(i), file.lastModifiedMillis() + "-" + file.sizeBytes());
+            }
+          }
+        });
+
+    final Map<ResourceId, ResolvedDirectory> resolved = new ConcurrentHashMap<>();
+    final List<ResourceId> toFetch = new ArrayList<>();
+    for (ResourceId dir : dirs) {
+      final ResolvedDirectory cached = cache.getIfPresent(dir);
+      final String version = versions.get(dir);
+      if (cached != null && version != null && version.equals(cached.version)) {
+        resolved.put(dir, cached);
+      } else {
+        toFetch.add(dir);
+      }
     }
+
+    forEach(
+        toFetch,
+        dir -> {
+          // a directory without metadata fails here
+          final ResolvedDirectory fetched =
+              new ResolvedDirectory(versions.get(dir), BucketMetadata.get(dir));
+          if (fetched.version != null) {
+            cache.put(dir, fetched);
+          }
+          resolved.put(dir, fetched);
+        });
+    return resolved;
+  }
+
+  @SuppressWarnings("unchecked")
+  private <V> Map<ResourceId, BucketMetadata<?, ?, V>> fetchMetadata(List<String> directories) {
+    final Map<ResourceId, BucketMetadata<?, ?, V>> metadata = new HashMap<>();
+    resolve(directories)
+        .forEach((dir, resolved) -> metadata.put(dir, (BucketMetadata<?, ?, V>) resolved.metadata));
     return metadata;
   }
 
+  /**
+   * Returns the estimated total byte size of the bucket files in these directories, including
+   * appended shards.
+   *
+   * <p>A directory's base shards are sized from its {@link SizeManifest} if it has one. Otherwise,
+   * and for appended shards, the files of up to 10 buckets are sampled and their size is
+   * extrapolated to all buckets.
+   */
+  public long getByteSize(List<String> directories, String filenameSuffix) {
+    final Map<ResourceId, ResolvedDirectory> resolved = resolve(directories);
+    final Map<ResourceId, ResolvedDirectory> toEstimate = new HashMap<>();
+    resolved.forEach(
+        (dir, r) -> {
+          if (!r.byteSizes.containsKey(filenameSuffix)) toEstimate.put(dir, r);
+        });
+
+    if (!toEstimate.isEmpty()) {
+      final Map<ResourceId, Long> manifestSizes = new ConcurrentHashMap<>();
+      forEach(
+          new ArrayList<>(toEstimate.keySet()),
+          dir -> {
+            final SizeManifest manifest = SizeManifest.read(dir);
+            if (manifest != null) manifestSizes.put(dir, manifest.getTotalBytes());
+          });
+
+      // directories whose bucket files are sampled, by the source directory they belong to
+      final Map<ResourceId, List<ResourceId>> sampledDirs = new HashMap<>();
+      toEstimate.forEach(
+          (dir, r) -> {
+            final List<ResourceId> sampled = new ArrayList<>();
+            if (!manifestSizes.containsKey(dir)) sampled.add(dir);
+            final int numAppends = r.metadata.getAppendedShards().size();
+            for (int a = 1; a <= numAppends; a++) {
+              sampled.add(
+                  dir.resolve(
+                      SMBFilenamePolicy.appendDirectory(a),
+                      StandardResolveOptions.RESOLVE_DIRECTORY));
+            }
+            sampledDirs.put(dir, sampled);
+          });
+      final Map<ResourceId, Long> sampledSizes =
+          sampleByteSizes(
+              sampledDirs.values().stream().flatMap(List::stream).collect(Collectors.toList()),
+              filenameSuffix);
+
+      toEstimate.forEach(
+          (dir, r) -> {
+            long byteSize = manifestSizes.getOrDefault(dir, 0L);
+            for (ResourceId sampled : sampledDirs.get(dir)) {
+              byteSize += sampledSizes.get(sampled);
+            }
+            r.byteSizes.put(filenameSuffix, byteSize);
+          });
+    }
+
+    return resolved.values().stream().mapToLong(r -> r.byteSizes.get(filenameSuffix)).sum();
+  }
+
+  private Map<ResourceId, Long> sampleByteSizes(List<ResourceId> dirs, String filenameSuffix) {
+    // Take at most 10 buckets from each directory to sample
+    // Check for single-shard filenames template first, then multi-shard
+    final Map<ResourceId, List<Metadata>> sampledFiles =
+        matchAll(dirs, "*-0000?-of-?????" + filenameSuffix);
+    final List<ResourceId> multiShardDirs =
+        dirs.stream().filter(dir -> sampledFiles.get(dir).isEmpty()).collect(Collectors.toList());
+    sampledFiles.putAll(
+        matchAll(multiShardDirs, "*-0000?-of-*-shard-00000-of-?????" + filenameSuffix));
+
+    final Map<ResourceId, Long> byteSizes = new HashMap<>();
+    sampledFiles.forEach((dir, files) -> byteSizes.put(dir, extrapolateByteSize(dir, files)));
+    return byteSizes;
+  }
+
+  private static long extrapolateByteSize(ResourceId dir, List<Metadata> sampledFiles) {
+    int numBuckets = 0;
+    long sampledBytes = 0L;
+    final Set<String> seenBuckets = new HashSet<>();
+
+    for (Metadata metadata : sampledFiles) {
+      final Matcher matcher = BUCKET_PATTERN.matcher(metadata.resourceId().getFilename());
+      if (!matcher.find()) {
+        throw new RuntimeException(
+            "Couldn't match bucket information from filename: "
+                + metadata.resourceId().getFilename());
+      }
+      seenBuckets.add(matcher.group(1));
+      if (numBuckets == 0) {
+        numBuckets = Integer.parseInt(matcher.group(2));
+      }
+      sampledBytes += metadata.sizeBytes();
+    }
+    if (numBuckets == 0) {
+      throw new IllegalArgumentException("Directory " + dir + " has no bucket files");
+    }
+    if (seenBuckets.size() < numBuckets) {
+      return (long) (sampledBytes * (numBuckets / (seenBuckets.size() * 1.0)));
+    } else {
+      return sampledBytes;
+    }
+  }
+
+  /** Matches a file pattern in each directory, in batches. */
+  private Map<ResourceId, List<Metadata>> matchAll(List<ResourceId> dirs, String filepattern) {
+    final Map<ResourceId, List<Metadata>> matches = new ConcurrentHashMap<>();
+    forEachBatch(
+        dirs,
+        batch -> {
+          final List<String> specs =
+              batch.stream()
+                  .map(dir -> dir.resolve(filepattern, StandardResolveOptions.RESOLVE_FILE))
+                  .map(ResourceId::toString)
+                  .collect(Collectors.toList());
+          final List<MatchResult> results = FileSystems.match(specs);
+          for (int i = 0; i < batch.size(); i++) {
+            matches.put(batch.get(i), matched(results.get(i)));
+          }
+        });
+    return matches;
+  }
+
+  private static List<Metadata> matched(MatchResult result) throws IOException {
+    try {
+      return result.metadata();
+    } catch (FileNotFoundException e) {
+      return Collections.emptyList();
+    }
+  }
+
+  private interface IOConsumer<T> {
+    void accept(T t) throws IOException;
+  }
+
+  private void forEachBatch(List<ResourceId> dirs, IOConsumer<List<ResourceId>> fn) {
+    forEach(Lists.partition(dirs, batchSize), fn);
+  }
+
+  private static ExecutorService newExecutor() {
+    final ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            MAX_CONCURRENT_REQUESTS,
+            MAX_CONCURRENT_REQUESTS,
+            60L,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            r -> {
+              final Thread t = new Thread(r, "smb-metadata-" + THREAD_ID.getAndIncrement());
+              t.setDaemon(true);
+              return t;
+            });
+    // idle between pipeline constructions
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /** Applies a function to each element, with at most {@link #MAX_CONCURRENT_REQUESTS} at once. */
+  private static <T> void forEach(List<T> elements, IOConsumer<T> fn) {
+    if (elements.isEmpty()) return;
+    final List<Future<?>> futures = new ArrayList<>();
+    try {
+      for (T element : elements) {
+        futures.add(
+            EXECUTOR.submit(
+                () -> {
+                  fn.accept(element);
+                  return null;
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while fetching SMB source metadata", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException("Failed to fetch SMB source metadata", e.getCause());
+    } finally {
+      // tasks of a failed call don't hold up the others
+      futures.forEach(future -> future.cancel(true));
+    }
+  }
+
   private <V> SourceMetadata<V> getSourceMetadata(
       List<String> directories,
       String filenameSuffix,
@@ -20,8 +20,11 @@ package org.apache.beam.sdk.extensions.smb;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
-/** Buffers the underlying iterator in chunks to avoid IO thrashing. */
-class BufferedIterator<T> implements Iterator<T> {
+/**
+ * Buffers the underlying iterator in chunks to avoid IO thrashing. Closing it closes the underlying
+ * iterator, if it's {@link AutoCloseable}.
+ */
+class BufferedIterator<T> implements Iterator<T>, AutoCloseable {
   private final Iterator<T> internal;
   private final int bufferSize;
   private final Object[] buffer;
@@ -60,4 +63,11 @@ class BufferedIterator<T> implements Iterator<T> {
     }
     return result;
   }
+
+  @Override
+  public void close() throws Exception {
+    if (internal instanceof AutoCloseable) {
+      ((AutoCloseable) internal).close();
+    }
+  }
 }
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.beam.sdk.extensions.smb;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * An iterator over a resource which can be released before the iterator is exhausted, e.g. a file
+ * reader, which is otherwise only closed after its last element is read.
+ */
+class CloseableIterator<T> implements Iterator<T>, AutoCloseable {
+  private final Iterator<T> delegate;
+  private final AutoCloseable resource;
+
+  CloseableIterator(Iterator<T> delegate, AutoCloseable resource) {
+    this.delegate = delegate;
+    this.resource = resource;
+  }
+
+  /** Wraps a view of {@code source}, e.g. transformed or filtered, so that it closes the source. */
+  static <T> Iterator<T> of(Iterator<T> view, Iterator<?> source) {
+    return source instanceof AutoCloseable
+        ? new CloseableIterator<>(view, (AutoCloseable) source)
+        : view;
+  }
+
+  /** Closes all iterators which are {@link AutoCloseable}, even if some of them fail. */
+  static void closeAll(List<? extends Iterator<?>> iterators) throws IOException {
+    IOException failure = null;
+    for (Iterator<?> iterator : iterators) {
+      if (iterator instanceof AutoCloseable) {
+        try {
+          ((AutoCloseable) iterator).close();
+        } catch (Exception e) {
+          if (failure == null) {
+            failure = new IOException("Failed to close iterator", e);
+          } else {
+            failure.addSuppressed(e);
+          }
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    return delegate.hasNext();
+  }
+
+  @Override
+  public T next() {
+    return delegate.next();
+  }
+
+  @Override
+  public void close() throws Exception {
+    resource.close();
+  }
+}
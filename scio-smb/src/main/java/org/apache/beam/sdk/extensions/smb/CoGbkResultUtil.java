@@ -26,16 +26,22 @@ import org.apache.beam.sdk.transforms.join.CoGbkResultSchema;
 
 @PatchedFromBeam(origin = "org.apache.beam.sdk.transforms.join.CoGbkResult")
 public class CoGbkResultUtil {
-  public static CoGbkResult newCoGbkResult(CoGbkResultSchema schema, List<Iterable<?>> valueMap) {
+  // looked up once, this is called for every key group
+  private static final Constructor<CoGbkResult> ctor;
+
+  static {
     try {
-      Constructor<CoGbkResult> ctor =
-          CoGbkResult.class.getDeclaredConstructor(CoGbkResultSchema.class, List.class);
+      ctor = CoGbkResult.class.getDeclaredConstructor(CoGbkResultSchema.class, List.class);
       ctor.setAccessible(true);
+    } catch (NoSuchMethodException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public static CoGbkResult newCoGbkResult(CoGbkResultSchema schema, List<Iterable<?>> valueMap) {
+    try {
       return ctor.newInstance(schema, valueMap);
-    } catch (NoSuchMethodException
-        | InstantiationException
-        | IllegalAccessException
-        | InvocationTargetException e) {
+    } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
       throw new RuntimeException(e);
     }
   }
@@ -19,16 +19,25 @@ package org.apache.beam.sdk.extensions.smb;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.channels.WritableByteChannel;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Supplier;
 import org.apache.beam.sdk.coders.Coder;
@@ -59,6 +68,13 @@ public abstract class FileOperations<V> implements Serializable, HasDisplayData
 
   private static final Logger LOG = LoggerFactory.getLogger(FileOperations.class);
   private static final AtomicReference<Long> diskBufferBytes = new AtomicReference<>(null);
+  private static final AtomicInteger diskBufferThreads = new AtomicInteger(0);
+  // shared by all readers in the JVM, guarded by the class lock like the fields below
+  private static ExecutorService downloadExecutor;
+  // downloads waiting for the lookahead window, or their first read
+  private static final Deque<Download> pendingDownloads = new ArrayDeque<>();
+  // downloads started before their first read
+  private static int downloadsAhead = 0;
 
   private static final Counter filesStreamed =
       Metrics.counter(FileOperations.class, "SortedBucketSource-FilesStreamed");
@@ -66,6 +82,8 @@ public abstract class FileOperations<V> implements Serializable, HasDisplayData
       Metrics.counter(FileOperations.class, "SortedBucketSource-FilesBuffered");
   private static final Counter bytesBuffered =
       Metrics.counter(FileOperations.class, "SortedBucketSource-BytesBuffered");
+  private static final Counter bytesSkipped =
+      Metrics.counter(FileOperations.class, "SortedBucketSource-BytesSkippedByIndex");
 
   private final Compression compression;
   private final String mimeType;
@@ -74,6 +92,15 @@ public abstract class FileOperations<V> implements Serializable, HasDisplayData
     diskBufferBytes.compareAndSet(null, diskBufferMb * 1024L * 1024L);
   }
 
+  /**
+   * Sets the number of threads downloading files to the disk buffer in the background, which is
+   * also the number of files downloaded ahead of their first read. Like {@link
+   * #setDiskBufferMb(int)}, a worker-level setting which only the first call sets.
+   */
+  public static void setDiskBufferThreads(int threads) {
+    diskBufferThreads.compareAndSet(0, threads);
+  }
+
   protected FileOperations(Compression compression, String mimeType) {
     this.compression = compression;
     this.mimeType = mimeType;
@@ -81,15 +108,103 @@ public abstract class FileOperations<V> implements Serializable, HasDisplayData
 
   protected abstract Reader<V> createReader();
 
+  /**
+   * Returns a reader of bucket files written with {@code metadata}, e.g. to always read their key
+   * fields, or of any file if {@code metadata} is null. Defaults to {@link #createReader()}.
+   */
+  Reader<V> createReader(BucketMetadata<?, ?, V> metadata) {
+    return createReader();
+  }
+
+  /**
+   * Checks that bucket files written with {@code metadata} can be read, when a {@link
+   * SortedBucketSource} of them is validated, before any file is opened. Defaults to no checks.
+   */
+  void validate(BucketMetadata<?, ?, V> metadata) {}
+
   // Delegate to FileIO.Sink<V> for writer logic
   protected abstract FileIO.Sink<V> createSink();
 
   public abstract Coder<V> getCoder();
 
+  /**
+   * Whether files can be read from a position returned by {@link Writer#sync()}, with {@link
+   * Reader#prepareReadAt(SeekableByteChannel, long)}. If so, {@link SortedBucketSink} writes a
+   * {@link BucketIndex} per bucket file when {@link
+   * SortedBucketOptions#getSortedBucketWriteIndexInterval()} is positive.
+   */
+  boolean supportsIndex() {
+    return false;
+  }
+
+  /**
+   * Returns a reader of {@link LazyRecord}s, keyed by decoding only the key fields of {@code
+   * metadata}, and secondary key fields if {@code withSecondaryKey}, or null if this format or the
+   * key fields don't support it. Records are cast to {@code V}, and must be resolved with {@link
+   * LazyRecord#resolve(Object)}.
+   */
+  Reader<V> createLazyReader(BucketMetadata<?, ?, V> metadata, boolean withSecondaryKey) {
+    return null;
+  }
+
   public final Iterator<V> iterator(ResourceId resourceId) throws IOException {
+    return iterator(resourceId, (BucketMetadata<?, ?, V>) null);
+  }
+
+  /**
+   * Same as {@link #iterator(ResourceId)}, for a bucket file written with {@code metadata}, read
+   * with {@link #createReader(BucketMetadata)}.
+   */
+  public final Iterator<V> iterator(ResourceId resourceId, BucketMetadata<?, ?, V> metadata)
+      throws IOException {
+    return iterator(resourceId, metadata, null, null);
+  }
+
+  /**
+   * Same as {@link #iterator(ResourceId, BucketMetadata)}, additionally reporting file size and
+   * bytes read to the given {@link ReadProgress}, if not null, and where records with primary key
+   * bytes lower than {@code startKeyPrimary} may be skipped, if not null and the file has a {@link
+   * BucketIndex}. Callers must still filter out lower keys.
+   */
+  final Iterator<V> iterator(
+      ResourceId resourceId,
+      BucketMetadata<?, ?, V> metadata,
+      ReadProgress progress,
+      byte[] startKeyPrimary)
+      throws IOException {
+    return iterator(resourceId, progress, startKeyPrimary, createReader(metadata));
+  }
+
+  /**
+   * Same as {@link #iterator(ResourceId, BucketMetadata, ReadProgress, byte[])}, reading with the
+   * given {@link Reader}, e.g. from {@link #createLazyReader(BucketMetadata, boolean)}.
+   */
+  final Iterator<V> iterator(
+      ResourceId resourceId, ReadProgress progress, byte[] startKeyPrimary, Reader<V> reader)
+      throws IOException {
     final ReadableFile readableFile = toReadableFile(resourceId);
 
-    final Reader<V> reader = createReader();
+    if (progress != null) {
+      progress.addFile(readableFile.getMetadata().sizeBytes());
+    }
+
+    if (startKeyPrimary != null && supportsIndex()) {
+      final long offset = indexedOffset(resourceId, startKeyPrimary);
+      final ReadableByteChannel channel = offset > 0 ? FileSystems.open(resourceId) : null;
+      if (channel instanceof SeekableByteChannel) {
+        LOG.debug("Reading SMB source file {} from offset {}", resourceId, offset);
+        bytesSkipped.inc(offset);
+        SeekableByteChannel seekable = (SeekableByteChannel) channel;
+        if (progress != null) {
+          progress.addBytesRead(offset);
+          seekable = (SeekableByteChannel) progress.track(seekable);
+        }
+        reader.prepareReadAt(seekable, offset);
+        return reader.iterator();
+      } else if (channel != null) {
+        channel.close();
+      }
+    }
 
     Long bytes = diskBufferBytes.get();
     if (bytes != null && bytes > 0) {
@@ -101,33 +216,213 @@ public abstract class FileOperations<V> implements Serializable, HasDisplayData
         LOG.debug("Buffering SMB source file {}, size = {}B", resourceId, fileSize);
         String tmpDir = System.getProperties().getProperty("java.io.tmpdir");
         Path path = Paths.get(tmpDir, String.format("smb-buffer-%s", UUID.randomUUID()));
-        ReadableByteChannel src = readableFile.open();
-        FileChannel dst =
-            FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
-        long copied = 0;
-        do {
-          copied += dst.transferFrom(src, copied, fileSize - copied);
-        } while (copied < fileSize);
-        dst.close();
-        src.close();
+        // download in the background, overlapping with reads from previously opened files
+        final Download download = new Download(() -> copyToLocal(readableFile, path, fileSize));
+        scheduleDownload(download);
 
         bytesBuffered.inc(fileSize);
         filesBuffered.inc();
+        final AtomicReference<MappedFileChannel> mapped = new AtomicReference<>();
         reader.whenDone(
             () -> {
+              // unmap before deleting, so that disk space is freed right away
+              final MappedFileChannel channel = mapped.getAndSet(null);
+              if (channel != null) {
+                channel.close();
+              }
               path.toFile().delete();
               return diskBufferBytes.getAndUpdate(prev -> prev + fileSize);
             });
-        reader.prepareRead(Files.newByteChannel(path));
-        return reader.iterator();
+        return bufferedIterator(resourceId, reader, path, download, mapped, progress);
       }
     }
 
     filesStreamed.inc();
-    reader.prepareRead(readableFile.open());
+    if (progress == null) {
+      reader.prepareRead(readableFile.open());
+    } else {
+      // count compressed bytes, to be comparable with the file size
+      reader.prepareRead(
+          readableFile
+              .getCompression()
+              .readDecompressed(progress.track(FileSystems.open(resourceId))));
+    }
     return reader.iterator();
   }
 
+  private static long indexedOffset(ResourceId resourceId, byte[] startKeyPrimary) {
+    try {
+      final BucketIndex index = BucketIndex.read(resourceId);
+      return index == null ? 0L : index.floorOffset(startKeyPrimary);
+    } catch (IOException e) {
+      // a missing index isn't an error, but an unreadable one is. Read the whole file instead
+      LOG.warn("Failed to read index of SMB source file {}", resourceId, e);
+      return 0L;
+    }
+  }
+
+  /**
+   * Starts downloads in order while fewer than {@link #setDiskBufferThreads(int)} files are
+   * downloaded ahead of their first read. Others wait for the window, or run on first read.
+   */
+  private static synchronized void scheduleDownload(Download download) {
+    if (download != null) {
+      pendingDownloads.add(download);
+    }
+    final int threads = diskBufferThreads.get();
+    while (downloadsAhead < threads && !pendingDownloads.isEmpty()) {
+      final Download next = pendingDownloads.poll();
+      next.ahead = true;
+      downloadsAhead++;
+      getDownloadExecutor(threads).execute(next);
+    }
+  }
+
+  /** Waits for a download on first read, and runs it on this thread if it hasn't started yet. */
+  private static void awaitDownload(Download download) throws Exception {
+    dequeueDownload(download);
+    scheduleDownload(null);
+    // no-op if already run by the download executor
+    download.run();
+    download.get();
+  }
+
+  /** Cancels a download whose file is closed before its first read. */
+  private static void cancelDownload(Download download) {
+    dequeueDownload(download);
+    download.cancel(true);
+    scheduleDownload(null);
+  }
+
+  // leaves the lookahead window, so that the next pending download can start
+  private static synchronized void dequeueDownload(Download download) {
+    if (download.ahead) {
+      downloadsAhead--;
+    } else {
+      pendingDownloads.remove(download);
+    }
+  }
+
+  private static synchronized ExecutorService getDownloadExecutor(int threads) {
+    if (downloadExecutor == null) {
+      final AtomicInteger threadId = new AtomicInteger(0);
+      downloadExecutor =
+          Executors.newFixedThreadPool(
+              threads,
+              r -> {
+                final Thread t = new Thread(r, "smb-buffer-" + threadId.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+              });
+    }
+    return downloadExecutor;
+  }
+
+  private static Void copyToLocal(ReadableFile readableFile, Path path, long fileSize)
+      throws IOException {
+    try (ReadableByteChannel src = readableFile.open();
+        FileChannel dst =
+            FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+      long copied = 0;
+      do {
+        copied += dst.transferFrom(src, copied, fileSize - copied);
+      } while (copied < fileSize);
+    }
+    return null;
+  }
+
+  private static final class Download extends FutureTask<Void> {
+    // whether started ahead of its first read, guarded by the class lock of FileOperations
+    private boolean ahead = false;
+
+    private Download(Callable<Void> copy) {
+      super(copy);
+    }
+  }
+
+  /**
+   * Returns an iterator which waits for the local copy of a file on first access, and reads it
+   * through a {@link MappedFileChannel}, set to {@code mapped} so that it's unmapped on cleanup.
+   */
+  private static <V> Iterator<V> bufferedIterator(
+      ResourceId resourceId,
+      Reader<V> reader,
+      Path path,
+      Download download,
+      AtomicReference<MappedFileChannel> mapped,
+      ReadProgress progress) {
+    return new BufferedFileIterator<>(resourceId, reader, path, download, mapped, progress);
+  }
+
+  private static class BufferedFileIterator<V> implements Iterator<V>, AutoCloseable {
+    private final ResourceId resourceId;
+    private final Reader<V> reader;
+    private final Path path;
+    private final Download download;
+    private final AtomicReference<MappedFileChannel> mapped;
+    private final ReadProgress progress;
+    private Iterator<V> delegate = null;
+
+    private BufferedFileIterator(
+        ResourceId resourceId,
+        Reader<V> reader,
+        Path path,
+        Download download,
+        AtomicReference<MappedFileChannel> mapped,
+        ReadProgress progress) {
+      this.resourceId = resourceId;
+      this.reader = reader;
+      this.path = path;
+      this.download = download;
+      this.mapped = mapped;
+      this.progress = progress;
+    }
+
+    private Iterator<V> delegate() {
+      if (delegate == null) {
+        try {
+          awaitDownload(download);
+          final MappedFileChannel channel = MappedFileChannel.open(path);
+          mapped.set(channel);
+          reader.prepareRead(progress == null ? channel : progress.track(channel));
+          delegate = reader.iterator();
+        } catch (Exception e) {
+          if (e instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+          }
+          // release the buffer, and fail only once
+          delegate = Collections.emptyIterator();
+          reader.cleanupFn.get();
+          throw new RuntimeException(
+              String.format("Exception buffering bucket file %s", resourceId), e);
+        }
+      }
+      return delegate;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return delegate().hasNext();
+    }
+
+    @Override
+    public V next() {
+      return delegate().next();
+    }
+
+    @Override
+    public void close() throws Exception {
+      if (delegate == null) {
+        // never read, release the buffer without waiting for the download
+        delegate = Collections.emptyIterator();
+        cancelDownload(download);
+        reader.cleanupFn.get();
+      } else if (delegate instanceof AutoCloseable) {
+        ((AutoCloseable) delegate).close();
+      }
+    }
+  }
+
   public Writer<V> createWriter(ResourceId resourceId) throws IOException {
     final Writer<V> writer = new Writer<>(createSink(), compression);
     writer.prepareWrite(FileSystems.create(resourceId, mimeType));
@@ -151,6 +446,16 @@ public abstract class FileOperations<V> implements Serializable, HasDisplayData
 
     public abstract void prepareRead(ReadableByteChannel channel) throws IOException;
 
+    /**
+     * Prepares to read records from {@code offset}, a position returned by {@link Writer#sync()}
+     * when the file was written. By default, reads the channel from that position, which only works
+     * for formats without a header.
+     */
+    void prepareReadAt(SeekableByteChannel channel, long offset) throws IOException {
+      channel.position(offset);
+      prepareRead(channel);
+    }
+
     /** Reads next record in the collection. */
     public abstract V readNext() throws IOException, NoSuchElementException;
 
@@ -158,47 +463,67 @@ public abstract class FileOperations<V> implements Serializable, HasDisplayData
 
     public abstract void finishRead() throws IOException;
 
+    /**
+     * Returns an iterator over the records, which finishes the read once exhausted, or when closed
+     * before that.
+     */
     Iterator<V> iterator() {
-      return new Iterator<V>() {
-        private boolean finished = false;
+      return new ReaderIterator();
+    }
 
-        @Override
-        public boolean hasNext() {
-          if (finished) {
-            return false;
-          }
+    private class ReaderIterator implements Iterator<V>, AutoCloseable {
+      private boolean finished = false;
 
-          try {
-            boolean hasNext = hasNextElement();
+      @Override
+      public boolean hasNext() {
+        if (finished) {
+          return false;
+        }
 
-            if (!hasNext) {
-              finishRead();
-              if (cleanupFn != null) {
-                cleanupFn.get();
-              }
-              finished = true;
-            }
+        try {
+          boolean hasNext = hasNextElement();
 
-            return hasNext;
-          } catch (IOException e) {
-            throw new RuntimeException(e);
+          if (!hasNext) {
+            finish();
           }
+
+          return hasNext;
+        } catch (IOException e) {
+          throw new RuntimeException(e);
         }
+      }
 
-        @Override
-        public V next() {
-          if (finished) {
-            throw new NoSuchElementException();
-          }
+      @Override
+      public V next() {
+        if (finished) {
+          throw new NoSuchElementException();
+        }
 
-          try {
-            return readNext();
-          } catch (IOException e) {
-            finished = true;
-            throw new RuntimeException(e);
+        try {
+          return readNext();
+        } catch (IOException e) {
+          finished = true;
+          throw new RuntimeException(e);
+        }
+      }
+
+      @Override
+      public void close() throws IOException {
+        if (!finished) {
+          finish();
+        }
+      }
+
+      private void finish() throws IOException {
+        finished = true;
+        try {
+          finishRead();
+        } finally {
+          if (cleanupFn != null) {
+            cleanupFn.get();
           }
         }
-      };
+      }
     }
   }
 
@@ -208,6 +533,7 @@ public abstract class FileOperations<V> implements Serializable, HasDisplayData
     private final FileIO.Sink<V> sink;
     private transient WritableByteChannel channel;
     private Compression compression;
+    private transient long bytesWritten;
 
     Writer(FileIO.Sink<V> sink, Compression compression) {
       this.sink = sink;
@@ -215,14 +541,45 @@ public abstract class FileOperations<V> implements Serializable, HasDisplayData
     }
 
     private void prepareWrite(WritableByteChannel channel) throws IOException {
-      this.channel = compression.writeCompressed(channel);
+      this.channel = compression.writeCompressed(countBytes(channel));
       sink.open(this.channel);
     }
 
+    private WritableByteChannel countBytes(WritableByteChannel delegate) {
+      return new WritableByteChannel() {
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+          final int written = delegate.write(src);
+          bytesWritten += written;
+          return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+          return delegate.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+          delegate.close();
+        }
+      };
+    }
+
     public void write(V value) throws IOException {
       sink.write(value);
     }
 
+    /**
+     * Flushes the sink and returns the number of bytes written to the file so far. Only a valid
+     * position for {@link Reader#prepareReadAt(SeekableByteChannel, long)} if {@link
+     * FileOperations#supportsIndex()}.
+     */
+    long sync() throws IOException {
+      sink.flush();
+      return bytesWritten;
+    }
+
     @Override
     public void close() throws IOException {
       try {
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.beam.sdk.extensions.smb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.channels.Channel;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.metrics.Counter;
+import org.apache.beam.sdk.metrics.Gauge;
+import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.base.Preconditions;
+import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.collect.Iterators;
+
+/**
+ * The values of a source's key group, materialized as a list. Values past the first {@code
+ * maxInMemory} are encoded to a temp file on local disk instead of being kept on the heap, so that
+ * a single oversized key group doesn't exhaust the worker's memory.
+ *
+ * <p>Spilled values are decoded again each time they're read. Since an emitted key group may be
+ * buffered by the runner after the reader has moved on, its temp file is deleted by {@link
+ * #discard()} once the reader knows it's no longer read, e.g. when the reader is closed, and
+ * otherwise once the list is no longer reachable.
+ */
+class KeyGroupBuffer<V> extends AbstractList<V> {
+  private static final Counter keyGroupsSpilled =
+      Metrics.counter(KeyGroupBuffer.class, "SortedBucketSource-KeyGroupsSpilled");
+  private static final Counter valuesSpilled =
+      Metrics.counter(KeyGroupBuffer.class, "SortedBucketSource-ValuesSpilled");
+  private static final Gauge maxKeyGroupSize =
+      Metrics.gauge(KeyGroupBuffer.class, "SortedBucketSource-MaxKeyGroupSize");
+  // largest key group buffered in this JVM, reported by the gauge above
+  private static final AtomicLong maxSize = new AtomicLong(0L);
+
+  // temp files of lists that are no longer reachable are deleted as new ones are created
+  private static final ReferenceQueue<KeyGroupBuffer<?>> unreachable = new ReferenceQueue<>();
+  private static final Set<SpillFile> spillFiles = ConcurrentHashMap.newKeySet();
+
+  private final Coder<V> coder;
+  private final int maxInMemory;
+  private final List<V> inMemory = new ArrayList<>();
+
+  private Path spillPath = null;
+  private SpillFile spillFile = null;
+  private OutputStream spillOut = null;
+  private boolean finished = false;
+  private int numSpilled = 0;
+  // spilled values read by get(), positioned at cursorIndex. The channel is rewound rather than
+  // reopened to go back, and stays open until the list is discarded.
+  private SeekableByteChannel cursorChannel = null;
+  private InputStream cursor = null;
+  private int cursorIndex = 0;
+
+  /** @param maxInMemory number of values kept on the heap, all of them if not positive */
+  KeyGroupBuffer(Coder<V> coder, int maxInMemory) {
+    this.coder = coder;
+    this.maxInMemory = maxInMemory;
+  }
+
+  @Override
+  public boolean add(V value) {
+    if (maxInMemory <= 0 || inMemory.size() < maxInMemory) {
+      inMemory.add(value);
+      return true;
+    }
+
+    try {
+      if (spillOut == null) {
+        startSpilling();
+      }
+      coder.encode(value, spillOut);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to spill key group values to " + spillPath, e);
+    }
+    numSpilled++;
+    valuesSpilled.inc();
+    return true;
+  }
+
+  /** Called once all values are added, the list is read-only after that. */
+  void finish() {
+    final long size = size();
+    if (maxSize.accumulateAndGet(size, Math::max) == size) {
+      maxKeyGroupSize.set(size);
+    }
+    finished = true;
+    if (spillOut != null) {
+      try {
+        spillOut.close();
+      } catch (IOException e) {
+        throw new UncheckedIOException("Failed to spill key group values to " + spillPath, e);
+      }
+    }
+  }
+
+  boolean isSpilled() {
+    return numSpilled > 0;
+  }
+
+  /**
+   * Returns a handle which deletes the temp file of spilled values, and closes streams reading it,
+   * without keeping the list reachable. Null if no values were spilled.
+   */
+  Closeable spillFile() {
+    return spillFile;
+  }
+
+  /**
+   * Deletes the temp file of spilled values, once they're no longer read, and closes streams
+   * reading it, including iterators which weren't exhausted. Spilled values can't be read after
+   * that.
+   */
+  void discard() {
+    if (spillFile != null) {
+      spillFile.close();
+    }
+    cursorChannel = null;
+    cursor = null;
+  }
+
+  @Override
+  public int size() {
+    return inMemory.size() + numSpilled;
+  }
+
+  @Override
+  public V get(int index) {
+    Preconditions.checkElementIndex(index, size());
+    if (index < inMemory.size()) {
+      return inMemory.get(index);
+    }
+
+    final int spilledIndex = index - inMemory.size();
+    try {
+      // values are usually read in order, rewind the file only to go back
+      if (cursorChannel == null) {
+        cursorChannel = openSpilled();
+        cursor = newInputStream(cursorChannel);
+        cursorIndex = 0;
+      } else if (spilledIndex < cursorIndex) {
+        cursorChannel.position(0);
+        cursor = newInputStream(cursorChannel);
+        cursorIndex = 0;
+      }
+      flushSpilled();
+      while (cursorIndex < spilledIndex) {
+        coder.decode(cursor);
+        cursorIndex++;
+      }
+      final V value = coder.decode(cursor);
+      cursorIndex++;
+      return value;
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          "Failed to read spilled key group values from " + spillPath, e);
+    }
+  }
+
+  @Override
+  public int lastIndexOf(Object o) {
+    // a single pass in order, instead of reading spilled values backwards
+    int last = -1;
+    int i = 0;
+    for (V value : this) {
+      if (o == null ? value == null : o.equals(value)) {
+        last = i;
+      }
+      i++;
+    }
+    return last;
+  }
+
+  @Override
+  public Iterator<V> iterator() {
+    if (numSpilled == 0) {
+      return inMemory.iterator();
+    }
+    return Iterators.concat(inMemory.iterator(), new SpilledIterator(numSpilled));
+  }
+
+  private void startSpilling() throws IOException {
+    deleteUnreachable();
+    final String tmpDir = System.getProperties().getProperty("java.io.tmpdir");
+    spillPath = Files.createTempFile(Paths.get(tmpDir), "smb-key-group-", ".tmp");
+    spillFile = new SpillFile(this, spillPath);
+    spillFiles.add(spillFile);
+    spillOut = new BufferedOutputStream(Files.newOutputStream(spillPath));
+    keyGroupsSpilled.inc();
+  }
+
+  private SeekableByteChannel openSpilled() throws IOException {
+    Preconditions.checkState(!spillFile.deleted, "Spilled values already discarded");
+    final SeekableByteChannel channel = Files.newByteChannel(spillPath);
+    spillFile.channels.add(channel);
+    return channel;
+  }
+
+  private void closeSpilled(SeekableByteChannel channel) throws IOException {
+    spillFile.channels.remove(channel);
+    channel.close();
+  }
+
+  // values may still be added, e.g. while a predicate reads the list
+  private void flushSpilled() throws IOException {
+    if (!finished) {
+      spillOut.flush();
+    }
+  }
+
+  private static InputStream newInputStream(SeekableByteChannel channel) {
+    return new BufferedInputStream(Channels.newInputStream(channel));
+  }
+
+  private static void deleteUnreachable() {
+    Reference<? extends KeyGroupBuffer<?>> ref;
+    while ((ref = unreachable.poll()) != null) {
+      ((SpillFile) ref).close();
+    }
+  }
+
+  private class SpilledIterator implements Iterator<V> {
+    private final int numValues;
+    private SeekableByteChannel channel = null;
+    private InputStream in = null;
+    private int numRead = 0;
+
+    SpilledIterator(int numValues) {
+      this.numValues = numValues;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return numRead < numValues;
+    }
+
+    @Override
+    public V next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      try {
+        if (in == null) {
+          channel = openSpilled();
+          in = newInputStream(channel);
+        }
+        flushSpilled();
+        final V value = coder.decode(in);
+        if (++numRead == numValues) {
+          closeSpilled(channel);
+        }
+        return value;
+      } catch (IOException e) {
+        throw new UncheckedIOException(
+            "Failed to read spilled key group values from " + spillPath, e);
+      }
+    }
+  }
+
+  /**
+   * Deletes a temp file, explicitly or once its list is unreachable, and closes the channels still
+   * reading it, e.g. of iterators which weren't exhausted.
+   */
+  private static class SpillFile extends PhantomReference<KeyGroupBuffer<?>> implements Closeable {
+    private final Path path;
+    private final Set<Channel> channels = ConcurrentHashMap.newKeySet();
+    private volatile boolean deleted = false;
+
+    SpillFile(KeyGroupBuffer<?> buffer, Path path) {
+      super(buffer, unreachable);
+      this.path = path;
+    }
+
+    @Override
+    public void close() {
+      if (deleted) {
+        return;
+      }
+      deleted = true;
+      // no longer needs to be enqueued once unreachable
+      clear();
+      spillFiles.remove(this);
+      for (Channel channel : channels) {
+        try {
+          channel.close();
+        } catch (IOException e) {
+          // the file is deleted regardless
+        }
+      }
+      channels.clear();
+      try {
+        Files.deleteIfExists(path);
+      } catch (IOException e) {
+        // left to be cleaned up with the worker's temp directory
+      }
+    }
+  }
+}
@@ -17,6 +17,7 @@
 
 package org.apache.beam.sdk.extensions.smb;
 
+import java.io.IOException;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
@@ -30,14 +31,16 @@ import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.collect.PeekingI
 
 // FIXME: current limitation: must exhaust Iterator<ValueT> before starting the next key group
 class KeyGroupIterator<V> implements Iterator<KV<ComparableKeyBytes, Iterator<V>>> {
+  private final List<Iterator<KV<ComparableKeyBytes, V>>> sources;
   private final List<PeekingIterator<KV<ComparableKeyBytes, V>>> iterators;
   final Comparator<ComparableKeyBytes> keyComparator;
 
-  private Iterator<V> currentGroup = null;
+  private ValueIterator currentGroup = null;
 
   KeyGroupIterator(
       List<Iterator<KV<ComparableKeyBytes, V>>> iterators,
       Comparator<ComparableKeyBytes> keyComparator) {
+    this.sources = iterators;
     this.iterators =
         iterators.stream().map(Iterators::peekingIterator).collect(Collectors.toList());
     this.keyComparator = keyComparator;
@@ -62,47 +65,73 @@ class KeyGroupIterator<V> implements Iterator<KV<ComparableKeyBytes, Iterator<V>
     checkState();
     ComparableKeyBytes k = min();
 
-    /* The key `k` is fixed for all usages of this iterator. Here we iterate over
-     * all shards, and if we find the min key at the head of a shard, there is
-     * another `V` value to be consumed. Otherwise, we increment `currentIteratorIdx`
-     * to move on to the next shard, eventually having checked all shards for the
-     * minimum key, at which point this iterator can be garbage collected.
-     */
-    Iterator<V> vi =
-        new Iterator<V>() {
-          private int currentIterator = 0;
-
-          @Override
-          public boolean hasNext() {
-            PeekingIterator<KV<ComparableKeyBytes, V>> currentIt;
-            while (currentIterator < iterators.size()) {
-              currentIt = iterators.get(currentIterator);
-              if (currentIt.hasNext()) {
-                ComparableKeyBytes nextK = currentIt.peek().getKey();
-                if (keyComparator.compare(k, nextK) == 0) {
-                  return true;
-                }
-              }
-              currentIterator++;
-            }
-            currentGroup = null;
-            return false;
-          }
-
-          @Override
-          public V next() {
-            if (!hasNext()) {
-              throw new NoSuchElementException();
-            }
-            return iterators.get(currentIterator).next().getValue();
-          }
-        };
-
+    final ValueIterator vi = new ValueIterator(k);
     currentGroup = vi;
     return KV.of(k, vi);
   }
 
+  /** Skips the remaining values of the current key group, without decoding {@link LazyRecord}s. */
+  void skipCurrentGroup() {
+    if (currentGroup != null) {
+      currentGroup.skipRemaining();
+    }
+  }
+
+  /**
+   * Closes the underlying iterators which are {@link AutoCloseable}, e.g. to release bucket files
+   * when key groups aren't read until the end.
+   */
+  void close() throws IOException {
+    CloseableIterator.closeAll(sources);
+  }
+
   private void checkState() {
     Preconditions.checkState(currentGroup == null, "Previous Iterator<ValueT> not fully iterated");
   }
+
+  /* The key `k` is fixed for all usages of this iterator. Here we iterate over
+   * all shards, and if we find the min key at the head of a shard, there is
+   * another `V` value to be consumed. Otherwise, we increment `currentIteratorIdx`
+   * to move on to the next shard, eventually having checked all shards for the
+   * minimum key, at which point this iterator can be garbage collected.
+   */
+  private class ValueIterator implements Iterator<V> {
+    private final ComparableKeyBytes k;
+    private int currentIterator = 0;
+
+    ValueIterator(ComparableKeyBytes k) {
+      this.k = k;
+    }
+
+    @Override
+    public boolean hasNext() {
+      PeekingIterator<KV<ComparableKeyBytes, V>> currentIt;
+      while (currentIterator < iterators.size()) {
+        currentIt = iterators.get(currentIterator);
+        if (currentIt.hasNext()) {
+          ComparableKeyBytes nextK = currentIt.peek().getKey();
+          if (keyComparator.compare(k, nextK) == 0) {
+            return true;
+          }
+        }
+        currentIterator++;
+      }
+      currentGroup = null;
+      return false;
+    }
+
+    @Override
+    public V next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return LazyRecord.resolve(iterators.get(currentIterator).next().getValue());
+    }
+
+    void skipRemaining() {
+      while (hasNext()) {
+        iterators.get(currentIterator).next();
+      }
+    }
+  }
 }
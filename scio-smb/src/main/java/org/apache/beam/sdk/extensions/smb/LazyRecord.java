@@ -0,0 +1,47 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.beam.sdk.extensions.smb;
+
+import java.util.function.Function;
+import org.apache.beam.sdk.extensions.smb.SortedBucketIO.ComparableKeyBytes;
+
+/**
+ * A record read with its key only, by a reader from {@link FileOperations#createLazyReader}, and
+ * decoded in full when {@link KeyGroupIterator} emits it. Records of key groups which are skipped
+ * are never decoded.
+ */
+abstract class LazyRecord<V> {
+  private final ComparableKeyBytes key;
+
+  LazyRecord(ComparableKeyBytes key) {
+    this.key = key;
+  }
+
+  abstract V decode();
+
+  /** Returns the key bytes of a value, lazy or not. */
+  static <V> ComparableKeyBytes keyOf(V value, Function<V, ComparableKeyBytes> keyFn) {
+    return value instanceof LazyRecord ? ((LazyRecord<?>) value).key : keyFn.apply(value);
+  }
+
+  /** Returns the value itself, or the decoded record if it's lazy. */
+  @SuppressWarnings("unchecked")
+  static <V> V resolve(V value) {
+    return value instanceof LazyRecord ? ((LazyRecord<V>) value).decode() : value;
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.beam.sdk.extensions.smb;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A read-only {@link SeekableByteChannel} over a memory-mapped local file. Reads are copied
+ * straight from the page cache, without a system call per read.
+ *
+ * <p>Files larger than 2 GiB are mapped as multiple segments. Segments are unmapped when the
+ * channel is closed, so that the space of a deleted file is freed right away, which requires that
+ * the channel isn't closed while another thread reads from it. On JVMs which don't allow it, they
+ * are unmapped once garbage collected.
+ */
+class MappedFileChannel implements SeekableByteChannel {
+  private static final Logger LOG = LoggerFactory.getLogger(MappedFileChannel.class);
+  private static final long SEGMENT_SIZE = Integer.MAX_VALUE;
+  private static final Consumer<ByteBuffer> UNMAPPER = unmapper();
+
+  private final long segmentSize;
+  private final long size;
+  private ByteBuffer[] segments;
+  private long position = 0;
+
+  private MappedFileChannel(ByteBuffer[] segments, long segmentSize, long size) {
+    this.segments = segments;
+    this.segmentSize = segmentSize;
+    this.size = size;
+  }
+
+  static MappedFileChannel open(Path path) throws IOException {
+    return open(path, SEGMENT_SIZE);
+  }
+
+  static MappedFileChannel open(Path path, long segmentSize) throws IOException {
+    Preconditions.checkArgument(
+        segmentSize > 0 && segmentSize <= SEGMENT_SIZE, "Invalid segment size %s", segmentSize);
+    // the mapping stays valid after the file channel is closed
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      final long size = channel.size();
+      final ByteBuffer[] segments = new ByteBuffer[(int) ((size + segmentSize - 1) / segmentSize)];
+      for (int i = 0; i < segments.length; i++) {
+        final long offset = i * segmentSize;
+        final long length = Math.min(segmentSize, size - offset);
+        segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+      }
+      return new MappedFileChannel(segments, segmentSize, size);
+    }
+  }
+
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    ensureOpen();
+    if (position >= size) return -1;
+
+    int read = 0;
+    while (dst.hasRemaining() && position < size) {
+      final ByteBuffer segment = segments[(int) (position / segmentSize)];
+      final int offset = (int) (position % segmentSize);
+      final int n = Math.min(dst.remaining(), segment.capacity() - offset);
+      // Buffer's methods, since Java 8 lacks ByteBuffer's covariant overrides
+      ((Buffer) segment).limit(offset + n).position(offset);
+      dst.put(segment);
+      position += n;
+      read += n;
+    }
+    return read;
+  }
+
+  @Override
+  public int write(ByteBuffer src) {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public long position() throws IOException {
+    ensureOpen();
+    return position;
+  }
+
+  @Override
+  public SeekableByteChannel position(long newPosition) throws IOException {
+    ensureOpen();
+    Preconditions.checkArgument(newPosition >= 0, "Negative position %s", newPosition);
+    position = newPosition;
+    return this;
+  }
+
+  @Override
+  public long size() throws IOException {
+    ensureOpen();
+    return size;
+  }
+
+  @Override
+  public SeekableByteChannel truncate(long size) {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public boolean isOpen() {
+    return segments != null;
+  }
+
+  @Override
+  public void close() {
+    if (segments == null) {
+      return;
+    }
+    final ByteBuffer[] mapped = segments;
+    segments = null;
+    if (UNMAPPER != null) {
+      for (ByteBuffer segment : mapped) {
+        UNMAPPER.accept(segment);
+      }
+    }
+  }
+
+  /** Whether segments are unmapped on {@link #close()}, rather than once garbage collected. */
+  static boolean unmapsOnClose() {
+    return UNMAPPER != null;
+  }
+
+  // the cleaner of a direct buffer is only reachable through internal APIs
+  private static Consumer<ByteBuffer> unmapper() {
+    try {
+      // Java 9+
+      final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      final Object unsafe = theUnsafe.get(null);
+      return buffer -> invoke(invokeCleaner, unsafe, buffer);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      LOG.debug("Unsafe.invokeCleaner not available", e);
+    }
+    try {
+      // Java 8
+      final Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+      final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+      return buffer -> invoke(clean, invoke(cleaner, buffer));
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      LOG.debug("DirectBuffer.cleaner not available, mapped files are released on GC", e);
+      return null;
+    }
+  }
+
+  private static Object invoke(Method method, Object target, Object... args) {
+    try {
+      return method.invoke(target, args);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Failed to unmap buffer", e);
+    }
+  }
+
+  private void ensureOpen() throws ClosedChannelException {
+    if (segments == null) {
+      throw new ClosedChannelException();
+    }
+  }
+}
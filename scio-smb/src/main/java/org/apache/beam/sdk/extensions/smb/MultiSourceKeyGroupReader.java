@@ -16,13 +16,18 @@
 
 package org.apache.beam.sdk.extensions.smb;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.function.Predicate;
 import java.util.stream.IntStream;
+import org.apache.beam.sdk.coders.Coder;
 import org.apache.beam.sdk.extensions.smb.SortedBucketIO.ComparableKeyBytes;
 import org.apache.beam.sdk.metrics.Distribution;
 import org.apache.beam.sdk.options.PipelineOptions;
@@ -30,7 +35,7 @@ import org.apache.beam.sdk.transforms.join.CoGbkResult;
 import org.apache.beam.sdk.transforms.join.CoGbkResultSchema;
 import org.apache.beam.sdk.values.KV;
 import org.apache.beam.sdk.values.TupleTag;
-import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.collect.Iterators;
+import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.primitives.UnsignedBytes;
 
 /**
  * @param <KeyType> The key type of the final transform, e.g. `K` for a primary-keyed or `KV<K1,
@@ -44,13 +49,16 @@ public class MultiSourceKeyGroupReader<KeyType> {
     UNSET
   }
 
-  private enum KeyGroupOutputSize {
-    EMPTY,
-    NONEMPTY
-  }
+  private static final Comparator<byte[]> bytesComparator =
+      UnsignedBytes.lexicographicalComparator();
+  private static final SortedBucketSource.Predicate<Object> ACCEPT_ALL = (xs, x) -> true;
 
   private KV<KeyType, CoGbkResult> head = null;
+  private ComparableKeyBytes headKeyBytes = null;
   private boolean initialized = false;
+  // key groups with a primary key lower than this belong to another split of the same bucket
+  private byte[] startKeyPrimary;
+  private final ReadProgress readProgress = new ReadProgress();
 
   private final Function<ComparableKeyBytes, KeyType> keyFn;
 
@@ -58,9 +66,22 @@ public class MultiSourceKeyGroupReader<KeyType> {
   private final Distribution keyGroupSize;
   private final boolean materializeKeyGroup;
   private final Comparator<ComparableKeyBytes> keyComparator;
+  // number of values of a source's materialized key group kept on the heap, before spilling
+  private final int keyGroupSpillThreshold;
+  // temp files of materialized key groups: of the head, and of key groups emitted before it, which
+  // may still be read downstream until this reader is closed
+  private final List<Closeable> headSpillFiles = new ArrayList<>();
+  private final List<Closeable> emittedSpillFiles = new ArrayList<>();
 
   private final CoGbkResultSchema resultSchema;
-  private final List<BucketIterator<?>> bucketedInputs;
+  private final BucketIterator<?>[] bucketedInputs;
+  // sources with a current key group that isn't part of the previous key group, by key
+  private final int[] heap;
+  private int heapSize = 0;
+  // sources of the previous key group, by index, to be advanced before looking for the next one
+  private final int[] keyGroupSources;
+  private int numKeyGroupSources;
+  private final int numRequiredSources;
   private final Function<byte[], Boolean> keyGroupFilter;
 
   public MultiSourceKeyGroupReader(
@@ -74,171 +95,380 @@ public class MultiSourceKeyGroupReader<KeyType> {
       int bucketId,
       int effectiveParallelism,
       PipelineOptions options) {
+    this(
+        sources,
+        keyFn,
+        resultSchema,
+        someArbitraryBucketMetadata,
+        keyComparator,
+        keyGroupSize,
+        materializeKeyGroup,
+        bucketId,
+        effectiveParallelism,
+        options,
+        null);
+  }
+
+  /**
+   * @param startKeyPrimary if not null, key groups whose primary key bytes are lower than this are
+   *     skipped without being emitted.
+   */
+  public MultiSourceKeyGroupReader(
+      List<SortedBucketSource.BucketedInput<?>> sources,
+      Function<ComparableKeyBytes, KeyType> keyFn,
+      CoGbkResultSchema resultSchema,
+      BucketMetadata<?, ?, ?> someArbitraryBucketMetadata,
+      Comparator<ComparableKeyBytes> keyComparator,
+      Distribution keyGroupSize,
+      boolean materializeKeyGroup,
+      int bucketId,
+      int effectiveParallelism,
+      PipelineOptions options,
+      byte[] startKeyPrimary) {
     this.keyFn = keyFn;
     this.keyGroupSize = keyGroupSize;
     this.materializeKeyGroup = materializeKeyGroup;
     this.keyComparator = keyComparator;
+    this.keyGroupSpillThreshold =
+        options.as(SortedBucketOptions.class).getSortedBucketReadKeyGroupSpillThreshold();
     this.resultSchema = resultSchema;
+
+    // Bloom filters of required sources, used to drop records of other sources that can't match
+    final List<Predicate<byte[]>> requiredKeyFilters = new ArrayList<>();
+    for (SortedBucketSource.BucketedInput<?> src : sources) {
+      requiredKeyFilters.add(
+          src.isRequired() ? src.readBloomFilters(bucketId, effectiveParallelism) : null);
+    }
+    this.numRequiredSources =
+        (int) sources.stream().filter(SortedBucketSource.BucketedInput::isRequired).count();
     this.bucketedInputs =
-        sources.stream()
-            .map(src -> new BucketIterator<>(src, bucketId, effectiveParallelism, options))
-            .collect(Collectors.toList());
+        IntStream.range(0, sources.size())
+            .mapToObj(
+                i ->
+                    new BucketIterator<>(
+                        sources.get(i),
+                        resultSchema.getIndex(sources.get(i).getTupleTag()),
+                        bucketId,
+                        effectiveParallelism,
+                        options,
+                        readProgress,
+                        startKeyPrimary,
+                        keyFilterExcept(requiredKeyFilters, i)))
+            .toArray(BucketIterator<?>[]::new);
+    this.heap = new int[bucketedInputs.length];
+    // all sources are pending insertion into the heap before the first key group
+    this.keyGroupSources = IntStream.range(0, bucketedInputs.length).toArray();
+    this.numKeyGroupSources = bucketedInputs.length;
+    this.startKeyPrimary = startKeyPrimary;
     // this only operates on the primary key
     this.keyGroupFilter =
         (bytes) ->
             someArbitraryBucketMetadata.rehashBucket(bytes, effectiveParallelism) == bucketId;
   }
 
+  // Keys which might be in all required sources other than the one at index
+  private static Predicate<byte[]> keyFilterExcept(List<Predicate<byte[]>> filters, int index) {
+    Predicate<byte[]> result = null;
+    for (int i = 0; i < filters.size(); i++) {
+      final Predicate<byte[]> filter = filters.get(i);
+      if (i != index && filter != null) {
+        result = result == null ? filter : result.and(filter);
+      }
+    }
+    return result;
+  }
+
   public KV<KeyType, CoGbkResult> readNext() {
     advance();
     return head;
   }
 
+  /** @return the encoded key of the key group last returned by {@link #readNext()} */
+  ComparableKeyBytes currentKeyBytes() {
+    return headKeyBytes;
+  }
+
+  /** @return progress in bytes read over all bucket files opened by this reader */
+  ReadProgress getReadProgress() {
+    return readProgress;
+  }
+
+  /**
+   * Deletes the temp files of values of the key group last returned by {@link #readNext()}, once it
+   * has been consumed.
+   */
+  void releaseKeyGroup() {
+    deleteSpillFiles(headSpillFiles);
+  }
+
+  private static void deleteSpillFiles(List<Closeable> spillFiles) {
+    for (Closeable spillFile : spillFiles) {
+      try {
+        spillFile.close();
+      } catch (IOException e) {
+        // left to be cleaned up with the worker's temp directory
+      }
+    }
+    spillFiles.clear();
+  }
+
+  /**
+   * Releases the bucket files of all sources, e.g. when key groups aren't read until the end, and
+   * deletes the temp files of values of emitted key groups.
+   */
+  public void close() throws IOException {
+    deleteSpillFiles(headSpillFiles);
+    deleteSpillFiles(emittedSpillFiles);
+    IOException failure = null;
+    for (BucketIterator<?> src : bucketedInputs) {
+      try {
+        src.iter.close();
+      } catch (IOException e) {
+        if (failure == null) {
+          failure = e;
+        } else {
+          failure.addSuppressed(e);
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
   private void advance() {
     // once all sources are exhausted, head is empty, so short circuit return
     if (initialized && head == null) return;
 
     initialized = true;
+    emittedSpillFiles.addAll(headSpillFiles);
+    headSpillFiles.clear();
     while (true) {
       if (runningKeyGroupSize != 0) {
         keyGroupSize.update(runningKeyGroupSize);
         runningKeyGroupSize = 0;
       }
 
-      // advance iterators whose values have already been used.
-      bucketedInputs.stream()
-          .filter(BucketIterator::shouldAdvance)
-          .forEach(BucketIterator::advance);
-
-      // only operate on the non-exhausted sources
-      List<BucketIterator<?>> activeSources =
-          bucketedInputs.stream().filter(BucketIterator::notExhausted).collect(Collectors.toList());
+      // advance iterators whose values have already been used, and put them back in the heap.
+      // only sources of the previous key group can have been used, all others are still in the
+      // heap
+      for (int i = 0; i < numKeyGroupSources; i++) {
+        final BucketIterator<?> src = bucketedInputs[keyGroupSources[i]];
+        if (src.shouldAdvance()) src.advance();
+        if (src.notExhausted()) heapPush(keyGroupSources[i]);
+      }
+      numKeyGroupSources = 0;
 
       // once all sources are exhausted, set head to empty and return
-      if (activeSources.isEmpty()) {
+      if (heapSize == 0) {
         head = null;
+        headKeyBytes = null;
         break;
       }
 
-      // process keys in order, but since not all sources
-      // have all keys, find the minimum available key
-      final List<ComparableKeyBytes> consideredKeys =
-          activeSources.stream().map(BucketIterator::currentKey).collect(Collectors.toList());
-      // because we have checked that there are active sources, there will always be a min key
-      ComparableKeyBytes minKey = consideredKeys.stream().min(keyComparator).get();
+      // process keys in order, but since not all sources have all keys, take all sources whose
+      // current key is the minimum off the heap. ties are broken by source index, so they are
+      // visited in the same order as the sources were given.
+      final ComparableKeyBytes minKey = bucketedInputs[heap[0]].currentKey();
+      while (heapSize > 0
+          && keyComparator.compare(minKey, bucketedInputs[heap[0]].currentKey()) == 0) {
+        keyGroupSources[numKeyGroupSources++] = heapPop();
+      }
       final boolean emitBasedOnMinKeyBucketing = keyGroupFilter.apply(minKey.primary);
 
-      // output accumulator
-      final List<Iterable<?>> valueMap =
-          IntStream.range(0, resultSchema.size())
-              .mapToObj(i -> new ArrayList<>())
-              .collect(Collectors.toList());
+      // sources are sorted, so once the start key is reached it no longer needs to be checked
+      final boolean beforeStartKey =
+          startKeyPrimary != null && bytesComparator.compare(minKey.primary, startKeyPrimary) < 0;
+      if (!beforeStartKey) startKeyPrimary = null;
+
+      // key groups missing from a required source are dropped, as in an inner join
+      boolean missingRequiredSource = false;
+      if (numRequiredSources > 0) {
+        int numRequired = 0;
+        for (int i = 0; i < numKeyGroupSources; i++) {
+          if (bucketedInputs[keyGroupSources[i]].required) numRequired++;
+        }
+        missingRequiredSource = numRequired < numRequiredSources;
+      }
+
+      // output accumulator, allocated once the key group is accepted. It's handed over to the
+      // CoGbkResult, so it can't be reused across key groups.
+      Iterable<?>[] valueMap = null;
 
       // When a predicate is applied, a source containing a key may have no values after filtering.
-      // Sources containing minKey are by default known to be NONEMPTY. Once all sources are
+      // Sources containing minKey are by default known to be nonempty. Once all sources are
       // consumed, if all are known to be empty, the key group can be dropped.
-      List<KeyGroupOutputSize> valueOutputSizes =
-          IntStream.range(0, resultSchema.size())
-              .mapToObj(i -> KeyGroupOutputSize.EMPTY)
-              .collect(Collectors.toList());
+      boolean anyNonEmpty = false;
 
       // minKey will be accepted or rejected by the first source which has it.
       // acceptKeyGroup short-circuits the 'emit' logic below once a decision is made on minKey.
       AcceptKeyGroup acceptKeyGroup = AcceptKeyGroup.UNSET;
-      for (BucketIterator<?> src : activeSources) {
-        // for each source, if the current key is equal to the minimum, consume it
-        if (src.notExhausted() && keyComparator.compare(minKey, src.currentKey()) == 0) {
-          // if this key group has been previously accepted by a preceding source, emit.
-          // "  "    "   "     "   "    "          rejected by a preceding source, don't emit.
-          // if this is the first source for this key group, emit if either the source settings or
-          // the min key say we should.
-          boolean emitKeyGroup =
-              (acceptKeyGroup == AcceptKeyGroup.ACCEPT)
-                  || ((acceptKeyGroup == AcceptKeyGroup.UNSET)
-                      && (src.emitByDefault || emitBasedOnMinKeyBucketing));
-
-          final Iterator<Object> keyGroupIterator = (Iterator<Object>) src.currentValue();
-          if (emitKeyGroup) {
-            acceptKeyGroup = AcceptKeyGroup.ACCEPT;
-            // data must be eagerly materialized if requested or if there is a predicate
-            boolean materialize = materializeKeyGroup || (src.predicate != null);
-            int outputIndex = resultSchema.getIndex(src.tupleTag);
-
-            if (!materialize) {
-              // this source contains minKey, so is known to contain at least one value
-              valueOutputSizes.set(outputIndex, KeyGroupOutputSize.NONEMPTY);
-              // lazy data iterator
-              valueMap.set(
-                  outputIndex,
-                  new SortedBucketSource.TraversableOnceIterable<>(
-                      Iterators.transform(
-                          keyGroupIterator,
-                          (value) -> {
-                            runningKeyGroupSize++;
-                            return value;
-                          })));
-
-            } else {
-              // eagerly materialize this iterator and apply the predicate to each value
-              // this must be eager because the predicate can operate on the entire collection
-              final List<Object> values = (List<Object>) valueMap.get(outputIndex);
-              final SortedBucketSource.Predicate<Object> predicate =
-                  (src.predicate == null)
-                      ? ((xs, x) -> true)
-                      : (SortedBucketSource.Predicate<Object>) src.predicate;
-              keyGroupIterator.forEachRemaining(
-                  v -> {
-                    if ((predicate).apply(values, v)) {
-                      values.add(v);
-                      runningKeyGroupSize++;
-                    }
-                  });
-              KeyGroupOutputSize sz =
-                  values.isEmpty() ? KeyGroupOutputSize.EMPTY : KeyGroupOutputSize.NONEMPTY;
-              valueOutputSizes.set(outputIndex, sz);
-            }
+      for (int i = 0; i < numKeyGroupSources; i++) {
+        final BucketIterator<?> src = bucketedInputs[keyGroupSources[i]];
+        // if this key group has been previously accepted by a preceding source, emit.
+        // "  "    "   "     "   "    "          rejected by a preceding source, don't emit.
+        // if this is the first source for this key group, emit if either the source settings or
+        // the min key say we should.
+        // key groups before the start key, or missing a required source, are never emitted.
+        boolean emitKeyGroup =
+            !beforeStartKey
+                && !missingRequiredSource
+                && ((acceptKeyGroup == AcceptKeyGroup.ACCEPT)
+                    || ((acceptKeyGroup == AcceptKeyGroup.UNSET)
+                        && (src.emitByDefault || emitBasedOnMinKeyBucketing)));
+
+        final Iterator<Object> keyGroupIterator = (Iterator<Object>) src.currentValue();
+        if (emitKeyGroup) {
+          acceptKeyGroup = AcceptKeyGroup.ACCEPT;
+          if (valueMap == null) {
+            valueMap = new Iterable<?>[resultSchema.size()];
+            Arrays.fill(valueMap, Collections.emptyList());
+          }
+          // data must be eagerly materialized if requested or if there is a predicate
+          boolean materialize = materializeKeyGroup || (src.predicate != null);
+
+          if (!materialize) {
+            // this source contains minKey, so is known to contain at least one value
+            anyNonEmpty = true;
+            // lazy data iterator
+            valueMap[src.outputIndex] =
+                new SortedBucketSource.TraversableOnceIterable<>(
+                    new CountingIterator<>(keyGroupIterator));
           } else {
-            acceptKeyGroup = AcceptKeyGroup.REJECT;
-            // skip key but still have to exhaust iterator
-            keyGroupIterator.forEachRemaining(value -> {});
+            // eagerly materialize this iterator and apply the predicate to each value
+            // this must be eager because the predicate can operate on the entire collection
+            final KeyGroupBuffer<Object> values =
+                new KeyGroupBuffer<>((Coder<Object>) src.coder, keyGroupSpillThreshold);
+            final SortedBucketSource.Predicate<Object> predicate =
+                (src.predicate == null)
+                    ? ACCEPT_ALL
+                    : (SortedBucketSource.Predicate<Object>) src.predicate;
+            while (keyGroupIterator.hasNext()) {
+              final Object v = keyGroupIterator.next();
+              if (predicate.apply(values, v)) {
+                values.add(v);
+                runningKeyGroupSize++;
+              }
+            }
+            values.finish();
+            if (values.isSpilled()) {
+              headSpillFiles.add(values.spillFile());
+            }
+            if (!values.isEmpty()) {
+              anyNonEmpty = true;
+              valueMap[src.outputIndex] = values;
+            }
           }
+        } else {
+          acceptKeyGroup = AcceptKeyGroup.REJECT;
+          // skip key but still have to exhaust iterator, without decoding lazily read values
+          src.skipCurrentValues();
         }
       }
 
-      if (acceptKeyGroup == AcceptKeyGroup.ACCEPT) {
-        // if all outputs are known-empty, omit this key group
-        boolean allEmpty = valueOutputSizes.stream().allMatch(s -> s == KeyGroupOutputSize.EMPTY);
-        if (!allEmpty) {
-          final KV<ComparableKeyBytes, CoGbkResult> next =
-              KV.of(minKey, CoGbkResultUtil.newCoGbkResult(resultSchema, valueMap));
-          try {
-            // new head found, we're done
-            head = KV.of(keyFn.apply(next.getKey()), next.getValue());
-            break;
-          } catch (Exception e) {
-            throw new RuntimeException("Failed to decode key group", e);
-          }
+      // if all outputs are known-empty, omit this key group
+      if (acceptKeyGroup == AcceptKeyGroup.ACCEPT && anyNonEmpty) {
+        try {
+          // new head found, we're done
+          head =
+              KV.of(
+                  keyFn.apply(minKey),
+                  CoGbkResultUtil.newCoGbkResult(resultSchema, Arrays.asList(valueMap)));
+          headKeyBytes = minKey;
+          break;
+        } catch (Exception e) {
+          throw new RuntimeException("Failed to decode key group", e);
         }
       }
+      // the key group is dropped
+      deleteSpillFiles(headSpillFiles);
+    }
+  }
+
+  // Binary min-heap of source indices, ordered by current key, then by source index
+
+  private boolean heapLess(int a, int b) {
+    final int cmp =
+        keyComparator.compare(bucketedInputs[a].currentKey(), bucketedInputs[b].currentKey());
+    return cmp < 0 || (cmp == 0 && a < b);
+  }
+
+  private void heapPush(int sourceIdx) {
+    int pos = heapSize++;
+    while (pos > 0) {
+      final int parent = (pos - 1) >>> 1;
+      if (!heapLess(sourceIdx, heap[parent])) break;
+      heap[pos] = heap[parent];
+      pos = parent;
+    }
+    heap[pos] = sourceIdx;
+  }
+
+  private int heapPop() {
+    final int top = heap[0];
+    final int last = heap[--heapSize];
+    int pos = 0;
+    while (true) {
+      int child = 2 * pos + 1;
+      if (child >= heapSize) break;
+      if (child + 1 < heapSize && heapLess(heap[child + 1], heap[child])) child++;
+      if (!heapLess(heap[child], last)) break;
+      heap[pos] = heap[child];
+      pos = child;
+    }
+    heap[pos] = last;
+    return top;
+  }
+
+  // Counts values of lazily consumed key groups towards the key group size
+  private class CountingIterator<V> implements Iterator<V> {
+    private final Iterator<V> delegate;
+
+    CountingIterator(Iterator<V> delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return delegate.hasNext();
+    }
+
+    @Override
+    public V next() {
+      final V value = delegate.next();
+      runningKeyGroupSize++;
+      return value;
     }
   }
 
   private static class BucketIterator<V> {
     public final TupleTag<?> tupleTag;
+    public final int outputIndex;
     public final boolean emitByDefault;
+    public final boolean required;
 
     private final KeyGroupIterator<V> iter;
     final SortedBucketSource.Predicate<V> predicate;
+    final Coder<V> coder;
     private KV<ComparableKeyBytes, Iterator<V>> head;
 
     BucketIterator(
         SortedBucketSource.BucketedInput<V> source,
+        int outputIndex,
         int bucketId,
         int parallelism,
-        PipelineOptions options) {
+        PipelineOptions options,
+        ReadProgress readProgress,
+        byte[] startKeyPrimary,
+        Predicate<byte[]> keyFilter) {
       this.predicate = source.getPredicate();
+      this.coder = source.getCoder();
       this.tupleTag = source.getTupleTag();
-      this.iter = source.createIterator(bucketId, parallelism, options);
+      this.outputIndex = outputIndex;
+      this.required = source.isRequired();
+      this.iter =
+          source.createIterator(
+              bucketId, parallelism, options, readProgress, startKeyPrimary, keyFilter);
 
       int numBuckets = source.getSourceMetadata().leastNumBuckets();
       // The canonical # buckets for this source. If # buckets >= the parallelism of the job,
@@ -256,6 +486,10 @@ public class MultiSourceKeyGroupReader<KeyType> {
       return head.getValue();
     }
 
+    public void skipCurrentValues() {
+      iter.skipCurrentGroup();
+    }
+
     public boolean notExhausted() {
       return head != null;
     }
@@ -19,7 +19,12 @@ package org.apache.beam.sdk.extensions.smb;
 
 import java.io.IOException;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import org.apache.avro.Schema;
 import org.apache.avro.generic.IndexedRecord;
@@ -30,8 +35,11 @@ import org.apache.beam.sdk.extensions.smb.AvroFileOperations.SerializableSchemaS
 import org.apache.beam.sdk.io.Compression;
 import org.apache.beam.sdk.io.FileIO;
 import org.apache.beam.sdk.io.hadoop.SerializableConfiguration;
+import org.apache.beam.sdk.metrics.Counter;
+import org.apache.beam.sdk.metrics.Metrics;
 import org.apache.beam.sdk.transforms.display.DisplayData;
 import org.apache.beam.sdk.util.MimeTypes;
+import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.base.Preconditions;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.parquet.avro.AvroDataSupplier;
@@ -56,17 +64,34 @@ public class ParquetAvroFileOperations<ValueT> extends FileOperations<ValueT> {
   private final CompressionCodecName compression;
   private final SerializableConfiguration conf;
   private final FilterPredicate predicate;
+  private final SerializableSchemaSupplier projectionSupplier;
+  // projections merged with the key fields of bucket metadata, once per list of key fields
+  private transient Map<List<String>, SerializableSchemaSupplier> keyedProjections;
+
+  private static final Counter bytesSkipped =
+      Metrics.counter(ParquetAvroFileOperations.class, "SortedBucketSource-BytesSkippedByPushdown");
 
   private ParquetAvroFileOperations(
       Schema schema,
       CompressionCodecName compression,
       Configuration conf,
       FilterPredicate predicate) {
+    this(schema, compression, conf, predicate, null);
+  }
+
+  private ParquetAvroFileOperations(
+      Schema schema,
+      CompressionCodecName compression,
+      Configuration conf,
+      FilterPredicate predicate,
+      Schema projection) {
     super(Compression.UNCOMPRESSED, MimeTypes.BINARY);
     this.schemaSupplier = new SerializableSchemaSupplier(schema);
     this.compression = compression;
     this.conf = new SerializableConfiguration(conf);
     this.predicate = predicate;
+    this.projectionSupplier =
+        projection == null ? null : new SerializableSchemaSupplier(projection);
   }
 
   public static <V extends IndexedRecord> ParquetAvroFileOperations<V> of(Schema schema) {
@@ -121,16 +146,72 @@ public class ParquetAvroFileOperations<ValueT> extends FileOperations<ValueT> {
     return new ParquetAvroFileOperations<>(schema, DEFAULT_COMPRESSION, conf, predicate);
   }
 
+  /**
+   * Returns a copy reading only the columns of {@code projection}, a subset of the fields of the
+   * schema. Bucket key fields are always read, and other fields are set to their default value.
+   */
+  public ParquetAvroFileOperations<ValueT> withProjection(Schema projection) {
+    checkProjection(getSchema(), projection);
+    return new ParquetAvroFileOperations<>(
+        getSchema(), compression, conf.get(), predicate, projection);
+  }
+
   @Override
   public void populateDisplayData(DisplayData.Builder builder) {
     super.populateDisplayData(builder);
     builder.add(DisplayData.item("compressionCodecName", compression.name()));
     builder.add(DisplayData.item("schema", schemaSupplier.get().getFullName()));
+    if (projectionSupplier != null) {
+      builder.add(DisplayData.item("projection", projectionSupplier.get().toString()));
+    }
   }
 
   @Override
   protected Reader<ValueT> createReader() {
-    return new ParquetAvroReader<>(schemaSupplier, conf, predicate);
+    return new ParquetAvroReader<>(
+        schemaSupplier, projectionSupplier, conf, predicate, predicate != null);
+  }
+
+  /**
+   * Returns a reader of the projection with the key fields of {@code metadata}. Without bucket
+   * metadata, e.g. when reading any Parquet file, only the fields of the projection are read.
+   */
+  @Override
+  Reader<ValueT> createReader(BucketMetadata<?, ?, ValueT> metadata) {
+    if (projectionSupplier == null || !(metadata instanceof ParquetBucketMetadata)) {
+      return createReader();
+    }
+    return new ParquetAvroReader<>(
+        schemaSupplier,
+        keyedProjection((ParquetBucketMetadata<?, ?, ?>) metadata),
+        conf,
+        predicate,
+        true);
+  }
+
+  /** Checks that the projection can be merged with the key fields of {@code metadata}. */
+  @Override
+  void validate(BucketMetadata<?, ?, ValueT> metadata) {
+    if (projectionSupplier != null && metadata instanceof ParquetBucketMetadata) {
+      keyedProjection((ParquetBucketMetadata<?, ?, ?>) metadata);
+    }
+  }
+
+  private synchronized SerializableSchemaSupplier keyedProjection(
+      ParquetBucketMetadata<?, ?, ?> metadata) {
+    final List<String> keyFields = new ArrayList<>();
+    keyFields.add(metadata.getKeyField());
+    if (metadata.getKeyFieldSecondary() != null) {
+      keyFields.add(metadata.getKeyFieldSecondary());
+    }
+    if (keyedProjections == null) {
+      keyedProjections = new HashMap<>();
+    }
+    return keyedProjections.computeIfAbsent(
+        keyFields,
+        k ->
+            new SerializableSchemaSupplier(
+                withKeyFields(getSchema(), projectionSupplier.get(), k)));
   }
 
   @Override
@@ -148,24 +229,145 @@ public class ParquetAvroFileOperations<ValueT> extends FileOperations<ValueT> {
     return schemaSupplier.get();
   }
 
+  ////////////////////////////////////////
+  // Projection
+  ////////////////////////////////////////
+
+  private static void checkProjection(Schema schema, Schema projection) {
+    Preconditions.checkArgument(
+        schema.getType() == Schema.Type.RECORD && projection.getType() == Schema.Type.RECORD,
+        "Projection %s of %s must be a record",
+        projection.getFullName(),
+        schema.getFullName());
+    for (Schema.Field field : projection.getFields()) {
+      final Schema.Field schemaField = schema.getField(field.name());
+      Preconditions.checkArgument(
+          schemaField != null,
+          "Projected field %s is not in schema %s",
+          field.name(),
+          schema.getFullName());
+      if (!field.schema().equals(schemaField.schema())) {
+        // only records can be partially projected
+        final Schema nested = recordOf(schemaField.schema());
+        final Schema projectedNested = recordOf(field.schema());
+        Preconditions.checkArgument(
+            nested != null && projectedNested != null,
+            "Projected field %s has type %s, expected %s",
+            field.name(),
+            field.schema(),
+            schemaField.schema());
+        checkProjection(nested, projectedNested);
+      }
+    }
+  }
+
+  /**
+   * Returns {@code projection} with the fields on the paths of {@code keyFields} added from {@code
+   * schema}, in the field order of {@code schema}.
+   *
+   * @throws IllegalArgumentException if a key field isn't in {@code schema}, or if a field left out
+   *     of the projection has no default value
+   */
+  static Schema withKeyFields(Schema schema, Schema projection, List<String> keyFields) {
+    final Schema keyProjection = AvroFileOperations.projectKeyFields(schema, keyFields, true);
+    Preconditions.checkArgument(
+        keyProjection != null, "Key fields %s are not in schema %s", keyFields, schema);
+    checkProjection(schema, projection);
+    return mergeRecords(schema, projection, keyProjection);
+  }
+
+  private static Schema mergeRecords(Schema schema, Schema a, Schema b) {
+    final List<Schema.Field> fields = new ArrayList<>();
+    for (Schema.Field field : schema.getFields()) {
+      final Schema.Field fieldA = a.getField(field.name());
+      final Schema.Field fieldB = b.getField(field.name());
+      if (fieldA == null && fieldB == null) {
+        Preconditions.checkArgument(
+            field.defaultVal() != null,
+            "Field %s of %s is not projected and has no default value",
+            field.name(),
+            schema.getFullName());
+        continue;
+      }
+
+      final Schema fieldSchema;
+      if (fieldA == null || fieldB == null || fieldA.schema().equals(fieldB.schema())) {
+        fieldSchema = fieldA != null ? fieldA.schema() : fieldB.schema();
+      } else {
+        fieldSchema = mergeNested(field.schema(), fieldA.schema(), fieldB.schema());
+      }
+      final Schema.Field merged =
+          new Schema.Field(
+              field.name(), fieldSchema, field.doc(), field.defaultVal(), field.order());
+      field.aliases().forEach(merged::addAlias);
+      fields.add(merged);
+    }
+
+    final Schema mergedRecord =
+        Schema.createRecord(
+            schema.getName(), schema.getDoc(), schema.getNamespace(), schema.isError(), fields);
+    schema.getAliases().forEach(mergedRecord::addAlias);
+    return mergedRecord;
+  }
+
+  // merges projections of a record, or of a union of null and a record
+  private static Schema mergeNested(Schema schema, Schema a, Schema b) {
+    final Schema record = recordOf(schema);
+    Preconditions.checkArgument(
+        record != null, "Field of type %s can't be partially projected", schema);
+    final Schema merged = mergeRecords(record, recordOf(a), recordOf(b));
+    if (schema.getType() == Schema.Type.RECORD) {
+      return merged;
+    }
+    final List<Schema> types = new ArrayList<>();
+    for (Schema type : schema.getTypes()) {
+      types.add(type.getType() == Schema.Type.RECORD ? merged : type);
+    }
+    return Schema.createUnion(types);
+  }
+
+  // returns the record of a record or nullable record schema, or null if it isn't one
+  private static Schema recordOf(Schema schema) {
+    if (schema.getType() != Schema.Type.UNION) {
+      return schema.getType() == Schema.Type.RECORD ? schema : null;
+    }
+    Schema record = null;
+    for (Schema type : schema.getTypes()) {
+      if (type.getType() == Schema.Type.RECORD && record == null) {
+        record = type;
+      } else if (type.getType() != Schema.Type.NULL) {
+        return null;
+      }
+    }
+    return record;
+  }
+
   ////////////////////////////////////////
   // Reader
   ////////////////////////////////////////
 
   private static class ParquetAvroReader<ValueT> extends FileOperations.Reader<ValueT> {
     private final SerializableSchemaSupplier schemaSupplier;
+    private final SerializableSchemaSupplier projectionSupplier;
     private final SerializableConfiguration conf;
     private final FilterPredicate predicate;
+    private final boolean countBytesSkipped;
     private transient ParquetReader<ValueT> reader;
     private transient ValueT current;
+    private transient ReadProgress readBytes;
+    private transient long fileSize;
 
     private ParquetAvroReader(
         SerializableSchemaSupplier schemaSupplier,
+        SerializableSchemaSupplier projectionSupplier,
         SerializableConfiguration conf,
-        FilterPredicate predicate) {
+        FilterPredicate predicate,
+        boolean countBytesSkipped) {
       this.schemaSupplier = schemaSupplier;
+      this.projectionSupplier = projectionSupplier;
       this.conf = conf;
       this.predicate = predicate;
+      this.countBytesSkipped = countBytesSkipped;
     }
 
     @Override
@@ -173,10 +375,18 @@ public class ParquetAvroFileOperations<ValueT> extends FileOperations<ValueT> {
       final Schema schema = schemaSupplier.get();
       final Configuration configuration = conf.get();
       AvroReadSupport.setAvroReadSchema(configuration, schema);
-      AvroReadSupport.setRequestedProjection(configuration, schema);
-
+      AvroReadSupport.setRequestedProjection(
+          configuration, projectionSupplier == null ? schema : projectionSupplier.get());
+
+      ReadableByteChannel input = channel;
+      if (countBytesSkipped) {
+        // column chunks and row groups left out by the projection or predicate aren't read
+        fileSize = ((SeekableByteChannel) channel).size();
+        readBytes = new ReadProgress();
+        input = readBytes.track(channel);
+      }
       ParquetReader.Builder<ValueT> builder =
-          AvroParquetReader.<ValueT>builder(new ParquetInputFile(channel)).withConf(configuration);
+          AvroParquetReader.<ValueT>builder(new ParquetInputFile(input)).withConf(configuration);
       if (predicate != null) {
         builder = builder.withFilter(FilterCompat.get(predicate));
       }
@@ -199,6 +409,9 @@ public class ParquetAvroFileOperations<ValueT> extends FileOperations<ValueT> {
     @Override
     public void finishRead() throws IOException {
       reader.close();
+      if (readBytes != null) {
+        bytesSkipped.inc(Math.max(0L, fileSize - readBytes.getBytesRead()));
+      }
     }
   }
 
@@ -214,6 +214,9 @@ public class ParquetAvroSortedBucketIO {
     @Nullable
     abstract FilterPredicate getFilterPredicate();
 
+    @Nullable
+    abstract Schema getProjection();
+
     @Nullable
     abstract Predicate<T> getPredicate();
 
@@ -237,6 +240,8 @@ public class ParquetAvroSortedBucketIO {
 
       abstract Builder<T> setFilterPredicate(FilterPredicate predicate);
 
+      abstract Builder<T> setProjection(Schema projection);
+
       abstract Builder<T> setPredicate(Predicate<T> predicate);
 
       abstract Builder<T> setConfiguration(Configuration configuration);
@@ -264,6 +269,14 @@ public class ParquetAvroSortedBucketIO {
       return toBuilder().setFilterPredicate(predicate).build();
     }
 
+    /**
+     * Specifies the Parquet projection, a subset of the fields of the schema. Bucket key fields are
+     * always read, and other fields are set to their default value.
+     */
+    public Read<T> withProjection(Schema projection) {
+      return toBuilder().setProjection(projection).build();
+    }
+
     /** Specifies the filter predicate. */
     public Read<T> withPredicate(Predicate<T> predicate) {
       return toBuilder().setPredicate(predicate).build();
@@ -280,8 +293,11 @@ public class ParquetAvroSortedBucketIO {
           getRecordClass() == null
               ? getSchema()
               : new ReflectData(getRecordClass().getClassLoader()).getSchema(getRecordClass());
-      final ParquetAvroFileOperations<T> fileOperations =
+      ParquetAvroFileOperations<T> fileOperations =
           ParquetAvroFileOperations.of(schema, getFilterPredicate(), getConfiguration());
+      if (getProjection() != null) {
+        fileOperations = fileOperations.withProjection(getProjection());
+      }
       return BucketedInput.of(
           keying,
           getTupleTag(),
@@ -174,6 +174,14 @@ public class ParquetBucketMetadata<K1, K2, V> extends BucketMetadata<K1, K2, V>
     this.keyFieldSecondary = keyFieldSecondary;
   }
 
+  String getKeyField() {
+    return keyField;
+  }
+
+  String getKeyFieldSecondary() {
+    return keyFieldSecondary;
+  }
+
   @Override
   public Map<Class<?>, Coder<?>> coderOverrides() {
     // `keyClass` is already normalized against Scala primitives, no need to handle them here.
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.beam.sdk.extensions.smb;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the underlying iterator in chunks on a background thread pool, ahead of consumption, so
+ * that opening, downloading and decoding a file overlaps with the processing of its elements.
+ *
+ * <p>At most {@link #NUM_CHUNKS} chunks are read ahead. Background tasks never block: a task reads
+ * a single chunk and is only rescheduled while there's room for more, so a pool smaller than the
+ * number of prefetched files can't deadlock.
+ *
+ * <p>Iterators must be closed if abandoned before they are exhausted, which stops prefetching and
+ * closes the underlying iterator if it's {@link AutoCloseable}.
+ */
+class PrefetchingIterator<T> implements Iterator<T>, AutoCloseable {
+  /** Opens the underlying iterator, called on a background thread. */
+  @FunctionalInterface
+  interface IteratorSupplier<T> {
+    Iterator<T> get() throws Exception;
+  }
+
+  private static final Logger LOG = LoggerFactory.getLogger(PrefetchingIterator.class);
+  static final int NUM_CHUNKS = 2;
+  private static final Object END = new Object();
+
+  // shared by all readers in the JVM with the same number of threads
+  private static final ConcurrentMap<Integer, ExecutorService> EXECUTORS =
+      new ConcurrentHashMap<>();
+
+  private final String name;
+  private final IteratorSupplier<T> supplier;
+  private final ExecutorService pool;
+  private final int chunkSize;
+  // chunks of elements, END, or the Throwable which failed the read. Has room for an extra element
+  // so that END or a failure can always be queued after the last chunk.
+  private final BlockingQueue<Object> chunks = new ArrayBlockingQueue<>(NUM_CHUNKS + 1);
+  // full-size chunks already consumed, reused by the producer
+  private final Queue<Object[]> freeChunks = new ConcurrentLinkedQueue<>();
+  // set while a producer task owns the underlying iterator, and once it's closed
+  private final AtomicBoolean scheduled = new AtomicBoolean(false);
+  private volatile boolean producerDone = false;
+  private volatile boolean closed = false;
+
+  // only accessed by the single scheduled producer task, or by close() once idle
+  private Iterator<T> internal = null;
+
+  private Object[] current = null;
+  private int idx = 0;
+  private int size = 0;
+  private boolean exhausted = false;
+
+  PrefetchingIterator(String name, IteratorSupplier<T> supplier, int chunkSize, int numThreads) {
+    this.name = name;
+    this.supplier = supplier;
+    this.chunkSize = chunkSize;
+    this.pool = getExecutor(numThreads);
+    schedule();
+  }
+
+  private static ExecutorService getExecutor(int numThreads) {
+    return EXECUTORS.computeIfAbsent(
+        numThreads,
+        n -> {
+          final AtomicInteger threadId = new AtomicInteger(0);
+          return Executors.newFixedThreadPool(
+              n,
+              r -> {
+                final Thread t =
+                    new Thread(r, "smb-prefetch-" + n + "-" + threadId.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+              });
+        });
+  }
+
+  private void schedule() {
+    // room for a chunk followed by END
+    if (!producerDone && chunks.remainingCapacity() >= 2 && scheduled.compareAndSet(false, true)) {
+      pool.execute(this::fill);
+    }
+  }
+
+  private void fill() {
+    try {
+      if (closed) return;
+      if (internal == null) internal = supplier.get();
+
+      final Object[] recycled = freeChunks.poll();
+      final Object[] buffer = recycled != null ? recycled : new Object[chunkSize];
+      int n = 0;
+      while (n < chunkSize && internal.hasNext()) {
+        buffer[n++] = internal.next();
+      }
+      if (n == chunkSize) {
+        chunks.add(buffer);
+      } else {
+        if (n > 0) chunks.add(Arrays.copyOf(buffer, n));
+        producerDone = true;
+        chunks.add(END);
+      }
+    } catch (Throwable t) {
+      producerDone = true;
+      chunks.add(t);
+    } finally {
+      scheduled.set(false);
+    }
+    schedule();
+    closeIfIdle();
+  }
+
+  private void nextChunk() {
+    if (current != null && current.length == chunkSize) {
+      Arrays.fill(current, null);
+      freeChunks.offer(current);
+    }
+    current = null;
+    idx = 0;
+    size = 0;
+
+    final Object chunk;
+    try {
+      chunk = chunks.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while prefetching " + name, e);
+    }
+    schedule();
+
+    if (chunk == END) {
+      exhausted = true;
+    } else if (chunk instanceof Throwable) {
+      exhausted = true;
+      throw new RuntimeException("Failed to prefetch " + name, (Throwable) chunk);
+    } else {
+      current = (Object[]) chunk;
+      size = current.length;
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (!exhausted && idx >= size) {
+      nextChunk();
+    }
+    return !exhausted;
+  }
+
+  @Override
+  public T next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    @SuppressWarnings("unchecked")
+    T result = (T) current[idx++];
+    return result;
+  }
+
+  /**
+   * Stops prefetching, and closes the underlying iterator, right away if no producer task is
+   * running, or once the running one returns.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    producerDone = true;
+    exhausted = true;
+    current = null;
+    chunks.clear();
+    freeChunks.clear();
+    closeIfIdle();
+  }
+
+  private void closeIfIdle() {
+    // leaves scheduled set, so that no producer task runs again
+    if (closed && scheduled.compareAndSet(false, true)) {
+      final Iterator<T> it = internal;
+      internal = null;
+      if (it instanceof AutoCloseable) {
+        try {
+          ((AutoCloseable) it).close();
+        } catch (Exception e) {
+          LOG.warn("Failed to close prefetched {}", name, e);
+        }
+      }
+    }
+  }
+}
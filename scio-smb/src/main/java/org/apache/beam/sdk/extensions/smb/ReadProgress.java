@@ -0,0 +1,137 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.beam.sdk.extensions.smb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the number of bytes read from all bucket files backing a single SMB reader. Updated from
+ * the reader thread and polled by the runner, e.g. in {@code getFractionConsumed()}.
+ */
+class ReadProgress {
+  private final AtomicLong totalBytes = new AtomicLong(0L);
+  private final AtomicLong bytesRead = new AtomicLong(0L);
+
+  void addFile(long sizeBytes) {
+    totalBytes.addAndGet(sizeBytes);
+  }
+
+  void addBytesRead(long bytes) {
+    bytesRead.addAndGet(bytes);
+  }
+
+  long getBytesRead() {
+    return bytesRead.get();
+  }
+
+  /** @return the fraction of known bytes read so far, or {@code null} if no file was opened yet */
+  Double getFractionRead() {
+    final long total = totalBytes.get();
+    if (total <= 0) return null;
+    return Math.min(1.0, bytesRead.get() / (total * 1.0));
+  }
+
+  /** Wraps a channel so that bytes read through it are reported to this {@link ReadProgress}. */
+  ReadableByteChannel track(ReadableByteChannel channel) {
+    return (channel instanceof SeekableByteChannel)
+        ? new CountingSeekableByteChannel((SeekableByteChannel) channel)
+        : new CountingByteChannel(channel);
+  }
+
+  private class CountingByteChannel implements ReadableByteChannel {
+    private final ReadableByteChannel delegate;
+
+    CountingByteChannel(ReadableByteChannel delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+      final int read = delegate.read(dst);
+      if (read > 0) addBytesRead(read);
+      return read;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return delegate.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+      delegate.close();
+    }
+  }
+
+  // Parquet requires a SeekableByteChannel, see ParquetInputFile
+  private class CountingSeekableByteChannel implements SeekableByteChannel {
+    private final SeekableByteChannel delegate;
+
+    CountingSeekableByteChannel(SeekableByteChannel delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+      final int read = delegate.read(dst);
+      if (read > 0) addBytesRead(read);
+      return read;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+      return delegate.write(src);
+    }
+
+    @Override
+    public long position() throws IOException {
+      return delegate.position();
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+      delegate.position(newPosition);
+      return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+      return delegate.size();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) throws IOException {
+      delegate.truncate(size);
+      return this;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return delegate.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+      delegate.close();
+    }
+  }
+}
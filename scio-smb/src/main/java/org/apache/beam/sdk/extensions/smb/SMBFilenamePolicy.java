@@ -18,6 +18,8 @@
 package org.apache.beam.sdk.extensions.smb;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 import org.apache.beam.sdk.io.fs.ResolveOptions.StandardResolveOptions;
 import org.apache.beam.sdk.io.fs.ResourceId;
@@ -42,23 +44,42 @@ import org.joda.time.format.DateTimeFormatter;
 public final class SMBFilenamePolicy implements Serializable {
 
   private static final String TEMP_DIRECTORY_PREFIX = ".temp-beam";
-  private final String tempId = UUID.randomUUID().toString();
+  private static final String APPEND_DIRECTORY_TEMPLATE = "append-%05d";
+  private final String tempId;
 
   private final ResourceId directory;
   private final String filenamePrefix;
   private final String filenameSuffix;
 
   public SMBFilenamePolicy(ResourceId directory, String filenamePrefix, String filenameSuffix) {
+    this(directory, filenamePrefix, filenameSuffix, UUID.randomUUID().toString());
+  }
+
+  private SMBFilenamePolicy(
+      ResourceId directory, String filenamePrefix, String filenameSuffix, String tempId) {
     Preconditions.checkArgument(directory.isDirectory(), "ResourceId must be a directory");
     this.directory = directory;
     this.filenamePrefix = filenamePrefix;
     this.filenameSuffix = filenameSuffix;
+    this.tempId = tempId;
   }
 
   public FileAssignment forDestination() {
     return new FileAssignment(directory, filenamePrefix, filenameSuffix, false);
   }
 
+  /**
+   * Returns the policy for a subdirectory of the output directory, e.g. the partition of a window.
+   * Its temp files are written to a temp directory of their own, derived from this policy's.
+   */
+  SMBFilenamePolicy forSubdirectory(String subdirectory) {
+    return new SMBFilenamePolicy(
+        directory.resolve(subdirectory, StandardResolveOptions.RESOLVE_DIRECTORY),
+        filenamePrefix,
+        filenameSuffix,
+        tempId + "-" + subdirectory.replace('/', '-'));
+  }
+
   FileAssignment forTempFiles(ResourceId tempDirectory) {
     final String tempDirName = String.format(TEMP_DIRECTORY_PREFIX + "-%s", getTempId());
     return new FileAssignment(
@@ -75,6 +96,11 @@ public final class SMBFilenamePolicy implements Serializable {
     return tempId;
   }
 
+  /** Returns the subdirectory of the shards added by the {@code append}-th append, from 1. */
+  static String appendDirectory(int append) {
+    return String.format(APPEND_DIRECTORY_TEMPLATE, append);
+  }
+
   /**
    * A file name assigner based on a specific output directory and file suffix. Optionally prepends
    * a timestamp to file names to ensure idempotence.
@@ -91,6 +117,7 @@ public final class SMBFilenamePolicy implements Serializable {
     private final String bucketShardTemplate;
 
     private final ResourceId directory;
+    private final String filenamePrefix;
     private final String filenameSuffix;
     private final boolean doTimestampFiles;
 
@@ -100,6 +127,7 @@ public final class SMBFilenamePolicy implements Serializable {
         String filenameSuffix,
         boolean doTimestampFiles) {
       this.directory = directory;
+      this.filenamePrefix = filenamePrefix;
       this.filenameSuffix = filenameSuffix;
       this.doTimestampFiles = doTimestampFiles;
 
@@ -154,6 +182,36 @@ public final class SMBFilenamePolicy implements Serializable {
       return directory;
     }
 
+    /** Returns the assignment of the shards added by the {@code append}-th append, from 1. */
+    FileAssignment forAppend(int append) {
+      return new FileAssignment(
+          directory.resolve(appendDirectory(append), StandardResolveOptions.RESOLVE_DIRECTORY),
+          filenamePrefix,
+          filenameSuffix,
+          doTimestampFiles);
+    }
+
+    /**
+     * Returns the files of all shards of a bucket, including the shards appended to the directory
+     * since it was written.
+     */
+    List<ResourceId> forAllShards(int bucketId, BucketMetadata<?, ?, ?> metadata) {
+      final int numBuckets = metadata.getNumBuckets();
+      final List<ResourceId> files = new ArrayList<>();
+      for (int j = 0; j < metadata.getNumShards(); j++) {
+        files.add(forBucket(BucketShardId.of(bucketId, j), numBuckets, metadata.getNumShards()));
+      }
+      final List<Integer> appendedShards = metadata.getAppendedShards();
+      for (int a = 0; a < appendedShards.size(); a++) {
+        final FileAssignment appended = forAppend(a + 1);
+        for (int j = 0; j < appendedShards.get(a); j++) {
+          files.add(
+              appended.forBucket(BucketShardId.of(bucketId, j), numBuckets, appendedShards.get(a)));
+        }
+      }
+      return files;
+    }
+
     @Override
     public void populateDisplayData(Builder builder) {
       builder.add(DisplayData.item("directory", directory.toString()));
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.beam.sdk.extensions.smb;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.beam.sdk.io.FileSystems;
+import org.apache.beam.sdk.io.fs.MatchResult;
+import org.apache.beam.sdk.io.fs.MoveOptions.StandardMoveOptions;
+import org.apache.beam.sdk.io.fs.ResolveOptions.StandardResolveOptions;
+import org.apache.beam.sdk.io.fs.ResourceId;
+
+/**
+ * Total byte size of the bucket files of an SMB directory, written next to its metadata file so
+ * that readers can estimate their input size without listing bucket files.
+ *
+ * <p>The null-key bucket, which readers skip, and shards appended to the directory since it was
+ * written are not included.
+ */
+class SizeManifest {
+  static final String SIZE_MANIFEST_FILENAME = "size-manifest.json";
+
+  private static final int VERSION = 1;
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  @JsonProperty private final int version;
+  @JsonProperty private final int numFiles;
+  @JsonProperty private final long totalBytes;
+
+  @JsonCreator
+  SizeManifest(
+      @JsonProperty("version") int version,
+      @JsonProperty("numFiles") int numFiles,
+      @JsonProperty("totalBytes") long totalBytes) {
+    this.version = version;
+    this.numFiles = numFiles;
+    this.totalBytes = totalBytes;
+  }
+
+  long getTotalBytes() {
+    return totalBytes;
+  }
+
+  /** Returns the size manifest of an SMB directory. */
+  static ResourceId manifestFor(ResourceId directory) {
+    return directory.resolve(SIZE_MANIFEST_FILENAME, StandardResolveOptions.RESOLVE_FILE);
+  }
+
+  /** Returns the manifest of these bucket files, which must all exist. */
+  static SizeManifest of(List<ResourceId> bucketFiles) throws IOException {
+    final List<String> specs = new ArrayList<>(bucketFiles.size());
+    bucketFiles.forEach(file -> specs.add(file.toString()));
+
+    long totalBytes = 0L;
+    for (MatchResult result : FileSystems.match(specs)) {
+      for (MatchResult.Metadata metadata : result.metadata()) {
+        totalBytes += metadata.sizeBytes();
+      }
+    }
+    return new SizeManifest(VERSION, bucketFiles.size(), totalBytes);
+  }
+
+  /** Reads the size manifest of an SMB directory, or returns null if it has none. */
+  static SizeManifest read(ResourceId directory) throws IOException {
+    final ResourceId manifestFile = manifestFor(directory);
+    try (InputStream in = Channels.newInputStream(FileSystems.open(manifestFile))) {
+      final SizeManifest manifest = objectMapper.readValue(in, SizeManifest.class);
+      if (manifest.version != VERSION) {
+        throw new IOException(
+            "Unsupported size manifest version " + manifest.version + " in " + manifestFile);
+      }
+      return manifest;
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+  }
+
+  /** Deletes the size manifest of an SMB directory, if it has one. */
+  static void delete(ResourceId directory) throws IOException {
+    FileSystems.delete(
+        Collections.singletonList(manifestFor(directory)),
+        StandardMoveOptions.IGNORE_MISSING_FILES);
+  }
+
+  /** Writes the manifest into an SMB directory. */
+  void write(ResourceId directory) throws IOException {
+    try (OutputStream out =
+        Channels.newOutputStream(FileSystems.create(manifestFor(directory), "application/json"))) {
+      objectMapper.writeValue(out, this);
+    }
+  }
+}
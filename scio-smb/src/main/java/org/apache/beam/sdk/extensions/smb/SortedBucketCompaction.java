@@ -0,0 +1,241 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.beam.sdk.extensions.smb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+import org.apache.beam.sdk.coders.KvCoder;
+import org.apache.beam.sdk.extensions.smb.BucketShardId.BucketShardIdCoder;
+import org.apache.beam.sdk.extensions.smb.SMBFilenamePolicy.FileAssignment;
+import org.apache.beam.sdk.extensions.smb.SortedBucketIO.ComparableKeyBytes;
+import org.apache.beam.sdk.extensions.smb.SortedBucketSink.RenameBuckets;
+import org.apache.beam.sdk.extensions.smb.SortedBucketSink.WriteResult;
+import org.apache.beam.sdk.extensions.smb.SortedBucketSink.WriteTempFiles;
+import org.apache.beam.sdk.io.FileSystems;
+import org.apache.beam.sdk.io.fs.EmptyMatchTreatment;
+import org.apache.beam.sdk.io.fs.MatchResult;
+import org.apache.beam.sdk.io.fs.ResourceId;
+import org.apache.beam.sdk.io.fs.ResourceIdCoder;
+import org.apache.beam.sdk.options.PipelineOptions;
+import org.apache.beam.sdk.transforms.Create;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.PTransform;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.transforms.Reshuffle;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PBegin;
+import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.collect.Iterators;
+
+/**
+ * A {@link PTransform} merging all shards of each bucket of a sorted-bucket partition, including
+ * shards appended with {@link SortedBucketIO.AppendWrite}, into a new partition with a single shard
+ * per bucket.
+ *
+ * <p>The shards of a bucket are merged in key order with a {@link KeyGroupIterator}, as when they
+ * are read by {@link SortedBucketSource}, so the compacted partition is sorted the same way. It is
+ * written to a separate output directory, which can replace the original partition once written.
+ *
+ * @param <V> the type of the values in a bucket
+ */
+public class SortedBucketCompaction<V> extends PTransform<PBegin, WriteResult> {
+  private final ResourceId inputDirectory;
+  private final BucketMetadata<?, ?, V> metadata;
+  private final SMBFilenamePolicy filenamePolicy;
+  private final ResourceId tempDirectory;
+  private final String filenameSuffix;
+  private final FileOperations<V> fileOperations;
+
+  public SortedBucketCompaction(
+      ResourceId inputDirectory,
+      ResourceId outputDirectory,
+      ResourceId tempDirectory,
+      String filenameSuffix,
+      FileOperations<V> fileOperations) {
+    this.inputDirectory = inputDirectory;
+    this.metadata = BucketMetadata.get(inputDirectory);
+    this.filenamePolicy =
+        new SMBFilenamePolicy(outputDirectory, metadata.getFilenamePrefix(), filenameSuffix);
+    this.tempDirectory = tempDirectory;
+    this.filenameSuffix = filenameSuffix;
+    this.fileOperations = fileOperations;
+  }
+
+  @Override
+  public WriteResult expand(PBegin input) {
+    final List<Integer> bucketIds = new ArrayList<>();
+    bucketIds.add(BucketShardId.ofNullKey().getBucketId());
+    for (int bucketId = 0; bucketId < metadata.getNumBuckets(); bucketId++) {
+      bucketIds.add(bucketId);
+    }
+
+    final BucketMetadata<?, ?, V> compactedMetadata = metadata.withNumShards(1);
+    final FileAssignment tempFiles = filenamePolicy.forTempFiles(tempDirectory);
+
+    @SuppressWarnings("deprecation")
+    final Reshuffle.ViaRandomKey<Integer> reshuffle = Reshuffle.viaRandomKey();
+
+    return WriteResult.fromTuple(
+        input
+            .apply("BucketIds", Create.of(bucketIds))
+            .apply("DistributeBuckets", reshuffle)
+            .apply(
+                "CompactBuckets",
+                ParDo.of(
+                    new CompactBucketFn<>(
+                        new SMBFilenamePolicy(
+                                inputDirectory, metadata.getFilenamePrefix(), filenameSuffix)
+                            .forDestination(),
+                        metadata,
+                        tempFiles,
+                        compactedMetadata,
+                        fileOperations)))
+            .setCoder(KvCoder.of(BucketShardIdCoder.of(), ResourceIdCoder.of()))
+            .apply(
+                "FinalizeTempFiles",
+                new RenameBuckets<>(
+                    tempFiles.getDirectory(),
+                    filenamePolicy.forDestination(),
+                    compactedMetadata,
+                    fileOperations)));
+  }
+
+  /** Merges the shards of a bucket into a temp file. */
+  private static class CompactBucketFn<V> extends DoFn<Integer, KV<BucketShardId, ResourceId>> {
+    private final FileAssignment srcFiles;
+    private final BucketMetadata<?, ?, V> metadata;
+    private final FileAssignment tempFiles;
+    private final BucketMetadata<?, ?, V> compactedMetadata;
+    private final FileOperations<V> fileOperations;
+
+    CompactBucketFn(
+        FileAssignment srcFiles,
+        BucketMetadata<?, ?, V> metadata,
+        FileAssignment tempFiles,
+        BucketMetadata<?, ?, V> compactedMetadata,
+        FileOperations<V> fileOperations) {
+      this.srcFiles = srcFiles;
+      this.metadata = metadata;
+      this.tempFiles = tempFiles;
+      this.compactedMetadata = compactedMetadata;
+      this.fileOperations = fileOperations;
+    }
+
+    @ProcessElement
+    public void processElement(
+        @Element Integer bucketId,
+        OutputReceiver<KV<BucketShardId, ResourceId>> out,
+        PipelineOptions options)
+        throws IOException {
+      final BucketShardId dst;
+      final Iterator<V> values;
+      if (bucketId == BucketShardId.ofNullKey().getBucketId()) {
+        dst = BucketShardId.ofNullKey();
+        final List<Iterator<V>> iterators = new ArrayList<>();
+        for (ResourceId file : nullKeyFiles()) {
+          iterators.add(fileOperations.iterator(file, metadata));
+        }
+        values = Iterators.concat(iterators.iterator());
+      } else {
+        dst = BucketShardId.of(bucketId, 0);
+        final Function<V, ComparableKeyBytes> keyFn =
+            metadata.hasSecondaryKey()
+                ? metadata::primaryAndSecondaryComparableKeyBytes
+                : metadata::primaryComparableKeyBytes;
+        final List<Iterator<KV<ComparableKeyBytes, V>>> iterators = new ArrayList<>();
+        for (ResourceId file : srcFiles.forAllShards(bucketId, metadata)) {
+          iterators.add(
+              Iterators.transform(
+                  fileOperations.iterator(file, metadata), v -> KV.of(keyFn.apply(v), v)));
+        }
+        values =
+            new FlatteningIterator<>(
+                new KeyGroupIterator<>(
+                    iterators,
+                    metadata.hasSecondaryKey()
+                        ? new SortedBucketIO.PrimaryAndSecondaryKeyComparator()
+                        : new SortedBucketIO.PrimaryKeyComparator()));
+      }
+
+      out.output(
+          KV.of(
+              dst,
+              WriteTempFiles.writeTempFile(
+                  tempFiles,
+                  compactedMetadata,
+                  fileOperations,
+                  dst,
+                  values,
+                  options.as(SortedBucketOptions.class))));
+    }
+
+    // the null-key bucket file isn't written by all transforms, e.g. SortedBucketTransform
+    private List<ResourceId> nullKeyFiles() throws IOException {
+      final List<ResourceId> files = new ArrayList<>();
+      final List<ResourceId> candidates = new ArrayList<>();
+      candidates.add(srcFiles.forBucket(BucketShardId.ofNullKey(), metadata));
+      final List<Integer> appendedShards = metadata.getAppendedShards();
+      for (int a = 0; a < appendedShards.size(); a++) {
+        candidates.add(
+            srcFiles
+                .forAppend(a + 1)
+                .forBucket(
+                    BucketShardId.ofNullKey(), metadata.getNumBuckets(), appendedShards.get(a)));
+      }
+      for (ResourceId candidate : candidates) {
+        final MatchResult match =
+            FileSystems.match(candidate.toString(), EmptyMatchTreatment.ALLOW);
+        if (match.status() == MatchResult.Status.OK && !match.metadata().isEmpty()) {
+          files.add(candidate);
+        }
+      }
+      return files;
+    }
+  }
+
+  /** Iterates over the values of all key groups, in order. */
+  private static class FlatteningIterator<V> implements Iterator<V> {
+    private final KeyGroupIterator<V> keyGroups;
+    private Iterator<V> current = Collections.emptyIterator();
+
+    FlatteningIterator(KeyGroupIterator<V> keyGroups) {
+      this.keyGroups = keyGroups;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (!current.hasNext()) {
+        if (!keyGroups.hasNext()) return false;
+        current = keyGroups.next().getValue();
+      }
+      return true;
+    }
+
+    @Override
+    public V next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return current.next();
+    }
+  }
+}
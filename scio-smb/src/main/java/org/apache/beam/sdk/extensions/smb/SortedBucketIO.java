@@ -34,6 +34,8 @@ import javax.annotation.Nullable;
 import org.apache.beam.sdk.Pipeline;
 import org.apache.beam.sdk.coders.Coder;
 import org.apache.beam.sdk.extensions.smb.BucketMetadata.HashType;
+import org.apache.beam.sdk.extensions.smb.SMBFilenamePolicy.FileAssignment;
+import org.apache.beam.sdk.extensions.smb.SortedBucketSink.RenameBuckets;
 import org.apache.beam.sdk.extensions.smb.SortedBucketSink.SortedBucketPreKeyedSink;
 import org.apache.beam.sdk.extensions.smb.SortedBucketSink.WriteResult;
 import org.apache.beam.sdk.extensions.smb.SortedBucketSource.BucketedInput;
@@ -41,8 +43,12 @@ import org.apache.beam.sdk.extensions.smb.SortedBucketTransform.NewBucketMetadat
 import org.apache.beam.sdk.extensions.smb.SortedBucketTransform.TransformFn;
 import org.apache.beam.sdk.extensions.smb.SortedBucketTransform.TransformFnWithSideInputContext;
 import org.apache.beam.sdk.io.FileSystems;
+import org.apache.beam.sdk.io.fs.ResolveOptions.StandardResolveOptions;
 import org.apache.beam.sdk.io.fs.ResourceId;
+import org.apache.beam.sdk.io.fs.ResourceIdCoder;
+import org.apache.beam.sdk.transforms.DoFn;
 import org.apache.beam.sdk.transforms.PTransform;
+import org.apache.beam.sdk.transforms.ParDo;
 import org.apache.beam.sdk.transforms.join.CoGbkResult;
 import org.apache.beam.sdk.values.KV;
 import org.apache.beam.sdk.values.PBegin;
@@ -91,6 +97,10 @@ public class SortedBucketIO {
                     i.getTupleTag().getId()));
   }
 
+  private static List<BucketedInput<?>> requireAll(List<BucketedInput<?>> inputs) {
+    return inputs.stream().map(BucketedInput::asRequired).collect(Collectors.toList());
+  }
+
   /** Builder for sorted-bucket {@link CoGbk}. */
   public static class CoGbkBuilder<K1> {
     private final Class<K1> primaryKeyClass;
@@ -182,6 +192,14 @@ public class SortedBucketIO {
       return new CoGbk<>(keyClass, inputs, targetParallelism, metricsKey);
     }
 
+    /**
+     * Returns a new {@link CoGbk} that only emits key groups present in all sources. Sources
+     * written with Bloom filters are used to drop records of the other sources which can't match.
+     */
+    public CoGbk<K> withInnerJoin() {
+      return new CoGbk<>(keyClass, requireAll(inputs), targetParallelism, metricsKey);
+    }
+
     public <V> CoGbkTransform<K, V> transform(TransformOutput<K, Void, V> transform) {
       return new CoGbkTransform<>(keyClass, inputs, targetParallelism, transform);
     }
@@ -246,6 +264,16 @@ public class SortedBucketIO {
           keyClassPrimary, keyClassSecondary, inputs, targetParallelism, metricsKey);
     }
 
+    /**
+     * Returns a new {@link CoGbkWithSecondary} that only emits key groups present in all sources.
+     * Sources written with Bloom filters are used to drop records of the other sources which can't
+     * match.
+     */
+    public CoGbkWithSecondary<K1, K2> withInnerJoin() {
+      return new CoGbkWithSecondary<>(
+          keyClassPrimary, keyClassSecondary, requireAll(inputs), targetParallelism, metricsKey);
+    }
+
     public <V> CoGbkTransformWithSecondary<K1, K2, V> transform(
         TransformOutput<K1, K2, V> transform) {
       return new CoGbkTransformWithSecondary<K1, K2, V>(
@@ -611,6 +639,15 @@ public class SortedBucketIO {
       return new PreKeyedWrite<>(this, valueCoder, verifyKeyExtraction);
     }
 
+    /**
+     * Returns a transform appending the input to the existing sorted-bucket partition in the output
+     * directory as {@link #getNumShards()} more shards per bucket, without rewriting it. See {@link
+     * AppendWrite}.
+     */
+    public AppendWrite<K1, K2, V> appendToExisting() {
+      return new AppendWrite<>(this);
+    }
+
     ResourceId getTempDirectoryOrDefault(Pipeline pipeline) {
       if (getTempDirectory() != null) {
         return getTempDirectory();
@@ -680,4 +717,118 @@ public class SortedBucketIO {
               write.getKeyCacheSize()));
     }
   }
+
+  /**
+   * Appends a {@link PCollection} to an existing sorted-bucket partition, written by {@link
+   * SortedBucketSink} with the same bucketing, as new shards next to its bucket files.
+   *
+   * <p>The new shards are written to an {@code append-<n>/} subdirectory of the partition, then the
+   * partition's metadata file is rewritten to record their number, see {@link
+   * BucketMetadata#getAppendedShards()}. {@link SortedBucketSource} reads them along with the
+   * original shards once the metadata file is rewritten. The rewritten metadata has version {@link
+   * BucketMetadata#APPENDED_SHARDS_VERSION}, so that older readers fail instead of skipping the
+   * appended shards. Appends to the same partition must not run concurrently. Shards can be merged
+   * back with {@link SortedBucketCompaction}.
+   */
+  public static class AppendWrite<K1, K2, V> extends PTransform<PCollection<V>, WriteResult> {
+    private final Write<K1, K2, V> write;
+
+    AppendWrite(Write<K1, K2, V> write) {
+      this.write = write;
+    }
+
+    @Override
+    public WriteResult expand(PCollection<V> input) {
+      Preconditions.checkNotNull(write.getOutputDirectory(), "outputDirectory is not set");
+      Preconditions.checkArgument(
+          write.getNumBuckets() != null && write.getNumBuckets() > 0,
+          "numBuckets must be set to a nonzero value");
+
+      final ResourceId outputDirectory = write.getOutputDirectory();
+      final BucketMetadata<K1, K2, V> metadata = write.getBucketMetadata();
+      final BucketMetadata<?, ?, ?> existing = BucketMetadata.get(outputDirectory);
+      Preconditions.checkArgument(
+          isAppendCompatible(existing, metadata),
+          "Cannot append to %s: metadata %s is incompatible with %s",
+          outputDirectory,
+          metadata,
+          existing);
+
+      final int append = existing.getAppendedShards().size() + 1;
+      final WriteResult result =
+          input.apply(
+              "WriteAppendedShards",
+              new SortedBucketSink<>(
+                  metadata,
+                  outputDirectory.resolve(
+                      SMBFilenamePolicy.appendDirectory(append),
+                      StandardResolveOptions.RESOLVE_DIRECTORY),
+                  write.getTempDirectoryOrDefault(input.getPipeline()),
+                  write.getFilenameSuffix(),
+                  write.getFileOperations(),
+                  write.getSorterMemoryMb(),
+                  write.getKeyCacheSize()));
+
+      final PCollection<ResourceId> writtenMetadata =
+          result
+              .getWrittenMetadata()
+              .apply(
+                  "RecordAppend",
+                  ParDo.of(new RecordAppendFn(outputDirectory, append, metadata.getNumShards())))
+              .setCoder(ResourceIdCoder.of());
+      return new WriteResult(input.getPipeline(), writtenMetadata, result.getWrittenFiles());
+    }
+
+    private static boolean isAppendCompatible(
+        BucketMetadata<?, ?, ?> existing, BucketMetadata<?, ?, ?> metadata) {
+      return existing.getNumBuckets() == metadata.getNumBuckets()
+          && existing.getHashType() == metadata.getHashType()
+          && existing.getFilenamePrefix().equals(metadata.getFilenamePrefix())
+          && (existing.hasSecondaryKey()
+              ? existing.isPartitionCompatibleForPrimaryAndSecondaryKey(metadata)
+              : existing.isPartitionCompatibleForPrimaryKey(metadata));
+    }
+
+    /** Records the appended shards in the partition's metadata file, once they are written. */
+    private static class RecordAppendFn extends DoFn<ResourceId, ResourceId> {
+      private final ResourceId directory;
+      private final int append;
+      private final int numShards;
+
+      RecordAppendFn(ResourceId directory, int append, int numShards) {
+        this.directory = directory;
+        this.append = append;
+        this.numShards = numShards;
+      }
+
+      @ProcessElement
+      public void processElement(OutputReceiver<ResourceId> out) throws IOException {
+        final ResourceId metadataFile = FileAssignment.forDstMetadata(directory);
+        final BucketMetadata<?, ?, ?> current = BucketMetadata.get(directory);
+        final List<Integer> appendedShards = current.getAppendedShards();
+
+        // a retry after the metadata file was rewritten
+        if (appendedShards.size() == append && appendedShards.get(append - 1) == numShards) {
+          out.output(metadataFile);
+          return;
+        }
+        Preconditions.checkState(
+            appendedShards.size() == append - 1,
+            "Partition %s was appended to concurrently, expected %s appends, got %s",
+            directory,
+            append - 1,
+            appendedShards.size());
+
+        // write next to the metadata file and replace it, so that it's never partially written
+        final ResourceId tmpFile =
+            directory.resolve(
+                "." + SMBFilenamePolicy.appendDirectory(append) + "-" + metadataFile.getFilename(),
+                StandardResolveOptions.RESOLVE_FILE);
+        RenameBuckets.writeMetadataFile(tmpFile, current.withAppendedShards(numShards));
+        FileSystems.rename(
+            Collections.singletonList(tmpFile), Collections.singletonList(metadataFile));
+        out.output(metadataFile);
+      }
+    }
+  }
 }
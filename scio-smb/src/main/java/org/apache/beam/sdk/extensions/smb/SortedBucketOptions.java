@@ -34,4 +34,87 @@ public interface SortedBucketOptions extends PipelineOptions {
   int getSortedBucketReadDiskBufferMb();
 
   void setSortedBucketReadDiskBufferMb(int readDiskBufferMb);
+
+  @Description(
+      "Number of threads per worker downloading SMB source files to the disk buffer in the "
+          + "background. At most as many files are downloaded ahead of their first read, further "
+          + "files are downloaded when first read.")
+  @Default.Integer(4)
+  int getSortedBucketReadDiskBufferThreads();
+
+  void setSortedBucketReadDiskBufferThreads(int readDiskBufferThreads);
+
+  @Description(
+      "Number of threads per worker used to prefetch and decode SMB source files in the "
+          + "background, ahead of the merge. Requires a positive read buffer size; each file then "
+          + "buffers up to 3 chunks of that size. 0 reads files on the reader thread.")
+  @Default.Integer(0)
+  int getSortedBucketReadPrefetchThreads();
+
+  void setSortedBucketReadPrefetchThreads(int readPrefetchThreads);
+
+  @Description(
+      "Number of records between entries of the sparse key index written next to each SMB bucket "
+          + "file, for formats which support it. Readers starting in the middle of a bucket, e.g. "
+          + "after a split, use it to skip lower keys. 0 writes no index.")
+  @Default.Integer(0)
+  int getSortedBucketWriteIndexInterval();
+
+  void setSortedBucketWriteIndexInterval(int writeIndexInterval);
+
+  @Description(
+      "False positive rate of the Bloom filter of primary keys written next to each SMB bucket "
+          + "file. Inner joins use them to drop records which can't match before merging. "
+          + "0 writes no Bloom filter.")
+  @Default.Double(0.0)
+  double getSortedBucketWriteBloomFilterFpp();
+
+  void setSortedBucketWriteBloomFilterFpp(double writeBloomFilterFpp);
+
+  @Description(
+      "Number of bucket ranges whose SMB bucket files are moved to their final destination by "
+          + "separate workers, with concurrent renames. The metadata file is written once all "
+          + "ranges are moved. 1 moves all files from a single worker.")
+  @Default.Integer(1)
+  int getSortedBucketFinalizeParallelism();
+
+  void setSortedBucketFinalizeParallelism(int finalizeParallelism);
+
+  @Description(
+      "Whether a manifest of the total size of the SMB bucket files is written next to the "
+          + "metadata file. SMB sources estimate their size from it instead of listing and "
+          + "sampling bucket files.")
+  @Default.Boolean(false)
+  boolean getSortedBucketWriteSizeManifest();
+
+  void setSortedBucketWriteSizeManifest(boolean writeSizeManifest);
+
+  @Description(
+      "Number of records per chunk handed over to a separate thread which writes the output of "
+          + "SortedBucketTransform, so that encoding and compression overlap with the merge. Up "
+          + "to 3 chunks are buffered per bucket. Transform functions must not modify records once "
+          + "output. 0 writes records on the merge thread.")
+  @Default.Integer(0)
+  int getSortedBucketTransformWriteBufferSize();
+
+  void setSortedBucketTransformWriteBufferSize(int transformWriteBufferSize);
+
+  @Description(
+      "Whether SMB source files are read by decoding only the key fields of each record while "
+          + "merging, and the full record once its key group is emitted, for formats which support "
+          + "it. Speeds up joins which drop most key groups, e.g. inner joins of sparse inputs.")
+  @Default.Boolean(false)
+  boolean getSortedBucketReadLazyDecode();
+
+  void setSortedBucketReadLazyDecode(boolean readLazyDecode);
+
+  @Description(
+      "Number of values of an SMB source's key group kept in memory when the key group is "
+          + "materialized, e.g. by a SortedBucketSource or a source with a predicate. Further "
+          + "values are spilled to a temp file on local disk, and decoded again when read. 0 keeps "
+          + "all values in memory.")
+  @Default.Integer(0)
+  int getSortedBucketReadKeyGroupSpillThreshold();
+
+  void setSortedBucketReadKeyGroupSpillThreshold(int readKeyGroupSpillThreshold);
 }
@@ -22,6 +22,7 @@ import java.util.Optional;
 import java.util.function.Function;
 import org.apache.beam.sdk.coders.Coder;
 import org.apache.beam.sdk.coders.KvCoder;
+import org.apache.beam.sdk.io.range.ByteKeyRange;
 import org.apache.beam.sdk.transforms.display.DisplayData;
 import org.apache.beam.sdk.values.KV;
 
@@ -42,7 +43,16 @@ public class SortedBucketPrimaryAndSecondaryKeyedSource<K1, K2>
       TargetParallelism targetParallelism,
       String metricsKey) {
     // Initialize with absolute minimal parallelism and allow split() to create parallelism
-    this(keyClassPrimary, keyClassSecondary, sources, targetParallelism, 0, 1, metricsKey, null);
+    this(
+        keyClassPrimary,
+        keyClassSecondary,
+        sources,
+        targetParallelism,
+        0,
+        1,
+        metricsKey,
+        null,
+        ByteKeyRange.ALL_KEYS);
   }
 
   private SortedBucketPrimaryAndSecondaryKeyedSource(
@@ -53,14 +63,16 @@ public class SortedBucketPrimaryAndSecondaryKeyedSource<K1, K2>
       int bucketOffsetId,
       int effectiveParallelism,
       String metricsKey,
-      Long estimatedSizeBytes) {
+      Long estimatedSizeBytes,
+      ByteKeyRange keyRange) {
     super(
         sources,
         targetParallelism,
         bucketOffsetId,
         effectiveParallelism,
         metricsKey,
-        estimatedSizeBytes);
+        estimatedSizeBytes,
+        keyRange);
     this.keyClassPrimary = keyClassPrimary;
     this.keyClassSecondary = keyClassSecondary;
   }
@@ -76,7 +88,23 @@ public class SortedBucketPrimaryAndSecondaryKeyedSource<K1, K2>
         bucketOffsetId + (splitNum * effectiveParallelism),
         totalParallelism,
         metricsKey,
-        estSplitSize);
+        estSplitSize,
+        keyRange);
+  }
+
+  @Override
+  protected SortedBucketSource<KV<K1, K2>> createKeyRangeSource(
+      final ByteKeyRange keyRange, final Long estSplitSize) {
+    return new SortedBucketPrimaryAndSecondaryKeyedSource<>(
+        keyClassPrimary,
+        keyClassSecondary,
+        sources,
+        targetParallelism,
+        bucketOffsetId,
+        effectiveParallelism,
+        metricsKey,
+        estSplitSize,
+        keyRange);
   }
 
   @Override
@@ -21,6 +21,7 @@ import java.util.List;
 import java.util.Optional;
 import java.util.function.Function;
 import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.io.range.ByteKeyRange;
 import org.apache.beam.sdk.transforms.display.DisplayData;
 
 public class SortedBucketPrimaryKeyedSource<K> extends SortedBucketSource<K> {
@@ -35,7 +36,15 @@ public class SortedBucketPrimaryKeyedSource<K> extends SortedBucketSource<K> {
       TargetParallelism targetParallelism,
       String metricsKey) {
     // Initialize with absolute minimal parallelism and allow split() to create parallelism
-    this(keyClassPrimary, sources, targetParallelism, 0, 1, metricsKey, null);
+    this(
+        keyClassPrimary,
+        sources,
+        targetParallelism,
+        0,
+        1,
+        metricsKey,
+        null,
+        ByteKeyRange.ALL_KEYS);
   }
 
   private SortedBucketPrimaryKeyedSource(
@@ -45,14 +54,16 @@ public class SortedBucketPrimaryKeyedSource<K> extends SortedBucketSource<K> {
       int bucketOffsetId,
       int effectiveParallelism,
       String metricsKey,
-      Long estimatedSizeBytes) {
+      Long estimatedSizeBytes,
+      ByteKeyRange keyRange) {
     super(
         sources,
         targetParallelism,
         bucketOffsetId,
         effectiveParallelism,
         metricsKey,
-        estimatedSizeBytes);
+        estimatedSizeBytes,
+        keyRange);
     this.keyClassPrimary = keyClassPrimary;
   }
 
@@ -66,7 +77,22 @@ public class SortedBucketPrimaryKeyedSource<K> extends SortedBucketSource<K> {
         bucketOffsetId + (splitNum * effectiveParallelism),
         totalParallelism,
         metricsKey,
-        estSplitSize);
+        estSplitSize,
+        keyRange);
+  }
+
+  @Override
+  protected SortedBucketSource<K> createKeyRangeSource(
+      final ByteKeyRange keyRange, final Long estSplitSize) {
+    return new SortedBucketPrimaryKeyedSource<>(
+        keyClassPrimary,
+        sources,
+        targetParallelism,
+        bucketOffsetId,
+        effectiveParallelism,
+        metricsKey,
+        estSplitSize,
+        keyRange);
   }
 
   @Override
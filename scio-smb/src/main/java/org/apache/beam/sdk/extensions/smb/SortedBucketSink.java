@@ -17,28 +17,37 @@
 
 package org.apache.beam.sdk.extensions.smb;
 
-import com.github.benmanes.caffeine.cache.Cache;
-import com.github.benmanes.caffeine.cache.Caffeine;
 import com.spotify.scio.transforms.DoFnWithResource;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import org.apache.beam.sdk.Pipeline;
 import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.CoderException;
 import org.apache.beam.sdk.coders.KvCoder;
 import org.apache.beam.sdk.coders.NullableCoder;
+import org.apache.beam.sdk.coders.SerializableCoder;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.coders.VarIntCoder;
 import org.apache.beam.sdk.extensions.smb.BucketShardId.BucketShardIdCoder;
 import org.apache.beam.sdk.extensions.smb.SMBFilenamePolicy.FileAssignment;
 import org.apache.beam.sdk.extensions.smb.SortedBucketSink.WriteResult;
@@ -51,6 +60,8 @@ import org.apache.beam.sdk.io.fs.ResourceId;
 import org.apache.beam.sdk.io.fs.ResourceIdCoder;
 import org.apache.beam.sdk.metrics.Counter;
 import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.sdk.options.PipelineOptions;
+import org.apache.beam.sdk.transforms.Count;
 import org.apache.beam.sdk.transforms.Create;
 import org.apache.beam.sdk.transforms.DoFn;
 import org.apache.beam.sdk.transforms.GroupByKey;
@@ -61,6 +72,13 @@ import org.apache.beam.sdk.transforms.SerializableFunction;
 import org.apache.beam.sdk.transforms.View;
 import org.apache.beam.sdk.transforms.display.DisplayData;
 import org.apache.beam.sdk.transforms.display.DisplayData.Builder;
+import org.apache.beam.sdk.transforms.windowing.AfterWatermark;
+import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
+import org.apache.beam.sdk.transforms.windowing.DefaultTrigger;
+import org.apache.beam.sdk.transforms.windowing.GlobalWindows;
+import org.apache.beam.sdk.transforms.windowing.IntervalWindow;
+import org.apache.beam.sdk.transforms.windowing.Trigger;
+import org.apache.beam.sdk.transforms.windowing.Window;
 import org.apache.beam.sdk.util.CoderUtils;
 import org.apache.beam.sdk.values.KV;
 import org.apache.beam.sdk.values.PCollection;
@@ -72,10 +90,16 @@ import org.apache.beam.sdk.values.POutput;
 import org.apache.beam.sdk.values.PValue;
 import org.apache.beam.sdk.values.TupleTag;
 import org.apache.beam.sdk.values.TupleTagList;
+import org.apache.beam.sdk.values.WindowingStrategy;
+import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.annotations.VisibleForTesting;
 import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.base.Preconditions;
 import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.collect.ImmutableMap;
 import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.collect.Iterables;
-import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.primitives.UnsignedBytes;
+import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.collect.Iterators;
+import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.collect.Lists;
+import org.joda.time.Duration;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -116,6 +140,14 @@ import org.slf4j.LoggerFactory;
  * <p>Each bucket can be further sharded to reduce the impact of hot keys, by specifying {@link
  * BucketMetadata#getNumShards()}.
  *
+ * <h3>Windowed writes</h3>
+ *
+ * <p>If the input is not in the global window, e.g. an unbounded {@link PCollection} windowed into
+ * fixed windows, a complete sorted-bucket partition is written for each window into a subdirectory
+ * of the output directory named after the window. Each partition can be read as a {@link
+ * SortedBucketSource} once its metadata file is written. Windows must fire once, at the end of the
+ * window: triggers with early or late firings, and allowed lateness, are not supported.
+ *
  * @param <K1> the type of the primary keys that values in a bucket are sorted with
  * @param <K2> the type of the secondary keys that values in a bucket are sorted with, Void if not
  *     secondary sorted
@@ -167,10 +199,7 @@ public class SortedBucketSink<K1, K2, V> extends PTransform<PCollection<V>, Writ
 
   @Override
   public final WriteResult expand(PCollection<V> input) {
-    // @Todo: should we allow windowed writes?
-    Preconditions.checkArgument(
-        input.isBounded() == IsBounded.BOUNDED,
-        "SortedBucketSink cannot be applied to a non-bounded PCollection");
+    checkWindowing(input);
     final Coder<V> inputCoder = input.getCoder();
 
     final PCollection<KV<BucketShardId, V>> bucketedInput =
@@ -189,6 +218,28 @@ public class SortedBucketSink<K1, K2, V> extends PTransform<PCollection<V>, Writ
         tempDirectory);
   }
 
+  private static void checkWindowing(PCollection<?> input) {
+    final WindowingStrategy<?, ?> windowingStrategy = input.getWindowingStrategy();
+    if (windowingStrategy.getWindowFn() instanceof GlobalWindows) {
+      Preconditions.checkArgument(
+          input.isBounded() == IsBounded.BOUNDED,
+          "SortedBucketSink cannot be applied to a non-bounded PCollection in the global window");
+    } else {
+      // late panes would land in partitions that are already finalized
+      Preconditions.checkArgument(
+          windowingStrategy.getAllowedLateness().equals(Duration.ZERO),
+          "SortedBucketSink does not support allowed lateness in windowed writes, got %s",
+          windowingStrategy.getAllowedLateness());
+      // buckets are grouped separately, so their panes don't line up into partitions
+      final Trigger trigger = windowingStrategy.getTrigger();
+      Preconditions.checkArgument(
+          trigger instanceof DefaultTrigger || trigger instanceof AfterWatermark.FromEndOfWindow,
+          "SortedBucketSink only supports triggers firing once at the end of the window in "
+              + "windowed writes, got %s",
+          trigger);
+    }
+  }
+
   public static <K1, K2, V> WriteResult sink(
       PCollection<KV<BucketShardId, V>> bucketedInput,
       String transformName,
@@ -198,23 +249,32 @@ public class SortedBucketSink<K1, K2, V> extends PTransform<PCollection<V>, Writ
       FileOperations<V> fileOperations,
       BucketMetadata<K1, K2, V> bucketMetadata,
       ResourceId tempDirectory) {
-    return bucketedInput
-        .setCoder(KvCoder.of(BucketShardIdCoder.of(), valueCoder))
-        .apply("GroupByKey", GroupByKey.create())
-        .apply(
-            "SortBucketShards",
-            ParDo.of(
-                new SortBucketShardDoFn<>(
-                    transformName,
-                    BufferedExternalSorter.options()
-                        .withExternalSorterType(ExternalSorter.Options.SorterType.NATIVE)
-                        .withMemoryMB(sorterMemoryMb),
-                    bucketMetadata,
-                    valueCoder)))
-        .apply(
-            "WriteOperation",
-            new WriteOperation<>(
-                filenamePolicy, bucketMetadata, fileOperations, tempDirectory, valueCoder));
+    final PCollection<KV<BucketShardId, Iterable<byte[]>>> sortedBuckets =
+        bucketedInput
+            .setCoder(KvCoder.of(BucketShardIdCoder.of(), valueCoder))
+            .apply("GroupByKey", GroupByKey.create())
+            .apply(
+                "SortBucketShards",
+                ParDo.of(
+                    new SortBucketShardDoFn<>(
+                        transformName,
+                        BufferedExternalSorter.options()
+                            .withExternalSorterType(ExternalSorter.Options.SorterType.NATIVE)
+                            .withMemoryMB(sorterMemoryMb),
+                        bucketMetadata,
+                        valueCoder)));
+
+    if (bucketedInput.getWindowingStrategy().getWindowFn() instanceof GlobalWindows) {
+      return sortedBuckets.apply(
+          "WriteOperation",
+          new WriteOperation<>(
+              filenamePolicy, bucketMetadata, fileOperations, tempDirectory, valueCoder));
+    } else {
+      return sortedBuckets.apply(
+          "WindowedWriteOperation",
+          new WindowedWriteOperation<>(
+              filenamePolicy, bucketMetadata, fileOperations, tempDirectory, valueCoder));
+    }
   }
 
   /** Extract bucket and shard id for grouping */
@@ -270,9 +330,8 @@ public class SortedBucketSink<K1, K2, V> extends PTransform<PCollection<V>, Writ
 
     static <K1> BucketShardId getBucketShardId(
         K1 key, BucketMetadata<K1, ?, ?> metadata, int shardId) {
-      final byte[] keyBytes = metadata.encodeKeyBytes(key, metadata.getKeyCoder());
-      return (keyBytes != null)
-          ? BucketShardId.of(metadata.getBucketId(keyBytes), shardId)
+      return (key != null)
+          ? BucketShardId.of(metadata.getBucketIdOfKey(key), shardId)
           : BucketShardId.ofNullKey();
     }
 
@@ -292,14 +351,12 @@ public class SortedBucketSink<K1, K2, V> extends PTransform<PCollection<V>, Writ
 
   /** Extract bucket and shard id for grouping, and key bytes for sorting. */
   private static class ExtractKeysWithCache<K1, V, InputT>
-      extends DoFnWithResource<InputT, KV<BucketShardId, V>, Cache<K1, Integer>> {
+      extends DoFnWithResource<InputT, KV<BucketShardId, V>, BucketIdCache<K1>> {
     private final BucketMetadata<K1, ?, V> bucketMetadata;
     private final int cacheSize;
     private transient int shardId;
     private final SerializableFunction<InputT, K1> primaryKeyFn;
     private final SerializableFunction<InputT, V> valueFn;
-    private Counter cacheHits;
-    private Counter cacheMisses;
 
     ExtractKeysWithCache(
         BucketMetadata<K1, ?, V> bucketMetadata,
@@ -310,18 +367,17 @@ public class SortedBucketSink<K1, K2, V> extends PTransform<PCollection<V>, Writ
       this.cacheSize = cacheSize;
       this.primaryKeyFn = primaryKeyFn;
       this.valueFn = valueFn;
-      cacheHits = Metrics.counter(SortedBucketSink.class, "cacheHits");
-      cacheMisses = Metrics.counter(SortedBucketSink.class, "cacheMisses");
     }
 
     @Override
     public ResourceType getResourceType() {
-      return ResourceType.PER_INSTANCE;
+      // caches aren't thread-safe
+      return ResourceType.PER_CLONE;
     }
 
     @Override
-    public Cache<K1, Integer> createResource() {
-      return Caffeine.newBuilder().maximumSize(cacheSize).build();
+    public BucketIdCache<K1> createResource() {
+      return BucketIdCache.of(bucketMetadata.getKeyClass(), cacheSize);
     }
 
     @StartBundle
@@ -334,31 +390,20 @@ public class SortedBucketSink<K1, K2, V> extends PTransform<PCollection<V>, Writ
     public void processElement(@Element InputT record, OutputReceiver<KV<BucketShardId, V>> out) {
       final K1 primaryKey = primaryKeyFn.apply(record);
 
-      BucketShardId bucketShardId;
-      if (primaryKey == null) {
-        bucketShardId = BucketShardId.ofNullKey();
-      } else {
-        bucketShardId =
-            Optional.ofNullable(getResource().getIfPresent(primaryKey))
-                .map(
-                    bucketId -> {
-                      cacheHits.inc();
-                      return BucketShardId.of(bucketId, shardId);
-                    })
-                .orElseGet(
-                    () -> {
-                      cacheMisses.inc();
-                      final BucketShardId bId =
-                          ExtractBucketAndShardDoFn.getBucketShardId(
-                              primaryKey, bucketMetadata, shardId);
-                      getResource().put(primaryKey, bId.getBucketId());
-                      return bId;
-                    });
-      }
-
+      final BucketShardId bucketShardId =
+          primaryKey == null
+              ? BucketShardId.ofNullKey()
+              : BucketShardId.of(
+                  getResource().getBucketId(primaryKey, bucketMetadata::getBucketIdOfKey),
+                  shardId);
       out.output(KV.of(bucketShardId, valueFn.apply(record)));
     }
 
+    @FinishBundle
+    public void finishBundle() {
+      getResource().flush();
+    }
+
     @Override
     public void populateDisplayData(Builder builder) {
       super.populateDisplayData(builder);
@@ -367,12 +412,36 @@ public class SortedBucketSink<K1, K2, V> extends PTransform<PCollection<V>, Writ
     }
   }
 
+  /**
+   * Encodes primary and secondary key bytes into a single key, which sorts in unsigned
+   * lexicographical order like the primary keys, then like the secondary keys. 0x00 bytes of the
+   * primary key are escaped as 0x00 0xFF, and it is terminated by 0x00 0x01, so that a primary
+   * key sorts before any longer key it is a prefix of.
+   */
+  @VisibleForTesting
+  static byte[] compositeSortKey(byte[] primary, byte[] secondary) {
+    int numZeros = 0;
+    for (byte b : primary) {
+      if (b == 0) numZeros++;
+    }
+
+    final byte[] sortKey = new byte[primary.length + numZeros + 2 + secondary.length];
+    int pos = 0;
+    for (byte b : primary) {
+      sortKey[pos++] = b;
+      if (b == 0) sortKey[pos++] = (byte) 0xff;
+    }
+    sortKey[pos++] = 0x00;
+    sortKey[pos++] = 0x01;
+    System.arraycopy(secondary, 0, sortKey, pos, secondary.length);
+    return sortKey;
+  }
+
   private static class SortBucketShardDoFn<K1, K2, V>
       extends DoFn<KV<BucketShardId, Iterable<V>>, KV<BucketShardId, Iterable<byte[]>>> {
     private final BufferedExternalSorter.Options sorterOptions;
     private final BucketMetadata<K1, K2, V> bucketMetadata;
     final Coder<V> valueCoder;
-    private final Comparator<byte[]> bytesComparator = UnsignedBytes.lexicographicalComparator();
     private final Counter bucketsInitiatedSorting;
     private final Counter bucketsCompletedSorting;
 
@@ -395,81 +464,40 @@ public class SortedBucketSink<K1, K2, V> extends PTransform<PCollection<V>, Writ
         @Element KV<BucketShardId, Iterable<V>> record,
         OutputReceiver<KV<BucketShardId, Iterable<byte[]>>> out) {
       final BucketShardId bucketShardId = record.getKey();
-      final BufferedExternalSorter primarySorter = BufferedExternalSorter.create(sorterOptions);
+      final BufferedExternalSorter sorter = BufferedExternalSorter.create(sorterOptions);
+      final boolean hasSecondaryKey = bucketMetadata.hasSecondaryKey();
 
       try {
         bucketsInitiatedSorting.inc();
-        // sort by primary key
+        // sort by primary key, or by primary and secondary key in a single pass
         for (V value : record.getValue()) {
           // TODO is there some better way to avoid this? it's either shuffle or serde here
           final byte[] valueBytes = CoderUtils.encodeToByteArray(valueCoder, value);
           final byte[] keyBytesPrimary = bucketMetadata.getKeyBytesPrimary(value);
-          primarySorter.add(
-              KV.of(
-                  keyBytesPrimary == null
-                      ? ExtractBucketAndShardDoFn.NULL_SORT_KEY
-                      : keyBytesPrimary,
-                  valueBytes));
-        }
-        final Iterable<KV<byte[], byte[]>> primarySorted = primarySorter.sort();
-
-        if (!bucketMetadata.hasSecondaryKey()) {
-          // no secondary sort, so discard key and output
-          out.output(KV.of(bucketShardId, Iterables.transform(primarySorted, kv -> kv.getValue())));
-        } else {
-          // secondary key sort
-          byte[] curKey = null;
-          ArrayList<byte[]> curKeyValues = new ArrayList<>();
-          Iterable<byte[]> output = new ArrayList<>();
-
-          // accumulate each chunk of values associated with a primary key into curKeyValues,
-          // sort it by secondary key, and accumulate the sorted values into `out`
-          for (KV<byte[], byte[]> kv : primarySorted) {
-            byte[] key = kv.getKey();
-            if (curKey == null) curKey = key;
-            if (bytesComparator.compare(curKey, key) == 0) {
-              // same as previously seen key, accumulate value
-              curKeyValues.add(kv.getValue());
-            } else {
-              // this key is new, sort and prepare this chunk of values for output
-              output = Iterables.concat(output, secondarySort(curKeyValues));
-
-              // then accumulate the new value and make this key the current key
-              curKeyValues = new ArrayList<>();
-              curKeyValues.add(kv.getValue());
-              curKey = key;
-            }
-          }
-          if (!curKeyValues.isEmpty()) {
-            output = Iterables.concat(output, secondarySort(curKeyValues));
+          final byte[] sortKeyPrimary =
+              keyBytesPrimary == null ? ExtractBucketAndShardDoFn.NULL_SORT_KEY : keyBytesPrimary;
+          final byte[] sortKey;
+          if (hasSecondaryKey) {
+            final byte[] keyBytesSecondary = bucketMetadata.getKeyBytesSecondary(value);
+            sortKey =
+                compositeSortKey(
+                    sortKeyPrimary,
+                    keyBytesSecondary == null
+                        ? ExtractBucketAndShardDoFn.NULL_SORT_KEY
+                        : keyBytesSecondary);
+          } else {
+            sortKey = sortKeyPrimary;
           }
-          out.output(KV.of(bucketShardId, output));
+          sorter.add(KV.of(sortKey, valueBytes));
         }
+
+        // discard key and output
+        out.output(KV.of(bucketShardId, Iterables.transform(sorter.sort(), kv -> kv.getValue())));
         bucketsCompletedSorting.inc();
       } catch (IOException e) {
         throw new RuntimeException("Exception sorting buckets", e);
       }
     }
-
-    private Iterable<byte[]> secondarySort(List<byte[]> curKeyValues) throws IOException {
-      final BufferedExternalSorter secondarySorter = BufferedExternalSorter.create(sorterOptions);
-      curKeyValues.forEach(
-          valueBytes -> {
-            try {
-              V value = CoderUtils.decodeFromByteArray(valueCoder, valueBytes);
-              final byte[] keyBytesSecondary = bucketMetadata.getKeyBytesSecondary(value);
-              secondarySorter.add(
-                  KV.of(
-                      keyBytesSecondary != null
-                          ? keyBytesSecondary
-                          : ExtractBucketAndShardDoFn.NULL_SORT_KEY,
-                      valueBytes));
-            } catch (IOException e) {
-              throw new RuntimeException("Exception sorting buckets", e);
-            }
-          });
-      return Iterables.transform(secondarySorter.sort(), kv2 -> kv2.getValue());
-    }
   }
 
   /**
@@ -500,6 +528,14 @@ public class SortedBucketSink<K1, K2, V> extends PTransform<PCollection<V>, Writ
               .setCoder(KvCoder.of(BucketShardIdCoder.of(), ResourceIdCoder.of())));
     }
 
+    PCollection<ResourceId> getWrittenMetadata() {
+      return writtenMetadata;
+    }
+
+    PCollection<KV<BucketShardId, ResourceId>> getWrittenFiles() {
+      return writtenFiles;
+    }
+
     @Override
     public Pipeline getPipeline() {
       return pipeline;
@@ -564,6 +600,186 @@ public class SortedBucketSink<K1, K2, V> extends PTransform<PCollection<V>, Writ
     }
   }
 
+  /**
+   * Writes a complete sorted-bucket partition, bucket files and metadata, for each window into a
+   * subdirectory of the output directory, named after the window, e.g. {@code
+   * window-20230101T000000Z-20230101T010000Z/}. Windows fire once, since early and late firings
+   * are rejected.
+   *
+   * <p>Partitions are finalized once the watermark passes the end of their window, when all their
+   * bucket files are written.
+   */
+  static class WindowedWriteOperation<V>
+      extends PTransform<PCollection<KV<BucketShardId, Iterable<byte[]>>>, WriteResult> {
+    private static final DateTimeFormatter WINDOW_FORMAT =
+        ISODateTimeFormat.basicDateTimeNoMillis().withZoneUTC();
+
+    private final SMBFilenamePolicy filenamePolicy;
+    private final BucketMetadata<?, ?, V> bucketMetadata;
+    private final FileOperations<V> fileOperations;
+    private final ResourceId tempDirectory;
+    private final Coder<V> valueCoder;
+
+    WindowedWriteOperation(
+        SMBFilenamePolicy filenamePolicy,
+        BucketMetadata<?, ?, V> bucketMetadata,
+        FileOperations<V> fileOperations,
+        ResourceId tempDirectory,
+        Coder<V> valueCoder) {
+      this.filenamePolicy = filenamePolicy;
+      this.bucketMetadata = bucketMetadata;
+      this.fileOperations = fileOperations;
+      this.tempDirectory = tempDirectory;
+      this.valueCoder = valueCoder;
+    }
+
+    static String partitionOf(BoundedWindow window) {
+      return window instanceof IntervalWindow
+          ? String.format(
+              "window-%s-%s",
+              WINDOW_FORMAT.print(((IntervalWindow) window).start()),
+              WINDOW_FORMAT.print(((IntervalWindow) window).end()))
+          : String.format("window-%s", WINDOW_FORMAT.print(window.maxTimestamp()));
+    }
+
+    @Override
+    public WriteResult expand(PCollection<KV<BucketShardId, Iterable<byte[]>>> input) {
+      final TupleTag<KV<BucketShardId, ResourceId>> bucketsTag = new TupleTag<>("writtenBuckets");
+      final TupleTag<ResourceId> metadataTag = new TupleTag<>("writtenMetadata");
+
+      return WriteResult.fromTuple(
+          input
+              .apply(
+                  "WriteTempFiles",
+                  ParDo.of(
+                      new WritePartitionTempFiles<>(
+                          filenamePolicy,
+                          bucketMetadata,
+                          fileOperations,
+                          tempDirectory,
+                          valueCoder)))
+              .setCoder(
+                  KvCoder.of(
+                      StringUtf8Coder.of(),
+                      KvCoder.of(BucketShardIdCoder.of(), ResourceIdCoder.of())))
+              // all sorted buckets are written once the watermark passes the end of their window,
+              // so each partition is grouped exactly once
+              .apply(
+                  "WaitForWindow",
+                  Window.<KV<String, KV<BucketShardId, ResourceId>>>configure()
+                      .triggering(AfterWatermark.pastEndOfWindow())
+                      .withAllowedLateness(Duration.ZERO)
+                      .discardingFiredPanes())
+              .apply("GroupByPartition", GroupByKey.create())
+              .apply(
+                  "FinalizePartitions",
+                  ParDo.of(
+                          new FinalizePartition<>(
+                              filenamePolicy,
+                              bucketMetadata,
+                              fileOperations,
+                              tempDirectory,
+                              bucketsTag,
+                              metadataTag))
+                      .withOutputTags(bucketsTag, TupleTagList.of(metadataTag))));
+    }
+
+    static FileAssignment tempFilesOf(
+        SMBFilenamePolicy filenamePolicy, ResourceId tempDirectory, String partition) {
+      return filenamePolicy.forSubdirectory(partition).forTempFiles(tempDirectory);
+    }
+
+    /** Writes bucket files to the temporary location of their window's partition. */
+    private static class WritePartitionTempFiles<V>
+        extends DoFn<
+            KV<BucketShardId, Iterable<byte[]>>, KV<String, KV<BucketShardId, ResourceId>>> {
+      private final SMBFilenamePolicy filenamePolicy;
+      private final BucketMetadata<?, ?, V> bucketMetadata;
+      private final FileOperations<V> fileOperations;
+      private final ResourceId tempDirectory;
+      private final Coder<V> valueCoder;
+
+      WritePartitionTempFiles(
+          SMBFilenamePolicy filenamePolicy,
+          BucketMetadata<?, ?, V> bucketMetadata,
+          FileOperations<V> fileOperations,
+          ResourceId tempDirectory,
+          Coder<V> valueCoder) {
+        this.filenamePolicy = filenamePolicy;
+        this.bucketMetadata = bucketMetadata;
+        this.fileOperations = fileOperations;
+        this.tempDirectory = tempDirectory;
+        this.valueCoder = valueCoder;
+      }
+
+      @ProcessElement
+      public void processElement(
+          @Element KV<BucketShardId, Iterable<byte[]>> element,
+          BoundedWindow window,
+          OutputReceiver<KV<String, KV<BucketShardId, ResourceId>>> out,
+          PipelineOptions options)
+          throws IOException {
+        final String partition = partitionOf(window);
+        final ResourceId tmpFile =
+            WriteTempFiles.writeTempFile(
+                tempFilesOf(filenamePolicy, tempDirectory, partition),
+                bucketMetadata,
+                fileOperations,
+                element.getKey(),
+                WriteTempFiles.decode(valueCoder, element.getValue()),
+                options.as(SortedBucketOptions.class));
+        out.output(KV.of(partition, KV.of(element.getKey(), tmpFile)));
+      }
+    }
+
+    /** Moves the bucket files of a partition and writes its metadata file. */
+    private static class FinalizePartition<V>
+        extends DoFn<
+            KV<String, Iterable<KV<BucketShardId, ResourceId>>>, KV<BucketShardId, ResourceId>> {
+      private final SMBFilenamePolicy filenamePolicy;
+      private final BucketMetadata<?, ?, V> bucketMetadata;
+      private final FileOperations<V> fileOperations;
+      private final ResourceId tempDirectory;
+      private final TupleTag<KV<BucketShardId, ResourceId>> bucketsTag;
+      private final TupleTag<ResourceId> metadataTag;
+
+      FinalizePartition(
+          SMBFilenamePolicy filenamePolicy,
+          BucketMetadata<?, ?, V> bucketMetadata,
+          FileOperations<V> fileOperations,
+          ResourceId tempDirectory,
+          TupleTag<KV<BucketShardId, ResourceId>> bucketsTag,
+          TupleTag<ResourceId> metadataTag) {
+        this.filenamePolicy = filenamePolicy;
+        this.bucketMetadata = bucketMetadata;
+        this.fileOperations = fileOperations;
+        this.tempDirectory = tempDirectory;
+        this.bucketsTag = bucketsTag;
+        this.metadataTag = metadataTag;
+      }
+
+      @ProcessElement
+      public void processElement(
+          @Element KV<String, Iterable<KV<BucketShardId, ResourceId>>> element,
+          MultiOutputReceiver out)
+          throws IOException {
+        final String partition = element.getKey();
+        final Map<BucketShardId, ResourceId> writtenTmpBuckets = new HashMap<>();
+        element.getValue().forEach(kv -> writtenTmpBuckets.put(kv.getKey(), kv.getValue()));
+
+        RenameBuckets.moveFiles(
+            tempFilesOf(filenamePolicy, tempDirectory, partition).getDirectory(),
+            bucketMetadata,
+            writtenTmpBuckets,
+            filenamePolicy.forSubdirectory(partition).forDestination(),
+            fileOperations,
+            bucketDst -> out.get(bucketsTag).output(bucketDst),
+            metadataDst -> out.get(metadataTag).output(metadataDst),
+            true);
+      }
+    }
+  }
+
   /** Writes metadata and bucket files to temporary location. */
   static class WriteTempFiles<V>
       extends DoFn<KV<BucketShardId, Iterable<byte[]>>, KV<BucketShardId, ResourceId>> {
@@ -587,27 +803,85 @@ public class SortedBucketSink<K1, K2, V> extends PTransform<PCollection<V>, Writ
     @ProcessElement
     public void processElement(
         @Element KV<BucketShardId, Iterable<byte[]>> element,
-        OutputReceiver<KV<BucketShardId, ResourceId>> out)
+        OutputReceiver<KV<BucketShardId, ResourceId>> out,
+        PipelineOptions options)
         throws IOException {
       final BucketShardId bucketShardId = element.getKey();
-      final Iterable<byte[]> records = element.getValue();
+      final ResourceId tmpFile =
+          writeTempFile(
+              fileAssignment,
+              bucketMetadata,
+              fileOperations,
+              bucketShardId,
+              decode(valueCoder, element.getValue()),
+              options.as(SortedBucketOptions.class));
+      out.output(KV.of(bucketShardId, tmpFile));
+    }
+
+    static <V> Iterator<V> decode(Coder<V> valueCoder, Iterable<byte[]> records) {
+      return Iterators.transform(
+          records.iterator(),
+          value -> {
+            try {
+              return CoderUtils.decodeFromByteArray(valueCoder, value);
+            } catch (CoderException e) {
+              throw new UncheckedIOException(e);
+            }
+          });
+    }
+
+    /** Writes sorted records of a bucket shard, and its sidecars, to a temp file. */
+    static <V> ResourceId writeTempFile(
+        FileAssignment fileAssignment,
+        BucketMetadata bucketMetadata,
+        FileOperations<V> fileOperations,
+        BucketShardId bucketShardId,
+        Iterator<V> records,
+        SortedBucketOptions opts)
+        throws IOException {
       final ResourceId tmpFile = fileAssignment.forBucket(bucketShardId, bucketMetadata);
 
+      final int indexInterval = opts.getSortedBucketWriteIndexInterval();
+      final BucketIndex.Builder index =
+          indexInterval > 0 && fileOperations.supportsIndex() && !bucketShardId.isNullKeyBucket()
+              ? new BucketIndex.Builder(indexInterval)
+              : null;
+      final double bloomFilterFpp = opts.getSortedBucketWriteBloomFilterFpp();
+      final BucketBloomFilter.Builder bloomFilter =
+          bloomFilterFpp > 0 && !bucketShardId.isNullKeyBucket()
+              ? new BucketBloomFilter.Builder(bucketMetadata.getHashType(), bloomFilterFpp)
+              : null;
+
       LOG.info("Writing sorted-bucket {} to temporary file {}", bucketShardId, tmpFile);
       try (final FileOperations.Writer<V> writer = fileOperations.createWriter(tmpFile)) {
-        records.forEach(
-            value -> {
-              try {
-                writer.write(CoderUtils.decodeFromByteArray(valueCoder, value));
-              } catch (IOException e) {
-                cleanupTempFiles(e, Collections.singleton(tmpFile));
-                throw new RuntimeException(
-                    "Failed to write sorted-bucket file " + bucketShardId, e);
-              }
-            });
+        while (records.hasNext()) {
+          try {
+            final V record = records.next();
+            final byte[] key =
+                index != null || bloomFilter != null
+                    ? bucketMetadata.getKeyBytesPrimary(record)
+                    : null;
+            if (index != null && index.shouldIndex(key)) {
+              index.add(key, writer.sync());
+            }
+            if (bloomFilter != null) {
+              bloomFilter.add(key);
+            }
+            writer.write(record);
+          } catch (IOException | UncheckedIOException e) {
+            cleanupTempFiles(e, Collections.singleton(tmpFile));
+            throw new RuntimeException("Failed to write sorted-bucket file " + bucketShardId, e);
+          }
+        }
       }
 
-      out.output(KV.of(bucketShardId, tmpFile));
+      if (index != null && !index.isEmpty()) {
+        index.build().write(tmpFile);
+      }
+      if (bloomFilter != null && !bloomFilter.isEmpty()) {
+        bloomFilter.build().write(tmpFile);
+      }
+      return tmpFile;
     }
 
     @Override
@@ -646,6 +920,20 @@ public class SortedBucketSink<K1, K2, V> extends PTransform<PCollection<V>, Writ
       final TupleTag<KV<BucketShardId, ResourceId>> bucketsTag = new TupleTag<>("writtenBuckets");
       final TupleTag<ResourceId> metadataTag = new TupleTag<>("writtenMetadata");
 
+      final SortedBucketOptions opts =
+          input.getPipeline().getOptions().as(SortedBucketOptions.class);
+      final int numPartitions = opts.getSortedBucketFinalizeParallelism();
+      final boolean writeSizeManifest = opts.getSortedBucketWriteSizeManifest();
+      if (numPartitions > 1) {
+        return expandPartitioned(
+            input.getPipeline(),
+            writtenBuckets,
+            bucketsTag,
+            metadataTag,
+            numPartitions,
+            writeSizeManifest);
+      }
+
       return input
           .getPipeline()
           .apply("InitializeTmpMove", Create.of(0))
@@ -667,13 +955,83 @@ public class SortedBucketSink<K1, K2, V> extends PTransform<PCollection<V>, Writ
                               fileOperations,
                               bucketDst -> c.output(bucketsTag, bucketDst),
                               metadataDst -> c.output(metadataTag, metadataDst),
-                              true);
+                              true,
+                              writeSizeManifest);
                         }
                       })
                   .withSideInputs(writtenBuckets)
                   .withOutputTags(bucketsTag, TupleTagList.of(metadataTag)));
     }
 
+    /**
+     * Moves bucket files by bucket range, each range on its own worker, then writes the metadata
+     * file once all are moved. As with a single worker, a failed attempt can be retried since
+     * moves are idempotent, and the output isn't readable until its metadata file is written.
+     */
+    private PCollectionTuple expandPartitioned(
+        Pipeline pipeline,
+        PCollectionView<Map<BucketShardId, ResourceId>> writtenBuckets,
+        TupleTag<KV<BucketShardId, ResourceId>> bucketsTag,
+        TupleTag<ResourceId> metadataTag,
+        int numPartitions,
+        boolean writeSizeManifest) {
+      final int numBuckets = bucketMetadata.getNumBuckets();
+      // all buckets and shards, and the null-key bucket
+      final long numBucketFiles = (long) numBuckets * bucketMetadata.getNumShards() + 1;
+
+      final PCollection<KV<BucketShardId, ResourceId>> buckets =
+          pipeline
+              .apply("InitializeTmpMove", Create.of(0))
+              .apply(
+                  "PlanMoves",
+                  ParDo.of(
+                          new DoFn<Integer, KV<Integer, BucketMove>>() {
+                            @ProcessElement
+                            public void processElement(ProcessContext c) throws IOException {
+                              for (BucketMove move :
+                                  planMoves(
+                                      tempDirectory,
+                                      bucketMetadata,
+                                      c.sideInput(writtenBuckets),
+                                      fileAssignment,
+                                      true)) {
+                                c.output(KV.of(move.partition(numBuckets, numPartitions), move));
+                              }
+                            }
+                          })
+                      .withSideInputs(writtenBuckets))
+              .setCoder(KvCoder.of(VarIntCoder.of(), SerializableCoder.of(BucketMove.class)))
+              .apply("GroupByBucketRange", GroupByKey.create())
+              .apply("MoveBuckets", ParDo.of(new MoveBucketsFn<>(fileOperations)))
+              .setCoder(KvCoder.of(BucketShardIdCoder.of(), ResourceIdCoder.of()));
+
+      final PCollection<ResourceId> metadata =
+          buckets
+              .apply("CountMovedBuckets", Count.globally())
+              .apply(
+                  "WriteMetadata",
+                  ParDo.of(
+                      new DoFn<Long, ResourceId>() {
+                        @ProcessElement
+                        public void processElement(
+                            @Element Long numMoved, OutputReceiver<ResourceId> out)
+                            throws IOException {
+                          Preconditions.checkState(
+                              numMoved == numBucketFiles,
+                              "Expected %s bucket files to be moved, got %s",
+                              numBucketFiles,
+                              numMoved);
+                          writeSizeManifest(fileAssignment, bucketMetadata, writeSizeManifest);
+                          out.output(
+                              writeMetadataFile(fileAssignment.forMetadata(), bucketMetadata));
+                          deleteTempFiles(tempDirectory);
+                        }
+                      }))
+              .setCoder(ResourceIdCoder.of());
+
+      return PCollectionTuple.of(bucketsTag, buckets).and(metadataTag, metadata);
+    }
+
     static void moveFiles(
         ResourceId tempDirectory,
         BucketMetadata<?, ?, ?> bucketMetadata,
@@ -684,10 +1042,73 @@ public class SortedBucketSink<K1, K2, V> extends PTransform<PCollection<V>, Writ
         Consumer<ResourceId> metadataDstConsumer,
         boolean writeNullKeyBucket)
         throws IOException {
-      // Transfer bucket files once metadata has been written
-      final List<ResourceId> srcFiles = new ArrayList<>();
-      final List<ResourceId> dstFiles = new ArrayList<>();
-      final List<KV<BucketShardId, ResourceId>> bucketDsts = new ArrayList<>();
+      moveFiles(
+          tempDirectory,
+          bucketMetadata,
+          writtenTmpBuckets,
+          dstFileAssignment,
+          fileOperations,
+          bucketDstConsumer,
+          metadataDstConsumer,
+          writeNullKeyBucket,
+          false);
+    }
+
+    static void moveFiles(
+        ResourceId tempDirectory,
+        BucketMetadata<?, ?, ?> bucketMetadata,
+        Map<BucketShardId, ResourceId> writtenTmpBuckets,
+        FileAssignment dstFileAssignment,
+        FileOperations fileOperations,
+        Consumer<KV<BucketShardId, ResourceId>> bucketDstConsumer,
+        Consumer<ResourceId> metadataDstConsumer,
+        boolean writeNullKeyBucket,
+        boolean writeSizeManifest)
+        throws IOException {
+      final List<BucketMove> moves =
+          planMoves(
+              tempDirectory,
+              bucketMetadata,
+              writtenTmpBuckets,
+              dstFileAssignment,
+              writeNullKeyBucket);
+
+      LOG.info("Moving {} bucket files into {}", moves.size(), dstFileAssignment.getDirectory());
+      moveBuckets(moves, fileOperations);
+      moves.forEach(move -> bucketDstConsumer.accept(move.getBucketDst()));
+      writeSizeManifest(dstFileAssignment, bucketMetadata, writeSizeManifest);
+
+      // Write metadata file last
+      final ResourceId metadataDst =
+          writeMetadataFile(dstFileAssignment.forMetadata(), bucketMetadata);
+      metadataDstConsumer.accept(metadataDst);
+
+      deleteTempFiles(tempDirectory);
+    }
+
+    static List<BucketMove> planMoves(
+        ResourceId tempDirectory,
+        BucketMetadata<?, ?, ?> bucketMetadata,
+        Map<BucketShardId, ResourceId> writtenTmpBuckets,
+        FileAssignment dstFileAssignment,
+        boolean writeNullKeyBucket)
+        throws IOException {
+      final List<BucketMove> moves = new ArrayList<>();
+
+      // Index and Bloom filter sidecars, if any, are moved along with their bucket files
+      final Set<ResourceId> tmpSidecarFiles = new HashSet<>();
+      final List<MatchResult> sidecarMatchResults =
+          FileSystems.match(
+              Arrays.asList(
+                  tempDirectory.toString() + "*" + BucketIndex.INDEX_SUFFIX,
+                  tempDirectory.toString() + "*" + BucketBloomFilter.BLOOM_FILTER_SUFFIX));
+      for (MatchResult result : sidecarMatchResults) {
+        if (result.status() == MatchResult.Status.OK) {
+          for (MatchResult.Metadata metadata : result.metadata()) {
+            tmpSidecarFiles.add(metadata.resourceId());
+          }
+        }
+      }
 
       final Set<BucketShardId> allBucketShardIds = bucketMetadata.getAllBucketShardIds();
       if (writeNullKeyBucket) {
@@ -696,19 +1117,58 @@ public class SortedBucketSink<K1, K2, V> extends PTransform<PCollection<V>, Writ
 
       for (BucketShardId id : allBucketShardIds) {
         final ResourceId finalDst = dstFileAssignment.forBucket(id, bucketMetadata);
+        final List<ResourceId> srcFiles = new ArrayList<>();
+        final List<ResourceId> dstFiles = new ArrayList<>();
+        final ResourceId dstIndexFile = BucketIndex.indexFor(finalDst);
+        final ResourceId dstBloomFilterFile = BucketBloomFilter.bloomFilterFor(finalDst);
 
-        // If bucket hasn't been written, write empty file
-        if (!writtenTmpBuckets.containsKey(id)) {
-          fileOperations.createWriter(finalDst).close();
-          bucketDstConsumer.accept(KV.of(id, finalDst));
-        } else {
+        // If bucket hasn't been written, an empty file is written instead
+        if (writtenTmpBuckets.containsKey(id)) {
           srcFiles.add(writtenTmpBuckets.get(id));
           dstFiles.add(finalDst);
-          bucketDsts.add(KV.of(id, finalDst));
+
+          final ResourceId tmpIndexFile = BucketIndex.indexFor(writtenTmpBuckets.get(id));
+          if (tmpSidecarFiles.contains(tmpIndexFile)) {
+            srcFiles.add(tmpIndexFile);
+            dstFiles.add(dstIndexFile);
+          }
+          final ResourceId tmpBloomFilterFile =
+              BucketBloomFilter.bloomFilterFor(writtenTmpBuckets.get(id));
+          if (tmpSidecarFiles.contains(tmpBloomFilterFile)) {
+            srcFiles.add(tmpBloomFilterFile);
+            dstFiles.add(dstBloomFilterFile);
+          }
+        }
+
+        // sidecars left by a previous write to the same files don't describe the new ones
+        final List<ResourceId> staleFiles = new ArrayList<>();
+        for (ResourceId dstSidecarFile : Arrays.asList(dstIndexFile, dstBloomFilterFile)) {
+          if (!dstFiles.contains(dstSidecarFile)) {
+            staleFiles.add(dstSidecarFile);
+          }
+        }
+        moves.add(new BucketMove(id, finalDst, srcFiles, dstFiles, staleFiles));
+      }
+      return moves;
+    }
+
+    static void moveBuckets(List<BucketMove> moves, FileOperations<?> fileOperations)
+        throws IOException {
+      final List<ResourceId> srcFiles = new ArrayList<>();
+      final List<ResourceId> dstFiles = new ArrayList<>();
+      final List<ResourceId> staleFiles = new ArrayList<>();
+      for (BucketMove move : moves) {
+        staleFiles.addAll(move.staleFiles);
+        if (move.srcFiles.isEmpty()) {
+          fileOperations.createWriter(move.dst).close();
+        } else {
+          srcFiles.addAll(move.srcFiles);
+          dstFiles.addAll(move.dstFiles);
         }
       }
 
-      LOG.info("Moving {} bucket files into {}", srcFiles.size(), dstFileAssignment.getDirectory());
+      FileSystems.delete(staleFiles, StandardMoveOptions.IGNORE_MISSING_FILES);
+
       // During a failure case, files may have been deleted in an earlier step. Thus
       // we ignore missing files here.
       FileSystems.rename(
@@ -716,13 +1176,30 @@ public class SortedBucketSink<K1, K2, V> extends PTransform<PCollection<V>, Writ
           dstFiles,
           StandardMoveOptions.IGNORE_MISSING_FILES,
           StandardMoveOptions.SKIP_IF_DESTINATION_EXISTS);
-      bucketDsts.forEach(bucketDstConsumer::accept);
+    }
 
-      // Write metadata file last
-      final ResourceId metadataDst =
-          writeMetadataFile(dstFileAssignment.forMetadata(), bucketMetadata);
-      metadataDstConsumer.accept(metadataDst);
+    /**
+     * Writes the size manifest of the buckets, without the null-key bucket that readers skip, or
+     * deletes the one of a previous write so that it isn't used for the new buckets.
+     */
+    private static void writeSizeManifest(
+        FileAssignment dstFileAssignment, BucketMetadata<?, ?, ?> bucketMetadata, boolean enabled)
+        throws IOException {
+      final ResourceId directory = dstFileAssignment.getDirectory();
+      if (!enabled) {
+        SizeManifest.delete(directory);
+        return;
+      }
+
+      final List<ResourceId> bucketFiles = new ArrayList<>();
+      for (BucketShardId id : bucketMetadata.getAllBucketShardIds()) {
+        bucketFiles.add(dstFileAssignment.forBucket(id, bucketMetadata));
+      }
+      LOG.info("Writing size manifest to {}", directory);
+      SizeManifest.of(bucketFiles).write(directory);
+    }
 
+    private static void deleteTempFiles(ResourceId tempDirectory) throws IOException {
       // Some writers, e.g. Parquet might produce extra temporary files like checksum.
       final List<ResourceId> tempFiles = new ArrayList<>();
       final List<MatchResult> matchResults =
@@ -761,6 +1238,93 @@ public class SortedBucketSink<K1, K2, V> extends PTransform<PCollection<V>, Writ
     }
   }
 
+  /**
+   * The temp files of a bucket to move to their final destination, or an empty bucket file to
+   * write if there are none.
+   */
+  static class BucketMove implements Serializable {
+    private final int bucketId;
+    private final int shardId;
+    private final ResourceId dst;
+    // the bucket file, followed by its sidecars
+    private final List<ResourceId> srcFiles;
+    private final List<ResourceId> dstFiles;
+    // sidecars at the destination that aren't replaced, and are deleted
+    private final List<ResourceId> staleFiles;
+
+    BucketMove(
+        BucketShardId id,
+        ResourceId dst,
+        List<ResourceId> srcFiles,
+        List<ResourceId> dstFiles,
+        List<ResourceId> staleFiles) {
+      this.bucketId = id.getBucketId();
+      this.shardId = id.getShardId();
+      this.dst = dst;
+      this.srcFiles = srcFiles;
+      this.dstFiles = dstFiles;
+      this.staleFiles = staleFiles;
+    }
+
+    KV<BucketShardId, ResourceId> getBucketDst() {
+      return KV.of(BucketShardId.of(bucketId, shardId), dst);
+    }
+
+    // contiguous bucket ranges, with the null-key bucket in the first one
+    int partition(int numBuckets, int numPartitions) {
+      return (int) ((long) Math.max(bucketId, 0) * numPartitions / numBuckets);
+    }
+  }
+
+  /** Moves the buckets of a bucket range in concurrent batches. */
+  private static class MoveBucketsFn<V>
+      extends DoFn<KV<Integer, Iterable<BucketMove>>, KV<BucketShardId, ResourceId>> {
+    private static final int BATCH_SIZE = 100;
+    private static final int MAX_CONCURRENT_BATCHES = 16;
+
+    private final FileOperations<V> fileOperations;
+
+    MoveBucketsFn(FileOperations<V> fileOperations) {
+      this.fileOperations = fileOperations;
+    }
+
+    @ProcessElement
+    public void processElement(
+        @Element KV<Integer, Iterable<BucketMove>> element,
+        OutputReceiver<KV<BucketShardId, ResourceId>> out)
+        throws IOException {
+      final List<BucketMove> moves = Lists.newArrayList(element.getValue());
+      final List<List<BucketMove>> batches = Lists.partition(moves, BATCH_SIZE);
+      LOG.info("Moving {} bucket files of bucket range {}", moves.size(), element.getKey());
+
+      final ExecutorService executor =
+          Executors.newFixedThreadPool(Math.min(batches.size(), MAX_CONCURRENT_BATCHES));
+      try {
+        final List<Future<?>> futures = new ArrayList<>();
+        for (List<BucketMove> batch : batches) {
+          futures.add(
+              executor.submit(
+                  () -> {
+                    RenameBuckets.moveBuckets(batch, fileOperations);
+                    return null;
+                  }));
+        }
+        for (Future<?> future : futures) {
+          future.get();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while moving bucket files", e);
+      } catch (ExecutionException e) {
+        throw new IOException("Failed to move bucket files", e.getCause());
+      } finally {
+        executor.shutdownNow();
+      }
+
+      moves.forEach(move -> out.output(move.getBucketDst()));
+    }
+  }
+
   static void cleanupTempFiles(Exception cause, Collection<ResourceId> files) {
     LOG.info(
         "Deleting temporary file {}",
@@ -848,10 +1412,7 @@ public class SortedBucketSink<K1, K2, V> extends PTransform<PCollection<V>, Writ
 
     @Override
     public final WriteResult expand(PCollection<KV<K, V>> input) {
-      // @Todo: should we allow windowed writes?
-      Preconditions.checkArgument(
-          input.isBounded() == IsBounded.BOUNDED,
-          "SortedBucketSink cannot be applied to a non-bounded PCollection");
+      checkWindowing(input);
       final PCollection<KV<BucketShardId, V>> bucketedInput =
           input.apply(
               "ExtractBucketAndShards",
@@ -19,25 +19,21 @@ package org.apache.beam.sdk.extensions.smb;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.math.BigInteger;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Comparator;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiFunction;
 import java.util.function.Function;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import org.apache.beam.sdk.coders.Coder;
@@ -46,11 +42,12 @@ import org.apache.beam.sdk.coders.ListCoder;
 import org.apache.beam.sdk.coders.SerializableCoder;
 import org.apache.beam.sdk.coders.StringUtf8Coder;
 import org.apache.beam.sdk.extensions.smb.BucketMetadataUtil.SourceMetadata;
+import org.apache.beam.sdk.extensions.smb.BucketMetadataUtil.SourceMetadataValue;
 import org.apache.beam.sdk.io.BoundedSource;
-import org.apache.beam.sdk.io.FileSystems;
-import org.apache.beam.sdk.io.fs.MatchResult.Metadata;
-import org.apache.beam.sdk.io.fs.ResolveOptions.StandardResolveOptions;
 import org.apache.beam.sdk.io.fs.ResourceId;
+import org.apache.beam.sdk.io.range.ByteKey;
+import org.apache.beam.sdk.io.range.ByteKeyRange;
+import org.apache.beam.sdk.io.range.ByteKeyRangeTracker;
 import org.apache.beam.sdk.metrics.Distribution;
 import org.apache.beam.sdk.metrics.Metrics;
 import org.apache.beam.sdk.options.PipelineOptions;
@@ -110,6 +107,8 @@ public abstract class SortedBucketSource<KeyType> extends BoundedSource<KV<KeyTy
   protected final Distribution keyGroupSize;
   protected Long estimatedSizeBytes;
   protected final String metricsKey;
+  // range of primary key bytes read by this source, narrowed by dynamic work rebalancing
+  protected final ByteKeyRange keyRange;
 
   public SortedBucketSource(List<BucketedInput<?>> sources) {
     this(sources, TargetParallelism.auto());
@@ -142,6 +141,24 @@ public abstract class SortedBucketSource<KeyType> extends BoundedSource<KV<KeyTy
       int effectiveParallelism,
       String metricsKey,
       Long estimatedSizeBytes) {
+    this(
+        sources,
+        targetParallelism,
+        bucketOffsetId,
+        effectiveParallelism,
+        metricsKey,
+        estimatedSizeBytes,
+        ByteKeyRange.ALL_KEYS);
+  }
+
+  protected SortedBucketSource(
+      List<BucketedInput<?>> sources,
+      TargetParallelism targetParallelism,
+      int bucketOffsetId,
+      int effectiveParallelism,
+      String metricsKey,
+      Long estimatedSizeBytes,
+      ByteKeyRange keyRange) {
     this.sources = sources;
     this.targetParallelism =
         targetParallelism == null ? TargetParallelism.auto() : targetParallelism;
@@ -151,6 +168,7 @@ public abstract class SortedBucketSource<KeyType> extends BoundedSource<KV<KeyTy
     this.keyGroupSize =
         Metrics.distribution(SortedBucketSource.class, this.metricsKey + "-KeyGroupSize");
     this.estimatedSizeBytes = estimatedSizeBytes;
+    this.keyRange = keyRange == null ? ByteKeyRange.ALL_KEYS : keyRange;
   }
 
   protected abstract Coder<KeyType> keyTypeCoder();
@@ -161,6 +179,13 @@ public abstract class SortedBucketSource<KeyType> extends BoundedSource<KV<KeyTy
   protected abstract SortedBucketSource<KeyType> createSplitSource(
       int splitNum, int totalParallelism, long estSplitSize);
 
+  /**
+   * @return A source of the implementing subtype reading the same buckets as this one, restricted
+   *     to the given range of primary key bytes. Used for dynamic work rebalancing.
+   */
+  protected abstract SortedBucketSource<KeyType> createKeyRangeSource(
+      ByteKeyRange keyRange, Long estSplitSize);
+
   protected abstract Comparator<SortedBucketIO.ComparableKeyBytes> comparator();
 
   private static String getDefaultMetricsKey() {
@@ -177,6 +202,11 @@ public abstract class SortedBucketSource<KeyType> extends BoundedSource<KV<KeyTy
     return effectiveParallelism;
   }
 
+  @VisibleForTesting
+  ByteKeyRange getKeyRange() {
+    return keyRange;
+  }
+
   protected SourceSpec getOrComputeSourceSpec() {
     if (this.sourceSpec == null) this.sourceSpec = SourceSpec.from(sources);
     return this.sourceSpec;
@@ -199,11 +229,19 @@ public abstract class SortedBucketSource<KeyType> extends BoundedSource<KV<KeyTy
                     .collect(Collectors.toList()))));
   }
 
+  @Override
+  public void validate() {
+    sources.forEach(BucketedInput::validate);
+  }
+
   @Override
   public void populateDisplayData(Builder builder) {
     super.populateDisplayData(builder);
     builder.add(DisplayData.item("targetParallelism", targetParallelism.toString()));
     builder.add(DisplayData.item("metricsKey", metricsKey));
+    if (!keyRange.equals(ByteKeyRange.ALL_KEYS)) {
+      builder.add(DisplayData.item("keyRange", keyRange.toString()));
+    }
   }
 
   @Override
@@ -263,7 +301,7 @@ public abstract class SortedBucketSource<KeyType> extends BoundedSource<KV<KeyTy
   public long getEstimatedSizeBytes(PipelineOptions options) throws Exception {
     if (estimatedSizeBytes == null) {
       estimatedSizeBytes =
-          sources.parallelStream().mapToLong(BucketedInput::getOrSampleByteSize).sum();
+          sources.stream().mapToLong(BucketedInput::getOrSampleByteSize).sum();
       LOG.info("Estimated byte size is " + estimatedSizeBytes);
     }
     return estimatedSizeBytes;
@@ -286,20 +324,74 @@ public abstract class SortedBucketSource<KeyType> extends BoundedSource<KV<KeyTy
             true,
             bucketOffsetId,
             effectiveParallelism,
-            options),
+            options,
+            keyRange.getStartKey().isEmpty() ? null : keyRange.getStartKey().getBytes()),
         this);
   }
 
-  /** Merge key-value groups in matching buckets. */
+  /**
+   * Estimates the end of the key space of a reader whose key range is not bounded, assuming keys
+   * read so far are representative of the remaining ones: if moving from {@code startKey} to
+   * {@code currentKey} consumed {@code fractionConsumed} of the input, the remainder of the input
+   * spans proportionally more of the key space.
+   *
+   * @return the estimated end key, or {@code null} if it can't be estimated.
+   */
+  static ByteKey extrapolateEndKey(ByteKey startKey, ByteKey currentKey, double fractionConsumed) {
+    if (fractionConsumed <= 0.0 || currentKey.compareTo(startKey) <= 0) return null;
+    final int length = Math.max(startKey.getBytes().length, currentKey.getBytes().length) + 1;
+    final BigInteger start = paddedPositiveInt(startKey.getBytes(), length);
+    final BigInteger current = paddedPositiveInt(currentKey.getBytes(), length);
+
+    final long scale = 1L << 32;
+    final long scaledFraction = Math.max(1L, (long) (Math.min(1.0, fractionConsumed) * scale));
+    final BigInteger end =
+        start.add(
+            current
+                .subtract(start)
+                .multiply(BigInteger.valueOf(scale))
+                .divide(BigInteger.valueOf(scaledFraction)));
+    // estimated end is past the largest representable key of this length
+    if (end.bitLength() > length * 8) return null;
+
+    final byte[] endBytes = end.toByteArray();
+    final byte[] padded = new byte[length];
+    final int n = Math.min(endBytes.length, length);
+    System.arraycopy(endBytes, endBytes.length - n, padded, length - n, n);
+    return ByteKey.copyFrom(padded);
+  }
+
+  // Interprets the bytes as the fraction 0.[bytes], scaled up to a `length`-byte integer
+  private static BigInteger paddedPositiveInt(byte[] bytes, int length) {
+    return new BigInteger(1, Arrays.copyOf(bytes, length));
+  }
+
+  /**
+   * Merge key-value groups in matching buckets.
+   *
+   * <p>Supports dynamic work rebalancing by splitting the range of primary keys not yet read: the
+   * residual source reads the same buckets from the split key onwards, while this reader stops
+   * before it. Since keys within a bucket are sorted, the key space is interpolated to find the
+   * split key for a given fraction. Until the key range has an upper bound, progress is measured in
+   * bytes read from the underlying bucket files instead.
+   */
   static class MergeBucketsReader<KeyType> extends BoundedReader<KV<KeyType, CoGbkResult>> {
-    private final SortedBucketSource<KeyType> currentSource;
+    private SortedBucketSource<KeyType> currentSource;
     private final MultiSourceKeyGroupReader<KeyType> iter;
+    private final ByteKeyRangeTracker rangeTracker;
     private KV<KeyType, CoGbkResult> next = null;
 
+    // primary key of the first and last returned key groups, and bytes progress at the first
+    private ByteKey firstKey = null;
+    private ByteKey lastKey = null;
+    private double firstFractionRead = 0.0;
+    private boolean done = false;
+
     MergeBucketsReader(
         MultiSourceKeyGroupReader<KeyType> iter, SortedBucketSource<KeyType> currentSource) {
       this.currentSource = currentSource;
       this.iter = iter;
+      this.rangeTracker = ByteKeyRangeTracker.of(currentSource.keyRange);
     }
 
     @Override
@@ -317,14 +409,104 @@ public abstract class SortedBucketSource<KeyType> extends BoundedSource<KV<KeyTy
     @Override
     public boolean advance() throws IOException {
       next = iter.readNext();
-      return next != null;
+      if (next == null) {
+        markDone();
+        return false;
+      }
+
+      final ByteKey key = ByteKey.copyFrom(iter.currentKeyBytes().primary);
+      // secondary-keyed reads can return several key groups with the same primary key, only the
+      // first of them is a split point
+      final boolean isAtSplitPoint = lastKey == null || !lastKey.equals(key);
+      if (!rangeTracker.tryReturnRecordAt(isAtSplitPoint, key)) {
+        next = null;
+        markDone();
+        return false;
+      }
+      synchronized (this) {
+        if (firstKey == null) {
+          firstKey = key;
+          final Double fractionRead = iter.getReadProgress().getFractionRead();
+          firstFractionRead = fractionRead == null ? 0.0 : fractionRead;
+        }
+        lastKey = key;
+      }
+      return true;
+    }
+
+    private synchronized void markDone() {
+      done = true;
+      rangeTracker.markDone();
+    }
+
+    @Override
+    public synchronized Double getFractionConsumed() {
+      if (done) return 1.0;
+      if (firstKey == null) return 0.0;
+
+      final ByteKey stopKey = rangeTracker.getStopPosition();
+      if (!stopKey.isEmpty()) {
+        return ByteKeyRange.of(firstKey, stopKey).estimateFractionForKey(lastKey);
+      }
+      return fractionReadSinceFirstKey();
+    }
+
+    private Double fractionReadSinceFirstKey() {
+      final Double fractionRead = iter.getReadProgress().getFractionRead();
+      if (fractionRead == null || firstFractionRead >= 1.0) return null;
+      return Math.max(0.0, (fractionRead - firstFractionRead) / (1.0 - firstFractionRead));
     }
 
     @Override
-    public void close() throws IOException {}
+    public synchronized BoundedSource<KV<KeyType, CoGbkResult>> splitAtFraction(double fraction) {
+      if (done || firstKey == null || fraction <= 0.0 || fraction >= 1.0) return null;
+
+      ByteKey stopKey = rangeTracker.getStopPosition();
+      if (stopKey.isEmpty()) {
+        final Double fractionRead = fractionReadSinceFirstKey();
+        if (fractionRead == null) return null;
+        stopKey = extrapolateEndKey(firstKey, lastKey, fractionRead);
+        if (stopKey == null) return null;
+      }
+      if (stopKey.compareTo(firstKey) <= 0) return null;
+
+      final ByteKey splitKey;
+      try {
+        splitKey = ByteKeyRange.of(firstKey, stopKey).interpolateKey(fraction);
+      } catch (IllegalStateException | IllegalArgumentException e) {
+        LOG.debug("Failed to interpolate split key at fraction {}", fraction, e);
+        return null;
+      }
+      final ByteKeyRange range = rangeTracker.getRange();
+      if (!rangeTracker.trySplitAtPosition(splitKey)) return null;
+
+      final Long estimatedSize = currentSource.estimatedSizeBytes;
+      final SortedBucketSource<KeyType> primary =
+          currentSource.createKeyRangeSource(
+              range.withEndKey(splitKey),
+              estimatedSize == null ? null : (long) (estimatedSize * fraction));
+      final SortedBucketSource<KeyType> residual =
+          currentSource.createKeyRangeSource(
+              range.withStartKey(splitKey),
+              estimatedSize == null ? null : (long) (estimatedSize * (1 - fraction)));
+      LOG.info(
+          "Split source {} at key {} into ranges {} and {}",
+          currentSource.metricsKey,
+          splitKey,
+          primary.keyRange,
+          residual.keyRange);
+      currentSource = primary;
+      return residual;
+    }
 
     @Override
-    public BoundedSource<KV<KeyType, CoGbkResult>> getCurrentSource() {
+    public void close() throws IOException {
+      // releases the bucket files, e.g. if the reader was split before the end of the bucket
+      iter.close();
+    }
+
+    @Override
+    public synchronized BoundedSource<KV<KeyType, CoGbkResult>> getCurrentSource() {
       return currentSource;
     }
   }
@@ -402,14 +584,14 @@ public abstract class SortedBucketSource<KeyType> extends BoundedSource<KV<KeyTy
    * @param <V> the type of the values in a bucket
    */
   public abstract static class BucketedInput<V> implements Serializable {
-    private static final Pattern BUCKET_PATTERN = Pattern.compile("(\\d+)-of-(\\d+)");
-
     protected TupleTag<V> tupleTag;
     protected String filenameSuffix;
     protected FileOperations<V> fileOperations;
     protected List<String> inputDirectories;
     protected Predicate<V> predicate;
     protected Keying keying;
+    // key groups missing from a required input are dropped, as in an inner join
+    protected boolean required = false;
     // lazy, internal checks depend on what kind of iteration is requested
     protected transient SourceMetadata<V> sourceMetadata = null; // lazy
 
@@ -444,6 +626,11 @@ public abstract class SortedBucketSource<KeyType> extends BoundedSource<KV<KeyTy
 
     public abstract SourceMetadata<V> getSourceMetadata();
 
+    /** Checks that the bucket files of all partitions can be read by the file operations. */
+    void validate() {
+      getSourceMetadata().mapping.values().forEach(v -> fileOperations.validate(v.metadata));
+    }
+
     public TupleTag<V> getTupleTag() {
       return tupleTag;
     }
@@ -452,6 +639,51 @@ public abstract class SortedBucketSource<KeyType> extends BoundedSource<KV<KeyTy
       return predicate;
     }
 
+    public boolean isRequired() {
+      return required;
+    }
+
+    /** Returns a copy of this input, which key groups must be present in to be emitted. */
+    BucketedInput<V> asRequired() {
+      final BucketedInput<V> copy =
+          of(keying, tupleTag, inputDirectories, filenameSuffix, fileOperations, predicate);
+      copy.required = true;
+      return copy;
+    }
+
+    /**
+     * Reads the {@link BucketBloomFilter}s of all bucket files read by {@link #createIterator} for
+     * {@code bucketId}.
+     *
+     * @return a filter of primary key bytes which might be in any of these files, or null if any
+     *     file has no Bloom filter
+     */
+    java.util.function.Predicate<byte[]> readBloomFilters(int bucketId, int targetParallelism) {
+      final List<BucketBloomFilter> filters = new ArrayList<>();
+      for (SourceMetadataValue<V> value : getSourceMetadata().mapping.values()) {
+        final int numBuckets = value.metadata.getNumBuckets();
+        for (int i = (bucketId % numBuckets); i < numBuckets; i += targetParallelism) {
+          for (ResourceId file : value.fileAssignment.forAllShards(i, value.metadata)) {
+            final BucketBloomFilter filter;
+            try {
+              filter = BucketBloomFilter.read(file);
+            } catch (IOException e) {
+              LOG.warn("Failed to read Bloom filter of SMB source file {}", file, e);
+              return null;
+            }
+            if (filter == null) return null;
+            filters.add(filter);
+          }
+        }
+      }
+      return keyBytes -> {
+        for (BucketBloomFilter filter : filters) {
+          if (filter.mightContain(keyBytes)) return true;
+        }
+        return false;
+      };
+    }
+
     public Coder<V> getCoder() {
       return fileOperations.getCoder();
     }
@@ -461,66 +693,28 @@ public abstract class SortedBucketSource<KeyType> extends BoundedSource<KV<KeyTy
           sources.stream().map(BucketedInput::getTupleTag).collect(Collectors.toList()));
     }
 
-    private static List<Metadata> sampleDirectory(String directory, String filepattern) {
-      try {
-        final ResourceId resourceId = FileSystems.matchNewResource(directory, true);
-
-        return FileSystems.match(
-                resourceId.resolve(filepattern, StandardResolveOptions.RESOLVE_FILE).toString())
-            .metadata();
-      } catch (FileNotFoundException e) {
-        return Collections.emptyList();
-      } catch (IOException e) {
-        throw new RuntimeException("Exception fetching metadata for " + directory, e);
-      }
-    }
-
     long getOrSampleByteSize() {
-      return inputDirectories
-          .parallelStream()
-          .mapToLong(
-              dir -> {
-                // Take at most 10 buckets from the directory to sample
-                // Check for single-shard filenames template first, then multi-shard
-                List<Metadata> sampledFiles =
-                    sampleDirectory(dir, "*-0000?-of-?????" + filenameSuffix);
-                if (sampledFiles.isEmpty()) {
-                  sampledFiles =
-                      sampleDirectory(dir, "*-0000?-of-*-shard-00000-of-?????" + filenameSuffix);
-                }
-
-                int numBuckets = 0;
-                long sampledBytes = 0L;
-                final Set<String> seenBuckets = new HashSet<>();
-
-                for (Metadata metadata : sampledFiles) {
-                  final Matcher matcher =
-                      BUCKET_PATTERN.matcher(metadata.resourceId().getFilename());
-                  if (!matcher.find()) {
-                    throw new RuntimeException(
-                        "Couldn't match bucket information from filename: "
-                            + metadata.resourceId().getFilename());
-                  }
-                  seenBuckets.add(matcher.group(1));
-                  if (numBuckets == 0) {
-                    numBuckets = Integer.parseInt(matcher.group(2));
-                  }
-                  sampledBytes += metadata.sizeBytes();
-                }
-                if (numBuckets == 0) {
-                  throw new IllegalArgumentException("Directory " + dir + " has no bucket files");
-                }
-                if (seenBuckets.size() < numBuckets) {
-                  return (long) (sampledBytes * (numBuckets / (seenBuckets.size() * 1.0)));
-                } else {
-                  return sampledBytes;
-                }
-              })
-          .sum();
+      return BucketMetadataUtil.get().getByteSize(inputDirectories, filenameSuffix);
     }
 
     public KeyGroupIterator<V> createIterator(
         int bucketId, int targetParallelism, PipelineOptions options) {
+      return createIterator(bucketId, targetParallelism, options, null, null, null);
+    }
+
+    /**
+     * @param progress if not null, tracks bytes read from the bucket files
+     * @param startKeyPrimary if not null, bucket files with an index may skip records with lower
+     *     primary key bytes
+     * @param keyFilter if not null, records whose primary key bytes are rejected are dropped
+     */
+    KeyGroupIterator<V> createIterator(
+        int bucketId,
+        int targetParallelism,
+        PipelineOptions options,
+        ReadProgress progress,
+        byte[] startKeyPrimary,
+        java.util.function.Predicate<byte[]> keyFilter) {
       SourceMetadata<V> sourceMetadata = getSourceMetadata();
       final Comparator<SortedBucketIO.ComparableKeyBytes> keyComparator =
           (keying == Keying.PRIMARY)
@@ -531,29 +725,53 @@ public abstract class SortedBucketSource<KeyType> extends BoundedSource<KV<KeyTy
       final int bufferSize = opts.getSortedBucketReadBufferSize();
       final int diskBufferMb = opts.getSortedBucketReadDiskBufferMb();
       FileOperations.setDiskBufferMb(diskBufferMb);
+      FileOperations.setDiskBufferThreads(opts.getSortedBucketReadDiskBufferThreads());
+      final int prefetchThreads = opts.getSortedBucketReadPrefetchThreads();
+      final boolean lazyDecode = opts.getSortedBucketReadLazyDecode();
 
       final List<Iterator<KV<SortedBucketIO.ComparableKeyBytes, V>>> iterators = new ArrayList<>();
       sourceMetadata.mapping.forEach(
           (dir, value) -> {
             final int numBuckets = value.metadata.getNumBuckets();
-            final int numShards = value.metadata.getNumShards();
             final Function<V, SortedBucketIO.ComparableKeyBytes> keyFn =
                 (keying == Keying.PRIMARY)
                     ? value.metadata::primaryComparableKeyBytes
                     : value.metadata::primaryAndSecondaryComparableKeyBytes;
             for (int i = (bucketId % numBuckets); i < numBuckets; i += targetParallelism) {
-              for (int j = 0; j < numShards; j++) {
-                ResourceId file =
-                    value.fileAssignment.forBucket(BucketShardId.of(i, j), numBuckets, numShards);
-                try {
-                  Iterator<KV<SortedBucketIO.ComparableKeyBytes, V>> iterator =
-                      Iterators.transform(
-                          fileOperations.iterator(file), v -> KV.of(keyFn.apply(v), v));
-                  Iterator<KV<SortedBucketIO.ComparableKeyBytes, V>> out =
-                      (bufferSize > 0) ? new BufferedIterator<>(iterator, bufferSize) : iterator;
-                  iterators.add(out);
-                } catch (Exception e) {
-                  throw new RuntimeException(e);
+              for (ResourceId file : value.fileAssignment.forAllShards(i, value.metadata)) {
+                if (prefetchThreads > 0 && bufferSize > 0) {
+                  // open, read and extract keys of the file in the background
+                  iterators.add(
+                      new PrefetchingIterator<KV<SortedBucketIO.ComparableKeyBytes, V>>(
+                          file.toString(),
+                          () ->
+                              keyedIterator(
+                                  file,
+                                  value.metadata,
+                                  keyFn,
+                                  lazyDecode,
+                                  progress,
+                                  startKeyPrimary,
+                                  keyFilter),
+                          bufferSize,
+                          prefetchThreads));
+                } else {
+                  try {
+                    Iterator<KV<SortedBucketIO.ComparableKeyBytes, V>> iterator =
+                        keyedIterator(
+                            file,
+                            value.metadata,
+                            keyFn,
+                            lazyDecode,
+                            progress,
+                            startKeyPrimary,
+                            keyFilter);
+                    Iterator<KV<SortedBucketIO.ComparableKeyBytes, V>> out =
+                        (bufferSize > 0) ? new BufferedIterator<>(iterator, bufferSize) : iterator;
+                    iterators.add(out);
+                  } catch (Exception e) {
+                    throw new RuntimeException(e);
+                  }
                 }
               }
             }
@@ -561,6 +779,36 @@ public abstract class SortedBucketSource<KeyType> extends BoundedSource<KV<KeyTy
       return new KeyGroupIterator<>(iterators, keyComparator);
     }
 
+    private Iterator<KV<SortedBucketIO.ComparableKeyBytes, V>> keyedIterator(
+        ResourceId file,
+        BucketMetadata<?, ?, V> metadata,
+        Function<V, SortedBucketIO.ComparableKeyBytes> keyFn,
+        boolean lazyDecode,
+        ReadProgress progress,
+        byte[] startKeyPrimary,
+        java.util.function.Predicate<byte[]> keyFilter)
+        throws IOException {
+      FileOperations.Reader<V> reader =
+          lazyDecode ? fileOperations.createLazyReader(metadata, keying != Keying.PRIMARY) : null;
+      if (reader == null) {
+        reader = fileOperations.createReader(metadata);
+      }
+      final Iterator<V> records = fileOperations.iterator(file, progress, startKeyPrimary, reader);
+      // the reader can still be closed, if the key groups aren't read until the end
+      return CloseableIterator.of(
+          filterKeys(
+              Iterators.transform(records, v -> KV.of(LazyRecord.keyOf(v, keyFn), v)), keyFilter),
+          records);
+    }
+
+    private static <V> Iterator<KV<SortedBucketIO.ComparableKeyBytes, V>> filterKeys(
+        Iterator<KV<SortedBucketIO.ComparableKeyBytes, V>> iterator,
+        java.util.function.Predicate<byte[]> keyFilter) {
+      return keyFilter == null
+          ? iterator
+          : Iterators.filter(iterator, kv -> keyFilter.test(kv.getKey().primary));
+    }
+
     @Override
     public String toString() {
       return String.format(
@@ -583,6 +831,7 @@ public abstract class SortedBucketSource<KeyType> extends BoundedSource<KV<KeyTy
       outStream.writeObject(fileOperations);
       outStream.writeObject(predicate);
       outStream.writeObject(keying);
+      outStream.writeBoolean(required);
       outStream.flush();
     }
 
@@ -594,6 +843,7 @@ public abstract class SortedBucketSource<KeyType> extends BoundedSource<KV<KeyTy
       this.fileOperations = (FileOperations<V>) inStream.readObject();
       this.predicate = (Predicate<V>) inStream.readObject();
       this.keying = (Keying) inStream.readObject();
+      this.required = inStream.readBoolean();
     }
   }
 
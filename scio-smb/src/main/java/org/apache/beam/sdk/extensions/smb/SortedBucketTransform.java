@@ -249,23 +249,52 @@ public class SortedBucketTransform<FinalKeyT, FinalValueT> extends PTransform<PB
 
   private static class OutputCollector<ValueT> implements SerializableConsumer<ValueT> {
     private final Writer<ValueT> writer;
+    // if not null, writes on a separate thread
+    private final AsyncWriter<ValueT> asyncWriter;
 
     OutputCollector(Writer<ValueT> writer) {
       this.writer = writer;
+      this.asyncWriter = null;
+    }
+
+    OutputCollector(AsyncWriter<ValueT> asyncWriter) {
+      this.writer = null;
+      this.asyncWriter = asyncWriter;
     }
 
     void onComplete() {
       try {
-        writer.close();
+        if (asyncWriter != null) {
+          asyncWriter.close();
+        } else {
+          writer.close();
+        }
       } catch (IOException e) {
         throw new RuntimeException("Closing writer failed: ", e);
       }
     }
 
+    /** Closes the writer after a failure, adding failures to close as suppressed to {@code e}. */
+    void onFailure(Exception e) {
+      if (asyncWriter != null) {
+        asyncWriter.abort(e);
+      } else {
+        try {
+          writer.close();
+        } catch (Exception closeException) {
+          e.addSuppressed(closeException);
+        }
+      }
+    }
+
     @Override
     public void accept(ValueT t) {
       try {
-        writer.write(t);
+        if (asyncWriter != null) {
+          asyncWriter.write(t);
+        } else {
+          writer.write(t);
+        }
       } catch (IOException e) {
         throw new RuntimeException("Write of element " + t + " failed: ", e);
       }
@@ -375,10 +404,7 @@ public class SortedBucketTransform<FinalKeyT, FinalValueT> extends PTransform<PB
     public long getEstimatedSizeBytes(final PipelineOptions options) throws Exception {
       if (estimatedSizeBytes == -1) {
         estimatedSizeBytes =
-            sources
-                .parallelStream()
-                .mapToLong(SortedBucketSource.BucketedInput::getOrSampleByteSize)
-                .sum();
+            sources.stream().mapToLong(SortedBucketSource.BucketedInput::getOrSampleByteSize).sum();
         LOG.info("Estimated byte size is " + estimatedSizeBytes);
       }
       return estimatedSizeBytes;
@@ -453,9 +479,19 @@ public class SortedBucketTransform<FinalKeyT, FinalValueT> extends PTransform<PB
 
       ResourceId dst =
           fileAssignment.forBucket(BucketShardId.of(bucketId, 0), effectiveParallelism, 1);
+      final int writeBufferSize =
+          context
+              .getPipelineOptions()
+              .as(SortedBucketOptions.class)
+              .getSortedBucketTransformWriteBufferSize();
       OutputCollector<FinalValueT> outputCollector;
       try {
-        outputCollector = new OutputCollector<>(fileOperations.createWriter(dst));
+        final Writer<FinalValueT> writer = fileOperations.createWriter(dst);
+        outputCollector =
+            writeBufferSize > 0
+                ? new OutputCollector<>(
+                    new AsyncWriter<>(dst.getFilename(), writer, writeBufferSize))
+                : new OutputCollector<>(writer);
       } catch (IOException err) {
         throw new RuntimeException("Failed to create file writer for transformed output", err);
       }
@@ -493,8 +529,18 @@ public class SortedBucketTransform<FinalKeyT, FinalValueT> extends PTransform<PB
                       .ensureExhausted();
                 }
               });
+          iter.releaseKeyGroup();
         } catch (Exception ex) {
-          throw new RuntimeException("Failed to write merged key group", ex);
+          final RuntimeException failure =
+              new RuntimeException("Failed to write merged key group", ex);
+          outputCollector.onFailure(failure);
+          // release the bucket files, which are only closed once fully read
+          try {
+            iter.close();
+          } catch (IOException e) {
+            failure.addSuppressed(e);
+          }
+          throw failure;
         }
       }
       outputCollector.onComplete();
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.beam.sdk.extensions.sorter;
+
+import static org.apache.beam.vendor.guava.v26_0_jre.com.google.common.base.Preconditions.checkArgument;
+import static org.apache.beam.vendor.guava.v26_0_jre.com.google.common.base.Preconditions.checkState;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.apache.beam.sdk.values.KV;
+
+/**
+ * Sorts {@code <key, value>} pairs in memory. Based on the configured size of the memory buffer,
+ * will reject additional pairs.
+ *
+ * <p>Instead of keeping a {@link KV} and two byte arrays per record, key and value bytes are
+ * appended to large pages, and only an index of primitive record offsets is sorted. Each record is
+ * indexed with the first 8 bytes of its key, so most comparisons don't need to read the pages.
+ */
+class ArenaInMemorySorter implements Sorter {
+
+  /** {@code Options} contains configuration of the sorter. */
+  public static class Options implements Serializable {
+    private long memoryMB = 100;
+
+    /** Sets the size of the memory buffer in megabytes. */
+    public void setMemoryMB(long memoryMB) {
+      checkArgument(memoryMB > 0, "memoryMB must be greater than zero");
+      this.memoryMB = memoryMB;
+    }
+
+    /** Returns the configured size of the memory buffer. */
+    public long getMemoryMB() {
+      return memoryMB;
+    }
+  }
+
+  /** Maximum size of a page, pages are at most 1/16th of the buffer to limit unused space. */
+  static final int PAGE_SIZE = 1 << 20;
+
+  /** Key and value lengths, stored in front of each record. */
+  private static final int RECORD_HEADER_BYTES = 2 * Integer.BYTES;
+
+  /**
+   * Estimate of memory overhead per record in bytes, not including the record itself.
+   *
+   * <ul>
+   *   <li>Record offset and key prefix (2 longs), in arrays grown by a factor of 2x, so there might
+   *       be as many unused slots, and both are copied while growing,
+   *   <li>Sort index and merge buffer (2 ints).
+   * </ul>
+   */
+  private static final long INDEX_BYTES_PER_RECORD = 2 * 2 * Long.BYTES + 2 * Integer.BYTES;
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  // below this size, ranges are sorted with an insertion sort
+  private static final int INSERTION_SORT_THRESHOLD = 16;
+
+  /** Maximum size of the buffer in bytes. */
+  private final long maxBufferSize;
+
+  private final int pageSize;
+
+  /** Pages holding records, and the position of the next record in the last one. */
+  private final List<byte[]> pages = new ArrayList<>();
+
+  private byte[] page = null;
+  private int pagePosition = 0;
+  private long pageBytes = 0;
+
+  /** Page index in the upper 32 bits, and position in the page in the lower 32 bits. */
+  private long[] offsets = new long[INITIAL_CAPACITY];
+
+  /** First 8 bytes of each key, big-endian and zero-padded. */
+  private long[] prefixes = new long[INITIAL_CAPACITY];
+
+  private int numRecords = 0;
+
+  /** Whether sort has been called. */
+  private boolean sortCalled;
+
+  /** Private constructor. */
+  private ArenaInMemorySorter(Options options) {
+    maxBufferSize = options.getMemoryMB() * 1024L * 1024L;
+    pageSize = (int) Math.min(PAGE_SIZE, maxBufferSize / 16);
+  }
+
+  /** Create a new sorter from provided options. */
+  public static ArenaInMemorySorter create(Options options) {
+    return new ArenaInMemorySorter(options);
+  }
+
+  @Override
+  public void add(KV<byte[], byte[]> record) {
+    checkState(addIfRoom(record), "No space remaining for in memory sorting");
+  }
+
+  /** Adds the record if there is room and returns true. Otherwise returns false. */
+  public boolean addIfRoom(KV<byte[], byte[]> record) {
+    checkState(!sortCalled, "Records can only be added before sort()");
+
+    final byte[] key = record.getKey();
+    final byte[] value = record.getValue();
+    final int recordBytes = RECORD_HEADER_BYTES + key.length + value.length;
+
+    // records larger than a page get a page of their own
+    final boolean needsPage = page == null || pagePosition + recordBytes > page.length;
+    final int newPageBytes = needsPage ? Math.max(pageSize, recordBytes) : 0;
+    if (!roomInBuffer(pageBytes + newPageBytes, numRecords + 1L)) {
+      return false;
+    }
+
+    if (needsPage) {
+      page = new byte[newPageBytes];
+      pages.add(page);
+      pagePosition = 0;
+      pageBytes += newPageBytes;
+    }
+    if (numRecords == offsets.length) {
+      offsets = Arrays.copyOf(offsets, numRecords * 2);
+      prefixes = Arrays.copyOf(prefixes, numRecords * 2);
+    }
+
+    offsets[numRecords] = ((long) (pages.size() - 1) << 32) | pagePosition;
+    prefixes[numRecords] = prefix(key);
+    numRecords++;
+
+    putInt(page, pagePosition, key.length);
+    putInt(page, pagePosition + Integer.BYTES, value.length);
+    System.arraycopy(key, 0, page, pagePosition + RECORD_HEADER_BYTES, key.length);
+    System.arraycopy(
+        value, 0, page, pagePosition + RECORD_HEADER_BYTES + key.length, value.length);
+    pagePosition += recordBytes;
+    return true;
+  }
+
+  @Override
+  public Iterable<KV<byte[], byte[]>> sort() {
+    checkState(!sortCalled, "sort() can only be called once.");
+
+    sortCalled = true;
+
+    final int[] index = new int[numRecords];
+    for (int i = 0; i < numRecords; i++) {
+      index[i] = i;
+    }
+    mergeSort(index, new int[numRecords], 0, numRecords);
+    return () -> new SortedIterator(index);
+  }
+
+  /**
+   * Check whether we have room to store the provided total number of page bytes and total number
+   * of records.
+   */
+  private boolean roomInBuffer(long numPageBytes, long numRecords) {
+    return (numPageBytes + (numRecords * INDEX_BYTES_PER_RECORD)) < maxBufferSize;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////////
+
+  // Stable, so that records with equal keys keep their insertion order
+  private void mergeSort(int[] index, int[] buffer, int from, int to) {
+    if (to - from <= INSERTION_SORT_THRESHOLD) {
+      for (int i = from + 1; i < to; i++) {
+        final int record = index[i];
+        int j = i - 1;
+        while (j >= from && compare(index[j], record) > 0) {
+          index[j + 1] = index[j];
+          j--;
+        }
+        index[j + 1] = record;
+      }
+      return;
+    }
+
+    final int mid = (from + to) >>> 1;
+    mergeSort(index, buffer, from, mid);
+    mergeSort(index, buffer, mid, to);
+    // already in order
+    if (compare(index[mid - 1], index[mid]) <= 0) return;
+
+    System.arraycopy(index, from, buffer, from, to - from);
+    int i = from;
+    int j = mid;
+    for (int k = from; k < to; k++) {
+      if (i < mid && (j >= to || compare(buffer[i], buffer[j]) <= 0)) {
+        index[k] = buffer[i++];
+      } else {
+        index[k] = buffer[j++];
+      }
+    }
+  }
+
+  private int compare(int x, int y) {
+    final int cmp = Long.compareUnsigned(prefixes[x], prefixes[y]);
+    if (cmp != 0) return cmp;
+
+    final byte[] pageX = pages.get((int) (offsets[x] >>> 32));
+    final byte[] pageY = pages.get((int) (offsets[y] >>> 32));
+    final int posX = (int) offsets[x];
+    final int posY = (int) offsets[y];
+    final int lengthX = getInt(pageX, posX);
+    final int lengthY = getInt(pageY, posY);
+
+    // equal prefixes, so the first min(8, lengthX, lengthY) bytes are equal
+    final int minLength = Math.min(lengthX, lengthY);
+    for (int i = Math.min(Long.BYTES, minLength); i < minLength; i++) {
+      final int byteCmp =
+          Integer.compare(
+              pageX[posX + RECORD_HEADER_BYTES + i] & 0xff,
+              pageY[posY + RECORD_HEADER_BYTES + i] & 0xff);
+      if (byteCmp != 0) return byteCmp;
+    }
+    return Integer.compare(lengthX, lengthY);
+  }
+
+  private static long prefix(byte[] key) {
+    long prefix = 0L;
+    for (int i = 0; i < Long.BYTES; i++) {
+      prefix <<= 8;
+      if (i < key.length) {
+        prefix |= key[i] & 0xffL;
+      }
+    }
+    return prefix;
+  }
+
+  private static void putInt(byte[] bytes, int pos, int value) {
+    bytes[pos] = (byte) (value >>> 24);
+    bytes[pos + 1] = (byte) (value >>> 16);
+    bytes[pos + 2] = (byte) (value >>> 8);
+    bytes[pos + 3] = (byte) value;
+  }
+
+  private static int getInt(byte[] bytes, int pos) {
+    return ((bytes[pos] & 0xff) << 24)
+        | ((bytes[pos + 1] & 0xff) << 16)
+        | ((bytes[pos + 2] & 0xff) << 8)
+        | (bytes[pos + 3] & 0xff);
+  }
+
+  /** Copies out records in the order of the sorted index. */
+  private class SortedIterator implements Iterator<KV<byte[], byte[]>> {
+    private final int[] index;
+    private int i = 0;
+
+    SortedIterator(int[] index) {
+      this.index = index;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return i < index.length;
+    }
+
+    @Override
+    public KV<byte[], byte[]> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      final int record = index[i++];
+      final byte[] recordPage = pages.get((int) (offsets[record] >>> 32));
+      final int pos = (int) offsets[record];
+      final int keyLength = getInt(recordPage, pos);
+      final int valueLength = getInt(recordPage, pos + Integer.BYTES);
+      final int keyPos = pos + RECORD_HEADER_BYTES;
+      return KV.of(
+          Arrays.copyOfRange(recordPage, keyPos, keyPos + keyLength),
+          Arrays.copyOfRange(recordPage, keyPos + keyLength, keyPos + keyLength + valueLength));
+    }
+  }
+}
@@ -106,9 +106,9 @@ public class BufferedExternalSorter implements Sorter {
   private final ExternalSorter externalSorter;
 
   /** The in-memory sorter is set to {@code null} when it fills up. */
-  private @Nullable InMemorySorter inMemorySorter;
+  private @Nullable ArenaInMemorySorter inMemorySorter;
 
-  BufferedExternalSorter(ExternalSorter externalSorter, InMemorySorter inMemorySorter) {
+  BufferedExternalSorter(ExternalSorter externalSorter, ArenaInMemorySorter inMemorySorter) {
     this.externalSorter = externalSorter;
     this.inMemorySorter = inMemorySorter;
   }
@@ -119,11 +119,12 @@ public class BufferedExternalSorter implements Sorter {
     externalSorterOptions.setSorterType(options.getExternalSorterType());
     externalSorterOptions.setMemoryMB(options.getMemoryMB());
 
-    InMemorySorter.Options inMemorySorterOptions = new InMemorySorter.Options();
+    ArenaInMemorySorter.Options inMemorySorterOptions = new ArenaInMemorySorter.Options();
     inMemorySorterOptions.setMemoryMB(options.getMemoryMB());
 
     return new BufferedExternalSorter(
-        ExternalSorter.create(externalSorterOptions), InMemorySorter.create(inMemorySorterOptions));
+        ExternalSorter.create(externalSorterOptions),
+        ArenaInMemorySorter.create(inMemorySorterOptions));
   }
 
   @Override
@@ -135,7 +136,7 @@ public class BufferedExternalSorter implements Sorter {
         // Flushing contents of in memory sorter to external sorter so we can rely on external
         // from here on out
         LOG.info(
-            "InMemorySorter buffer exceeded memoryMb limit. Transferring from in-memory to external sort.");
+            "In-memory sorter buffer exceeded memoryMb limit. Transferring from in-memory to external sort.");
         transferToExternalSorter();
       }
     }
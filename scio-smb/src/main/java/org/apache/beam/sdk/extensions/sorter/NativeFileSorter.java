@@ -30,16 +30,32 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 import org.apache.beam.sdk.coders.ByteArrayCoder;
 import org.apache.beam.sdk.values.KV;
 import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.base.Preconditions;
 import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.collect.Iterators;
+import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.collect.Lists;
+import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.io.Closeables;
 import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.primitives.UnsignedBytes;
+import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.util.concurrent.Uninterruptibles;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,12 +63,20 @@ import org.slf4j.LoggerFactory;
 /**
  * External Sorter based on <a
  * href="https://github.com/lemire/externalsortinginjava">lemire/externalsortinginjava</a>.
+ *
+ * <p>With more than one thread, blocks are sorted and spilled concurrently, and if there are more
+ * than {@link #MAX_MERGE_FILES} spill files they are first merged in parallel into fewer, larger
+ * ones, so that the final merge reads from a limited number of files. Sorters share a pool of
+ * daemon threads, and each one runs at most {@code numThreads} tasks at a time on it. If sorting
+ * fails, pending tasks are cancelled and all spill files created so far are deleted.
  */
 class NativeFileSorter {
 
   private static final Logger LOG = LoggerFactory.getLogger(NativeFileSorter.class);
 
   private static final int MAX_TEMP_FILES = 1024;
+  private static final int MAX_MERGE_FILES = 128;
+  private static final int STREAM_BUFFER_SIZE = 64 * 1024;
   private static final long OBJECT_OVERHEAD = getObjectOverhead();
 
   private static final Comparator<byte[]> COMPARATOR = UnsignedBytes.lexicographicalComparator();
@@ -60,20 +84,46 @@ class NativeFileSorter {
       (x, y) -> COMPARATOR.compare(x.getKey(), y.getKey());
   private static final ByteArrayCoder CODER = ByteArrayCoder.of();
 
+  // shared by all sorters of a worker, idle threads expire
+  private static final AtomicInteger THREAD_ID = new AtomicInteger(0);
+  private static final ExecutorService EXECUTOR =
+      Executors.newCachedThreadPool(
+          r -> {
+            final Thread t = new Thread(r, "smb-sorter-" + THREAD_ID.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+          });
+
   private final Path tempDir;
   private final long maxMemory;
+  private final int numThreads;
+  private final boolean compress;
   private final File dataFile;
   private final OutputStream dataStream;
 
   private boolean sortCalled = false;
 
-  /** Create a new file sorter. */
+  /** Create a new file sorter, configured by {@link SorterSysProps}. */
   public NativeFileSorter(Path tempDir, long maxMemory) throws IOException {
+    this(tempDir, maxMemory, SorterSysProps.getNumThreads(), SorterSysProps.getCompressSpills());
+  }
+
+  /**
+   * Create a new file sorter.
+   *
+   * @param numThreads number of threads used to sort and merge spill files.
+   * @param compress whether to compress the input and spill files.
+   */
+  public NativeFileSorter(Path tempDir, long maxMemory, int numThreads, boolean compress)
+      throws IOException {
+    Preconditions.checkArgument(numThreads > 0, "numThreads must be greater than zero");
     this.tempDir = tempDir;
     this.maxMemory = maxMemory;
+    this.numThreads = numThreads;
+    this.compress = compress;
 
     this.dataFile = Files.createTempFile(tempDir, "input", "seq").toFile();
-    this.dataStream = new BufferedOutputStream(new FileOutputStream(dataFile));
+    this.dataStream = newOutputStream(dataFile);
     dataFile.deleteOnExit();
 
     LOG.debug("Created input file {}", dataFile);
@@ -101,28 +151,41 @@ class NativeFileSorter {
 
     dataStream.close();
 
-    return mergeSortedFiles(sortInBatch());
+    if (numThreads == 1) {
+      return mergeSortedFiles(sortInBatch(null));
+    }
+    return mergeSortedFiles(cascadeMerge(sortInBatch(EXECUTOR), EXECUTOR));
   }
 
   ////////////////////////////////////////////////////////////////////////////////
 
   /**
    * Loads the file by blocks of records, sorts in memory, and writes the result to temporary files
-   * that have to be merged later.
+   * that have to be merged later. Blocks are sorted on the {@code executor} if not null, up to
+   * {@link #numThreads} at a time, while the next block is read, so that up to {@code numThreads +
+   * 1} blocks are in memory.
    */
-  private List<File> sortInBatch() throws IOException {
+  private List<File> sortInBatch(@Nullable ExecutorService executor) throws IOException {
     final long fileSize = Files.size(dataFile.toPath());
     final long memory = maxMemory > 0 ? maxMemory : estimateAvailableMemory();
-    final long blockSize = estimateBestBlockSize(fileSize, memory); // in bytes
+    // all blocks being sorted concurrently, and the one being read, must fit in memory
+    final int maxBlocksInMemory = executor == null ? 1 : numThreads + 1;
+    final long blockSize = estimateBestBlockSize(fileSize, memory / maxBlocksInMemory); // in bytes
     LOG.debug(
-        "Sort in batch with fileSize: {}, memory: {}, blockSize: {}", fileSize, memory, blockSize);
+        "Sort in batch with fileSize: {}, memory: {}, blockSize: {}, threads: {}",
+        fileSize,
+        memory,
+        blockSize,
+        numThreads);
 
     final List<File> files = new ArrayList<>();
-    InputStream inputStream = new BufferedInputStream(new FileInputStream(dataFile));
+    final Deque<SpillTask> pending = new ArrayDeque<>();
+    boolean succeeded = false;
+    InputStream inputStream = newInputStream(dataFile);
     try {
-      final List<KV<byte[], byte[]>> tempList = new ArrayList<>();
       @Nullable KV<byte[], byte[]> kv = KV.of(new byte[0], new byte[0]);
       while (kv != null) {
+        final List<KV<byte[], byte[]>> tempList = new ArrayList<>();
         long currentBlockSize = 0;
         while (currentBlockSize < blockSize) {
           kv = readKeyValue(inputStream);
@@ -134,36 +197,193 @@ class NativeFileSorter {
           tempList.add(kv);
           currentBlockSize += estimateSizeOf(kv);
         }
-        files.add(sortAndSave(tempList));
-        tempList.clear();
+
+        if (executor == null) {
+          files.add(sortAndSave(tempList));
+        } else {
+          if (pending.size() >= numThreads) {
+            files.add(pending.poll().await());
+          }
+          pending.add(new SpillTask(executor, () -> sortAndSave(tempList)));
+        }
+      }
+      while (!pending.isEmpty()) {
+        files.add(pending.poll().await());
       }
+      succeeded = true;
     } finally {
+      if (!succeeded) {
+        pending.forEach(SpillTask::abort);
+        files.forEach(File::delete);
+      }
       inputStream.close();
       dataFile.delete();
     }
     return files;
   }
 
+  /**
+   * Merges groups of up to {@link #MAX_MERGE_FILES} files on the {@code executor}, up to {@link
+   * #numThreads} groups at a time, until there are at most {@link #MAX_MERGE_FILES} files left.
+   */
+  private List<File> cascadeMerge(List<File> files, ExecutorService executor) throws IOException {
+    List<File> result = files;
+    while (result.size() > MAX_MERGE_FILES) {
+      // evenly sized groups
+      final int numGroups = (result.size() + MAX_MERGE_FILES - 1) / MAX_MERGE_FILES;
+      final int groupSize = (result.size() + numGroups - 1) / numGroups;
+      LOG.debug("Merging {} files into {} files", result.size(), numGroups);
+
+      final Deque<SpillTask> pending = new ArrayDeque<>();
+      final List<File> next = new ArrayList<>();
+      boolean succeeded = false;
+      try {
+        for (List<File> group : Lists.partition(result, groupSize)) {
+          if (pending.size() >= numThreads) {
+            next.add(pending.poll().await());
+          }
+          pending.add(new SpillTask(executor, () -> mergeAndSave(group)));
+        }
+        while (!pending.isEmpty()) {
+          next.add(pending.poll().await());
+        }
+        succeeded = true;
+      } finally {
+        if (!succeeded) {
+          // files of merged groups are already deleted
+          pending.forEach(SpillTask::abort);
+          next.forEach(File::delete);
+          result.forEach(File::delete);
+        }
+      }
+      result = next;
+    }
+    return result;
+  }
+
+  /**
+   * Merges sorted files into a new temporary file, and deletes them. If the merge fails, the new
+   * file is deleted and the sorted files are kept.
+   */
+  private File mergeAndSave(List<File> files) throws IOException {
+    final File tempFile = Files.createTempFile(tempDir, "merge", "seq").toFile();
+    tempFile.deleteOnExit();
+    LOG.debug("Merge and save {}", tempFile);
+
+    final List<InputStream> inputStreams = new ArrayList<>();
+    boolean succeeded = false;
+    try {
+      final List<Iterator<KV<byte[], byte[]>>> iterators = new ArrayList<>();
+      for (File file : files) {
+        final InputStream inputStream = newInputStream(file);
+        inputStreams.add(inputStream);
+        iterators.add(iterateStream(inputStream));
+      }
+      try (OutputStream outputStream = newOutputStream(tempFile)) {
+        final Iterator<KV<byte[], byte[]>> merged =
+            Iterators.mergeSorted(iterators, KV_COMPARATOR);
+        while (merged.hasNext()) {
+          final KV<byte[], byte[]> kv = merged.next();
+          CODER.encode(kv.getKey(), outputStream);
+          CODER.encode(kv.getValue(), outputStream);
+        }
+      }
+      succeeded = true;
+    } finally {
+      // exhausted streams are already closed
+      inputStreams.forEach(Closeables::closeQuietly);
+      if (!succeeded) {
+        tempFile.delete();
+      }
+    }
+    files.forEach(File::delete);
+    return tempFile;
+  }
+
   /** Sort a list and save it to a temporary file. */
   private File sortAndSave(List<KV<byte[], byte[]>> tempList) throws IOException {
     final File tempFile = Files.createTempFile(tempDir, "sort", "seq").toFile();
     tempFile.deleteOnExit();
     LOG.debug("Sort and save {}", tempFile);
 
-    tempList.sort(KV_COMPARATOR);
-
-    OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(tempFile));
+    boolean succeeded = false;
     try {
-      for (KV<byte[], byte[]> kv : tempList) {
-        CODER.encode(kv.getKey(), outputStream);
-        CODER.encode(kv.getValue(), outputStream);
+      tempList.sort(KV_COMPARATOR);
+
+      try (OutputStream outputStream = newOutputStream(tempFile)) {
+        for (KV<byte[], byte[]> kv : tempList) {
+          CODER.encode(kv.getKey(), outputStream);
+          CODER.encode(kv.getValue(), outputStream);
+        }
       }
+      succeeded = true;
     } finally {
-      outputStream.close();
+      if (!succeeded) {
+        tempFile.delete();
+      }
     }
     return tempFile;
   }
 
+  /**
+   * A {@link #sortAndSave} or {@link #mergeAndSave} task running on the shared executor, whose
+   * output file can be deleted once the task is done, if the sort fails.
+   */
+  private static final class SpillTask {
+    // claimed by the task when it starts, or by abort() so that it never starts
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final Future<File> future;
+    private volatile @Nullable File file = null;
+
+    SpillTask(ExecutorService executor, Callable<File> task) {
+      this.future =
+          executor.submit(
+              () -> {
+                if (!started.compareAndSet(false, true)) {
+                  return null;
+                }
+                try {
+                  file = task.call();
+                  return file;
+                } finally {
+                  done.countDown();
+                }
+              });
+    }
+
+    /** Waits for the output file of the task. */
+    File await() throws IOException {
+      try {
+        return future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while sorting", e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IOException("Failed to sort", e.getCause());
+      }
+    }
+
+    /**
+     * Cancels the task, waits for it to finish if it already started, and deletes its output file.
+     * A failed task deletes its own file.
+     */
+    void abort() {
+      future.cancel(true);
+      if (started.compareAndSet(false, true)) {
+        return;
+      }
+      Uninterruptibles.awaitUninterruptibly(done);
+      final File f = file;
+      if (f != null) {
+        f.delete();
+      }
+    }
+  }
+
   /** Merges a list of temporary flat files. */
   private Iterable<KV<byte[], byte[]>> mergeSortedFiles(List<File> files) {
     return () -> {
@@ -180,11 +400,18 @@ class NativeFileSorter {
     };
   }
 
-  /** Creates an {@link Iterator} over the key-value pairs in a file. */
+  /**
+   * Creates an {@link Iterator} over the key-value pairs in a file. The file is closed once
+   * exhausted.
+   */
   private Iterator<KV<byte[], byte[]>> iterateFile(File file) throws FileNotFoundException {
-    final InputStream inputStream = new BufferedInputStream(new FileInputStream(file));
+    return iterateStream(newInputStream(file));
+  }
+
+  /** Creates an {@link Iterator} over the key-value pairs in a stream, closed once exhausted. */
+  private Iterator<KV<byte[], byte[]>> iterateStream(InputStream inputStream) {
     return new Iterator<KV<byte[], byte[]>>() {
-      @Nullable KV<byte[], byte[]> nextKv = readKeyValueOrFail(inputStream);
+      @Nullable KV<byte[], byte[]> nextKv = readKeyValueOrClose(inputStream);
 
       @Override
       public boolean hasNext() {
@@ -197,12 +424,51 @@ class NativeFileSorter {
           throw new NoSuchElementException();
         }
         KV<byte[], byte[]> r = nextKv;
-        nextKv = readKeyValueOrFail(inputStream);
+        nextKv = readKeyValueOrClose(inputStream);
         return r;
       }
     };
   }
 
+  private @Nullable KV<byte[], byte[]> readKeyValueOrClose(InputStream inputStream) {
+    final @Nullable KV<byte[], byte[]> kv = readKeyValueOrFail(inputStream);
+    if (kv == null) {
+      try {
+        inputStream.close();
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    return kv;
+  }
+
+  private OutputStream newOutputStream(File file) throws FileNotFoundException {
+    final OutputStream outputStream = new FileOutputStream(file);
+    if (!compress) {
+      return new BufferedOutputStream(outputStream, STREAM_BUFFER_SIZE);
+    }
+    // favor speed, spill files are short-lived
+    final DeflaterOutputStream deflaterStream =
+        new DeflaterOutputStream(outputStream, new Deflater(Deflater.BEST_SPEED)) {
+          @Override
+          public void close() throws IOException {
+            try {
+              super.close();
+            } finally {
+              // non-default deflaters aren't released by the stream
+              def.end();
+            }
+          }
+        };
+    return new BufferedOutputStream(deflaterStream, STREAM_BUFFER_SIZE);
+  }
+
+  private InputStream newInputStream(File file) throws FileNotFoundException {
+    final InputStream inputStream = new FileInputStream(file);
+    return new BufferedInputStream(
+        compress ? new InflaterInputStream(inputStream) : inputStream, STREAM_BUFFER_SIZE);
+  }
+
   private @Nullable KV<byte[], byte[]> readKeyValueOrFail(InputStream inputStream) {
     try {
       return readKeyValue(inputStream);
@@ -226,11 +492,6 @@ class NativeFileSorter {
 
   ////////////////////////////////////////////////////////////////////////////////
 
-  private int bufferSize(int numFiles) {
-    final long memory = maxMemory > 0 ? maxMemory : estimateAvailableMemory();
-    return (int) (memory / numFiles / 2);
-  }
-
   /**
    * This method calls the garbage collector and then returns the free memory. This avoids problems
    * with applications where the GC hasn't reclaimed memory and reports no available memory.
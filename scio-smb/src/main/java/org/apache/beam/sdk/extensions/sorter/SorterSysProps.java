@@ -27,4 +27,17 @@ public class SorterSysProps {
   public static String getTempLocation() {
     return System.getProperty("smb.sorter.tmpdir", "/tmp");
   }
+
+  /**
+   * The number of threads each external sort uses to sort and merge intermediate files. Defaults
+   * to 1.
+   */
+  public static int getNumThreads() {
+    return Integer.getInteger("smb.sorter.threads", 1);
+  }
+
+  /** Whether the sorter compresses intermediate files. Defaults to false. */
+  public static boolean getCompressSpills() {
+    return Boolean.getBoolean("smb.sorter.compress");
+  }
 }
@@ -69,7 +69,11 @@ final class SortedBucketScioContext(@transient private val self: ScioContext) ex
     rhs: SortedBucketIO.Read[R],
     targetParallelism: TargetParallelism = TargetParallelism.auto()
   ): SCollection[(K, (L, R))] = {
-    val t = SortedBucketIO.read(keyClass).of(lhs, rhs).withTargetParallelism(targetParallelism)
+    val t = SortedBucketIO
+      .read(keyClass)
+      .of(lhs, rhs)
+      .withTargetParallelism(targetParallelism)
+      .withInnerJoin()
     val (tupleTagA, tupleTagB) = (lhs.getTupleTag, rhs.getTupleTag)
     val tfName = self.tfName
 
@@ -113,6 +117,7 @@ final class SortedBucketScioContext(@transient private val self: ScioContext) ex
       .of(lhs)
       .and(rhs)
       .withTargetParallelism(targetParallelism)
+      .withInnerJoin()
     val (tupleTagA, tupleTagB) = (lhs.getTupleTag, rhs.getTupleTag)
     val tfName = self.tfName
 
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.beam.sdk.extensions.smb;
+
+import com.google.api.services.bigquery.model.TableRow;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.beam.sdk.coders.KvCoder;
+import org.apache.beam.sdk.coders.ListCoder;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.io.Compression;
+import org.apache.beam.sdk.io.fs.ResourceId;
+import org.apache.beam.sdk.io.gcp.bigquery.TableRowJsonCoder;
+import org.apache.beam.sdk.testing.NeedsRunner;
+import org.apache.beam.sdk.testing.PAssert;
+import org.apache.beam.sdk.testing.TestPipeline;
+import org.apache.beam.sdk.transforms.Create;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.transforms.join.CoGbkResult;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollection;
+import org.apache.beam.sdk.values.TupleTag;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+/** E2E test for appending to an existing SMB partition. */
+public class AppendWriteEndToEndTest {
+  @Rule public final TestPipeline writePipeline = TestPipeline.create();
+  @Rule public final TestPipeline appendPipeline1 = TestPipeline.create();
+  @Rule public final TestPipeline appendPipeline2 = TestPipeline.create();
+  @Rule public final TestPipeline readPipeline = TestPipeline.create();
+  @Rule public final TemporaryFolder outputFolder = new TemporaryFolder();
+  @Rule public final TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  private static final TupleTag<TableRow> TAG = new TupleTag<>("input");
+
+  private static TableRow Json(String user, String country) {
+    return new TableRow().set("user", user).set("country", country);
+  }
+
+  private JsonSortedBucketIO.Write<String, Void> write(int numShards) {
+    return JsonSortedBucketIO.write(String.class, "user")
+        .to(outputFolder.getRoot().getPath())
+        .withTempDirectory(tmpFolder.getRoot().getPath())
+        .withNumBuckets(2)
+        .withNumShards(numShards)
+        .withSuffix(".json")
+        .withCompression(Compression.UNCOMPRESSED);
+  }
+
+  private static void run(
+      TestPipeline pipeline,
+      SortedBucketIO.Write<?, ?, TableRow> write,
+      boolean append,
+      TableRow... rows) {
+    final PCollection<TableRow> input =
+        pipeline.apply(Create.of(Arrays.asList(rows)).withCoder(TableRowJsonCoder.of()));
+    if (append) {
+      input.apply(write.appendToExisting());
+    } else {
+      input.apply(write);
+    }
+    pipeline.run().waitUntilFinish();
+  }
+
+  @Test
+  @Category(NeedsRunner.class)
+  public void testAppendToExisting() throws Exception {
+    run(writePipeline, write(1), false, Json("a", "US"), Json("b", "SE"), Json("c", "DE"));
+    run(appendPipeline1, write(2), true, Json("a", "MX"), Json("d", "AU"));
+    run(appendPipeline2, write(1), true, Json("b", "US"));
+
+    // the metadata file is replaced by renaming a temp file, which doesn't remain
+    final ResourceId directory = TestUtils.fromFolder(outputFolder);
+    final BucketMetadata<?, ?, ?> metadata = BucketMetadata.get(directory);
+    Assert.assertEquals(1, metadata.getNumShards());
+    Assert.assertEquals(Arrays.asList(2, 1), metadata.getAppendedShards());
+    Assert.assertEquals(BucketMetadata.APPENDED_SHARDS_VERSION, metadata.getVersion());
+    final List<String> hiddenFiles = new ArrayList<>();
+    for (File file : outputFolder.getRoot().listFiles()) {
+      if (file.getName().startsWith(".")) {
+        hiddenFiles.add(file.getName());
+      }
+    }
+    Assert.assertEquals(Collections.emptyList(), hiddenFiles);
+
+    final PCollection<KV<String, List<String>>> countries =
+        readPipeline
+            .apply(
+                SortedBucketIO.read(String.class)
+                    .of(JsonSortedBucketIO.read(TAG).from(outputFolder.getRoot().getPath())))
+            .apply(ParDo.of(new ToCountries()))
+            .setCoder(KvCoder.of(StringUtf8Coder.of(), ListCoder.of(StringUtf8Coder.of())));
+    PAssert.that(countries)
+        .containsInAnyOrder(
+            KV.of("a", Arrays.asList("MX", "US")),
+            KV.of("b", Arrays.asList("SE", "US")),
+            KV.of("c", Collections.singletonList("DE")),
+            KV.of("d", Collections.singletonList("AU")));
+    readPipeline.run();
+  }
+
+  private static class ToCountries
+      extends DoFn<KV<String, CoGbkResult>, KV<String, List<String>>> {
+    @ProcessElement
+    public void processElement(
+        @Element KV<String, CoGbkResult> kv, OutputReceiver<KV<String, List<String>>> out) {
+      final List<String> countries = new ArrayList<>();
+      kv.getValue().getAll(TAG).forEach(row -> countries.add((String) row.get("country")));
+      Collections.sort(countries);
+      out.output(KV.of(kv.getKey(), countries));
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.beam.sdk.extensions.smb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.apache.beam.sdk.io.FileIO;
+import org.apache.beam.sdk.io.LocalResources;
+import org.apache.beam.sdk.io.TextIO;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Unit tests for {@link AsyncWriter}. */
+public class AsyncWriterTest {
+  @Rule public final TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  private void testWrite(int numRecords, int chunkSize) throws IOException {
+    final File file = tmpFolder.newFile();
+    final List<String> records =
+        IntStream.range(0, numRecords).mapToObj(i -> "record" + i).collect(Collectors.toList());
+
+    try (AsyncWriter<String> writer =
+        new AsyncWriter<>(
+            "test",
+            new TestFileOperations().createWriter(LocalResources.fromFile(file, false)),
+            chunkSize)) {
+      for (String record : records) {
+        writer.write(record);
+      }
+    }
+
+    Assert.assertEquals(records, Files.readAllLines(file.toPath(), Charset.defaultCharset()));
+  }
+
+  @Test
+  public void testWrite() throws IOException {
+    testWrite(1000, 7);
+    testWrite(1000, 1000);
+    testWrite(1000, 10000);
+  }
+
+  @Test
+  public void testEmpty() throws IOException {
+    testWrite(0, 10);
+  }
+
+  @Test
+  public void testFailure() throws IOException {
+    final File file = tmpFolder.newFile();
+    final FileOperations<String> fileOperations =
+        new TestFileOperations() {
+          @Override
+          public FileIO.Sink<String> createSink() {
+            return new FileIO.Sink<String>() {
+              private final TextIO.Sink sink = TextIO.sink();
+
+              @Override
+              public void open(WritableByteChannel channel) throws IOException {
+                sink.open(channel);
+              }
+
+              @Override
+              public void write(String element) throws IOException {
+                throw new IOException("Failed to write " + element);
+              }
+
+              @Override
+              public void flush() throws IOException {
+                sink.flush();
+              }
+            };
+          }
+        };
+
+    final AsyncWriter<String> writer =
+        new AsyncWriter<>(
+            "test", fileOperations.createWriter(LocalResources.fromFile(file, false)), 2);
+    final IOException e =
+        Assert.assertThrows(
+            IOException.class,
+            () -> {
+              // fails once the writer thread stops taking chunks, at the latest when closed
+              for (int i = 0; i < 100; i++) {
+                writer.write("record" + i);
+              }
+              writer.close();
+            });
+    Assert.assertEquals("Failed to write record0", e.getCause().getMessage());
+  }
+
+  @Test
+  public void testAbort() throws IOException {
+    final File file = tmpFolder.newFile();
+    final FileOperations<String> fileOperations =
+        new TestFileOperations() {
+          @Override
+          public FileIO.Sink<String> createSink() {
+            return new FileIO.Sink<String>() {
+              private final TextIO.Sink sink = TextIO.sink();
+
+              @Override
+              public void open(WritableByteChannel channel) throws IOException {
+                sink.open(channel);
+              }
+
+              @Override
+              public void write(String element) throws IOException {
+                sink.write(element);
+              }
+
+              @Override
+              public void flush() throws IOException {
+                throw new IOException("Failed to flush");
+              }
+            };
+          }
+        };
+
+    final AsyncWriter<String> writer =
+        new AsyncWriter<>(
+            "test", fileOperations.createWriter(LocalResources.fromFile(file, false)), 2);
+    for (int i = 0; i < 100; i++) {
+      writer.write("record" + i);
+    }
+    final Exception cause = new RuntimeException("Failed upstream");
+    writer.abort(cause);
+    // the writer is closed once the writer thread stopped, and aborting again is a no-op
+    writer.abort(cause);
+    Assert.assertEquals(1, cause.getSuppressed().length);
+    Assert.assertEquals("Failed to flush", cause.getSuppressed()[0].getMessage());
+  }
+}
@@ -21,8 +21,10 @@ import static org.apache.beam.sdk.extensions.smb.TestUtils.fromFolder;
 import static org.apache.beam.sdk.transforms.display.DisplayDataMatchers.hasDisplayItem;
 
 import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -97,6 +99,212 @@ public class AvroFileOperationsTest {
     Assert.assertEquals(records, actual);
   }
 
+  @Test
+  public void testIndexedRead() throws Exception {
+    final AvroFileOperations<GenericRecord> fileOperations =
+        AvroFileOperations.of(USER_SCHEMA, CodecFactory.snappyCodec());
+    final ResourceId file =
+        fromFolder(output).resolve("file.avro", StandardResolveOptions.RESOLVE_FILE);
+
+    // 2 records per key, an index entry every 10 records
+    final List<GenericRecord> records =
+        IntStream.range(0, 100)
+            .mapToObj(
+                i ->
+                    new GenericRecordBuilder(USER_SCHEMA)
+                        .set("name", String.format("user%02d", i / 2))
+                        .set("age", i)
+                        .build())
+            .collect(Collectors.toList());
+    final BucketIndex.Builder indexBuilder = new BucketIndex.Builder(10);
+    final FileOperations.Writer<GenericRecord> writer = fileOperations.createWriter(file);
+    for (GenericRecord record : records) {
+      final byte[] key = record.get("name").toString().getBytes(StandardCharsets.UTF_8);
+      if (indexBuilder.shouldIndex(key)) {
+        indexBuilder.add(key, writer.sync());
+      }
+      writer.write(record);
+    }
+    writer.close();
+    indexBuilder.build().write(file);
+
+    final byte[] startKey = "user25".getBytes(StandardCharsets.UTF_8);
+    final List<GenericRecord> actual = new ArrayList<>();
+    fileOperations.iterator(file, null, null, startKey).forEachRemaining(actual::add);
+
+    // user25 starts at record 50, which is indexed
+    Assert.assertEquals(records.subList(50, 100), actual);
+
+    // user26 isn't indexed, starts at the previous entry
+    final List<GenericRecord> fromFloor = new ArrayList<>();
+    fileOperations
+        .iterator(file, null, null, "user26".getBytes(StandardCharsets.UTF_8))
+        .forEachRemaining(fromFloor::add);
+    Assert.assertEquals(records.subList(50, 100), fromFloor);
+
+    // files without an index are read from the start
+    final ResourceId unindexed =
+        fromFolder(output).resolve("unindexed.avro", StandardResolveOptions.RESOLVE_FILE);
+    FileSystems.copy(Collections.singletonList(file), Collections.singletonList(unindexed));
+    final List<GenericRecord> all = new ArrayList<>();
+    fileOperations.iterator(unindexed, null, null, startKey).forEachRemaining(all::add);
+    Assert.assertEquals(records, all);
+  }
+
+  @Test
+  public void testLazyRead() throws Exception {
+    final Schema locationSchema =
+        Schema.createRecord(
+            "Location",
+            "",
+            "org.apache.beam.sdk.extensions.smb.avro",
+            false,
+            Lists.newArrayList(
+                new Schema.Field("country", Schema.create(Schema.Type.STRING), "", ""),
+                new Schema.Field("city", Schema.create(Schema.Type.STRING), "", "")));
+    final Schema schema =
+        Schema.createRecord(
+            "LocatedUser",
+            "",
+            "org.apache.beam.sdk.extensions.smb.avro",
+            false,
+            Lists.newArrayList(
+                new Schema.Field("name", Schema.create(Schema.Type.STRING), "", ""),
+                new Schema.Field(
+                    "location",
+                    Schema.createUnion(Schema.create(Schema.Type.NULL), locationSchema),
+                    "",
+                    JsonProperties.NULL_VALUE),
+                new Schema.Field("age", Schema.create(Schema.Type.INT), "", 0)));
+    final AvroBucketMetadata<String, Integer, GenericRecord> metadata =
+        new AvroBucketMetadata<>(
+            1,
+            1,
+            String.class,
+            "location.country",
+            Integer.class,
+            "age",
+            BucketMetadata.HashType.MURMUR3_128,
+            SortedBucketIO.DEFAULT_FILENAME_PREFIX,
+            schema);
+    final AvroFileOperations<GenericRecord> fileOperations =
+        AvroFileOperations.of(schema, CodecFactory.snappyCodec());
+    final ResourceId file =
+        fromFolder(output).resolve("file.avro", StandardResolveOptions.RESOLVE_FILE);
+
+    final List<GenericRecord> records =
+        IntStream.range(0, 100)
+            .mapToObj(
+                i ->
+                    new GenericRecordBuilder(schema)
+                        .set("name", String.format("user%02d", i))
+                        .set(
+                            "location",
+                            new GenericRecordBuilder(locationSchema)
+                                .set("country", String.format("country%02d", i / 10))
+                                .set("city", String.format("city%02d", i))
+                                .build())
+                        .set("age", i)
+                        .build())
+            .collect(Collectors.toList());
+    // a block every 7 records
+    final FileOperations.Writer<GenericRecord> writer = fileOperations.createWriter(file);
+    for (int i = 0; i < records.size(); i++) {
+      if (i % 7 == 0) {
+        writer.sync();
+      }
+      writer.write(records.get(i));
+    }
+    writer.close();
+
+    // only key fields are decoded while reading, records once resolved
+    final List<GenericRecord> actual = new ArrayList<>();
+    final Iterator<GenericRecord> iterator =
+        fileOperations.iterator(file, null, null, fileOperations.createLazyReader(metadata, true));
+    while (iterator.hasNext()) {
+      final GenericRecord value = iterator.next();
+      Assert.assertTrue(value instanceof LazyRecord);
+      final GenericRecord record = records.get(actual.size());
+      final SortedBucketIO.ComparableKeyBytes key =
+          LazyRecord.keyOf(value, metadata::primaryAndSecondaryComparableKeyBytes);
+      Assert.assertArrayEquals(metadata.getKeyBytesPrimary(record), key.primary);
+      Assert.assertArrayEquals(metadata.getKeyBytesSecondary(record), key.secondary);
+      actual.add(LazyRecord.resolve(value));
+    }
+    Assert.assertEquals(records, actual);
+
+    // records are resolved after the reader moved past their block, from any thread
+    final List<GenericRecord> lazy = new ArrayList<>();
+    fileOperations
+        .iterator(file, null, null, fileOperations.createLazyReader(metadata, true))
+        .forEachRemaining(lazy::add);
+    Assert.assertEquals(
+        records, lazy.parallelStream().map(LazyRecord::resolve).collect(Collectors.toList()));
+
+    // key fields of specific records are decoded generically
+    final AvroFileOperations<AvroGeneratedUser> specificFileOperations =
+        AvroFileOperations.of(AvroGeneratedUser.class);
+    final ResourceId specificFile =
+        fromFolder(output).resolve("specific.avro", StandardResolveOptions.RESOLVE_FILE);
+    final List<AvroGeneratedUser> users =
+        IntStream.range(0, 10)
+            .mapToObj(
+                i ->
+                    AvroGeneratedUser.newBuilder()
+                        .setName(String.format("user%02d", i))
+                        .setFavoriteColor(String.format("color%02d", i))
+                        .setFavoriteNumber(i)
+                        .build())
+            .collect(Collectors.toList());
+    final FileOperations.Writer<AvroGeneratedUser> specificWriter =
+        specificFileOperations.createWriter(specificFile);
+    for (AvroGeneratedUser user : users) {
+      specificWriter.write(user);
+    }
+    specificWriter.close();
+
+    final AvroBucketMetadata<String, Void, AvroGeneratedUser> specificMetadata =
+        new AvroBucketMetadata<>(
+            1,
+            1,
+            String.class,
+            "name",
+            null,
+            null,
+            BucketMetadata.HashType.MURMUR3_128,
+            SortedBucketIO.DEFAULT_FILENAME_PREFIX,
+            AvroGeneratedUser.class);
+    final List<AvroGeneratedUser> actualUsers = new ArrayList<>();
+    specificFileOperations
+        .iterator(
+            specificFile,
+            null,
+            null,
+            specificFileOperations.createLazyReader(specificMetadata, false))
+        .forEachRemaining(v -> actualUsers.add(LazyRecord.resolve(v)));
+    Assert.assertEquals(users, actualUsers);
+  }
+
+  @Test
+  public void testProjectKeyFields() {
+    final Schema projected =
+        AvroFileOperations.projectKeyFields(
+            AvroGeneratedUser.SCHEMA$, Collections.singletonList("favorite_number"), true);
+    Assert.assertEquals(AvroGeneratedUser.SCHEMA$.getFullName(), projected.getFullName());
+    Assert.assertEquals(1, projected.getFields().size());
+    Assert.assertEquals(
+        AvroGeneratedUser.SCHEMA$.getField("favorite_number").schema(),
+        projected.getField("favorite_number").schema());
+
+    // missing and non-record parent fields can't be projected
+    Assert.assertNull(
+        AvroFileOperations.projectKeyFields(
+            AvroGeneratedUser.SCHEMA$, Collections.singletonList("missing"), true));
+    Assert.assertNull(
+        AvroFileOperations.projectKeyFields(
+            AvroGeneratedUser.SCHEMA$, Collections.singletonList("name.first"), true));
+  }
+
   @Test
   public void testSpecificRecord() throws Exception {
     final AvroFileOperations<AvroGeneratedUser> fileOperations =
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.beam.sdk.extensions.smb;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.apache.beam.sdk.extensions.smb.BucketMetadata.HashType;
+import org.apache.beam.sdk.io.LocalResources;
+import org.apache.beam.sdk.io.fs.ResourceId;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Unit tests for {@link BucketBloomFilter}. */
+public class BucketBloomFilterTest {
+  @Rule public final TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  private static byte[] key(int i) {
+    return String.format("user%06d", i).getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static BucketBloomFilter build(HashType hashType, int numKeys) {
+    final BucketBloomFilter.Builder builder = new BucketBloomFilter.Builder(hashType, 0.01);
+    for (int i = 0; i < numKeys; i++) {
+      // duplicate keys of a key group don't grow the filter
+      builder.add(key(i));
+      builder.add(key(i));
+    }
+    return builder.build();
+  }
+
+  private static void testFalsePositiveRate(HashType hashType) {
+    final BucketBloomFilter filter = build(hashType, 10000);
+    for (int i = 0; i < 10000; i++) {
+      Assert.assertTrue(filter.mightContain(key(i)));
+    }
+
+    int falsePositives = 0;
+    for (int i = 10000; i < 110000; i++) {
+      if (filter.mightContain(key(i))) {
+        falsePositives++;
+      }
+    }
+    Assert.assertTrue("False positives: " + falsePositives, falsePositives < 2000);
+  }
+
+  @Test
+  public void testMurmur3_32() {
+    testFalsePositiveRate(HashType.MURMUR3_32);
+  }
+
+  @Test
+  public void testMurmur3_128() {
+    testFalsePositiveRate(HashType.MURMUR3_128);
+  }
+
+  @Test
+  public void testReadWrite() throws IOException {
+    final ResourceId bucketFile =
+        LocalResources.fromFile(tmpFolder.newFile("bucket-00000-of-00001.avro"), false);
+    build(HashType.MURMUR3_128, 1000).write(bucketFile);
+
+    final BucketBloomFilter filter = BucketBloomFilter.read(bucketFile);
+    Assert.assertNotNull(filter);
+    for (int i = 0; i < 1000; i++) {
+      Assert.assertTrue(filter.mightContain(key(i)));
+    }
+  }
+
+  @Test
+  public void testMissingFilter() throws IOException {
+    final ResourceId bucketFile =
+        LocalResources.fromFile(tmpFolder.newFile("bucket-00000-of-00001.avro"), false);
+    Assert.assertNull(BucketBloomFilter.read(bucketFile));
+  }
+
+  @Test
+  public void testEmpty() {
+    final BucketBloomFilter.Builder builder =
+        new BucketBloomFilter.Builder(HashType.MURMUR3_32, 0.01);
+    Assert.assertTrue(builder.isEmpty());
+    Assert.assertFalse(builder.build().mightContain(key(0)));
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.beam.sdk.extensions.smb;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Unit tests for {@link BucketIdCache}. */
+public class BucketIdCacheTest {
+  private static <K> ToIntFunction<K> bucketIdFn(AtomicInteger calls) {
+    return key -> {
+      calls.incrementAndGet();
+      return Math.abs(key.hashCode()) % 128;
+    };
+  }
+
+  private static <K> void testSkewedKeys(Class<K> keyClass, IntFunction<K> keyFn) {
+    final BucketIdCache<K> cache = BucketIdCache.of(keyClass, 100);
+    final AtomicInteger calls = new AtomicInteger();
+    final ToIntFunction<K> fn = bucketIdFn(calls);
+
+    // 50 hot keys, and more keys than the cache size
+    for (int i = 0; i < 5 * BucketIdCache.SAMPLE_SIZE; i++) {
+      final K key = keyFn.apply(i % 2 == 0 ? i % 50 : i);
+      Assert.assertEquals(Math.abs(key.hashCode()) % 128, cache.getBucketId(key, fn));
+    }
+    Assert.assertFalse(cache.isBypassed());
+    Assert.assertTrue(calls.get() < 4 * BucketIdCache.SAMPLE_SIZE);
+  }
+
+  @Test
+  public void testSkewedLongKeys() {
+    testSkewedKeys(Long.class, i -> (long) i);
+  }
+
+  @Test
+  public void testSkewedIntegerKeys() {
+    testSkewedKeys(Integer.class, i -> i);
+  }
+
+  @Test
+  public void testSkewedStringKeys() {
+    testSkewedKeys(String.class, i -> "key" + i);
+  }
+
+  @Test
+  public void testLargeLongCache() {
+    // slots are allocated as keys are seen, not for the whole cache size
+    final BucketIdCache<Long> cache = BucketIdCache.of(Long.class, Integer.MAX_VALUE);
+    final AtomicInteger calls = new AtomicInteger();
+    final ToIntFunction<Long> fn = bucketIdFn(calls);
+
+    // more keys than the initial table
+    for (int i = 0; i < 3 * BucketIdCache.SAMPLE_SIZE; i++) {
+      final Long key = (long) (i % 5000);
+      Assert.assertEquals(Math.abs(key.hashCode()) % 128, cache.getBucketId(key, fn));
+    }
+    Assert.assertFalse(cache.isBypassed());
+    Assert.assertTrue(calls.get() < 3 * BucketIdCache.SAMPLE_SIZE / 2);
+  }
+
+  @Test
+  public void testUniformKeys() {
+    final BucketIdCache<String> cache = BucketIdCache.of(String.class, 100);
+    final AtomicInteger calls = new AtomicInteger();
+    final ToIntFunction<String> fn = bucketIdFn(calls);
+
+    for (int i = 0; i < BucketIdCache.SAMPLE_SIZE; i++) {
+      Assert.assertFalse(cache.isBypassed());
+      cache.getBucketId("key" + i, fn);
+    }
+    // the first sample has no hits
+    Assert.assertTrue(cache.isBypassed());
+    final String key = "key0";
+    Assert.assertEquals(Math.abs(key.hashCode()) % 128, cache.getBucketId(key, fn));
+    Assert.assertEquals(BucketIdCache.SAMPLE_SIZE + 1, calls.get());
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.beam.sdk.extensions.smb;
+
+import static org.apache.beam.sdk.extensions.smb.TestUtils.fromFolder;
+
+import java.io.IOException;
+import org.apache.beam.sdk.io.fs.ResolveOptions.StandardResolveOptions;
+import org.apache.beam.sdk.io.fs.ResourceId;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Unit tests for {@link BucketIndex}. */
+public class BucketIndexTest {
+  @Rule public final TemporaryFolder output = new TemporaryFolder();
+
+  private static byte[] key(int k) {
+    return new byte[] {(byte) k};
+  }
+
+  @Test
+  public void testSamplesKeyGroupStarts() {
+    final BucketIndex.Builder builder = new BucketIndex.Builder(2);
+    // key groups of 3 records: 0 0 0 1 1 1 2 2 2, only the first record of a group is indexed
+    final boolean[] expected = {false, false, false, true, false, false, true, false, false};
+    for (int i = 0; i < expected.length; i++) {
+      final byte[] key = key(i / 3);
+      final boolean indexed = builder.shouldIndex(key);
+      Assert.assertEquals("record " + i, expected[i], indexed);
+      if (indexed) {
+        builder.add(key, i * 10L);
+      }
+    }
+    Assert.assertEquals(2, builder.build().size());
+  }
+
+  @Test
+  public void testFloorOffset() throws IOException {
+    final BucketIndex.Builder builder = new BucketIndex.Builder(0);
+    builder.add(key(10), 100L);
+    builder.add(key(20), 200L);
+    builder.add(key(0xf0), 300L);
+
+    final ResourceId file =
+        fromFolder(output).resolve("bucket.avro", StandardResolveOptions.RESOLVE_FILE);
+    builder.build().write(file);
+    final BucketIndex index = BucketIndex.read(file);
+
+    Assert.assertEquals(3, index.size());
+    Assert.assertEquals(0L, index.floorOffset(key(5)));
+    Assert.assertEquals(100L, index.floorOffset(key(10)));
+    Assert.assertEquals(100L, index.floorOffset(key(15)));
+    Assert.assertEquals(200L, index.floorOffset(key(20)));
+    // keys are compared as unsigned bytes
+    Assert.assertEquals(200L, index.floorOffset(key(0x80)));
+    Assert.assertEquals(300L, index.floorOffset(key(0xff)));
+  }
+
+  @Test
+  public void testMissingIndex() throws IOException {
+    final ResourceId file =
+        fromFolder(output).resolve("bucket.avro", StandardResolveOptions.RESOLVE_FILE);
+    Assert.assertNull(BucketIndex.read(file));
+  }
+}
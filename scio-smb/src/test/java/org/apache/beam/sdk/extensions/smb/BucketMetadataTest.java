@@ -21,9 +21,16 @@ import static org.apache.beam.sdk.extensions.smb.SortedBucketIO.DEFAULT_FILENAME
 import static org.apache.beam.sdk.transforms.display.DisplayDataMatchers.hasDisplayItem;
 
 import com.google.api.services.bigquery.model.TableRow;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.util.Utf8;
+import org.apache.beam.sdk.coders.Coder;
 import org.apache.beam.sdk.coders.Coder.NonDeterministicException;
 import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.coders.VarIntCoder;
+import org.apache.beam.sdk.coders.VarLongCoder;
 import org.apache.beam.sdk.extensions.smb.BucketMetadata.HashType;
 import org.apache.beam.sdk.io.AvroGeneratedUser;
 import org.apache.beam.sdk.transforms.display.DisplayData;
@@ -135,16 +142,39 @@ public class BucketMetadataTest {
     final TestBucketMetadata m5 =
         new TestBucketMetadata(1, 1, 1, HashType.MURMUR3_32, DEFAULT_FILENAME_PREFIX);
     final TestBucketMetadata m6 =
-        new TestBucketMetadata(2, 1, 1, HashType.MURMUR3_32, DEFAULT_FILENAME_PREFIX);
+        new TestBucketMetadata(3, 1, 1, HashType.MURMUR3_32, DEFAULT_FILENAME_PREFIX);
+    final BucketMetadata<String, Void, String> m7 = m1.withAppendedShards(1);
 
     Assert.assertTrue(m1.isCompatibleWith(m2));
     Assert.assertTrue(m1.isCompatibleWith(m3));
     Assert.assertFalse(m1.isCompatibleWith(m4));
     Assert.assertTrue("version 0 and version 1 should be compatible", m1.isCompatibleWith(m5));
     Assert.assertFalse(
-        "version 0 and version 2 are presumed incompatible", m1.isCompatibleWith(m6));
+        "version 0 and version 3 are presumed incompatible", m1.isCompatibleWith(m6));
     Assert.assertFalse(
-        "version 1 and version 2 are presumed incompatible", m5.isCompatibleWith(m6));
+        "version 1 and version 3 are presumed incompatible", m5.isCompatibleWith(m6));
+    Assert.assertTrue(
+        "version 0 and version 2 with appended shards should be compatible",
+        m1.isCompatibleWith(m7));
+  }
+
+  @Test
+  public void testAppendedShardsVersion() throws Exception {
+    final TestBucketMetadata metadata =
+        new TestBucketMetadata(0, 1, 1, HashType.MURMUR3_32, DEFAULT_FILENAME_PREFIX);
+
+    // readers unaware of appended shards reject version 2 instead of skipping them
+    final BucketMetadata<String, Void, String> appended =
+        metadata.withAppendedShards(2).withAppendedShards(1);
+    Assert.assertEquals(BucketMetadata.APPENDED_SHARDS_VERSION, appended.getVersion());
+    Assert.assertEquals(Arrays.asList(2, 1), appended.getAppendedShards());
+    Assert.assertEquals(
+        BucketMetadata.APPENDED_SHARDS_VERSION,
+        BucketMetadata.from(appended.toString()).getVersion());
+
+    final BucketMetadata<String, Void, String> compacted = appended.withNumShards(1);
+    Assert.assertEquals(BucketMetadata.CURRENT_VERSION, compacted.getVersion());
+    Assert.assertTrue(compacted.getAppendedShards().isEmpty());
   }
 
   @Test
@@ -217,6 +247,62 @@ public class BucketMetadataTest {
     Assert.assertNull(m2.getKeyBytesSecondary("a"));
   }
 
+  private static <K> void testKeyEncoding(BucketMetadata<?, ?, ?> m, K key, Coder<K> coder)
+      throws Exception {
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    coder.encode(key, expected);
+    Assert.assertArrayEquals(expected.toByteArray(), m.encodeKeyBytes(key, coder));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testKeyEncodingFastPaths() throws Exception {
+    final TestBucketMetadata m =
+        new TestBucketMetadata(0, 1, 1, HashType.MURMUR3_32, DEFAULT_FILENAME_PREFIX);
+    final char[] longString = new char[1000];
+    Arrays.fill(longString, 'x');
+
+    // includes multi-byte characters, a surrogate pair and a lone surrogate
+    for (String key :
+        Arrays.asList(
+            "", "a", "user123", "\u00fcn\u00efc\u00f6d\u00e9", "\uD83D\uDE00", "\uD800")) {
+      testKeyEncoding(m, key, StringUtf8Coder.of());
+    }
+    testKeyEncoding(m, new String(longString), StringUtf8Coder.of());
+
+    final Coder<CharSequence> charSequenceCoder =
+        (Coder<CharSequence>) AvroUtils.coderOverrides().get(CharSequence.class);
+    testKeyEncoding(m, "user123", charSequenceCoder);
+    testKeyEncoding(m, new Utf8("\u00fcn\u00efc\u00f6d\u00e9"), charSequenceCoder);
+
+    for (long key : new long[] {0L, 1L, 127L, 128L, -1L, Long.MIN_VALUE, Long.MAX_VALUE}) {
+      testKeyEncoding(m, key, VarLongCoder.of());
+    }
+    for (int key : new int[] {0, 1, 127, 128, -1, Integer.MIN_VALUE, Integer.MAX_VALUE}) {
+      testKeyEncoding(m, key, VarIntCoder.of());
+    }
+
+    final Coder<ByteBuffer> byteBufferCoder =
+        (Coder<ByteBuffer>) AvroUtils.coderOverrides().get(ByteBuffer.class);
+    final ByteBuffer heapBuffer = ByteBuffer.wrap(new byte[] {1, 2, 3, 4, 5}, 1, 3);
+    testKeyEncoding(m, heapBuffer, byteBufferCoder);
+    Assert.assertEquals(1, heapBuffer.position());
+    final ByteBuffer directBuffer = ByteBuffer.allocateDirect(4).put(new byte[] {1, 2, 3, 4});
+    directBuffer.flip();
+    testKeyEncoding(m, directBuffer, byteBufferCoder);
+    Assert.assertEquals(0, directBuffer.position());
+  }
+
+  @Test
+  public void testBucketIdOfKey() throws Exception {
+    final TestBucketMetadata m =
+        new TestBucketMetadata(0, 16, 1, HashType.MURMUR3_32, DEFAULT_FILENAME_PREFIX);
+    for (int i = 0; i < 100; i++) {
+      final String key = "user" + i;
+      Assert.assertEquals(m.getBucketId(m.encodeKeyBytesPrimary(key)), m.getBucketIdOfKey(key));
+    }
+  }
+
   @Test
   public void testDisplayData() throws Exception {
     final TestBucketMetadataWithSecondary m =
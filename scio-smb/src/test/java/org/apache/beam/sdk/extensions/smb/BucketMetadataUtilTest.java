@@ -20,6 +20,7 @@ package org.apache.beam.sdk.extensions.smb;
 import java.io.File;
 import java.io.OutputStream;
 import java.nio.channels.Channels;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -100,6 +101,71 @@ public class BucketMetadataUtilTest {
     folder.delete();
   }
 
+  @Test
+  public void testByteSize() throws Exception {
+    final List<String> directories = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      directories.add(writeSource(String.valueOf(i), 4, 10).getAbsolutePath());
+    }
+    Assert.assertEquals(120L, util.getByteSize(directories, ".txt"));
+
+    // base shards are sized from the manifest, if any
+    final ResourceId manifestDir = LocalResources.fromFile(new File(directories.get(1)), true);
+    new SizeManifest(1, 4, 1000L).write(manifestDir);
+    Assert.assertEquals(1080L, util.getByteSize(directories, ".txt"));
+  }
+
+  @Test
+  public void testByteSizeSampling() throws Exception {
+    // only the first 10 buckets are sampled, and extrapolated to all buckets
+    final File dir = writeSource("source", 20, 10);
+    for (int bucket = 10; bucket < 20; bucket++) {
+      writeBucketFile(dir, String.format("bucket-%05d-of-%05d.txt", bucket, 20), 20);
+    }
+    Assert.assertEquals(
+        200L, util.getByteSize(Collections.singletonList(dir.getAbsolutePath()), ".txt"));
+  }
+
+  @Test
+  public void testCachedByteSize() throws Exception {
+    final BucketMetadataUtil cachingUtil = new BucketMetadataUtil(2, 100);
+    final File dir = writeSource("source", 4, 10);
+    final List<String> directories = Collections.singletonList(dir.getAbsolutePath());
+    Assert.assertEquals(40L, cachingUtil.getByteSize(directories, ".txt"));
+
+    writeBucketFile(dir, "bucket-00000-of-00004.txt", 20);
+    Assert.assertEquals(40L, cachingUtil.getByteSize(directories, ".txt"));
+    Assert.assertEquals(50L, util.getByteSize(directories, ".txt"));
+
+    // the cached size is dropped once the metadata file is rewritten
+    final File metadataFile = new File(dir, "metadata.json");
+    writeMetadata(metadataFile, TestBucketMetadata.of(4, 1));
+    Assert.assertTrue(metadataFile.setLastModified(metadataFile.lastModified() + 10000));
+    Assert.assertEquals(50L, cachingUtil.getByteSize(directories, ".txt"));
+  }
+
+  private File writeSource(String name, int numBuckets, int bucketSize) throws Exception {
+    final File dir = folder.newFolder(name);
+    writeMetadata(new File(dir, "metadata.json"), TestBucketMetadata.of(numBuckets, 1));
+    for (int bucket = 0; bucket < numBuckets; bucket++) {
+      writeBucketFile(
+          dir, String.format("bucket-%05d-of-%05d.txt", bucket, numBuckets), bucketSize);
+    }
+    return dir;
+  }
+
+  private static void writeMetadata(File file, TestBucketMetadata metadata) throws Exception {
+    try (OutputStream outputStream =
+        Channels.newOutputStream(
+            FileSystems.create(LocalResources.fromFile(file, false), "application/json"))) {
+      BucketMetadata.to(metadata, outputStream);
+    }
+  }
+
+  private static void writeBucketFile(File dir, String filename, int size) throws Exception {
+    Files.write(new File(dir, filename).toPath(), new byte[size]);
+  }
+
   @Test
   public void testMissingMetadata() throws Exception {
     final List<Optional<TestBucketMetadata>> metadataList =
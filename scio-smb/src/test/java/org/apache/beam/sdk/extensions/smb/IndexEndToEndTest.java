@@ -0,0 +1,136 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.beam.sdk.extensions.smb;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.apache.beam.sdk.extensions.smb.SortedBucketSource.BucketedInput;
+import org.apache.beam.sdk.io.AvroGeneratedUser;
+import org.apache.beam.sdk.io.LocalResources;
+import org.apache.beam.sdk.io.range.ByteKey;
+import org.apache.beam.sdk.io.range.ByteKeyRange;
+import org.apache.beam.sdk.options.PipelineOptionsFactory;
+import org.apache.beam.sdk.testing.NeedsRunner;
+import org.apache.beam.sdk.testing.SourceTestUtils;
+import org.apache.beam.sdk.testing.TestPipeline;
+import org.apache.beam.sdk.transforms.Create;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.TupleTag;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+/** E2E test for bucket files written with an index and read from a start key. */
+public class IndexEndToEndTest {
+  @Rule public final TestPipeline writePipeline = TestPipeline.create();
+  @Rule public final TestPipeline rewritePipeline = TestPipeline.create();
+  @Rule public final TemporaryFolder outputFolder = new TemporaryFolder();
+  @Rule public final TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  private static final TupleTag<AvroGeneratedUser> TAG = new TupleTag<>("input");
+
+  private static String name(int i) {
+    return String.format("user%03d", i);
+  }
+
+  private void write(TestPipeline pipeline, int numUsers, String favoriteColor, int indexInterval) {
+    final List<AvroGeneratedUser> users =
+        IntStream.range(0, numUsers)
+            .mapToObj(i -> new AvroGeneratedUser(name(i), i, favoriteColor))
+            .collect(Collectors.toList());
+    pipeline
+        .getOptions()
+        .as(SortedBucketOptions.class)
+        .setSortedBucketWriteIndexInterval(indexInterval);
+    pipeline
+        .apply(Create.of(users))
+        .apply(
+            AvroSortedBucketIO.write(String.class, "name", AvroGeneratedUser.class)
+                .to(outputFolder.getRoot().getPath())
+                .withTempDirectory(tmpFolder.getRoot().getPath())
+                .withNumBuckets(1)
+                .withNumShards(1));
+    pipeline.run().waitUntilFinish();
+  }
+
+  private File bucketFile() {
+    final File[] bucketFiles = outputFolder.getRoot().listFiles((d, n) -> n.endsWith(".avro"));
+    Assert.assertEquals(1, bucketFiles.length);
+    return bucketFiles[0];
+  }
+
+  private List<String> readFrom(String startKey) throws Exception {
+    final List<BucketedInput<?>> inputs =
+        Collections.singletonList(
+            AvroSortedBucketIO.read(TAG, AvroGeneratedUser.class)
+                .from(outputFolder.getRoot().getPath())
+                .toBucketedInput(SortedBucketSource.Keying.PRIMARY));
+    final SortedBucketSource<String> source =
+        new SortedBucketPrimaryKeyedSource<>(String.class, inputs, TargetParallelism.auto(), null);
+    final SortedBucketSource<String> rangeSource =
+        source.createKeyRangeSource(
+            ByteKeyRange.of(ByteKey.copyFrom(encode(startKey)), ByteKey.EMPTY), null);
+    return SourceTestUtils.readFromSource(rangeSource, PipelineOptionsFactory.create()).stream()
+        .map(KV::getKey)
+        .collect(Collectors.toList());
+  }
+
+  @SuppressWarnings("unchecked")
+  private byte[] encode(String key) throws Exception {
+    final BucketMetadata<String, Void, ?> metadata =
+        (BucketMetadata<String, Void, ?>)
+            BucketMetadata.get(LocalResources.fromFile(outputFolder.getRoot(), true));
+    return metadata.encodeKeyBytesPrimary(key);
+  }
+
+  private static List<String> names(int from, int to) {
+    return IntStream.range(from, to).mapToObj(IndexEndToEndTest::name).collect(Collectors.toList());
+  }
+
+  @Test
+  @Category(NeedsRunner.class)
+  public void testReadFromStartKey() throws Exception {
+    write(writePipeline, 200, "red", 10);
+
+    // the index sidecar is written next to the bucket file
+    final BucketIndex index = BucketIndex.read(LocalResources.fromFile(bucketFile(), false));
+    Assert.assertNotNull(index);
+    Assert.assertTrue(index.size() > 1);
+    // the reader seeks past the records before the start key
+    Assert.assertTrue(index.floorOffset(encode(name(150))) > 0);
+
+    Assert.assertEquals(names(150, 200), readFrom(name(150)));
+  }
+
+  @Test
+  @Category(NeedsRunner.class)
+  public void testRewriteWithoutIndex() throws Exception {
+    write(writePipeline, 200, "red", 10);
+    Assert.assertNotNull(BucketIndex.read(LocalResources.fromFile(bucketFile(), false)));
+
+    // records of a different size, so that offsets of the previous index would be wrong
+    write(rewritePipeline, 100, "a much longer favorite color", 0);
+    Assert.assertNull(BucketIndex.read(LocalResources.fromFile(bucketFile(), false)));
+    Assert.assertEquals(names(50, 100), readFrom(name(50)));
+  }
+}
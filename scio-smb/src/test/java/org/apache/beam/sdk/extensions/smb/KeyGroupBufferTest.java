@@ -0,0 +1,118 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.beam.sdk.extensions.smb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Unit tests for {@link KeyGroupBuffer}. */
+public class KeyGroupBufferTest {
+  private static List<String> values(int n) {
+    final List<String> values = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      values.add("v" + i);
+    }
+    return values;
+  }
+
+  @Test
+  public void testInMemory() {
+    final KeyGroupBuffer<String> buffer = new KeyGroupBuffer<>(StringUtf8Coder.of(), 0);
+    values(100).forEach(buffer::add);
+    buffer.finish();
+
+    Assert.assertFalse(buffer.isSpilled());
+    Assert.assertEquals(values(100), buffer);
+  }
+
+  @Test
+  public void testSpilled() {
+    final KeyGroupBuffer<String> buffer = new KeyGroupBuffer<>(StringUtf8Coder.of(), 10);
+    values(100).forEach(buffer::add);
+    buffer.finish();
+
+    Assert.assertTrue(buffer.isSpilled());
+    Assert.assertEquals(100, buffer.size());
+    // iterable more than once
+    Assert.assertEquals(values(100), Lists.newArrayList(buffer.iterator()));
+    Assert.assertEquals(values(100), Lists.newArrayList(buffer.iterator()));
+
+    // random access, going back and forth in spilled values
+    Assert.assertEquals("v50", buffer.get(50));
+    Assert.assertEquals("v20", buffer.get(20));
+    Assert.assertEquals("v99", buffer.get(99));
+    Assert.assertEquals("v5", buffer.get(5));
+  }
+
+  @Test
+  public void testReadWhileAdding() {
+    // a predicate may read the values added so far
+    final KeyGroupBuffer<String> buffer = new KeyGroupBuffer<>(StringUtf8Coder.of(), 2);
+    for (String value : values(10)) {
+      Assert.assertFalse(buffer.contains(value));
+      buffer.add(value);
+      Assert.assertTrue(buffer.contains(value));
+    }
+    buffer.finish();
+    Assert.assertEquals(values(10), buffer);
+  }
+
+  @Test
+  public void testSearch() {
+    final KeyGroupBuffer<String> buffer = new KeyGroupBuffer<>(StringUtf8Coder.of(), 10);
+    values(100).forEach(buffer::add);
+    buffer.add("v50");
+    buffer.finish();
+
+    Assert.assertEquals(50, buffer.indexOf("v50"));
+    Assert.assertEquals(100, buffer.lastIndexOf("v50"));
+    Assert.assertEquals(5, buffer.lastIndexOf("v5"));
+    Assert.assertEquals(-1, buffer.indexOf("v100"));
+    Assert.assertEquals(-1, buffer.lastIndexOf("v100"));
+  }
+
+  @Test
+  public void testDiscard() throws IOException {
+    final KeyGroupBuffer<String> buffer = new KeyGroupBuffer<>(StringUtf8Coder.of(), 10);
+    values(100).forEach(buffer::add);
+    buffer.finish();
+
+    // iteration stopped early, and a cursor left open by get()
+    final Iterator<String> iterator = buffer.iterator();
+    for (int i = 0; i < 50; i++) {
+      iterator.next();
+    }
+    Assert.assertEquals("v50", buffer.get(50));
+
+    final Closeable spillFile = buffer.spillFile();
+    Assert.assertNotNull(spillFile);
+    buffer.discard();
+    Assert.assertThrows(IllegalStateException.class, () -> buffer.get(50));
+    // in-memory values are still readable
+    Assert.assertEquals("v5", buffer.get(5));
+    // discarding again is a no-op
+    spillFile.close();
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.beam.sdk.extensions.smb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Unit tests for {@link MappedFileChannel}. */
+public class MappedFileChannelTest {
+  @Rule public final TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  private Path writeFile(byte[] data) throws IOException {
+    final Path path = tmpFolder.newFile().toPath();
+    Files.write(path, data);
+    return path;
+  }
+
+  @Test
+  public void testReadAcrossSegments() throws IOException {
+    final byte[] data = new byte[1000];
+    new Random(42).nextBytes(data);
+
+    // reads of 7 bytes span segments of 64 bytes
+    final MappedFileChannel channel = MappedFileChannel.open(writeFile(data), 64);
+    Assert.assertEquals(1000, channel.size());
+    final ByteBuffer actual = ByteBuffer.allocate(1000);
+    final ByteBuffer buffer = ByteBuffer.allocate(7);
+    int read;
+    while ((read = channel.read(buffer)) != -1) {
+      Assert.assertTrue(read > 0);
+      buffer.flip();
+      actual.put(buffer);
+      buffer.clear();
+    }
+    Assert.assertArrayEquals(data, actual.array());
+    Assert.assertEquals(1000, channel.position());
+  }
+
+  @Test
+  public void testSeek() throws IOException {
+    final byte[] data = new byte[200];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    final MappedFileChannel channel = MappedFileChannel.open(writeFile(data), 64);
+
+    final ByteBuffer buffer = ByteBuffer.allocate(10);
+    channel.position(60);
+    Assert.assertEquals(10, channel.read(buffer));
+    Assert.assertArrayEquals(Arrays.copyOfRange(data, 60, 70), buffer.array());
+
+    buffer.clear();
+    channel.position(195);
+    Assert.assertEquals(5, channel.read(buffer));
+    Assert.assertEquals(200, channel.position());
+    Assert.assertEquals(-1, channel.read(buffer));
+
+    channel.position(1000);
+    Assert.assertEquals(-1, channel.read(buffer));
+  }
+
+  @Test
+  public void testEmptyFile() throws IOException {
+    final MappedFileChannel channel = MappedFileChannel.open(writeFile(new byte[0]));
+    Assert.assertEquals(0, channel.size());
+    Assert.assertEquals(-1, channel.read(ByteBuffer.allocate(10)));
+  }
+
+  @Test
+  public void testClosed() throws IOException {
+    final MappedFileChannel channel = MappedFileChannel.open(writeFile(new byte[10]));
+    Assert.assertTrue(channel.isOpen());
+    channel.close();
+    Assert.assertFalse(channel.isOpen());
+    Assert.assertThrows(ClosedChannelException.class, () -> channel.read(ByteBuffer.allocate(10)));
+  }
+
+  @Test
+  public void testUnmapOnClose() throws IOException {
+    final Path maps = Paths.get("/proc/self/maps");
+    Assume.assumeTrue(Files.isReadable(maps) && MappedFileChannel.unmapsOnClose());
+
+    final Path path = writeFile(new byte[4096]);
+    final MappedFileChannel channel = MappedFileChannel.open(path);
+    Assert.assertTrue(new String(Files.readAllBytes(maps)).contains(path.toString()));
+    channel.close();
+    Assert.assertFalse(new String(Files.readAllBytes(maps)).contains(path.toString()));
+    // closing again doesn't unmap twice
+    channel.close();
+  }
+}
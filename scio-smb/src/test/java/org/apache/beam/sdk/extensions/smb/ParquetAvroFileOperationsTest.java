@@ -185,6 +185,65 @@ public class ParquetAvroFileOperationsTest {
     Assert.assertEquals(expected, actual);
   }
 
+  @Test
+  public void testProjectionWithKeyFields() throws Exception {
+    final ResourceId file =
+        fromFolder(output)
+            .resolve("file.parquet", ResolveOptions.StandardResolveOptions.RESOLVE_FILE);
+    writeFile(file);
+
+    final Schema projection =
+        Schema.createRecord(
+            "User",
+            "",
+            "org.apache.beam.sdk.extensions.smb.avro",
+            false,
+            Lists.newArrayList(new Schema.Field("age", Schema.create(Schema.Type.INT), "", 0)));
+    final ParquetAvroFileOperations<GenericRecord> fileOperations =
+        ParquetAvroFileOperations.<GenericRecord>of(USER_SCHEMA).withProjection(projection);
+    final ParquetBucketMetadata<String, Void, GenericRecord> metadata =
+        new ParquetBucketMetadata<>(
+            1,
+            1,
+            String.class,
+            "name",
+            BucketMetadata.HashType.MURMUR3_128,
+            SortedBucketIO.DEFAULT_FILENAME_PREFIX,
+            USER_SCHEMA);
+
+    // the key field is added to the projection
+    fileOperations.validate(metadata);
+    final List<GenericRecord> actual = new ArrayList<>();
+    fileOperations.iterator(file, metadata).forEachRemaining(actual::add);
+    Assert.assertEquals(USER_RECORDS, actual);
+
+    // fields left out are set to their default value
+    final List<GenericRecord> expected =
+        USER_RECORDS.stream()
+            .map(r -> new GenericRecordBuilder(USER_SCHEMA).set("age", r.get("age")).build())
+            .collect(Collectors.toList());
+    final List<GenericRecord> projected = new ArrayList<>();
+    fileOperations.iterator(file).forEachRemaining(projected::add);
+    Assert.assertEquals(expected, projected);
+
+    final Schema invalidProjection =
+        Schema.createRecord(
+            "User",
+            "",
+            "org.apache.beam.sdk.extensions.smb.avro",
+            false,
+            Lists.newArrayList(
+                new Schema.Field("missing", Schema.create(Schema.Type.INT), "", 0)));
+    Assert.assertThrows(
+        IllegalArgumentException.class,
+        () -> ParquetAvroFileOperations.of(USER_SCHEMA).withProjection(invalidProjection));
+    Assert.assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            ParquetAvroFileOperations.withKeyFields(
+                USER_SCHEMA, projection, Lists.newArrayList("missing")));
+  }
+
   @Test
   public void testPredicate() throws Exception {
     final ResourceId file =
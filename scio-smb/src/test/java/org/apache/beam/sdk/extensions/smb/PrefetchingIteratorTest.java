@@ -0,0 +1,118 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.beam.sdk.extensions.smb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Unit tests for {@link PrefetchingIterator}. */
+public class PrefetchingIteratorTest {
+  private static List<Integer> range(int n) {
+    return IntStream.range(0, n).boxed().collect(Collectors.toList());
+  }
+
+  @Test
+  public void testChunkBoundaries() {
+    for (int n : new int[] {0, 1, 9, 10, 11, 53}) {
+      final List<Integer> expected = range(n);
+      final PrefetchingIterator<Integer> iterator =
+          new PrefetchingIterator<>("test", expected::iterator, 10, 2);
+      Assert.assertEquals(expected, Lists.newArrayList(iterator));
+      Assert.assertFalse(iterator.hasNext());
+      Assert.assertThrows(NoSuchElementException.class, iterator::next);
+    }
+  }
+
+  @Test
+  public void testMoreIteratorsThanThreads() {
+    // all iterators are consumed in lockstep, which requires all of them to make progress
+    final List<PrefetchingIterator<Integer>> iterators = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      iterators.add(new PrefetchingIterator<>("test-" + i, () -> range(1000).iterator(), 7, 1));
+    }
+    for (int expected = 0; expected < 1000; expected++) {
+      for (PrefetchingIterator<Integer> iterator : iterators) {
+        Assert.assertEquals(expected, (int) iterator.next());
+      }
+    }
+    iterators.forEach(iterator -> Assert.assertFalse(iterator.hasNext()));
+  }
+
+  @Test
+  public void testFailedOpen() {
+    final PrefetchingIterator<Integer> iterator =
+        new PrefetchingIterator<>(
+            "test",
+            () -> {
+              throw new IOException("failed");
+            },
+            10,
+            2);
+    final RuntimeException e = Assert.assertThrows(RuntimeException.class, iterator::hasNext);
+    Assert.assertEquals("Failed to prefetch test", e.getMessage());
+    Assert.assertTrue(e.getCause() instanceof IOException);
+    Assert.assertFalse(iterator.hasNext());
+  }
+
+  @Test
+  public void testClose() throws Exception {
+    final CountDownLatch closed = new CountDownLatch(1);
+    final PrefetchingIterator<Integer> iterator =
+        new PrefetchingIterator<>(
+            "test",
+            () -> new CloseableIterator<>(range(1000).iterator(), closed::countDown),
+            10,
+            2);
+    Assert.assertEquals(0, (int) iterator.next());
+    iterator.close();
+    // closed by the producer task, if it was still running
+    Assert.assertTrue(closed.await(10, TimeUnit.SECONDS));
+    Assert.assertFalse(iterator.hasNext());
+    // closing again doesn't close the underlying iterator twice
+    iterator.close();
+  }
+
+  @Test
+  public void testSharedPoolsBySize() throws Exception {
+    // a pool of 1 thread blocked by an iterator doesn't block iterators with more threads
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final PrefetchingIterator<Integer> slow =
+        new PrefetchingIterator<>(
+            "slow",
+            () -> {
+              blocked.await();
+              return range(1).iterator();
+            },
+            10,
+            1);
+    final PrefetchingIterator<Integer> fast =
+        new PrefetchingIterator<>("fast", () -> range(20).iterator(), 10, 2);
+    Assert.assertEquals(range(20), Lists.newArrayList(fast));
+    blocked.countDown();
+    Assert.assertEquals(range(1), Lists.newArrayList(slow));
+  }
+}
@@ -27,6 +27,7 @@ import java.nio.channels.Channels;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -57,13 +58,21 @@ import org.apache.beam.sdk.testing.PAssert;
 import org.apache.beam.sdk.testing.TestPipeline;
 import org.apache.beam.sdk.transforms.Create;
 import org.apache.beam.sdk.transforms.Reshuffle;
+import org.apache.beam.sdk.transforms.windowing.AfterPane;
+import org.apache.beam.sdk.transforms.windowing.AfterWatermark;
+import org.apache.beam.sdk.transforms.windowing.FixedWindows;
+import org.apache.beam.sdk.transforms.windowing.Window;
 import org.apache.beam.sdk.util.MimeTypes;
 import org.apache.beam.sdk.values.KV;
 import org.apache.beam.sdk.values.PCollection;
+import org.apache.beam.sdk.values.TimestampedValue;
 import org.apache.beam.sdk.values.TupleTag;
 import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.io.CharStreams;
+import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.primitives.UnsignedBytes;
 import org.hamcrest.MatcherAssert;
 import org.hamcrest.Matchers;
+import org.joda.time.Duration;
+import org.joda.time.Instant;
 import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
@@ -154,6 +163,87 @@ public class SortedBucketSinkTest {
     testSecondary(2, 2, false);
   }
 
+  @Test
+  @Category(NeedsRunner.class)
+  public void testMultiBucketMultiShardPartitionedFinalize() throws Exception {
+    pipeline.getOptions().as(SortedBucketOptions.class).setSortedBucketFinalizeParallelism(3);
+    testPrimary(4, 2, false);
+  }
+
+  @Test
+  @Category(NeedsRunner.class)
+  public void testSizeManifest() throws Exception {
+    pipeline.getOptions().as(SortedBucketOptions.class).setSortedBucketWriteSizeManifest(true);
+    testPrimary(4, 2, false);
+
+    // the null-key bucket is skipped by readers
+    long totalBytes = 0L;
+    for (MatchResult.Metadata file :
+        FileSystems.match(fromFolder(output).toString() + "*.txt").metadata()) {
+      if (!file.resourceId().getFilename().contains("null-keys")) {
+        totalBytes += file.sizeBytes();
+      }
+    }
+    Assert.assertEquals(totalBytes, SizeManifest.read(fromFolder(output)).getTotalBytes());
+  }
+
+  @Test
+  @Category(NeedsRunner.class)
+  public void testStaleSizeManifest() throws Exception {
+    new SizeManifest(1, 1, 1L).write(fromFolder(output));
+    testPrimary(4, 2, false);
+
+    // a manifest of a previous write doesn't describe the new buckets
+    Assert.assertNull(SizeManifest.read(fromFolder(output)));
+  }
+
+  @Test
+  @Category(NeedsRunner.class)
+  public void testStaleBloomFilters() throws Exception {
+    final TestBucketMetadata metadata = TestBucketMetadata.of(4, 2);
+    final FileAssignment dstFiles =
+        new SMBFilenamePolicy.FileAssignment(
+            fromFolder(output), SortedBucketIO.DEFAULT_FILENAME_PREFIX, ".txt", false);
+    final List<ResourceId> bucketFiles = new ArrayList<>();
+    for (BucketShardId id : metadata.getAllBucketShardIds()) {
+      bucketFiles.add(dstFiles.forBucket(id, metadata));
+    }
+    // empty filters of a previous write would drop all records of the new buckets from joins
+    for (ResourceId bucketFile : bucketFiles) {
+      new BucketBloomFilter.Builder(metadata.getHashType(), 0.01).build().write(bucketFile);
+    }
+    test(metadata, false);
+
+    for (ResourceId bucketFile : bucketFiles) {
+      Assert.assertNull(BucketBloomFilter.read(bucketFile));
+    }
+  }
+
+  @Test
+  public void testCompositeSortKey() {
+    final Comparator<byte[]> bytesComparator = UnsignedBytes.lexicographicalComparator();
+    final byte[][] keys = {
+      {}, {0x00}, {0x00, 0x00}, {0x00, 0x01}, {0x01}, {0x01, 0x00}, {(byte) 0xff},
+      {(byte) 0xff, 0x00}
+    };
+    final List<KV<byte[], byte[]>> pairs = new ArrayList<>();
+    for (byte[] primary : keys) {
+      for (byte[] secondary : keys) {
+        pairs.add(KV.of(primary, secondary));
+      }
+    }
+
+    final List<KV<byte[], byte[]>> expected = new ArrayList<>(pairs);
+    expected.sort(
+        Comparator.comparing((KV<byte[], byte[]> kv) -> kv.getKey(), bytesComparator)
+            .thenComparing(KV::getValue, bytesComparator));
+    final List<KV<byte[], byte[]>> actual = new ArrayList<>(pairs);
+    actual.sort(
+        Comparator.comparing(
+            kv -> SortedBucketSink.compositeSortKey(kv.getKey(), kv.getValue()), bytesComparator));
+    Assert.assertEquals(expected, actual);
+  }
+
   @Test
   @Category(NeedsRunner.class)
   public void testOneBucketOneShardKeyedPCollectionWithKeyCache() throws Exception {
@@ -293,6 +383,83 @@ public class SortedBucketSinkTest {
     Assert.assertEquals(0, output.getRoot().listFiles().length);
   }
 
+  @Test
+  @Category(NeedsRunner.class)
+  public void testWindowedWrites() throws Exception {
+    final TestBucketMetadata metadata = TestBucketMetadata.of(2, 1);
+    final SortedBucketSink<String, Void, String> sink =
+        new SortedBucketSink<>(
+            metadata, fromFolder(output), fromFolder(temp), ".txt", new TestFileOperations(), 1);
+
+    // the first half of the input in the first window, the rest in the second one
+    final List<TimestampedValue<String>> timestampedInput = new ArrayList<>();
+    for (int i = 0; i < input.length; i++) {
+      timestampedInput.add(
+          TimestampedValue.of(input[i], new Instant(i < input.length / 2 ? 0L : 60000L)));
+    }
+
+    pipeline
+        .apply("WindowedWrites", Create.timestamped(timestampedInput))
+        .apply(Window.into(FixedWindows.of(Duration.standardMinutes(1))))
+        .apply(sink);
+    pipeline.run().waitUntilFinish();
+
+    final String[] windows = {
+      "window-19700101T000000Z-19700101T000100Z", "window-19700101T000100Z-19700101T000200Z"
+    };
+    final List<String> written = new ArrayList<>();
+    for (String window : windows) {
+      final ResourceId partition =
+          fromFolder(output).resolve(window, StandardResolveOptions.RESOLVE_DIRECTORY);
+      final BucketMetadata<String, Void, String> partitionMetadata =
+          readMetadata(partition.resolve("metadata.json", StandardResolveOptions.RESOLVE_FILE));
+      Assert.assertTrue(partitionMetadata.isCompatibleWith(metadata));
+
+      final List<String> partitionRecords = new ArrayList<>();
+      final MatchResult bucketFiles =
+          FileSystems.match(
+              partition.resolve("*.txt", StandardResolveOptions.RESOLVE_FILE).toString());
+      // both buckets and the null-key bucket
+      Assert.assertEquals(3, bucketFiles.metadata().size());
+      bucketFiles.metadata().forEach(m -> partitionRecords.addAll(readFile(m.resourceId())));
+      Assert.assertEquals(input.length / 2, partitionRecords.size());
+      written.addAll(partitionRecords);
+    }
+    MatcherAssert.assertThat(written, Matchers.containsInAnyOrder(input));
+
+    // Assert that no files are left in the temp directory
+    Assert.assertFalse(
+        Files.walk(temp.getRoot().toPath()).anyMatch(path -> path.toFile().isFile()));
+  }
+
+  @Test
+  public void testWindowedWritesWithEarlyFirings() {
+    pipeline.enableAbandonedNodeEnforcement(false);
+    final SortedBucketSink<String, Void, String> sink =
+        new SortedBucketSink<>(
+            TestBucketMetadata.of(2, 1),
+            fromFolder(output),
+            fromFolder(temp),
+            ".txt",
+            new TestFileOperations(),
+            1);
+
+    // early panes of each bucket would fire independently of the other buckets
+    final PCollection<String> windowed =
+        pipeline
+            .apply(
+                "WindowedWritesWithEarlyFirings",
+                Create.timestamped(TimestampedValue.of("a01", new Instant(0L))))
+            .apply(
+                Window.<String>into(FixedWindows.of(Duration.standardMinutes(1)))
+                    .triggering(
+                        AfterWatermark.pastEndOfWindow()
+                            .withEarlyFirings(AfterPane.elementCountAtLeast(1)))
+                    .withAllowedLateness(Duration.ZERO)
+                    .discardingFiredPanes());
+    Assert.assertThrows(IllegalArgumentException.class, () -> windowed.apply(sink));
+  }
+
   private void testPrimary(int numBuckets, int numShards, boolean useKeyCache) throws Exception {
     final TestBucketMetadata metadata = TestBucketMetadata.of(numBuckets, numShards);
     test(metadata, useKeyCache);
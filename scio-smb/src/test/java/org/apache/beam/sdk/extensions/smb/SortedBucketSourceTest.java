@@ -23,6 +23,7 @@ import static org.apache.beam.sdk.extensions.smb.SortedBucketSource.PrimaryAndSe
 import static org.apache.beam.sdk.extensions.smb.SortedBucketSource.PrimaryKeyedBucketedInput;
 import static org.apache.beam.sdk.extensions.smb.TestUtils.fromFolder;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.OutputStream;
 import java.nio.channels.Channels;
@@ -44,20 +45,25 @@ import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 import org.apache.avro.generic.GenericRecord;
 import org.apache.beam.sdk.PipelineResult;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
 import org.apache.beam.sdk.extensions.smb.FileOperations.Writer;
 import org.apache.beam.sdk.extensions.smb.SMBFilenamePolicy.FileAssignment;
 import org.apache.beam.sdk.extensions.smb.SortedBucketSource.Predicate;
 import org.apache.beam.sdk.io.AvroGeneratedUser;
+import org.apache.beam.sdk.io.BoundedSource;
 import org.apache.beam.sdk.io.FileSystems;
 import org.apache.beam.sdk.io.LocalResources;
 import org.apache.beam.sdk.io.Read;
 import org.apache.beam.sdk.io.fs.ResourceId;
+import org.apache.beam.sdk.io.range.ByteKey;
+import org.apache.beam.sdk.io.range.ByteKeyRange;
 import org.apache.beam.sdk.metrics.DistributionResult;
 import org.apache.beam.sdk.metrics.MetricResult;
 import org.apache.beam.sdk.options.PipelineOptions;
 import org.apache.beam.sdk.options.PipelineOptionsFactory;
 import org.apache.beam.sdk.testing.NeedsRunner;
 import org.apache.beam.sdk.testing.PAssert;
+import org.apache.beam.sdk.testing.SourceTestUtils;
 import org.apache.beam.sdk.testing.TestPipeline;
 import org.apache.beam.sdk.transforms.join.CoGbkResult;
 import org.apache.beam.sdk.values.KV;
@@ -275,6 +281,17 @@ public class SortedBucketSourceTest {
     testSingleSourceGbkSecondary((vs, v) -> v.startsWith("x") && v.endsWith("1"));
   }
 
+  @Test
+  @Category(NeedsRunner.class)
+  public void testSingleSourceGbkWithPredicateSpilled() throws Exception {
+    pipeline
+        .getOptions()
+        .as(SortedBucketOptions.class)
+        .setSortedBucketReadKeyGroupSpillThreshold(1);
+    // values past the first of each key group are spilled to disk
+    testSingleSourceGbkPrimary((vs, v) -> !vs.contains(v));
+  }
+
   Map<BucketShardId, List<String>> singleSourceGbkInput =
       ImmutableMap.of(
           BucketShardId.of(0, 0), Lists.newArrayList("a1", "a2", "b1", "b2"),
@@ -635,6 +652,181 @@ public class SortedBucketSourceTest {
     secondSplit.forEach(s -> Assert.assertEquals(4, s.getEffectiveParallelism()));
   }
 
+  @Test
+  public void testKeyRangeSource() throws Exception {
+    final SortedBucketSource<String> source = writeSingleBucketSource();
+
+    final SortedBucketSource<String> rangeSource =
+        source.createKeyRangeSource(ByteKeyRange.of(encodeKey("c"), encodeKey("x")), null);
+    Assert.assertEquals(
+        alphabet().subList(2, 23),
+        readKeys(SourceTestUtils.readFromSource(rangeSource, PipelineOptionsFactory.create())));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testSplitAtFraction() throws Exception {
+    final SortedBucketSource<String> source =
+        writeSingleBucketSource()
+            .createKeyRangeSource(ByteKeyRange.of(encodeKey("a"), encodeKey("{")), 1000L);
+    final BoundedSource.BoundedReader<KV<String, CoGbkResult>> reader =
+        source.createReader(PipelineOptionsFactory.create());
+
+    Assert.assertTrue(reader.start());
+    Assert.assertEquals("a", reader.getCurrent().getKey());
+    Assert.assertEquals(0.0, reader.getFractionConsumed(), 0.0);
+
+    final SortedBucketSource<String> residual =
+        (SortedBucketSource<String>) reader.splitAtFraction(0.5);
+    Assert.assertNotNull(residual);
+    final SortedBucketSource<String> primary =
+        (SortedBucketSource<String>) reader.getCurrentSource();
+    Assert.assertEquals(primary.getKeyRange().getEndKey(), residual.getKeyRange().getStartKey());
+    Assert.assertEquals(500L, (long) primary.getEstimatedSizeBytes(null));
+
+    final List<String> primaryKeys = new ArrayList<>();
+    primaryKeys.add("a");
+    primaryKeys.addAll(readKeys(SourceTestUtils.readRemainingFromReader(reader, true)));
+    final List<String> residualKeys =
+        readKeys(SourceTestUtils.readFromSource(residual, PipelineOptionsFactory.create()));
+    Assert.assertEquals(1.0, reader.getFractionConsumed(), 0.0);
+
+    Assert.assertFalse(residualKeys.isEmpty());
+    final List<String> allKeys = new ArrayList<>(primaryKeys);
+    allKeys.addAll(residualKeys);
+    Assert.assertEquals(alphabet(), allKeys);
+
+    // finished readers can't be split
+    Assert.assertNull(reader.splitAtFraction(0.1));
+  }
+
+  @Test
+  public void testAppendedShards() throws Exception {
+    final ResourceId directory = writeAppendedSource();
+    final BucketMetadata<?, ?, ?> metadata = BucketMetadata.get(directory);
+    Assert.assertEquals(1, metadata.getNumShards());
+    Assert.assertEquals(Collections.singletonList(2), metadata.getAppendedShards());
+
+    // the appended shards are read along with the original one
+    final List<KV<String, CoGbkResult>> keyGroups =
+        SourceTestUtils.readFromSource(readSource(directory), PipelineOptionsFactory.create());
+    Assert.assertEquals(Lists.newArrayList("a", "b", "c"), readKeys(keyGroups));
+    Assert.assertEquals(
+        Lists.newArrayList("a1", "a2"),
+        Lists.newArrayList(keyGroups.get(0).getValue().getAll(new TupleTag<String>("rhs"))));
+  }
+
+  @Test
+  @Category(NeedsRunner.class)
+  public void testCompaction() throws Exception {
+    final ResourceId directory = writeAppendedSource();
+    final ResourceId compacted = fromFolder(partitionedInputFolder);
+    pipeline.apply(
+        new SortedBucketCompaction<>(
+            directory,
+            compacted,
+            LocalResources.fromFile(partitionedInputFolder.newFolder("temp"), true),
+            FILENAME_SUFFIX,
+            new TestFileOperations()));
+    pipeline.run().waitUntilFinish();
+
+    final BucketMetadata<?, ?, ?> metadata = BucketMetadata.get(compacted);
+    Assert.assertEquals(1, metadata.getNumShards());
+    Assert.assertTrue(metadata.getAppendedShards().isEmpty());
+
+    // all shards are merged into a single sorted one
+    final ResourceId bucketFile =
+        new SMBFilenamePolicy(compacted, RHS_FILENAME_PREFIX, FILENAME_SUFFIX)
+            .forDestination()
+            .forBucket(BucketShardId.of(0, 0), metadata);
+    Assert.assertEquals(
+        Lists.newArrayList("a1", "a2", "b2", "c1", "c2"),
+        Lists.newArrayList(new TestFileOperations().iterator(bucketFile)));
+  }
+
+  // a partition of one bucket, with two shards appended since it was written
+  private ResourceId writeAppendedSource() throws Exception {
+    final TestBucketMetadata metadata = TestBucketMetadata.of(1, 1);
+    final FileAssignment fileAssignment = rhsPolicy.forDestination();
+    write(
+        fileAssignment.forAppend(1),
+        TestBucketMetadata.of(1, 2),
+        ImmutableMap.of(
+            BucketShardId.of(0, 0), Lists.newArrayList("a2", "b2"),
+            BucketShardId.of(0, 1), Lists.newArrayList("c2")));
+    write(
+        fileAssignment,
+        metadata.withAppendedShards(2),
+        ImmutableMap.of(BucketShardId.of(0, 0), Lists.newArrayList("a1", "c1")));
+    return fileAssignment.getDirectory();
+  }
+
+  private static SortedBucketSource<String> readSource(ResourceId directory) {
+    final List<BucketedInput<?>> inputs =
+        Collections.singletonList(
+            new PrimaryKeyedBucketedInput<String>(
+                new TupleTag<>("rhs"),
+                Collections.singletonList(directory.toString()),
+                FILENAME_SUFFIX,
+                new TestFileOperations(),
+                null));
+    return new SortedBucketPrimaryKeyedSource<>(
+        String.class, inputs, TargetParallelism.min(), null);
+  }
+
+  @Test
+  public void testExtrapolateEndKey() {
+    Assert.assertEquals(
+        ByteKey.of(0x30, 0x00),
+        SortedBucketSource.extrapolateEndKey(ByteKey.of(0x10), ByteKey.of(0x20), 0.5));
+    Assert.assertEquals(
+        ByteKey.of(0x20, 0x00),
+        SortedBucketSource.extrapolateEndKey(ByteKey.of(0x10), ByteKey.of(0x20), 1.0));
+    // past the end of the key space
+    Assert.assertNull(
+        SortedBucketSource.extrapolateEndKey(ByteKey.of(0x10), ByteKey.of(0xa0), 0.5));
+    Assert.assertNull(
+        SortedBucketSource.extrapolateEndKey(ByteKey.of(0x10), ByteKey.of(0x10), 0.5));
+    Assert.assertNull(
+        SortedBucketSource.extrapolateEndKey(ByteKey.of(0x10), ByteKey.of(0x20), 0.0));
+  }
+
+  private SortedBucketSource<String> writeSingleBucketSource() throws Exception {
+    final List<String> values =
+        alphabet().stream().flatMap(k -> Stream.of(k + "1", k + "2")).collect(Collectors.toList());
+    write(
+        lhsPolicy.forDestination(),
+        TestBucketMetadata.of(1, 1),
+        ImmutableMap.of(BucketShardId.of(0, 0), values));
+
+    final List<BucketedInput<?>> inputs =
+        Collections.singletonList(
+            new PrimaryKeyedBucketedInput<String>(
+                new TupleTag<>("lhs"),
+                Collections.singletonList(lhsPolicy.forDestination().getDirectory().toString()),
+                FILENAME_SUFFIX,
+                new TestFileOperations(),
+                null));
+    return new SortedBucketPrimaryKeyedSource<>(
+        String.class, inputs, TargetParallelism.min(), null);
+  }
+
+  private static List<String> alphabet() {
+    return IntStream.rangeClosed('a', 'z')
+        .mapToObj(c -> String.valueOf((char) c))
+        .collect(Collectors.toList());
+  }
+
+  private static ByteKey encodeKey(String key) throws Exception {
+    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    StringUtf8Coder.of().encode(key, baos);
+    return ByteKey.copyFrom(baos.toByteArray());
+  }
+
+  private static List<String> readKeys(List<KV<String, CoGbkResult>> keyGroups) {
+    return keyGroups.stream().map(KV::getKey).collect(Collectors.toList());
+  }
+
   @Test
   public void testUniqueTupleTagIdOf() {
     ParquetAvroSortedBucketIO.Read<GenericRecord> read1 =
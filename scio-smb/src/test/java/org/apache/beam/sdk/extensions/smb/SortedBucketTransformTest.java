@@ -188,6 +188,15 @@ public class SortedBucketTransformTest {
     test(SortedBucketSource.Keying.PRIMARY_AND_SECONDARY, TargetParallelism.of(8), 8);
   }
 
+  @Test
+  public void testSortedBucketTransformAsyncWrite() throws Exception {
+    transformPipeline
+        .getOptions()
+        .as(SortedBucketOptions.class)
+        .setSortedBucketTransformWriteBufferSize(2);
+    test(SortedBucketSource.Keying.PRIMARY, TargetParallelism.max(), 4);
+  }
+
   @Test
   public void testSortedBucketWithSidesTransformMinParallelism() throws Exception {
     testWithSides(SortedBucketSource.Keying.PRIMARY, TargetParallelism.min(), 2);
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.beam.sdk.extensions.sorter;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.primitives.UnsignedBytes;
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Unit tests for {@link ArenaInMemorySorter}. */
+public class ArenaInMemorySorterTest {
+  private static final Comparator<byte[]> COMPARATOR = UnsignedBytes.lexicographicalComparator();
+
+  private static ArenaInMemorySorter create(long memoryMB) {
+    final ArenaInMemorySorter.Options options = new ArenaInMemorySorter.Options();
+    options.setMemoryMB(memoryMB);
+    return ArenaInMemorySorter.create(options);
+  }
+
+  private static void assertSameRecords(
+      List<KV<byte[], byte[]>> expected, Iterable<KV<byte[], byte[]>> actual) {
+    final List<KV<byte[], byte[]>> actualList = new ArrayList<>();
+    actual.forEach(actualList::add);
+    Assert.assertEquals(expected.size(), actualList.size());
+    for (int i = 0; i < expected.size(); i++) {
+      Assert.assertArrayEquals(expected.get(i).getKey(), actualList.get(i).getKey());
+      Assert.assertArrayEquals(expected.get(i).getValue(), actualList.get(i).getValue());
+    }
+  }
+
+  @Test
+  public void testEmpty() {
+    Assert.assertFalse(create(1).sort().iterator().hasNext());
+  }
+
+  @Test
+  public void testSortRandomKeys() {
+    final Random random = new Random(42);
+    final ArenaInMemorySorter sorter = create(10);
+    final List<KV<byte[], byte[]>> records = new ArrayList<>();
+    for (int i = 0; i < 10000; i++) {
+      // short keys, sharing prefixes, to exercise both prefix and full comparisons
+      final byte[] key = new byte[random.nextInt(12)];
+      for (int j = 0; j < key.length; j++) {
+        key[j] = (byte) (random.nextInt(3) * 127);
+      }
+      final byte[] value = new byte[random.nextInt(20)];
+      random.nextBytes(value);
+      final KV<byte[], byte[]> record = KV.of(key, value);
+      records.add(record);
+      sorter.add(record);
+    }
+
+    // stable sort, like the sorter
+    records.sort((x, y) -> COMPARATOR.compare(x.getKey(), y.getKey()));
+    assertSameRecords(records, sorter.sort());
+  }
+
+  @Test
+  public void testRecordsLargerThanPage() {
+    final ArenaInMemorySorter sorter = create(10);
+    final List<KV<byte[], byte[]>> records = new ArrayList<>();
+    for (int i = 3; i >= 0; i--) {
+      final byte[] value = new byte[ArenaInMemorySorter.PAGE_SIZE + i];
+      value[i] = (byte) i;
+      records.add(0, KV.of(new byte[] {(byte) i}, value));
+      sorter.add(KV.of(new byte[] {(byte) i}, value));
+    }
+    assertSameRecords(records, sorter.sort());
+  }
+
+  @Test
+  public void testRejectsWhenFull() {
+    final ArenaInMemorySorter sorter = create(1);
+    final KV<byte[], byte[]> record = KV.of(new byte[] {1}, new byte[1000]);
+    int added = 0;
+    while (sorter.addIfRoom(record)) {
+      added++;
+    }
+    // a record takes 1009 bytes in 64 KiB pages, plus its index
+    Assert.assertTrue(added > 900 && added < 1040);
+    Assert.assertThrows(IllegalStateException.class, () -> sorter.add(record));
+  }
+
+  @Test
+  public void testSortCalledOnce() {
+    final ArenaInMemorySorter sorter = create(1);
+    sorter.sort();
+    Assert.assertThrows(IllegalStateException.class, sorter::sort);
+    Assert.assertThrows(
+        IllegalStateException.class, () -> sorter.add(KV.of(new byte[0], new byte[0])));
+  }
+}
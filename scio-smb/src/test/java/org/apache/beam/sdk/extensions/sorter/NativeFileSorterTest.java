@@ -0,0 +1,87 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.beam.sdk.extensions.sorter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.vendor.guava.v26_0_jre.com.google.common.primitives.UnsignedBytes;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Unit tests for {@link NativeFileSorter}. */
+public class NativeFileSorterTest {
+  private static final Comparator<byte[]> COMPARATOR = UnsignedBytes.lexicographicalComparator();
+
+  @Rule public final TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  private void testSort(int numRecords, long maxMemory, int numThreads, boolean compress)
+      throws IOException {
+    final NativeFileSorter sorter =
+        new NativeFileSorter(tmpFolder.getRoot().toPath(), maxMemory, numThreads, compress);
+    final Random random = new Random(42);
+    final List<byte[]> keys = new ArrayList<>();
+    for (int i = 0; i < numRecords; i++) {
+      final byte[] key = new byte[1 + random.nextInt(10)];
+      random.nextBytes(key);
+      keys.add(key);
+      sorter.add(key, key);
+    }
+    keys.sort(COMPARATOR);
+
+    int i = 0;
+    for (KV<byte[], byte[]> kv : sorter.sort()) {
+      Assert.assertArrayEquals(keys.get(i), kv.getKey());
+      Assert.assertArrayEquals(keys.get(i), kv.getValue());
+      i++;
+    }
+    Assert.assertEquals(numRecords, i);
+  }
+
+  @Test
+  public void testSingleThread() throws IOException {
+    testSort(10000, 10000, 1, false);
+  }
+
+  @Test
+  public void testMultipleThreads() throws IOException {
+    testSort(10000, 10000, 4, false);
+  }
+
+  @Test
+  public void testCompressed() throws IOException {
+    testSort(10000, 10000, 1, true);
+    testSort(10000, 10000, 4, true);
+  }
+
+  @Test
+  public void testCascadedMerge() throws IOException {
+    // a few records per block, more spill files than are merged at once
+    testSort(5000, 1000, 4, true);
+  }
+
+  @Test
+  public void testEmpty() throws IOException {
+    testSort(0, 10000, 4, false);
+  }
+}
@@ -19,12 +19,14 @@ package com.spotify.scio.transforms
 
 import com.google.common.cache.{Cache, CacheBuilder}
 import com.google.common.util.concurrent.{Futures, ListenableFuture, MoreExecutors}
-import com.spotify.scio.coders.Coder
+import com.spotify.scio.coders.{Coder, CoderMaterializer}
 import com.spotify.scio.testing._
 import com.spotify.scio.transforms.BaseAsyncLookupDoFn.CacheSupplier
 import com.spotify.scio.transforms.DoFnWithResource.ResourceType
 import com.spotify.scio.transforms.JavaAsyncConverters._
 import com.spotify.scio.util.TransformingCache.SimpleTransformingCache
+import org.apache.beam.sdk.values.TimestampedValue
+import org.joda.time.{Duration, Instant}
 
 import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.{
@@ -85,6 +87,11 @@ class AsyncLookupDoFnTest extends PipelineSpec {
     output.max should be < n
   }
 
+  it should "work with an adaptive concurrency limiter" in {
+    val limiter = ConcurrencyLimiter.aimd(2, 1, 10, Duration.millis(100), 0.5)
+    testFailure(new FailingGuavaLookupDoFn().withConcurrencyLimiter(limiter))(_.asScala)
+  }
+
   "GuavaAsyncLookupDoFn" should "work" in {
     testDoFn(new GuavaLookupDoFn)(_.get())
   }
@@ -97,6 +104,32 @@ class AsyncLookupDoFnTest extends PipelineSpec {
     testFailure(new FailingGuavaLookupDoFn)(_.asScala)
   }
 
+  it should "work with a shared cache" in {
+    testCache(new SharedCachingGuavaLookupDoFn)(_.get())(AsyncLookupDoFnTest.sharedQueue)
+  }
+
+  it should "cache failures in a shared cache" in {
+    val n = 100
+    val output = runWithData(List.fill(n)(1))(_.parDo(new NegativeCachingGuavaLookupDoFn))
+    output.map(_.getValue.isFailure) should contain only true
+    AsyncLookupDoFnTest.negativeLookups.get() should be < n
+  }
+
+  it should "refresh stale shared cache entries in the background" in {
+    val cache = AsyncLookupDoFnTest.refreshingCache().get()
+    cache.put(1, "stale")
+    // older than refreshAfterWrite, but not expired
+    Thread.sleep(1100)
+
+    val output = runWithData(List.fill(10)(1)) {
+      _.parDo(new RefreshingGuavaLookupDoFn).map(_.getValue.get())
+    }
+    output should contain("stale")
+    all(output) should (equal("stale") or equal("fresh"))
+    AsyncLookupDoFnTest.refreshLookups.get() shouldBe 1
+    cache.getIfPresent(1) shouldBe "fresh"
+  }
+
   "JavaAsyncLookupDoFn" should "work" in {
     testDoFn(new JavaLookupDoFn)(_.get())
   }
@@ -126,12 +159,49 @@ class AsyncLookupDoFnTest extends PipelineSpec {
       runWithData(1 to 10)(_.parDo(new CallbackFailingScalaLookupDoFn)).filter(_.getValue.isFailure)
     assert(errors.size == 10)
   }
+
+  "PipelinedAsyncLookup" should "emit lookups with the timestamp of their input" in {
+    val stream = (1 to 10)
+      .foldLeft(testStreamOf[Int].advanceWatermarkTo(new Instant(0))) { (s, i) =>
+        s.addElements(TimestampedValue.of(i, new Instant(i * 1000L)))
+      }
+      .advanceWatermarkToInfinity()
+
+    runWithContext { sc =>
+      val lookup = new PipelinedAsyncLookup[
+        Int,
+        String,
+        AsyncClient,
+        ListenableFuture[String],
+        BaseAsyncLookupDoFn.Try[String]
+      ](
+        new GuavaLookupDoFn,
+        CoderMaterializer.beamWithDefault(Coder[BaseAsyncLookupDoFn.Try[String]]),
+        2,
+        Duration.millis(10)
+      )
+      val output = sc
+        .testStream(stream)
+        .applyTransform(lookup)
+        .withTimestamp
+        .map { case (kv, ts) => (kv.getKey, kv.getValue.get(), ts.getMillis) }
+      output should containInAnyOrder((1 to 10).map(i => (i, i.toString, i * 1000L)))
+    }
+  }
 }
 
 object AsyncLookupDoFnTest {
   val guavaQueue: ConcurrentLinkedQueue[Int] = new ConcurrentLinkedQueue[Int]()
   val javaQueue: ConcurrentLinkedQueue[Int] = new ConcurrentLinkedQueue[Int]()
   val scalaQueue: ConcurrentLinkedQueue[Int] = new ConcurrentLinkedQueue[Int]()
+  val sharedQueue: ConcurrentLinkedQueue[Int] = new ConcurrentLinkedQueue[Int]()
+  val negativeLookups: AtomicInteger = new AtomicInteger(0)
+  val refreshLookups: AtomicInteger = new AtomicInteger(0)
+
+  def refreshingCache(): SharedCacheSupplier[Int, String] =
+    new SharedCacheSupplier[Int, String](100, Duration.standardHours(1))
+      .withRefreshAfterWrite(Duration.standardSeconds(1))
+      .withId("AsyncLookupDoFnTest-refresh")
 }
 
 class AsyncClient {}
@@ -173,6 +243,46 @@ class CachingGuavaLookupDoFn
   }
 }
 
+class SharedCachingGuavaLookupDoFn
+    extends GuavaAsyncLookupDoFn[Int, String, AsyncClient](
+      100,
+      new SharedCacheSupplier[Int, String](100, Duration.standardHours(1))
+    ) {
+  override def getResourceType: ResourceType = ResourceType.PER_INSTANCE
+  override protected def newClient(): AsyncClient = null
+  override def asyncLookup(session: AsyncClient, input: Int): ListenableFuture[String] = {
+    AsyncLookupDoFnTest.sharedQueue.add(input)
+    Futures.immediateFuture(input.toString)
+  }
+}
+
+class NegativeCachingGuavaLookupDoFn
+    extends GuavaAsyncLookupDoFn[Int, String, AsyncClient](
+      100,
+      new SharedCacheSupplier[Int, String](100, Duration.standardHours(1))
+        .withNegativeCaching(Duration.standardHours(1))
+    ) {
+  override def getResourceType: ResourceType = ResourceType.PER_INSTANCE
+  override protected def newClient(): AsyncClient = null
+  override def asyncLookup(session: AsyncClient, input: Int): ListenableFuture[String] = {
+    AsyncLookupDoFnTest.negativeLookups.incrementAndGet()
+    Futures.immediateFailedFuture(new RuntimeException("failure" + input))
+  }
+}
+
+class RefreshingGuavaLookupDoFn
+    extends GuavaAsyncLookupDoFn[Int, String, AsyncClient](
+      100,
+      AsyncLookupDoFnTest.refreshingCache()
+    ) {
+  override def getResourceType: ResourceType = ResourceType.PER_INSTANCE
+  override protected def newClient(): AsyncClient = null
+  override def asyncLookup(session: AsyncClient, input: Int): ListenableFuture[String] = {
+    AsyncLookupDoFnTest.refreshLookups.incrementAndGet()
+    Futures.immediateFuture("fresh")
+  }
+}
+
 class FailingGuavaLookupDoFn extends GuavaAsyncLookupDoFn[Int, String, AsyncClient]() {
   override def getResourceType: ResourceType = ResourceType.PER_INSTANCE
   override protected def newClient(): AsyncClient = null
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.scio.transforms
+
+import org.joda.time.Duration
+import org.scalatest.flatspec.AnyFlatSpec
+import org.scalatest.matchers.should.Matchers
+
+import java.util.concurrent.TimeUnit
+
+class ConcurrencyLimiterTest extends AnyFlatSpec with Matchers {
+  private val fast = TimeUnit.MILLISECONDS.toNanos(10)
+  private val slow = TimeUnit.SECONDS.toNanos(1)
+
+  private def roundTrip(limiter: ConcurrencyLimiter, latencyNanos: Long, failed: Boolean): Unit = {
+    limiter.acquire()
+    limiter.release(latencyNanos, failed)
+  }
+
+  "ConcurrencyLimiter.fixed" should "keep its limit" in {
+    val limiter = ConcurrencyLimiter.fixed(5)
+    (1 to 100).foreach(_ => roundTrip(limiter, slow, failed = true))
+    limiter.getLimit shouldBe 5
+  }
+
+  "ConcurrencyLimiter.aimd" should "grow additively and back off multiplicatively" in {
+    val limiter = ConcurrencyLimiter.aimd(4, 2, 6, Duration.millis(100), 0.5)
+    (1 to 4).foreach(_ => roundTrip(limiter, fast, failed = false))
+    limiter.getLimit shouldBe 5
+
+    roundTrip(limiter, slow, failed = false)
+    limiter.getLimit shouldBe 2
+    roundTrip(limiter, fast, failed = true)
+    limiter.getLimit shouldBe 2
+
+    (1 to 100).foreach(_ => roundTrip(limiter, fast, failed = false))
+    limiter.getLimit shouldBe 6
+  }
+
+  it should "not exceed a reduced limit with requests in flight" in {
+    val limiter = ConcurrencyLimiter.aimd(4, 2, 4, Duration.millis(100), 0.5)
+    (1 to 4).foreach(_ => limiter.acquire())
+    limiter.release(slow, false)
+    limiter.getLimit shouldBe 2
+
+    (1 to 3).foreach(_ => limiter.release(slow, true))
+    limiter.acquire()
+    limiter.acquire()
+    val blocked = new Thread(() => limiter.acquire())
+    blocked.start()
+    blocked.join(100)
+    blocked.isAlive shouldBe true
+
+    limiter.release(slow, true)
+    blocked.join(1000)
+    blocked.isAlive shouldBe false
+  }
+
+  "ConcurrencyLimiter.gradient" should "shrink while latency increases" in {
+    val limiter = ConcurrencyLimiter.gradient(50, 5, 100)
+    (1 to 100).foreach(_ => roundTrip(limiter, fast, failed = false))
+    val limit = limiter.getLimit
+    limit should be > 50
+
+    (1 to 20).foreach(_ => roundTrip(limiter, fast * 10, failed = false))
+    limiter.getLimit should be < limit
+  }
+
+  it should "back off on failures" in {
+    val limiter = ConcurrencyLimiter.gradient(50, 5, 100)
+    (1 to 100).foreach(_ => roundTrip(limiter, fast, failed = true))
+    limiter.getLimit shouldBe 5
+  }
+
+  "ConcurrencyLimiter" should "release all permits on reset" in {
+    val limiter = ConcurrencyLimiter.fixed(2)
+    limiter.acquire()
+    limiter.acquire()
+    limiter.reset()
+    limiter.acquire()
+    limiter.acquire()
+    limiter.getLimit shouldBe 2
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2023 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.scio.transforms
+
+import org.joda.time.Instant
+import org.scalatest.flatspec.AnyFlatSpec
+import org.scalatest.matchers.should.Matchers
+
+import scala.collection.mutable.ArrayBuffer
+
+class ResultRingTest extends AnyFlatSpec with Matchers {
+  private def drain(ring: ResultRing[Int, String, String]): Seq[(Int, String)] = {
+    val out = ArrayBuffer.empty[(Int, String)]
+    ring.drain { s =>
+      out += ((s.getInput, s.getOutput))
+      ()
+    }
+    out.toSeq
+  }
+
+  "ResultRing" should "drain completed slots behind a pending one" in {
+    val ring = new ResultRing[Int, String, String](4)
+    val slots = (0 until 3).map(i => ring.add(i, new Instant(i.toLong), null))
+    slots(1).accept("1")
+    drain(ring) shouldBe Seq((1, "1"))
+    drain(ring) shouldBe empty
+
+    slots(0).accept("0")
+    drain(ring) shouldBe Seq((0, "0"))
+    ring.isEmpty shouldBe false
+
+    slots(2).accept("2")
+    drain(ring) shouldBe Seq((2, "2"))
+    ring.isEmpty shouldBe true
+  }
+
+  it should "reuse slots drained early only once older slots are drained" in {
+    val ring = new ResultRing[Int, String, String](2)
+    val first = ring.add(0, Instant.EPOCH, null)
+    val second = ring.add(1, Instant.EPOCH, null)
+    second.accept("1")
+    drain(ring) shouldBe Seq((1, "1"))
+
+    // the drained slot is still held behind the pending one, so the ring grows
+    val third = ring.add(2, Instant.EPOCH, null)
+    third should not be theSameInstanceAs(second)
+    first.accept("0")
+    third.accept("2")
+    drain(ring) shouldBe Seq((0, "0"), (2, "2"))
+    ring.isEmpty shouldBe true
+  }
+
+  it should "grow while keeping pending slots" in {
+    val ring = new ResultRing[Int, String, String](2)
+    val first = ring.add(0, Instant.EPOCH, null)
+    first.accept("0")
+    drain(ring) shouldBe Seq((0, "0"))
+
+    // wraps around, then grows
+    val slots = (1 to 5).map(i => ring.add(i, Instant.EPOCH, null))
+    slots.reverse.foreach(s => s.accept(s.getInput.toString))
+    drain(ring) shouldBe (1 to 5).map(i => (i, i.toString))
+  }
+
+  it should "return the distinct futures of pending slots" in {
+    val ring = new ResultRing[Int, String, String](4)
+    val slots = (0 until 4).map(i => ring.add(i, Instant.EPOCH, null))
+    slots(0).setFuture("a")
+    slots(1).setFuture("a")
+    slots(2).setFuture("b")
+    ring.pendingFutures().toArray shouldBe Array("a", "b")
+  }
+
+  it should "not reuse pending slots once cleared" in {
+    val ring = new ResultRing[Int, String, String](2)
+    val stale = ring.add(0, Instant.EPOCH, null)
+    ring.clear()
+
+    val slot = ring.add(1, Instant.EPOCH, null)
+    stale.accept("0")
+    drain(ring) shouldBe empty
+    slot.accept("1")
+    drain(ring) shouldBe Seq((1, "1"))
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2023 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.spotify.scio.transforms
+
+import org.apache.beam.sdk.coders.StringUtf8Coder
+import org.apache.beam.sdk.util.SerializableUtils
+import org.joda.time.Duration
+import org.scalatest.flatspec.AnyFlatSpec
+import org.scalatest.matchers.should.Matchers
+
+class SharedCacheSupplierTest extends AnyFlatSpec with Matchers {
+  private def supplier: SharedCacheSupplier[String, String] =
+    new SharedCacheSupplier[String, String](100, Duration.standardHours(1))
+
+  "SharedCacheSupplier" should "share a cache between deserialized copies" in {
+    val s = supplier
+    s.get().put("k", "v")
+    SerializableUtils.clone(s).get().getIfPresent("k") shouldBe "v"
+    supplier.get().getIfPresent("k") shouldBe null
+  }
+
+  it should "share a cache between suppliers with the same ID" in {
+    supplier.withId("shared-cache-test").get().put("k", "v")
+    supplier.withId("shared-cache-test").get().getIfPresent("k") shouldBe "v"
+  }
+
+  it should "cache failures only with negative caching" in {
+    val e = new RuntimeException("failure")
+    val cache = supplier.get()
+    cache.putFailure("k", e)
+    cache.getFailureIfPresent("k") shouldBe null
+
+    val negativeCache = supplier.withNegativeCaching(Duration.standardMinutes(1)).get()
+    negativeCache.putFailure("k", e)
+    negativeCache.getFailureIfPresent("k") shouldBe e
+    negativeCache.getIfPresent("k") shouldBe null
+
+    negativeCache.put("k", "v")
+    negativeCache.getFailureIfPresent("k") shouldBe null
+    negativeCache.getIfPresent("k") shouldBe "v"
+  }
+
+  it should "refresh an entry once" in {
+    val cache = supplier.withRefreshAfterWrite(Duration.millis(1)).get()
+    cache.put("k", "v")
+    Thread.sleep(10)
+    cache.shouldRefresh("k") shouldBe true
+    cache.shouldRefresh("k") shouldBe false
+    cache.shouldRefresh("missing") shouldBe false
+
+    cache.put("k", "v2")
+    cache.shouldRefresh("k") shouldBe false
+  }
+
+  it should "keep values off-heap" in {
+    val cache = supplier.withOffHeapValues(StringUtf8Coder.of(), 1024).get()
+    val value = "v" * 100
+    cache.put("k", value)
+    cache.getIfPresent("k") shouldBe value
+    cache.getIfPresent("k") should not be theSameInstanceAs(value)
+  }
+}